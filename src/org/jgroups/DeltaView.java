@@ -0,0 +1,142 @@
+package org.jgroups;
+
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.*;
+
+/**
+ * Subclass of {@link View} which doesn't ship the members, but only the members which left (or were suspected) and
+ * the members which joined, relative to a reference view. Used by GMS to cast view changes: the receivers create the
+ * new view by removing the left members from the reference view and appending the new members. A receiver which
+ * doesn't have the reference view installed fetches the full view from the coordinator.
+ * <p/>
+ * A DeltaView has no members and must never be passed up (or down) the stack.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class DeltaView extends View {
+    /** The view to which left_members and new_members refer */
+    protected ViewId    ref_view_id;
+    protected Address[] left_members;
+    protected Address[] new_members;
+
+
+    /** Used for (de-)serialization */
+    public DeltaView() {
+    }
+
+    public DeltaView(ViewId view_id, ViewId ref_view_id, Address[] left_members, Address[] new_members) {
+        super(view_id, Collections.<Address>emptyList());
+        this.ref_view_id=ref_view_id;
+        this.left_members=left_members;
+        this.new_members=new_members;
+        if(view_id == null)
+            throw new IllegalArgumentException("view_id cannot be null");
+        if(ref_view_id == null)
+            throw new IllegalArgumentException("ref_view_id cannot be null");
+    }
+
+    public ViewId    getRefViewId()   {return ref_view_id;}
+    public Address[] getLeftMembers() {return left_members;}
+    public Address[] getNewMembers()  {return new_members;}
+
+    /**
+     * Creates a DeltaView from the current view to the next view, or returns null if next_view cannot be created from
+     * current_view by removing members and appending new ones (e.g. because the order of the members changed)
+     */
+    public static DeltaView create(View current_view, View next_view) {
+        if(current_view == null || next_view == null || next_view instanceof MergeView)
+            return null;
+        Set<Address> current=new HashSet<Address>(current_view.getMembers()), next=new HashSet<Address>(next_view.getMembers());
+        List<Address> left=new ArrayList<Address>(), joined=new ArrayList<Address>();
+        for(Address mbr: current_view.getMembers())
+            if(!next.contains(mbr))
+                left.add(mbr);
+        for(Address mbr: next_view.getMembers())
+            if(!current.contains(mbr))
+                joined.add(mbr);
+        DeltaView delta=new DeltaView(next_view.getViewId(), current_view.getViewId(),
+                                      left.toArray(new Address[left.size()]), joined.toArray(new Address[joined.size()]));
+        return delta.createView(current_view).getMembers().equals(next_view.getMembers())? delta : null;
+    }
+
+    /**
+     * Creates the full view from the reference view
+     * @throws IllegalStateException If ref_view isn't the reference view of this delta view
+     */
+    public View createView(View ref_view) {
+        if(ref_view == null || !ref_view_id.equals(ref_view.getViewId()))
+            throw new IllegalStateException("the reference view of " + vid + " is " + ref_view_id + ", but view is " +
+                                              (ref_view != null? ref_view.getViewId() : null));
+        List<Address> mbrs=new ArrayList<Address>(ref_view.getMembers());
+        if(left_members != null)
+            mbrs.removeAll(Arrays.asList(left_members));
+        if(new_members != null)
+            for(Address mbr: new_members)
+                if(!mbrs.contains(mbr))
+                    mbrs.add(mbr);
+        return new View(vid.copy(), mbrs);
+    }
+
+    public View copy() {
+        return new DeltaView(vid.copy(), ref_view_id.copy(), left_members != null? left_members.clone() : null,
+                             new_members != null? new_members.clone() : null);
+    }
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder(64);
+        sb.append(vid).append(" (ref view ").append(ref_view_id).append(")");
+        if(left_members != null && left_members.length > 0)
+            sb.append(", left: ").append(Util.printListWithDelimiter(Arrays.asList(left_members), ", ", Util.MAX_LIST_PRINT_SIZE));
+        if(new_members != null && new_members.length > 0)
+            sb.append(", joined: ").append(Util.printListWithDelimiter(Arrays.asList(new_members), ", ", Util.MAX_LIST_PRINT_SIZE));
+        return sb.toString();
+    }
+
+    public void writeTo(DataOutput out) throws Exception {
+        vid.writeTo(out);
+        ref_view_id.writeTo(out);
+        writeAddresses(left_members, out);
+        writeAddresses(new_members, out);
+    }
+
+    public void readFrom(DataInput in) throws Exception {
+        vid=new ViewId();
+        vid.readFrom(in);
+        ref_view_id=new ViewId();
+        ref_view_id.readFrom(in);
+        left_members=readAddresses(in);
+        new_members=readAddresses(in);
+        members=Collections.emptyList();
+    }
+
+    public int serializedSize() {
+        int retval=vid.serializedSize() + ref_view_id.serializedSize();
+        retval+=Global.SHORT_SIZE *2;
+        if(left_members != null)
+            for(Address mbr: left_members)
+                retval+=Util.size(mbr);
+        if(new_members != null)
+            for(Address mbr: new_members)
+                retval+=Util.size(mbr);
+        return retval;
+    }
+
+
+    protected static void writeAddresses(Address[] mbrs, DataOutput out) throws Exception {
+        out.writeShort(mbrs != null? mbrs.length : 0);
+        if(mbrs != null)
+            for(Address mbr: mbrs)
+                Util.writeAddress(mbr, out);
+    }
+
+    protected static Address[] readAddresses(DataInput in) throws Exception {
+        int len=in.readShort();
+        Address[] retval=new Address[len];
+        for(int i=0; i < len; i++)
+            retval[i]=Util.readAddress(in);
+        return retval;
+    }
+}
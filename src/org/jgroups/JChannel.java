@@ -264,6 +264,29 @@ public class JChannel extends Channel {
         return timer != null? timer.dumpTimerTasks() : "<n/a";
     }
 
+    @ManagedOperation(description="Enables or disables the recording of the times messages spend in the protocols, " +
+      "the thread pools and from send to delivery")
+    public void instrument(boolean flag) {
+        ProtocolStack ps=getProtocolStack();
+        if(ps != null)
+            ps.instrument(flag);
+    }
+
+    @ManagedOperation(description="Prints the latency histograms recorded by the instrumentation")
+    public String printInstrumentation() {
+        ProtocolStack ps=getProtocolStack();
+        Instrumentation instrumentation=ps != null? ps.getInstrumentation() : null;
+        return instrumentation != null? instrumentation.print() : "n/a";
+    }
+
+    @ManagedOperation(description="Resets the latency histograms recorded by the instrumentation")
+    public void resetInstrumentation() {
+        ProtocolStack ps=getProtocolStack();
+        Instrumentation instrumentation=ps != null? ps.getInstrumentation() : null;
+        if(instrumentation != null)
+            instrumentation.reset();
+    }
+
     /**
      * Returns a pretty-printed form of all the protocols. If include_properties
      * is set, the properties for each protocol will also be printed.
@@ -718,8 +741,12 @@ public class JChannel extends Channel {
         if(up_handler != null)
             return up_handler.up(evt);
 
-        if(receiver != null)
-            return invokeCallback(evt.getType(), evt.getArg());
+        if(receiver != null) {
+            Object retval=invokeCallback(evt.getType(), evt.getArg());
+            if(evt.getType() == Event.MSG)
+                ((Message)evt.getArg()).release(); // the buffer may be a slice of a pooled receive buffer
+            return retval;
+        }
         return null;
     }
 
@@ -735,7 +762,26 @@ public class JChannel extends Channel {
         if(discard_own_messages && local_addr != null && batch.sender() != null && local_addr.equals(batch.sender()))
             return;
 
+        // an up-handler which is a protocol (e.g. the one of a MessageDispatcher) gets the entire batch
+        if(up_handler instanceof Protocol) {
+            if(discard_own_messages && batch.sender() == null && local_addr != null) {
+                for(Iterator<Message> it=batch.iterator(); it.hasNext();)
+                    if(local_addr.equals(it.next().getSrc()))
+                        it.remove();
+            }
+            try {
+                ((Protocol)up_handler).up(batch);
+            }
+            catch(Throwable t) {
+                log.error("failed passing batch to up-handler", t);
+            }
+            return;
+        }
+
         for(Message msg: batch) {
+            // batches without a sender (e.g. from TOA) may contain own messages
+            if(discard_own_messages && batch.sender() == null && local_addr != null && local_addr.equals(msg.getSrc()))
+                continue;
             if(up_handler != null) {
                 try {
                     up_handler.up(new Event(Event.MSG, msg));
@@ -751,6 +797,9 @@ public class JChannel extends Channel {
                 catch(Throwable t) {
                     log.error("failed passing message to receiver", t);
                 }
+                finally {
+                    msg.release(); // the buffer may be a slice of a pooled receive buffer
+                }
             }
         }
     }
@@ -5,10 +5,7 @@ package org.jgroups;
 import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
-import org.jgroups.util.Buffer;
-import org.jgroups.util.Headers;
-import org.jgroups.util.Streamable;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
 import java.io.*;
 import java.util.Map;
@@ -41,6 +38,9 @@ public class Message implements Streamable {
     /** All headers are placed here */
     protected Headers          headers;
 
+    /** The pooled receive buffer of which buf is a slice, or null if buf is not pooled */
+    protected PooledBuffer     pooled_buf;
+
     protected volatile short   flags;
 
     protected volatile byte    transient_flags; // transient_flags is neither marshalled nor copied
@@ -325,6 +325,34 @@ public class Message implements Streamable {
         return length;
     }
 
+    /** Returns true if the buffer is a slice of a pooled receive buffer (see {@link org.jgroups.util.BufferPool}) */
+    public boolean isPooled() {
+        return pooled_buf != null;
+    }
+
+    /**
+     * Adds a reference to the pooled receive buffer (if any), so that it isn't reused while this message is still
+     * being held, e.g. in a retransmission table. Has to be matched by a call to {@link #release()}.
+     */
+    public Message retain() {
+        PooledBuffer tmp=pooled_buf;
+        if(tmp != null)
+            tmp.retain();
+        return this;
+    }
+
+    /**
+     * Releases a reference to the pooled receive buffer (if any). When all messages read from the same pooled buffer
+     * have been released, the buffer is returned to the pool and its contents will be overwritten. This is a no-op
+     * if the buffer is not pooled.
+     */
+    public Message release() {
+        PooledBuffer tmp=pooled_buf;
+        if(tmp != null)
+            tmp.release();
+        return this;
+    }
+
    /**
     * Returns a reference to the headers hashmap, which is <em>immutable</em>. Any attempt to modify
     * the returned map will cause a runtime exception
@@ -561,9 +589,13 @@ public class Message implements Streamable {
         retval.transient_flags=transient_flags;
 
         if(copy_buffer && buf != null) {
-
-            // change bela Feb 26 2004: we don't resolve the reference
-            retval.setBuffer(buf, offset, length);
+            if(pooled_buf != null) { // the pooled buffer may be reused once this message has been released
+                byte[] tmp=new byte[length];
+                System.arraycopy(buf, offset, tmp, 0, length);
+                retval.setBuffer(tmp);
+            }
+            else // change bela Feb 26 2004: we don't resolve the reference
+                retval.setBuffer(buf, offset, length);
         }
 
         retval.headers=copy_headers? createHeaders(headers) : createHeaders(3);
@@ -768,6 +800,17 @@ public class Message implements Streamable {
 
 
     public void readFrom(DataInput in) throws Exception {
+        readFrom(in, null, null);
+    }
+
+    /**
+     * Reads the message from in. If pooled is not null, the payload is not copied: the message's buffer is then a
+     * slice of the pooled buffer, which is retained until {@link #release()} is called.
+     * @param in The input, which has to read from in_stream directly (no buffering)
+     * @param in_stream The stream reading from pooled. Only used when pooled is not null
+     * @param pooled The pooled buffer; if null, the payload is copied into a new byte[] buffer
+     */
+    public void readFrom(DataInput in, ExposedByteArrayInputStream in_stream, PooledBuffer pooled) throws Exception {
 
         // 1. read the leading byte first
         byte leading=in.readByte();
@@ -786,8 +829,18 @@ public class Message implements Streamable {
         // 5. buf
         if(Util.isFlagSet(leading, BUF_SET)) {
             int len=in.readInt();
-            buf=new byte[len];
-            in.readFully(buf, 0, len);
+            if(pooled != null) {
+                int pos=in_stream.position();
+                if(in_stream.skip(len) != len)
+                    throw new EOFException("payload of " + len + " bytes exceeds the received buffer");
+                buf=pooled.getBuf();
+                offset=pos;
+                pooled_buf=pooled.retain();
+            }
+            else {
+                buf=new byte[len];
+                in.readFully(buf, 0, len);
+            }
             length=len;
         }
 
@@ -0,0 +1,43 @@
+package org.jgroups;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Implemented by applications whose state consists of independent segments (e.g. the buckets of a hash map, or the
+ * files of a directory), which can be written and read independently of each other. This allows
+ * {@link org.jgroups.protocols.pbcast.STATE_PARALLEL} to transfer multiple segments concurrently, possibly from
+ * different state providers.
+ * <p/>
+ * The receiver of a channel implementing this interface is detected automatically; applications using a
+ * {@link org.jgroups.blocks.MessageDispatcher} need to register the listener with
+ * {@link org.jgroups.protocols.pbcast.STATE_PARALLEL#setSegmentedStateListener(SegmentedStateListener)}.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public interface SegmentedStateListener {
+
+    /**
+     * Returns the number of segments of the state. Invoked in the (first) state provider only; the segments are
+     * numbered from 0 to getNumberOfSegments()-1 and all state providers need to agree on them
+     */
+    int getNumberOfSegments();
+
+    /**
+     * Writes the given segment to output. Invoked concurrently for different segments. The stream doesn't need to
+     * be closed.
+     * @param segment The segment, 0 <= segment < {@link #getNumberOfSegments()}
+     * @param output The stream to write the segment to
+     * @throws Exception Thrown if the segment cannot be written; this fails the state transfer in the requester
+     */
+    void getSegment(int segment, OutputStream output) throws Exception;
+
+    /**
+     * Reads the given segment from input. Invoked concurrently for different segments, in no particular order. The
+     * stream doesn't need to be closed.
+     * @param segment The segment, 0 <= segment < {@link #getNumberOfSegments()}
+     * @param input The stream to read the segment from
+     * @throws Exception Thrown if the segment cannot be read; this fails the state transfer
+     */
+    void setSegment(int segment, InputStream input) throws Exception;
+}
@@ -0,0 +1,24 @@
+package org.jgroups;
+
+/**
+ * A {@link SegmentedStateListener} which assigns a version to every segment, e.g. a counter incremented on every
+ * modification of the segment, or a hash of its contents. A member (re)joining with an existing local state then only
+ * fetches the segments whose versions differ from the ones of the state provider (delta state transfer), which is
+ * typically a small fraction of the state if the member was only down for a short time.
+ * <p/>
+ * The version of a segment needs to be transferred with the segment, e.g. by writing it to the output stream in
+ * {@link #getSegment(int, java.io.OutputStream)}, so that it can be restored in
+ * {@link #setSegment(int, java.io.InputStream)}.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public interface VersionedStateListener extends SegmentedStateListener {
+
+    /**
+     * Returns the version of the given segment. The segment is transferred if the versions of the state provider and
+     * requester differ. Segments which don't exist in the local state should return a version that is never used
+     * by existing segments, e.g. -1.
+     * @param segment The segment, which may be greater than the number of local segments
+     */
+    long getVersion(int segment);
+}
@@ -0,0 +1,41 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+
+/**
+ * Completes a group request as soon as a given number of valid (non-exception) responses have been received, e.g. to
+ * wait for the first 2 out of 5 responses, or for a quorum. Exceptions are added to the response list, but are not
+ * counted. Needs to be used with {@link ResponseMode#GET_ALL}; the request completes anyway when all targets have
+ * responded or were suspected.<p/>
+ * An instance is stateful and can only be used for a single request.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class FirstNFilter implements RspFilter {
+    protected final int num;
+    protected int       num_valid;
+
+    /** @param num The number of valid responses to wait for */
+    public FirstNFilter(int num) {
+        this.num=num;
+    }
+
+    /** Creates a filter waiting for the responses of a majority of num_targets */
+    public static FirstNFilter quorum(int num_targets) {
+        return new FirstNFilter(num_targets / 2 + 1);
+    }
+
+    public synchronized boolean isAcceptable(Object response, Address sender) {
+        if(!(response instanceof Throwable))
+            num_valid++;
+        return true;
+    }
+
+    public synchronized boolean needMoreResponses() {
+        return num_valid < num;
+    }
+
+    public String toString() {
+        return "first " + num;
+    }
+}
@@ -6,13 +6,11 @@ import org.jgroups.Message;
 import org.jgroups.View;
 import org.jgroups.annotations.GuardedBy;
 import org.jgroups.protocols.relay.SiteAddress;
+import org.jgroups.util.ComposableFuture;
 import org.jgroups.util.Rsp;
 import org.jgroups.util.RspList;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -51,7 +49,7 @@ import java.util.concurrent.TimeoutException;
  * 
  * @author Bela Ban
  */
-public class GroupRequest<T> extends Request {
+public class GroupRequest<T> extends Request<RspList<T>> {
 
     /** Correlates requests and responses */
     @GuardedBy("lock")
@@ -63,6 +61,8 @@ public class GroupRequest<T> extends Request {
     @GuardedBy("lock")
     int num_received;    // number of responses (values, exceptions or suspicions)
 
+    protected volatile RspListener<T> rsp_listener; // notified of every response
+
 
 
     
@@ -99,6 +99,26 @@ public class GroupRequest<T> extends Request {
     }
 
 
+    public RspListener<T> getRspListener() {
+        return rsp_listener;
+    }
+
+    /** Sets a listener which is notified of every response as soon as it has been received. Call before execute() */
+    public GroupRequest<T> setRspListener(RspListener<T> rsp_listener) {
+        this.rsp_listener=rsp_listener;
+        return this;
+    }
+
+    /**
+     * Sends the request without blocking. The returned future is completed with the results when all required
+     * responses have been received, or with the results received so far when the timeout (if set) expires
+     */
+    public ComposableFuture<RspList<T>> executeAsync() throws Exception {
+        ComposableFuture<RspList<T>> future=new ComposableFuture<RspList<T>>();
+        executeAsync(future);
+        return future;
+    }
+
     public void sendRequest() throws Exception {
         sendRequest(requests.keySet(), req_id);
     }
@@ -143,6 +163,8 @@ public class GroupRequest<T> extends Request {
         finally {
             lock.unlock();
         }
+        if(responseReceived)
+            notifyRspListener(rsp);
         if(responseReceived || done)
             checkCompletion(this);
     }
@@ -175,8 +197,10 @@ public class GroupRequest<T> extends Request {
             }
         }
 
-        if(changed)
+        if(changed) {
+            notifyRspListener(rsp);
             checkCompletion(this);
+        }
     }
 
     public void siteUnreachable(short site) {
@@ -201,6 +225,7 @@ public class GroupRequest<T> extends Request {
                         finally {
                             lock.unlock();
                         }
+                        notifyRspListener(rsp);
                     }
                 }
 
@@ -235,7 +260,7 @@ public class GroupRequest<T> extends Request {
         if(mbrs == null)
             return;
 
-        boolean changed=false;
+        List<Rsp<T>> changed=null;
 
         lock.lock();
         try {
@@ -247,23 +272,28 @@ public class GroupRequest<T> extends Request {
                     if(rsp.setSuspected()) {
                         if(!(rsp.wasReceived() || rsp.wasUnreachable()))
                             num_received++;
-                        changed=true;
+                        if(changed == null)
+                            changed=new ArrayList<Rsp<T>>();
+                        changed.add(rsp);
                     }
                 }
             }
-            if(changed)
+            if(changed != null)
                 completed.signalAll();
         }
         finally {
             lock.unlock();
         }
-        if(changed)
+        if(changed != null) {
+            for(Rsp<T> rsp: changed)
+                notifyRspListener(rsp);
             checkCompletion(this);
+        }
     }
 
     /** Marks all responses with an exception (unless a response was already marked as done) */
     public void transportClosed() {
-        boolean changed=false;
+        List<Rsp<T>> changed=null;
 
         lock.lock();
         try {
@@ -272,18 +302,23 @@ public class GroupRequest<T> extends Request {
                 if(rsp != null && !(rsp.wasReceived() || rsp.wasSuspected() || rsp.wasUnreachable())) {
                     rsp.setException(new IllegalStateException("transport was closed"));
                     num_received++;
-                    changed=true;
+                    if(changed == null)
+                        changed=new ArrayList<Rsp<T>>();
+                    changed.add(rsp);
                 }
             }
-            if(changed) {
+            if(changed != null) {
                 completed.signalAll();
             }
         }
         finally {
             lock.unlock();
         }
-        if(changed)
+        if(changed != null) {
+            for(Rsp<T> rsp: changed)
+                notifyRspListener(rsp);
             checkCompletion(this);
+        }
     }
 
     /* -------------------- End of Interface RspCollector ----------------------------------- */
@@ -341,6 +376,22 @@ public class GroupRequest<T> extends Request {
 
     /* --------------------------------- Private Methods -------------------------------------*/
 
+    protected void complete(ComposableFuture<RspList<T>> future) {
+        future.complete(getResults());
+    }
+
+    protected void notifyRspListener(Rsp<T> rsp) {
+        RspListener<T> tmp=rsp_listener;
+        if(tmp == null)
+            return;
+        try {
+            tmp.responseReceived(rsp);
+        }
+        catch(Throwable t) {
+            log.error("failed notifying " + tmp + " of response " + rsp, t);
+        }
+    }
+
     private void setTarget(Address mbr) {
         requests.put(mbr, new Rsp<T>(mbr));
     }
@@ -4,8 +4,6 @@ import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.util.Util;
 
-import javax.management.MBeanRegistrationException;
-import javax.management.MalformedObjectNameException;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.ServerSocket;
@@ -38,6 +36,10 @@ public class MemcachedConnector implements Runnable {
     @ManagedAttribute(writable=true)
     private long idle_time=5000L;
 
+    /** "pool", "virtual" or the name of an ExecutorFactory class, see {@link Util#createExecutorFactory(String)} */
+    @ManagedAttribute(writable=false)
+    private String thread_pool_type="pool";
+
     private Executor thread_pool;
     private long start_time;
 
@@ -103,6 +105,14 @@ public class MemcachedConnector implements Runnable {
         this.idle_time=idle_time;
     }
 
+    public String getThreadPoolType() {
+        return thread_pool_type;
+    }
+
+    public void setThreadPoolType(String thread_pool_type) {
+        this.thread_pool_type=thread_pool_type;
+    }
+
     public Executor getThreadPool() {
         return thread_pool;
     }
@@ -124,11 +134,12 @@ public class MemcachedConnector implements Runnable {
 
 
     @ManagedOperation
-    public void start() throws IOException, MalformedObjectNameException, MBeanRegistrationException {
+    public void start() throws Exception {
         srv_sock=new ServerSocket(port, 50, bind_addr);
         if(thread_pool == null) {
-            thread_pool=new ThreadPoolExecutor(core_threads, max_threads, idle_time, TimeUnit.MILLISECONDS,
-                                               new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+            thread_pool=Util.createExecutorFactory(thread_pool_type).create("Memcached", core_threads, max_threads, idle_time,
+                                                                            new SynchronousQueue<Runnable>(),
+                                                                            new ThreadPoolExecutor.CallerRunsPolicy(), null);
             // thread_pool=new DirectExecutor();
         }
         if(thread == null || !thread.isAlive()) {
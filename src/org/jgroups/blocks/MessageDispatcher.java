@@ -141,6 +141,7 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
                 corr.registerProbeHandler(transport);
             }
             TP transport=channel.getProtocolStack().getTransport();
+            corr.setTimer(transport.getTimer());
             hardware_multicast_supported=transport.supportsMulticasting();
             transport.registerProbeHandler(probe_handler);
         }
@@ -290,8 +291,57 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
 
 
 
+    /**
+     * Sends a message to all members and returns a future without blocking. No thread is blocked while waiting for
+     * the responses: the future is completed by the thread delivering the last required response (or by the timeout
+     * wheel of the request correlator if a timeout is defined in options), so any number of requests can be
+     * outstanding at the same time.
+     * @param dests A list of group members from which to expect responses. If null, all members are used
+     * @param msg The message to be sent
+     * @param options A set of options that govern the call. See {@link org.jgroups.blocks.RequestOptions} for details.
+     *                Use a {@link FirstNFilter} as response filter to complete the request after the first N responses
+     * @param rsp_listener A listener (if non null) which is notified of every response as soon as it is received
+     * @return ComposableFuture<RspList<T>> A future which is completed with the responses
+     * @throws Exception If the request cannot be sent
+     */
+    public <T> ComposableFuture<RspList<T>> castMessageAsync(final Collection<Address> dests, Message msg,
+                                                              RequestOptions options,
+                                                              RspListener<T> rsp_listener) throws Exception {
+        GroupRequest<T> req=createGroupRequest(dests, msg, options);
+        if(req == null) {
+            ComposableFuture<RspList<T>> retval=new ComposableFuture<RspList<T>>();
+            retval.complete(new RspList<T>());
+            return retval;
+        }
+        req.setRspListener(rsp_listener);
+        return req.executeAsync();
+    }
+
+    /**
+     * Sends a message to all members and returns a future without blocking
+     * @see #castMessageAsync(java.util.Collection, org.jgroups.Message, RequestOptions, RspListener)
+     */
+    public <T> ComposableFuture<RspList<T>> castMessageAsync(final Collection<Address> dests, Message msg,
+                                                              RequestOptions options) throws Exception {
+        return castMessageAsync(dests, msg, options, null);
+    }
+
+
     protected <T> GroupRequest<T> cast(final Collection<Address> dests, Message msg, RequestOptions options,
                                        boolean block_for_results, FutureListener<T> listener) throws Exception {
+        GroupRequest<T> req=createGroupRequest(dests, msg, options);
+        if(req == null)
+            return null;
+        if(listener != null)
+            req.setListener(listener);
+        req.setBlockForResults(block_for_results);
+        req.execute();
+        return req;
+    }
+
+    /** Creates a request for the valid destinations, or returns null if there are none */
+    protected <T> GroupRequest<T> createGroupRequest(final Collection<Address> dests, Message msg,
+                                                     RequestOptions options) {
         List<Address> real_dests;
 
         // we need to clone because we don't want to modify the original
@@ -345,8 +395,6 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
         }
 
         GroupRequest<T> req=new GroupRequest<T>(msg, corr, real_dests, options);
-        if(listener != null)
-            req.setListener(listener);
         if(options != null) {
             req.setResponseFilter(options.getRspFilter());
             req.setAnycasting(options.getAnycasting());
@@ -354,8 +402,6 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
             if(options.getScope() > 0)
                 msg.setScope(options.getScope());
         }
-        req.setBlockForResults(block_for_results);
-        req.execute();
         return req;
     }
 
@@ -457,6 +503,35 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
     }
 
 
+    /**
+     * Sends a unicast message to the target defined by msg.getDest() and returns a future without blocking. The future
+     * is completed with the result, or fails with the exception thrown by the target, a {@link SuspectedException},
+     * an {@link UnreachableException} or a TimeoutException (if a timeout is defined in options)
+     * @param msg The unicast message to be sent. msg.getDest() must not be null
+     * @param options The options to be used
+     * @return ComposableFuture<T> A future which is completed with the result
+     * @throws Exception If the request cannot be sent
+     */
+    public <T> ComposableFuture<T> sendMessageAsync(Message msg, RequestOptions options) throws Exception {
+        Address dest=msg.getDest();
+        if(dest == null)
+            throw new IllegalArgumentException("message destination is null, cannot send message");
+
+        if(options != null) {
+            msg.setFlag(options.getFlags());
+            if(options.getScope() > 0)
+                msg.setScope(options.getScope());
+            if(options.getMode() == ResponseMode.GET_NONE)
+                async_unicasts.incrementAndGet();
+            else
+                sync_unicasts.incrementAndGet();
+        }
+
+        UnicastRequest<T> req=new UnicastRequest<T>(msg, corr, dest, options);
+        return req.executeAsync();
+    }
+
+
     /**
      * Sends a unicast message to the target defined by msg.getDest() and returns a future
      * @param msg The unicast message to be sent. msg.getDest() must not be null
@@ -673,6 +748,25 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
             return null;
         }
 
+        /**
+         * Handles the messages of the batch in a single pass, in the order of the batch: requests and responses are
+         * dispatched by the request correlator, all other messages are passed up. This preserves the order of the
+         * messages of the sender of the batch
+         */
+        public void up(MessageBatch batch) {
+            if(corr == null)
+                return;
+            for(Message msg: batch) {
+                try {
+                    if(!corr.receiveMessage(msg))
+                        handleUpEvent(new Event(Event.MSG, msg));
+                }
+                catch(Throwable t) {
+                    log.error("failed handling message from " + msg.getSrc(), t);
+                }
+            }
+        }
+
 
 
         public Object down(Event evt) {
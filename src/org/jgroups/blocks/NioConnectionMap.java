@@ -0,0 +1,912 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Version;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.ThreadFactory;
+import org.jgroups.util.Util;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Manages TCP connections between members with non-blocking socket channels. Contrary to {@link TCPConnectionMap},
+ * which uses an acceptor thread plus one receiver (and optionally one sender) thread per connection, all connections
+ * are multiplexed over a fixed number of I/O threads (reactors), each running its own {@link Selector}.
+ * <p/>
+ * Messages are framed by their length and the handshake (cookie, version, local address) is the same as in
+ * TCPConnectionMap, so both can talk to each other. Reads go into a direct buffer per connection; messages larger
+ * than the buffer are read into a buffer of their own.
+ * <p/>
+ * A send tries to write the message directly (gathering the length and the data into one write). If the socket's
+ * send buffer is full, the rest of the message is queued and the reactor writes all queued messages with a single
+ * gathering write when the socket becomes writable again. When more than max_queued_bytes are queued for a
+ * connection, the sender (usually the bundler) blocks for max_send_block_time ms at most; if the queue is still full,
+ * the message is dropped and will be retransmitted.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class NioConnectionMap {
+    protected final Mapper              mapper;
+    protected final InetAddress         bind_addr;
+    protected InetAddress               client_bind_addr;
+    protected int                       client_bind_port;
+    protected boolean                   defer_client_binding;
+    protected final Address             local_addr; // bind_addr + port of srv_ch
+    protected final ServerSocketChannel srv_ch;
+    protected TCPConnectionMap.Receiver recvr;
+    protected final long                conn_expire_time;
+    protected Log                       log=LogFactory.getLog(getClass());
+    protected int                       recv_buf_size=120000;
+    protected int                       send_buf_size=60000;
+    protected int                       sock_conn_timeout=1000;      // max time in millis to wait for connect() to return
+    protected int                       peer_addr_read_timeout=2000; // max time in millis to wait for the peer address
+    protected boolean                   tcp_nodelay=false;
+    protected int                       linger=-1;
+    protected int                       read_buffer_size=64 * 1024;
+    protected int                       max_queued_bytes=2 * 1024 * 1024;
+    protected long                      max_send_block_time=2000;
+    protected final Reactor[]           reactors;
+    protected final AtomicInteger       next_reactor=new AtomicInteger(0);
+    protected final AtomicBoolean       running=new AtomicBoolean(false);
+    protected final AtomicLong          num_blocked_sends=new AtomicLong(0);
+    protected final AtomicLong          num_dropped_sends=new AtomicLong(0);
+    protected final byte[]              cookie={'b', 'e', 'l', 'a'};
+
+
+    public NioConnectionMap(String service_name,
+                            ThreadFactory f,
+                            TCPConnectionMap.Receiver r,
+                            InetAddress bind_addr,
+                            InetAddress external_addr,
+                            int external_port,
+                            int srv_port,
+                            int max_port,
+                            int io_threads) throws Exception {
+        this(service_name, f, r, bind_addr, external_addr, external_port, srv_port, max_port, io_threads, 0, 0);
+    }
+
+    public NioConnectionMap(String service_name,
+                            ThreadFactory f,
+                            TCPConnectionMap.Receiver r,
+                            InetAddress bind_addr,
+                            InetAddress external_addr,
+                            int external_port,
+                            int srv_port,
+                            int max_port,
+                            int io_threads,
+                            long reaper_interval,
+                            long conn_expire_time) throws Exception {
+        if(io_threads < 1)
+            throw new IllegalArgumentException("io_threads (" + io_threads + ") has to be >= 1");
+        this.mapper=new Mapper(f, reaper_interval);
+        this.recvr=r;
+        this.bind_addr=bind_addr;
+        this.conn_expire_time=conn_expire_time;
+        this.srv_ch=createServerSocketChannel(bind_addr, srv_port, max_port);
+        int local_port=srv_ch.socket().getLocalPort();
+
+        if(external_addr != null)
+            local_addr=new IpAddress(external_addr, external_port <= 0? local_port : external_port);
+        else if(bind_addr != null)
+            local_addr=new IpAddress(bind_addr, local_port);
+        else
+            local_addr=new IpAddress(local_port);
+
+        reactors=new Reactor[io_threads];
+        try {
+            for(int i=0; i < reactors.length; i++)
+                reactors[i]=new Reactor(f, "NioConnectionMap.Reactor-" + (i+1) + " [" + local_addr + "]");
+        }
+        catch(IOException ex) {
+            for(Reactor reactor: reactors)
+                if(reactor != null)
+                    Util.close(reactor.selector);
+            Util.close(srv_ch);
+            throw ex;
+        }
+    }
+
+    public Address                   getLocalAddress()                       {return local_addr;}
+    public TCPConnectionMap.Receiver getReceiver()                           {return recvr;}
+    public void                      setReceiver(TCPConnectionMap.Receiver r){this.recvr=r;}
+    public InetAddress               clientBindAddress()                     {return client_bind_addr;}
+    public NioConnectionMap          clientBindAddress(InetAddress addr)     {this.client_bind_addr=addr; return this;}
+    public int                       clientBindPort()                        {return client_bind_port;}
+    public NioConnectionMap          clientBindPort(int port)                {this.client_bind_port=port; return this;}
+    public boolean                   deferClientBinding()                    {return defer_client_binding;}
+    public NioConnectionMap          deferClientBinding(boolean defer)       {this.defer_client_binding=defer; return this;}
+    public void                      setReceiveBufferSize(int size)          {this.recv_buf_size=size;}
+    public void                      setSendBufferSize(int size)             {this.send_buf_size=size;}
+    public void                      setSocketConnectionTimeout(int timeout) {this.sock_conn_timeout=timeout;}
+    public NioConnectionMap          peerAddressReadTimeout(int timeout)     {this.peer_addr_read_timeout=timeout; return this;}
+    public void                      setLinger(int linger)                   {this.linger=linger;}
+    public void                      setTcpNodelay(boolean tcp_nodelay)      {this.tcp_nodelay=tcp_nodelay;}
+    public NioConnectionMap          readBufferSize(int size)                {this.read_buffer_size=size; return this;}
+    public NioConnectionMap          maxQueuedBytes(int max)                 {this.max_queued_bytes=max; return this;}
+    public NioConnectionMap          maxSendBlockTime(long time)             {this.max_send_block_time=time; return this;}
+    public int                       getNumIoThreads()                       {return reactors.length;}
+    public long                      getNumBlockedSends()                    {return num_blocked_sends.get();}
+    public long                      getNumDroppedSends()                    {return num_dropped_sends.get();}
+    public int                       getNumConnections()                     {return mapper.getNumConnections();}
+    public int                       getNumOpenConnections()                 {return mapper.getNumOpenConnections();}
+    public boolean                   connectionEstablishedTo(Address addr)   {return mapper.connectionEstablishedTo(addr);}
+    public String                    printConnections()                      {return mapper.printConnections();}
+    public void                      retainAll(Collection<Address> members)  {mapper.retainAll(members);}
+    public long                      getConnectionExpiryTimeout()            {return conn_expire_time;}
+    public NioConnectionMap          log(Log new_log)                        {this.log=new_log; return this;}
+
+    /** Returns the number of bytes queued for sending over all connections */
+    public long getQueuedBytes() {
+        long retval=0;
+        mapper.getLock().lock();
+        try {
+            for(NioConnection conn: mapper.conns.values())
+                retval+=conn.queued_bytes;
+            return retval;
+        }
+        finally {
+            mapper.getLock().unlock();
+        }
+    }
+
+    public void resetStats() {
+        num_blocked_sends.set(0);
+        num_dropped_sends.set(0);
+    }
+
+    public void addConnectionMapListener(AbstractConnectionMap.ConnectionMapListener<NioConnection> l) {
+        mapper.addConnectionMapListener(l);
+    }
+
+    public void removeConnectionMapListener(AbstractConnectionMap.ConnectionMapListener<NioConnection> l) {
+        mapper.removeConnectionMapListener(l);
+    }
+
+    /**
+     * Calls the receiver callback. Access to this method is not serialized, and it may be called concurrently by
+     * all I/O threads, so the receiver needs to be reentrant. As the callback is invoked by an I/O thread, it should
+     * not block.
+     */
+    public void receive(Address sender, byte[] data, int offset, int length) {
+        recvr.receive(sender, data, offset, length);
+    }
+
+    public void send(Address dest, byte[] data, int offset, int length) throws Exception {
+        if(dest == null) {
+            if(log.isErrorEnabled())
+                log.error(local_addr + ": destination is null");
+            return;
+        }
+
+        if(data == null) {
+            log.warn(local_addr + ": data is null; discarding message to " + dest);
+            return;
+        }
+
+        if(!running.get()) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": connection map is not running, discarding message to " + dest);
+            return;
+        }
+
+        if(dest.equals(local_addr)) {
+            receive(local_addr, data, offset, length);
+            return;
+        }
+
+        // 1. Try to obtain correct Connection (or create one if not yet existent)
+        NioConnection conn=null;
+        try {
+            conn=mapper.getConnection(dest);
+        }
+        catch(Throwable t) {
+        }
+
+        // 2. Send the message using that connection
+        if(conn != null && !conn.isConnected()) { // perhaps not connected because of concurrent connections (JGRP-1549)
+            Util.sleepRandom(1, 50);
+            try {
+                conn=mapper.getConnection(dest); // try one more time
+            }
+            catch(Throwable t) {
+            }
+        }
+
+        if(conn != null) {
+            try {
+                conn.send(data, offset, length);
+            }
+            catch(Exception ex) {
+                mapper.removeConnectionIfPresent(dest, conn);
+                throw ex;
+            }
+        }
+    }
+
+    public void start() throws Exception {
+        if(running.compareAndSet(false, true)) {
+            for(Reactor reactor: reactors)
+                reactor.start();
+            reactors[0].execute(new Runnable() {
+                public void run() {
+                    try {
+                        srv_ch.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+                    }
+                    catch(ClosedChannelException ex) {
+                        log.error(local_addr + ": failed registering the server socket channel", ex);
+                    }
+                }
+            });
+            mapper.start();
+        }
+    }
+
+    public void stop() {
+        if(running.compareAndSet(true, false)) {
+            Util.close(srv_ch);
+            mapper.stop(); // closes all connections
+            for(Reactor reactor: reactors)
+                reactor.stop();
+        }
+    }
+
+
+    public String toString() {
+        StringBuilder ret=new StringBuilder();
+        ret.append("local_addr=" + local_addr).append("\n");
+        ret.append("connections (" + mapper.size() + "):\n");
+        ret.append(mapper.toString());
+        ret.append('\n');
+        return ret.toString();
+    }
+
+
+    /** Binds a server socket channel to the first free port in range [start_port .. end_port] */
+    protected static ServerSocketChannel createServerSocketChannel(InetAddress bind_addr, int start_port, int end_port) throws Exception {
+        int original_start_port=start_port;
+        while(true) {
+            ServerSocketChannel ch=ServerSocketChannel.open();
+            try {
+                ch.socket().setReuseAddress(true);
+                ch.socket().bind(new InetSocketAddress(bind_addr, start_port), 50);
+                ch.configureBlocking(false);
+                return ch;
+            }
+            catch(SocketException bind_ex) {
+                Util.close(ch);
+                if(start_port >= end_port)
+                    throw new BindException("No available port to bind to in range [" + original_start_port + " .. " + end_port + "]");
+                if(bind_addr != null && !bind_addr.isLoopbackAddress()) {
+                    NetworkInterface nic=NetworkInterface.getByInetAddress(bind_addr);
+                    if(nic == null)
+                        throw new BindException("bind_addr " + bind_addr + " is not a valid interface: " + bind_ex);
+                }
+                start_port++;
+            }
+        }
+    }
+
+    protected void setSocketParameters(Socket client_sock) throws SocketException {
+        try {
+            client_sock.setSendBufferSize(send_buf_size);
+        }
+        catch(IllegalArgumentException ex) {
+            if(log.isErrorEnabled())
+                log.error(local_addr + ": exception setting send buffer size to " + send_buf_size + " bytes", ex);
+        }
+        try {
+            client_sock.setReceiveBufferSize(recv_buf_size);
+        }
+        catch(IllegalArgumentException ex) {
+            if(log.isErrorEnabled())
+                log.error(local_addr + ": exception setting receive buffer size to " + recv_buf_size + " bytes", ex);
+        }
+
+        client_sock.setKeepAlive(true);
+        client_sock.setTcpNoDelay(tcp_nodelay);
+        if(linger > 0)
+            client_sock.setSoLinger(true, linger);
+        else
+            client_sock.setSoLinger(false, -1);
+    }
+
+    protected Reactor nextReactor() {
+        int index=next_reactor.getAndIncrement() % reactors.length;
+        return reactors[index < 0? index + reactors.length : index];
+    }
+
+    /** Called by reactor 0 when the server socket channel has pending connections */
+    protected void handleAccept() throws Exception {
+        SocketChannel client_ch;
+        while((client_ch=srv_ch.accept()) != null) {
+            try {
+                setSocketParameters(client_ch.socket());
+                client_ch.configureBlocking(false);
+                NioConnection conn=new NioConnection(client_ch, nextReactor());
+                conn.register();
+            }
+            catch(Exception ex) {
+                if(log.isWarnEnabled())
+                    log.warn(Util.getMessage("AcceptError", ex));
+                Util.close(client_ch);
+            }
+        }
+    }
+
+    /** Called when an accepted connection has received the peer's address */
+    protected void handleAccept(NioConnection conn) {
+        Address peer_addr=conn.peer_addr;
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": " + peer_addr + " trying to connect to me");
+        mapper.getLock().lock();
+        try {
+            boolean conn_exists=mapper.hasConnection(peer_addr),
+              replace=conn_exists && local_addr.compareTo(peer_addr) < 0; // bigger conn wins
+
+            if(!conn_exists || replace) {
+                mapper.addConnection(peer_addr, conn); // closes old conn
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": accepted connection from " + peer_addr +
+                                TCPConnectionMap.explanation(conn_exists, replace));
+            }
+            else {
+                // keep our existing conn, but read from the rejected one until the peer closes it (when it accepts
+                // our conn), so that messages it sent before the handshake of our conn are not lost
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": rejected connection from " + peer_addr +
+                                TCPConnectionMap.explanation(conn_exists, replace));
+            }
+        }
+        finally {
+            mapper.getLock().unlock();
+        }
+    }
+
+
+
+    /** An I/O thread with its own selector, multiplexing reads and writes of all connections registered with it */
+    protected class Reactor implements Runnable {
+        protected final Selector                  selector;
+        protected final Queue<Runnable>           tasks=new ConcurrentLinkedQueue<Runnable>();
+        protected final List<NioConnection>       handshakes=new ArrayList<NioConnection>(); // accepted, no peer address yet
+        protected final Thread                    thread;
+
+        public Reactor(ThreadFactory f, String name) throws IOException {
+            selector=Selector.open();
+            thread=f.newThread(this, name);
+        }
+
+        public void start() {thread.start();}
+
+        public void stop() {
+            selector.wakeup();
+            Util.interruptAndWaitToDie(thread);
+            try {
+                for(SelectionKey key: selector.keys()) // connections which are not in the map, e.g. rejected ones
+                    if(key.attachment() instanceof NioConnection)
+                        Util.close((NioConnection)key.attachment());
+            }
+            catch(ClosedSelectorException ignored) {
+            }
+            Util.close(selector);
+        }
+
+        /** Runs a task in the reactor's thread, e.g. a registration or a change of the interest set */
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while(running.get() && selector.isOpen()) {
+                try {
+                    selector.select(handshakes.isEmpty()? 0 : peer_addr_read_timeout);
+                    Runnable task;
+                    while((task=tasks.poll()) != null)
+                        task.run();
+
+                    for(Iterator<SelectionKey> it=selector.selectedKeys().iterator(); it.hasNext();) {
+                        SelectionKey key=it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                    if(!handshakes.isEmpty())
+                        expireHandshakes();
+                }
+                catch(ClosedSelectorException ex) {
+                    break;
+                }
+                catch(Throwable t) {
+                    if(running.get() && log.isErrorEnabled())
+                        log.error(local_addr + ": failure in " + thread.getName(), t);
+                }
+            }
+        }
+
+        protected void handle(SelectionKey key) {
+            NioConnection conn=(NioConnection)key.attachment();
+            try {
+                if(!key.isValid())
+                    return;
+                if(key.isAcceptable()) {
+                    handleAccept();
+                    return;
+                }
+                if(key.isReadable())
+                    conn.read();
+                if(key.isValid() && key.isWritable())
+                    conn.flush();
+            }
+            catch(Throwable t) {
+                if(conn == null) {
+                    if(running.get() && log.isWarnEnabled())
+                        log.warn(Util.getMessage("AcceptError", t));
+                    return;
+                }
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": closing connection to " + conn.peer_addr + ": " + t);
+                if(conn.peer_addr != null)
+                    mapper.removeConnectionIfPresent(conn.peer_addr, conn);
+                Util.close(conn);
+            }
+        }
+
+        /** Closes accepted connections whose peers didn't send their address within peer_addr_read_timeout ms */
+        protected void expireHandshakes() {
+            long now=System.currentTimeMillis();
+            for(Iterator<NioConnection> it=handshakes.iterator(); it.hasNext();) {
+                NioConnection conn=it.next();
+                if(conn.peer_addr != null || !conn.isConnected())
+                    it.remove();
+                else if(now - conn.last_access >= peer_addr_read_timeout) {
+                    if(log.isWarnEnabled())
+                        log.warn(local_addr + ": peer " + conn.getSockAddress() + " didn't send its address within " +
+                                   peer_addr_read_timeout + " ms; closing connection");
+                    it.remove();
+                    Util.close(conn);
+                }
+            }
+        }
+    }
+
+
+
+    public class NioConnection implements Connection {
+        protected final SocketChannel   ch;
+        protected final Reactor         reactor;
+        protected final Lock            send_lock=new ReentrantLock(); // serializes send() and flush()
+        protected final Condition       not_full=send_lock.newCondition();
+        protected final Deque<ByteBuffer> send_queue=new ArrayDeque<ByteBuffer>(); // guarded by send_lock
+        protected volatile int          queued_bytes;                  // guarded by send_lock
+        protected final ByteBuffer      length_buf=ByteBuffer.allocate(Global.INT_SIZE);
+        protected final ByteBuffer[]    write_bufs=new ByteBuffer[2];
+        protected final ByteBuffer      read_buf; // direct; in write mode between calls to read()
+        protected ByteBuffer            large_msg; // a message which doesn't fit into read_buf
+        protected SelectionKey          key;       // guarded by send_lock
+        protected volatile Address      peer_addr; // address of the 'other end' of the connection
+        protected volatile long         last_access=System.currentTimeMillis();
+        protected volatile boolean      closed;
+
+        /** Creates an unconnected connection stub, use {@link #connect(java.net.SocketAddress)} to connect */
+        public NioConnection(Address peer_addr) throws Exception {
+            if(peer_addr == null)
+                throw new IllegalArgumentException("Invalid parameter peer_addr="+ peer_addr);
+            this.peer_addr=peer_addr;
+            this.ch=SocketChannel.open();
+            this.reactor=nextReactor();
+            this.read_buf=ByteBuffer.allocateDirect(read_buffer_size);
+            setSocketParameters(ch.socket());
+        }
+
+        /** Creates a connection from an accepted channel; the peer's address is read from the channel */
+        public NioConnection(SocketChannel ch, Reactor reactor) {
+            this.ch=ch;
+            this.reactor=reactor;
+            this.read_buf=ByteBuffer.allocateDirect(read_buffer_size);
+        }
+
+        public Address getPeerAddress() {return peer_addr;}
+        public int     getQueuedBytes() {return queued_bytes;}
+
+        protected void updateLastAccessed() {
+            last_access=System.currentTimeMillis();
+        }
+
+        protected String getSockAddress() {
+            Socket sock=ch.socket();
+            StringBuilder sb=new StringBuilder();
+            if(sock.getLocalAddress() != null && sock.getInetAddress() != null) {
+                sb.append(sock.getLocalAddress().getHostAddress()).append(':').append(sock.getLocalPort());
+                sb.append(" - ").append(sock.getInetAddress().getHostAddress()).append(':').append(sock.getPort());
+            }
+            return sb.toString();
+        }
+
+        /** Connects to the peer and sends the local address (blocking), then hands the channel to a reactor */
+        protected void connect(SocketAddress dest) throws Exception {
+            try {
+                Socket sock=ch.socket();
+                if(!defer_client_binding)
+                    sock.bind(new InetSocketAddress(client_bind_addr, client_bind_port));
+                if(sock.getLocalSocketAddress() != null && sock.getLocalSocketAddress().equals(dest))
+                    throw new IllegalStateException("socket's bind and connect address are the same: " + dest);
+                sock.connect(dest, sock_conn_timeout);
+                ByteBuffer buf=ByteBuffer.wrap(createHandshake(getLocalAddress()));
+                while(buf.hasRemaining())
+                    ch.write(buf);
+                ch.configureBlocking(false);
+                updateLastAccessed();
+                register();
+            }
+            catch(Exception ex) {
+                Util.close(ch);
+                throw ex;
+            }
+        }
+
+        /** Registers the channel with the reactor; OP_WRITE is added if messages were queued in the meantime */
+        protected void register() {
+            reactor.execute(new Runnable() {
+                public void run() {
+                    send_lock.lock();
+                    try {
+                        if(closed)
+                            return;
+                        int ops=SelectionKey.OP_READ | (send_queue.isEmpty()? 0 : SelectionKey.OP_WRITE);
+                        key=ch.register(reactor.selector, ops, NioConnection.this);
+                        if(peer_addr == null)
+                            reactor.handshakes.add(NioConnection.this);
+                    }
+                    catch(ClosedChannelException ex) {
+                        Util.close(NioConnection.this);
+                    }
+                    finally {
+                        send_lock.unlock();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Sends a message. If nothing is queued, the length and the data are written directly with a gathering write.
+         * Whatever couldn't be written is queued and written by the reactor. If the queue is full, the caller blocks
+         * until there is space, or drops the message after max_send_block_time ms.
+         */
+        protected void send(byte[] data, int offset, int length) throws Exception {
+            send_lock.lock();
+            try {
+                if(closed)
+                    throw new ClosedChannelException();
+                if(send_queue.isEmpty()) {
+                    length_buf.clear();
+                    length_buf.putInt(length).flip();
+                    ByteBuffer body=ByteBuffer.wrap(data, offset, length);
+                    write_bufs[0]=length_buf;
+                    write_bufs[1]=body;
+                    ch.write(write_bufs);
+                    updateLastAccessed();
+                    if(!body.hasRemaining())
+                        return;
+                    ByteBuffer rest=ByteBuffer.allocate(length_buf.remaining() + body.remaining());
+                    rest.put(length_buf).put(body).flip();
+                    enqueue(rest);
+                    return;
+                }
+
+                if(queued_bytes >= max_queued_bytes) {
+                    num_blocked_sends.incrementAndGet();
+                    long wait_time=TimeUnit.NANOSECONDS.convert(max_send_block_time, TimeUnit.MILLISECONDS);
+                    while(queued_bytes >= max_queued_bytes && !closed && wait_time > 0) {
+                        try {
+                            wait_time=not_full.awaitNanos(wait_time);
+                        }
+                        catch(InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                    if(closed)
+                        throw new ClosedChannelException();
+                    if(queued_bytes >= max_queued_bytes) {
+                        num_dropped_sends.incrementAndGet();
+                        if(log.isTraceEnabled())
+                            log.trace(local_addr + ": dropped message to " + peer_addr + " as " + queued_bytes +
+                                        " bytes are queued (max_queued_bytes=" + max_queued_bytes + ")");
+                        return; // will be retransmitted
+                    }
+                }
+                ByteBuffer buf=ByteBuffer.allocate(Global.INT_SIZE + length);
+                buf.putInt(length).put(data, offset, length).flip();
+                enqueue(buf);
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        /** Adds a buffer to the send queue and makes the reactor write it when the socket is writable. Needs send_lock */
+        protected void enqueue(ByteBuffer buf) {
+            boolean was_empty=send_queue.isEmpty();
+            send_queue.add(buf);
+            queued_bytes+=buf.remaining();
+            if(was_empty && key != null) {
+                reactor.execute(new Runnable() {
+                    public void run() {
+                        setInterestOps();
+                    }
+                });
+            }
+        }
+
+        /** Called by the reactor: writes as many queued messages as possible with one gathering write */
+        protected void flush() throws IOException {
+            send_lock.lock();
+            try {
+                if(!send_queue.isEmpty()) {
+                    ByteBuffer[] bufs=send_queue.toArray(new ByteBuffer[send_queue.size()]);
+                    long written=ch.write(bufs);
+                    updateLastAccessed();
+                    queued_bytes-=written;
+                    ByteBuffer buf;
+                    while((buf=send_queue.peek()) != null && !buf.hasRemaining())
+                        send_queue.poll();
+                    if(written > 0)
+                        not_full.signalAll();
+                }
+                setInterestOps();
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        /** Sets OP_WRITE if messages are queued, or clears it otherwise */
+        protected void setInterestOps() {
+            send_lock.lock();
+            try {
+                if(key != null && key.isValid())
+                    key.interestOps(SelectionKey.OP_READ | (send_queue.isEmpty()? 0 : SelectionKey.OP_WRITE));
+            }
+            catch(CancelledKeyException ignored) {
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        /** Called by the reactor when the channel is readable: passes all complete messages to the receiver */
+        protected void read() throws Exception {
+            if(large_msg != null) {
+                if(ch.read(large_msg) < 0)
+                    throw new EOFException("peer closed the connection");
+                updateLastAccessed();
+                if(!large_msg.hasRemaining()) {
+                    byte[] buf=large_msg.array();
+                    large_msg=null;
+                    receive(peer_addr, buf, 0, buf.length);
+                }
+                return;
+            }
+
+            if(ch.read(read_buf) < 0)
+                throw new EOFException("peer closed the connection");
+            updateLastAccessed();
+            read_buf.flip();
+            try {
+                if(peer_addr == null && !readPeerAddress())
+                    return;
+                while(read_buf.remaining() >= Global.INT_SIZE) {
+                    int len=read_buf.getInt(read_buf.position());
+                    if(len < 0)
+                        throw new IOException("invalid message length (" + len + ") from " + peer_addr);
+                    if(read_buf.remaining() - Global.INT_SIZE < len) {
+                        if(Global.INT_SIZE + len > read_buf.capacity()) { // read the rest into a buffer of its own
+                            read_buf.getInt();
+                            large_msg=ByteBuffer.allocate(len);
+                            large_msg.put(read_buf);
+                        }
+                        break;
+                    }
+                    read_buf.getInt();
+                    byte[] buf=new byte[len];
+                    read_buf.get(buf);
+                    receive(peer_addr, buf, 0, len);
+                }
+            }
+            finally {
+                read_buf.compact();
+            }
+        }
+
+        /**
+         * Parses the cookie, version and address of the peer, sent by the connecting side. Returns false if not
+         * enough bytes have been received yet
+         */
+        protected boolean readPeerAddress() throws Exception {
+            int header=cookie.length + Global.SHORT_SIZE;
+            if(read_buf.remaining() <= header)
+                return false;
+            byte[] tmp=new byte[read_buf.remaining()];
+            read_buf.duplicate().get(tmp);
+            ByteArrayInputStream input=new ByteArrayInputStream(tmp);
+            DataInputStream in=new DataInputStream(input);
+            byte[] input_cookie=new byte[cookie.length];
+            in.readFully(input_cookie);
+            if(!Arrays.equals(cookie, input_cookie))
+                throw new SocketException("cookie read by " + getLocalAddress() + " from " + getSockAddress() +
+                                            " does not match own cookie; terminating connection");
+            short version=in.readShort();
+            if(!Version.isBinaryCompatible(version))
+                throw new IOException("packet from " + getSockAddress() + " has different version (" +
+                                        Version.print(version) + ") from ours (" + Version.printVersion() + "); discarding it");
+            IpAddress addr=new IpAddress();
+            try {
+                addr.readFrom(in);
+            }
+            catch(EOFException incomplete) {
+                return false;
+            }
+            read_buf.position(read_buf.position() + tmp.length - input.available());
+            peer_addr=addr;
+            handleAccept(this);
+            return true;
+        }
+
+        protected byte[] createHandshake(Address local) throws Exception {
+            ByteArrayOutputStream output=new ByteArrayOutputStream(cookie.length + Global.SHORT_SIZE + local.size());
+            DataOutputStream out=new DataOutputStream(output);
+            out.write(cookie, 0, cookie.length);
+            out.writeShort(Version.version);
+            local.writeTo(out);
+            out.flush();
+            return output.toByteArray();
+        }
+
+        public boolean isExpired(long now) {
+            return getConnectionExpiryTimeout() > 0 && now - last_access >= getConnectionExpiryTimeout();
+        }
+
+        public boolean isConnected() {
+            return !closed && ch.isConnected();
+        }
+
+        public boolean isOpen() {
+            return isConnected() && ch.isOpen();
+        }
+
+        public void close() throws IOException {
+            send_lock.lock();
+            try {
+                if(closed)
+                    return;
+                closed=true;
+                send_queue.clear();
+                queued_bytes=0;
+                not_full.signalAll();
+                if(key != null)
+                    key.cancel();
+            }
+            finally {
+                send_lock.unlock();
+            }
+            Util.close(ch);
+            if(peer_addr != null)
+                mapper.notifyConnectionClosed(peer_addr);
+        }
+
+        public String toString() {
+            return "<" + getSockAddress() + "> (" + ((System.currentTimeMillis() - last_access) / 1000) + " secs old, " +
+              queued_bytes + " bytes queued) [" + (isOpen()? "open]" : "closed]");
+        }
+    }
+
+
+
+    protected class Mapper extends AbstractConnectionMap<NioConnection> {
+
+        public Mapper(ThreadFactory factory, long reaper_interval) {
+            super(factory, reaper_interval);
+        }
+
+        public NioConnection getConnection(Address dest) throws Exception {
+            NioConnection conn;
+            getLock().lock();
+            try {
+                if((conn=conns.get(dest)) != null && conn.isOpen()) // keep FAST path on the most common case
+                    return conn;
+            }
+            finally {
+                getLock().unlock();
+            }
+
+            Exception connect_exception=null; // set if connect() throws an exception
+            sock_creation_lock.lockInterruptibly();
+            try {
+                getLock().lock();
+                try {
+                    conn=conns.get(dest); // check again after obtaining sock_creation_lock
+                    if(conn != null && conn.isOpen())
+                        return conn;
+
+                    // create conn stub
+                    conn=new NioConnection(dest);
+                    addConnection(dest, conn);
+                }
+                finally {
+                    getLock().unlock();
+                }
+
+                // now connect to dest:
+                try {
+                    if(log.isTraceEnabled())
+                        log.trace(local_addr + ": connecting to " + dest);
+                    conn.connect(new InetSocketAddress(((IpAddress)dest).getIpAddress(), ((IpAddress)dest).getPort()));
+                    if(log.isTraceEnabled())
+                        log.trace(local_addr + ": connected to " + dest);
+                }
+                catch(Exception connect_ex) {
+                    connect_exception=connect_ex;
+                }
+
+                getLock().lock();
+                try {
+                    NioConnection existing_conn=conns.get(dest); // check again after obtaining sock_creation_lock
+                    if(existing_conn != null && existing_conn.isOpen() // added by a successful accept()
+                      && existing_conn != conn) {
+                        if(log.isTraceEnabled())
+                            log.trace(local_addr + ": found existing connection to " + dest +
+                                        ", using it and deleting own conn-stub");
+                        Util.close(conn);
+                        return existing_conn;
+                    }
+
+                    if(connect_exception != null) {
+                        if(log.isTraceEnabled())
+                            log.trace(local_addr + ": failed connecting to " + dest + ": " + connect_exception);
+                        removeConnectionIfPresent(dest, conn); // removes and closes the conn
+                        throw connect_exception;
+                    }
+                    return conn;
+                }
+                finally {
+                    getLock().unlock();
+                }
+            }
+            finally {
+                sock_creation_lock.unlock();
+            }
+        }
+
+        public boolean connectionEstablishedTo(Address address) {
+            lock.lock();
+            try {
+                NioConnection conn=conns.get(address);
+                return conn != null && conn.isConnected();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        public int size() {return conns.size();}
+
+        public String toString() {
+            return printConnections();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.jgroups.View;
 import org.jgroups.annotations.GuardedBy;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.util.ComposableFuture;
 import org.jgroups.util.FutureListener;
 import org.jgroups.util.NotifyingFuture;
 
@@ -20,10 +21,11 @@ import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Abstract class for a unicast or multicast request
+ * @param <T> The type of the result of the future passed to {@link #executeAsync(ComposableFuture)}
  *
  * @author Bela Ban
  */
-public abstract class Request implements RspCollector, NotifyingFuture {
+public abstract class Request<T> implements RspCollector, NotifyingFuture {
     protected static final Log        log=LogFactory.getLog(Request.class);
 
     /** To generate unique request IDs (see getRequestId()) */
@@ -45,6 +47,9 @@ public abstract class Request implements RspCollector, NotifyingFuture {
 
     protected volatile FutureListener listener;
 
+    /** Completed when the request is done, if sent by {@link #executeAsync(ComposableFuture)} */
+    protected volatile ComposableFuture<T> result_future;
+
 
     
     public Request(Message request, RequestCorrelator corr, RequestOptions options) {
@@ -94,8 +99,47 @@ public abstract class Request implements RspCollector, NotifyingFuture {
         }
     }
 
+    /**
+     * Sends the request without blocking the caller. The future is completed when all required responses have been
+     * received, or - if the options define a timeout - with the responses received so far when the timeout expires.
+     * The timeout is expired by the timeout wheel of the request correlator, so no thread or task is needed per
+     * request. Cancelling the future cancels the request.
+     * @param future The future to be completed
+     */
+    protected void executeAsync(final ComposableFuture<T> future) throws Exception {
+        result_future=future;
+        block_for_results=false;
+        future.setListener(new FutureListener<T>() {
+            public void futureDone(Future<T> f) {
+                if(f.isCancelled() && !done)
+                    cancel(true);
+            }
+        });
+        if(!execute()) {
+            future.completeExceptionally(new IllegalStateException("request correlator is null"));
+            return;
+        }
+        if(options.getMode() == ResponseMode.GET_NONE) {
+            completeFuture();
+            return;
+        }
+        long timeout=options.getTimeout();
+        if(timeout > 0 && !future.isDone() && !corr.addTimeout(req_id, timeout))
+            log.warn("request correlator has no timer: request " + req_id + " will not time out");
+    }
+
+    /** Called by the request correlator when the timeout of a request sent by executeAsync() expired */
+    protected void timedOut() {
+        ComposableFuture<T> tmp=result_future;
+        if(tmp != null && !tmp.isDone())
+            completeFuture();
+    }
+
     protected abstract void sendRequest() throws Exception;
 
+    /** Completes the future with the result of this request, which is done */
+    protected abstract void complete(ComposableFuture<T> future);
+
     public abstract void receiveResponse(Object response_value, Address sender, boolean is_exception);
 
     public abstract void viewChange(View new_view);
@@ -130,6 +174,9 @@ public abstract class Request implements RspCollector, NotifyingFuture {
         }
         finally {
             lock.unlock();
+            ComposableFuture<T> future=result_future;
+            if(future != null)
+                future.cancel(mayInterruptIfRunning);
         }
     }
 
@@ -163,6 +210,24 @@ public abstract class Request implements RspCollector, NotifyingFuture {
     protected void checkCompletion(Future future) {
         if(listener != null && responsesComplete())
             listener.futureDone(future);
+        ComposableFuture<T> tmp=result_future;
+        if(tmp != null && !tmp.isDone() && getResponsesComplete())
+            completeFuture();
+    }
+
+    /** Marks the request as done and completes the future passed to executeAsync() */
+    protected void completeFuture() {
+        lock.lock();
+        try {
+            done=true;
+            completed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        if(corr != null)
+            corr.done(req_id);
+        complete(result_future);
     }
 
     /** Generates a new unique request ID */
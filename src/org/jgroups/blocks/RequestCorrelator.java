@@ -10,14 +10,12 @@ import org.jgroups.AnycastAddress;
 import org.jgroups.protocols.relay.SiteMaster;
 import org.jgroups.stack.DiagnosticsHandler;
 import org.jgroups.stack.Protocol;
-import org.jgroups.util.Buffer;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.NotSerializableException;
 import java.util.*;
-import java.util.concurrent.ConcurrentMap;
 
 
 /**
@@ -42,8 +40,20 @@ public class RequestCorrelator {
     /** The protocol layer to use to pass up/down messages. Can be either a Protocol or a Transport */
     protected Protocol                               transport;
 
-    /** The table of pending requests (keys=Long (request IDs), values=<tt>RequestEntry</tt>) */
-    protected final ConcurrentMap<Long,RspCollector> requests=Util.createConcurrentMap();
+    /** The table of pending requests (keys=request IDs, values=<tt>RspCollector</tt>) */
+    protected final StripedLongMap<RspCollector>     requests=new StripedLongMap<RspCollector>();
+
+    /** Expires the requests registered with {@link #addTimeout(long,long)} */
+    protected final TimeoutWheel                     timeouts=new TimeoutWheel(new TimeoutWheel.Handler() {
+        public void expired(long req_id) {
+            RspCollector coll=requests.get(req_id);
+            if(coll instanceof Request)
+                ((Request<?>)coll).timedOut();
+        }
+    }, 256, 10);
+
+    /** Runs the timeout wheel. If null, no timeouts can be registered */
+    protected volatile TimeScheduler                 timer;
 
 
     /** The handler for the incoming requests. It is called from inside the dispatcher thread */
@@ -60,7 +70,7 @@ public class RequestCorrelator {
 
     protected volatile View                          view;
 
-    protected boolean                                started=false;
+    protected volatile boolean                       started=false;
 
     /** Whether or not to use async dispatcher */
     protected boolean                                async_dispatching=false;
@@ -112,6 +122,9 @@ public class RequestCorrelator {
     public void                     setMarshaller(RpcDispatcher.Marshaller marshaller) {this.marshaller=marshaller;}
     public boolean                  asyncDispatching() {return async_dispatching;}
     public RequestCorrelator        asyncDispatching(boolean flag) {async_dispatching=flag; return this;}
+    public TimeScheduler            getTimer() {return timer;}
+    public RequestCorrelator        setTimer(TimeScheduler timer) {this.timer=timer; return this;}
+    public int                      getNumPendingRequests() {return requests.size();}
 
     public void sendRequest(long id, List<Address> dest_mbrs, Message msg, RspCollector coll) throws Exception {
         sendRequest(id, dest_mbrs, msg, coll, new RequestOptions().setAnycasting(false));
@@ -213,6 +226,21 @@ public class RequestCorrelator {
         removeEntry(id);
     }
 
+    /**
+     * Times out a pending request after timeout ms. All timeouts are expired by a single task run by the timer, which
+     * is started on the first call
+     * @return False if no timer has been set, so the request cannot be timed out
+     */
+    public boolean addTimeout(long id, long timeout) {
+        TimeScheduler tmp=timer;
+        if(tmp == null || !started)
+            return false;
+        if(!timeouts.isRunning())
+            timeouts.start(tmp);
+        timeouts.add(id, timeout);
+        return true;
+    }
+
 
     /**
      * <b>Callback</b>.
@@ -263,6 +291,7 @@ public class RequestCorrelator {
 
     public void stop() {
         started=false;
+        timeouts.stop();
         for(RspCollector coll: requests.values())
             coll.transportClosed();
         requests.clear();
@@ -293,8 +322,7 @@ public class RequestCorrelator {
         if(mbr == null) return;
         if(log.isDebugEnabled()) log.debug("suspect=" + mbr);
 
-        // copy so we don't run into bug #761804 - Bela June 27 2003
-        // copy=new ArrayList(requests.values()); // removed because ConcurrentReaderHashMap can tolerate concurrent mods (bela May 8 2006)
+        // values() returns a copy: collectors remove themselves from requests when done
         for(RspCollector coll: requests.values()) {
             if(coll != null)
                 coll.suspect(mbr);
@@ -319,9 +347,7 @@ public class RequestCorrelator {
      *
      */
     public void receiveView(View new_view) {
-        // ArrayList    copy;
-        // copy so we don't run into bug #761804 - Bela June 27 2003
-        // copy=new ArrayList(requests.values());  // removed because ConcurrentHashMap can tolerate concurrent mods (bela May 8 2006)
+        // values() returns a copy: collectors remove themselves from requests when done
         view=new_view; // move this before the iteration (JGRP-1428)
         for(RspCollector coll: requests.values()) {
             if(coll != null)
@@ -349,6 +375,11 @@ public class RequestCorrelator {
             return false;
         }
 
+        dispatch(msg, hdr);
+        return true; // message was consumed
+    }
+
+    protected void dispatch(Message msg, Header hdr) {
         if(hdr instanceof MultiDestinationHeader) {
             // If the header contains an exclusion list, and we are part of it, then we discard the
             // request (was addressed to other members)
@@ -359,7 +390,7 @@ public class RequestCorrelator {
                             append(" as we are in the exclusion list (local_addr=").
                             append(local_addr).append(", hdr=").append(hdr).append(')'));
                 }
-                return true; // don't pass this message further up
+                return; // don't pass this message further up
             }
         }
 
@@ -379,33 +410,34 @@ public class RequestCorrelator {
 
             case Header.RSP:
             case Header.EXC_RSP:
-                RspCollector coll=requests.get(hdr.id);
-                if(coll != null) {
-                    boolean is_exception=hdr.type == Header.EXC_RSP;
-                    Address sender=msg.getSrc();
-                    Object retval;
-                    byte[] buf=msg.getBuffer();
-                    int offset=msg.getOffset(), length=msg.getLength();
-                    try {
-                        retval=marshaller != null? marshaller.objectFromBuffer(buf, offset, length) :
-                                Util.objectFromByteBuffer(buf, offset, length);
-                    }
-                    catch(Exception e) {
-                        log.error("failed unmarshalling buffer into return value", e);
-                        retval=e;
-                        is_exception=true;
-                    }
-                    coll.receiveResponse(retval, sender, is_exception);
-                }
+                handleResponse(msg, hdr);
                 break;
 
             default:
-                msg.getHeader(this.id);
                 if(log.isErrorEnabled()) log.error("header's type is neither REQ nor RSP !");
                 break;
         }
+    }
 
-        return true; // message was consumed
+    protected void handleResponse(Message msg, Header hdr) {
+        RspCollector coll=requests.get(hdr.id);
+        if(coll == null)
+            return;
+        boolean is_exception=hdr.type == Header.EXC_RSP;
+        Address sender=msg.getSrc();
+        Object retval;
+        byte[] buf=msg.getBuffer();
+        int offset=msg.getOffset(), length=msg.getLength();
+        try {
+            retval=marshaller != null? marshaller.objectFromBuffer(buf, offset, length) :
+                    Util.objectFromByteBuffer(buf, offset, length);
+        }
+        catch(Exception e) {
+            log.error("failed unmarshalling buffer into return value", e);
+            retval=e;
+            is_exception=true;
+        }
+        coll.receiveResponse(retval, sender, is_exception);
     }
 
     public Address getLocalAddress() {
@@ -667,9 +699,9 @@ public class RequestCorrelator {
 
 
     private static class MyProbeHandler implements DiagnosticsHandler.ProbeHandler {
-        private final ConcurrentMap<Long,RspCollector> requests;
+        private final StripedLongMap<RspCollector> requests;
 
-        private MyProbeHandler(ConcurrentMap<Long,RspCollector> requests) {
+        private MyProbeHandler(StripedLongMap<RspCollector> requests) {
             this.requests=requests;
         }
 
@@ -679,11 +711,7 @@ public class RequestCorrelator {
             Map<String,String> retval=new HashMap<String,String>();
             for(String key: keys) {
                 if(key.equals("requests")) {
-                    StringBuilder sb=new StringBuilder();
-                    for(Map.Entry<Long,RspCollector> entry: requests.entrySet()) {
-                        sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
-                    }
-                    retval.put("requests", sb.toString());
+                    retval.put("requests", requests.toString());
                     break;
                 }
             }
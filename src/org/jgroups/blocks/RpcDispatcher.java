@@ -230,6 +230,58 @@ public class RpcDispatcher extends MessageDispatcher {
     }
 
 
+    /**
+     * Invokes a method in all members contained in dests (or all members if dests is null) without blocking
+     * @param dests A list of addresses. If null, the method is invoked in all cluster members
+     * @param method_call The method (plus args) to be invoked
+     * @param options A collection of call options, e.g. timeout, response mode or a {@link FirstNFilter}
+     * @param rsp_listener A listener (if non null) which is notified of every response as soon as it is received
+     * @return ComposableFuture A future which is completed with the responses. Exceptions thrown by the targets are
+     *         in the Rsp elements of the RspList
+     * @throws Exception If the sending of the message threw an exception
+     */
+    public <T> ComposableFuture<RspList<T>> callRemoteMethodsAsync(Collection<Address> dests,
+                                                                    MethodCall method_call,
+                                                                    RequestOptions options,
+                                                                    RspListener<T> rsp_listener) throws Exception {
+        if(dests != null && dests.isEmpty()) { // don't send if dest list is empty
+            if(log.isTraceEnabled())
+                log.trace(new StringBuilder("destination list of ").append(method_call.getName()).
+                        append("() is empty: no need to send message"));
+            ComposableFuture<RspList<T>> retval=new ComposableFuture<RspList<T>>();
+            retval.complete(new RspList<T>());
+            return retval;
+        }
+
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder("dests=").append(dests).append(", method_call=").append(method_call).
+                    append(", options=").append(options));
+
+        Object buf=req_marshaller != null? req_marshaller.objectToBuffer(method_call) : Util.objectToByteBuffer(method_call);
+        Message msg=new Message();
+        if(buf instanceof Buffer)
+            msg.setBuffer((Buffer)buf);
+        else
+            msg.setBuffer((byte[])buf);
+        if(options != null) {
+            msg.setFlag(options.getFlags());
+            if(options.getScope() > 0)
+                msg.setScope(options.getScope());
+        }
+        return super.castMessageAsync(dests, msg, options, rsp_listener);
+    }
+
+    /**
+     * Invokes a method in all members contained in dests (or all members if dests is null) without blocking
+     * @see #callRemoteMethodsAsync(java.util.Collection, MethodCall, RequestOptions, RspListener)
+     */
+    public <T> ComposableFuture<RspList<T>> callRemoteMethodsAsync(Collection<Address> dests,
+                                                                    MethodCall method_call,
+                                                                    RequestOptions options) throws Exception {
+        return callRemoteMethodsAsync(dests, method_call, options, null);
+    }
+
+
     /**
      * Invokes a method in a cluster member and - if blocking - returns the result
      * @param dest The target member on which to invoke the method
@@ -320,6 +372,33 @@ public class RpcDispatcher extends MessageDispatcher {
     }
 
 
+    /**
+     * Invokes a method in a cluster member without blocking
+     * @param dest The target member on which to invoke the method
+     * @param call The call to be invoked, including method and arguments
+     * @param options The options (e.g. timeout)
+     * @return A future which is completed with the result. If the callee threw an exception, the future fails with it
+     * @throws Exception If the sending of the message threw an exception
+     */
+    public <T> ComposableFuture<T> callRemoteMethodAsync(Address dest, MethodCall call, RequestOptions options) throws Exception {
+        if(log.isTraceEnabled())
+            log.trace("dest=" + dest + ", method_call=" + call + ", options=" + options);
+
+        Object buf=req_marshaller != null? req_marshaller.objectToBuffer(call) : Util.objectToByteBuffer(call);
+        Message msg=new Message(dest, null, null);
+        if(buf instanceof Buffer)
+            msg.setBuffer((Buffer)buf);
+        else
+            msg.setBuffer((byte[])buf);
+        if(options != null) {
+            msg.setFlag(options.getFlags());
+            if(options.getScope() > 0)
+                msg.setScope(options.getScope());
+        }
+        return super.sendMessageAsync(msg, options);
+    }
+
+
     protected void correlatorStarted() {
         if(corr != null)
             corr.setMarshaller(rsp_marshaller);
@@ -0,0 +1,17 @@
+package org.jgroups.blocks;
+
+import org.jgroups.util.Rsp;
+
+/**
+ * Callback which is invoked for every response of a {@link GroupRequest} as soon as it is available, before the
+ * request completes. This allows a caller to process responses as they are streamed in, rather than waiting for the
+ * entire {@link org.jgroups.util.RspList}.<p/>
+ * The callback is invoked once per target: when a value or exception has been received from it, or when it has been
+ * suspected, was unreachable or the transport was closed. Responses rejected by a {@link RspFilter} are not passed
+ * to it. It is invoked by the thread delivering the response and must therefore not block.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public interface RspListener<T> {
+    void responseReceived(Rsp<T> rsp);
+}
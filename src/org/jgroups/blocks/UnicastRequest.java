@@ -4,6 +4,7 @@ package org.jgroups.blocks;
 import org.jgroups.*;
 import org.jgroups.annotations.GuardedBy;
 import org.jgroups.protocols.relay.SiteAddress;
+import org.jgroups.util.ComposableFuture;
 import org.jgroups.util.Rsp;
 
 import java.util.Collection;
@@ -17,7 +18,7 @@ import java.util.concurrent.TimeoutException;
  *
  * @author Bela Ban
  */
-public class UnicastRequest<T> extends Request {
+public class UnicastRequest<T> extends Request<T> {
     protected final Rsp<T>     result;
     protected final Address    target;
     protected int              num_received=0;
@@ -37,6 +38,17 @@ public class UnicastRequest<T> extends Request {
     }
 
 
+    /**
+     * Sends the request without blocking. The returned future is completed with the result, or fails with the
+     * exception thrown by the target, a {@link SuspectedException}, an {@link UnreachableException}, or a
+     * TimeoutException when the timeout (if set) expires
+     */
+    public ComposableFuture<T> executeAsync() throws Exception {
+        ComposableFuture<T> future=new ComposableFuture<T>();
+        executeAsync(future);
+        return future;
+    }
+
     protected void sendRequest() throws Exception {
         try {
             if(log.isTraceEnabled()) log.trace(new StringBuilder("sending request (id=").append(req_id).append(')'));
@@ -239,6 +251,19 @@ public class UnicastRequest<T> extends Request {
 
 
 
+    protected void complete(ComposableFuture<T> future) {
+        if(options.getMode() == ResponseMode.GET_NONE) {
+            future.complete(null);
+            return;
+        }
+        try {
+            future.complete(getValue());
+        }
+        catch(ExecutionException e) {
+            future.completeExceptionally(e.getCause());
+        }
+    }
+
     @GuardedBy("lock")
     protected boolean responsesComplete() {
         return done || options.getMode() == ResponseMode.GET_NONE || result.wasReceived() ||
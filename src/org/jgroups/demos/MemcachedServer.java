@@ -20,13 +20,14 @@ public class MemcachedServer {
 
 
     private void start(String props, InetAddress bind_addr, int port, int min_threads, int max_threads,
-                       long rpc_timeout, long caching_time, boolean migrate_data, boolean use_l1_cache,
+                       String thread_pool_type, long rpc_timeout, long caching_time, boolean migrate_data, boolean use_l1_cache,
                        int l1_max_entries, long l1_reaping_interval,
                        int l2_max_entries, long l2_reaping_interval) throws Exception {
         MBeanServer server=ManagementFactory.getPlatformMBeanServer();
         connector=new MemcachedConnector(bind_addr, port, null);
         connector.setThreadPoolCoreThreads(min_threads);
         connector.setThreadPoolMaxThreads(max_threads);
+        connector.setThreadPoolType(thread_pool_type);
         JmxConfigurator.register(connector, server, BASENAME + ":name=connector");
 
         cache=new PartitionedHashMap(props, "memcached-cluster");
@@ -74,6 +75,7 @@ public class MemcachedServer {
         int port=11211;
         String props="udp.xml";
         int min_threads=1, max_threads=500;
+        String thread_pool_type="pool";
         long rpc_timeout=1500L, caching_time=30000L;
         boolean migrate_data=true, use_l1_cache=true;
         int l1_max_entries=5000, l2_max_entries=-1;
@@ -100,6 +102,10 @@ public class MemcachedServer {
                 max_threads=Integer.parseInt(args[++i]);
                 continue;
             }
+            if(args[i].equals("-thread_pool_type")) {
+                thread_pool_type=args[++i];
+                continue;
+            }
             if(args[i].equals("-rpc_timeout")) {
                 rpc_timeout=Long.parseLong(args[++i]);
                 continue;
@@ -136,14 +142,14 @@ public class MemcachedServer {
             help();
             return;
         }
-        new MemcachedServer().start(props, bind_addr, port, min_threads, max_threads, rpc_timeout, caching_time,
+        new MemcachedServer().start(props, bind_addr, port, min_threads, max_threads, thread_pool_type, rpc_timeout, caching_time,
                                     migrate_data, use_l1_cache, l1_max_entries, l1_reaping_interval,
                                     l2_max_entries, l2_reaping_interval);
     }
 
     private static void help() {
         System.out.println("MemcachedServer [-help] [-bind_addr <address>] [-port <port>] [-props <props>] " +
-                "[-min_threads <min>] [-max_threads <max>] [-rpc_timeout <ms>] [-caching_time <ms>] " +
+                "[-min_threads <min>] [-max_threads <max>] [-thread_pool_type <pool|virtual>] [-rpc_timeout <ms>] [-caching_time <ms>] " +
                 "[-migrate_data <true|false>] [-use_l1_cache <true|false>] " +
                 "[-l1_max_entries <num>] [-l1_reaping_interval <ms>] " +
                 "[-l2_max_entries <num>] [-l2_reaping_interval <ms>] ");
@@ -139,6 +139,8 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
 
         // For all non-acquired client locks, send the GRANT_LOCK request to the new coordinator (if changed)
         if(old_coord != null && !old_coord.equals(coord)) {
+            // the new coordinator might not have our leases (num_backups=0), so we cannot use them anymore
+            releaseLeases();
             if(!client_locks.isEmpty()) {
                 for(Map<Owner,ClientLock> map: client_locks.values()) {
                     for(ClientLock lock: map.values()) {
@@ -186,11 +188,7 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
 
 
     protected void copyLocksTo(List<Address> new_joiners) {
-        Map<String,ServerLock> copy;
-
-        synchronized(server_locks) {
-            copy=new HashMap<String,ServerLock>(server_locks);
-        }
+        Map<String,ServerLock> copy=new HashMap<String,ServerLock>(server_locks);
 
         if(log.isTraceEnabled())
             log.trace("copying locks to " + new_joiners);
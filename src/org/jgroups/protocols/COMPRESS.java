@@ -5,23 +5,23 @@ import org.jgroups.Global;
 import org.jgroups.Header;
 import org.jgroups.Message;
 import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.Codec;
+import org.jgroups.util.CodecPool;
 import org.jgroups.util.MessageBatch;
 
 import java.io.DataInput;
 import java.io.DataOutput;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 /**
  * Compresses the payload of a message. Goal is to reduce the number of messages
  * sent across the wire. Should ideally be layered somewhere above a
  * fragmentation protocol (e.g. FRAG).
- * 
+ * <p/>
+ * To compress entire bundles of (small) messages, use the transport's bundle_compression property instead.
  * @author Bela Ban
  */
 @MBean(description="Compresses messages to send and uncompresses received messages")
@@ -29,22 +29,29 @@ public class COMPRESS extends Protocol {
 
     /* -----------------------------------------    Properties     -------------------------------------------------- */
     
+    @Property(description="The codec used to compress messages: \"deflate\" or \"lz4\" (faster, but compresses less)",
+              writable=false)
+    protected String codec="deflate";
+
     @Property(description="Compression level (from java.util.zip.Deflater) " +
-      "(0=no compression, 1=best speed, 9=best compression). Default is 9")
+      "(0=no compression, 1=best speed, 9=best compression). Default is 9. Only used by the deflate codec")
     protected int compression_level=Deflater.BEST_COMPRESSION; // this is 9
    
     @Property(description="Minimal payload size of a message (in bytes) for compression to kick in. Default is 500 bytes")
     protected long min_size=500;
     
-    @Property(description="Number of inflaters/deflaters for concurrent processing. Default is 2 ")
-    protected int pool_size=2;
+    @Property(description="Max number of idle codecs kept for reuse. Threads never block on the pool: codecs are " +
+      "created when none is idle. 0 uses the number of cores")
+    protected int pool_size=0;
     
     
     /* --------------------------------------------- Fields ------------------------------------------------------ */
     
     
-    protected BlockingQueue<Deflater> deflater_pool=null;
-    protected BlockingQueue<Inflater> inflater_pool=null;
+    protected CodecPool codecs;
+
+    @ManagedAttribute(description="Number of received messages which couldn't be uncompressed and were dropped")
+    protected int       num_uncompression_failures;
 
     
 
@@ -53,21 +60,19 @@ public class COMPRESS extends Protocol {
 
 
     public void init() throws Exception {
-        deflater_pool=new ArrayBlockingQueue<Deflater>(pool_size);
-        for(int i=0; i < pool_size; i++)
-            deflater_pool.add(new Deflater(compression_level));
-        inflater_pool=new ArrayBlockingQueue<Inflater>(pool_size);
-        for(int i=0; i < pool_size; i++)
-            inflater_pool.add(new Inflater());
+        codecs=new CodecPool(CodecPool.parse(codec), compression_level, pool_size);
     }
 
     public void destroy() {
-        for(Deflater deflater: deflater_pool)
-            deflater.end();
-        for(Inflater inflater: inflater_pool)
-            inflater.end();
+        if(codecs != null)
+            codecs.destroy();
     }   
 
+    public void resetStats() {
+        super.resetStats();
+        num_uncompression_failures=0;
+    }
+
 
     /**
      * We compress the payload if it is larger than <code>min_size</code>. In this case we add a header containing
@@ -83,37 +88,27 @@ public class COMPRESS extends Protocol {
             if(length >= min_size) {
                 byte[] payload=msg.getRawBuffer(); // here we get the ref so we can avoid copying
                 byte[] compressed_payload=new byte[length];
-                Deflater deflater=null;
+                Codec compressor=codecs.acquire();
+                int compressed_size;
                 try {
-                    deflater=deflater_pool.take();
-                    deflater.reset();
-                    deflater.setInput(payload, msg.getOffset(), length);
-                    deflater.finish();
-                    deflater.deflate(compressed_payload);
-                    int compressed_size=deflater.getTotalOut();
-
-                    if(compressed_size < length ) { // JGRP-1000
-                        byte[] new_payload=new byte[compressed_size];
-                        System.arraycopy(compressed_payload,0,new_payload,0,compressed_size);
-                        Message copy=msg.copy(false).setBuffer(new_payload).putHeader(this.id,new CompressHeader(length));
-                        if(log.isTraceEnabled())
-                            log.trace("down(): compressed payload from " + length + " bytes to " + compressed_size + " bytes");
-                        return down_prot.down(new Event(Event.MSG, copy));
-                    }
-                    else {
-                        if(log.isTraceEnabled())
-                            log.trace("down(): skipping compression since the compressed message (" + compressed_size +
-                                        ") is not smaller than the original (" + length + ")");
-                    }
-                }
-                catch(InterruptedException e) {
-                    Thread.currentThread().interrupt(); // set interrupt flag again
-                    throw new RuntimeException(e);
+                    compressed_size=compressor.compress(payload, msg.getOffset(), length, compressed_payload, 0, length);
                 }
                 finally {
-                    if(deflater != null)
-                        deflater_pool.offer(deflater);
+                    codecs.release(compressor);
                 }
+
+                if(compressed_size >= 0 && compressed_size < length) { // JGRP-1000
+                    byte[] new_payload=new byte[compressed_size];
+                    System.arraycopy(compressed_payload,0,new_payload,0,compressed_size);
+                    Message copy=msg.copy(false).setBuffer(new_payload)
+                      .putHeader(this.id, new CompressHeader(codecs.getType(), length));
+                    if(log.isTraceEnabled())
+                        log.trace("down(): compressed payload from " + length + " bytes to " + compressed_size + " bytes");
+                    return down_prot.down(new Event(Event.MSG, copy));
+                }
+                if(log.isTraceEnabled())
+                    log.trace("down(): skipping compression since the compressed message is not smaller than the " +
+                                "original (" + length + ")");
             }
         }
         return down_prot.down(evt);
@@ -123,6 +118,7 @@ public class COMPRESS extends Protocol {
 
     /**
      * If there is no header, we pass the message up. Otherwise we uncompress the payload to its original size.
+     * A message which cannot be uncompressed is dropped.
      * @param evt
      */
     public Object up(Event evt) {
@@ -130,27 +126,36 @@ public class COMPRESS extends Protocol {
             Message msg=(Message)evt.getArg();
             CompressHeader hdr=(CompressHeader)msg.getHeader(this.id);
             if(hdr != null) {
-                Message uncompressed_msg=uncompress(msg, hdr.original_size);
-                if(uncompressed_msg != null) {
+                byte[] uncompressed_payload=uncompress(msg, hdr);
+                if(uncompressed_payload != null) {
                     if(log.isTraceEnabled())
-                        log.trace("up(): uncompressed " + msg.getLength() + " bytes to " + uncompressed_msg.getLength() + " bytes");
-                    return up_prot.up(new Event(Event.MSG, uncompressed_msg));
+                        log.trace("up(): uncompressed " + msg.getLength() + " bytes to " + uncompressed_payload.length + " bytes");
+                    // we need to copy: https://jira.jboss.org/jira/browse/JGRP-867
+                    return up_prot.up(new Event(Event.MSG, msg.copy(false).setBuffer(uncompressed_payload)));
                 }
+                return null;
             }
         }
         return up_prot.up(evt);
     }
 
+    /**
+     * Replaces the compressed messages of the batch with uncompressed copies. The messages must not be changed in
+     * place, as they may be shared, e.g. with the retransmission table of a loopback batch (JGRP-867). Messages which
+     * cannot be uncompressed are removed from the batch
+     */
     public void up(MessageBatch batch) {
         for(Message msg: batch) {
             CompressHeader hdr=(CompressHeader)msg.getHeader(this.id);
             if(hdr != null) {
-                Message uncompressed_msg=uncompress(msg, hdr.original_size);
-                if(uncompressed_msg != null) {
+                byte[] uncompressed_payload=uncompress(msg, hdr);
+                if(uncompressed_payload != null) {
                     if(log.isTraceEnabled())
-                        log.trace("up(): uncompressed " + msg.getLength() + " bytes to " + uncompressed_msg.getLength() + " bytes");
-                    batch.replace(msg, uncompressed_msg); // replace msg in batch with uncompressed_msg
+                        log.trace("up(): uncompressed " + msg.getLength() + " bytes to " + uncompressed_payload.length + " bytes");
+                    batch.replace(msg, msg.copy(false).setBuffer(uncompressed_payload));
                 }
+                else
+                    batch.remove(msg);
             }
         }
 
@@ -158,31 +163,24 @@ public class COMPRESS extends Protocol {
             up_prot.up(batch);
     }
 
-    /** Returns a new message as a result of uncompressing msg, or null if msg couldn't be uncompressed */
-    protected Message uncompress(Message msg, int original_size) {
+    /** Returns the uncompressed payload of msg, or null if msg couldn't be uncompressed */
+    protected byte[] uncompress(Message msg, CompressHeader hdr) {
         byte[] compressed_payload=msg.getRawBuffer();
         if(compressed_payload != null && compressed_payload.length > 0) {
-            byte[] uncompressed_payload=new byte[original_size];
-            Inflater inflater=null;
+            byte[] uncompressed_payload=new byte[hdr.original_size];
+            CodecPool pool=hdr.codec == codecs.getType()? codecs : CodecPool.get(hdr.codec);
+            Codec uncompressor=pool.acquire();
             try {
-                inflater=inflater_pool.take();
-                inflater.reset();
-                inflater.setInput(compressed_payload, msg.getOffset(), msg.getLength());
-                try {
-                    inflater.inflate(uncompressed_payload);
-                    // we need to copy: https://jira.jboss.org/jira/browse/JGRP-867
-                    return msg.copy(false).setBuffer(uncompressed_payload);
-                }
-                catch(DataFormatException e) {
-                    if(log.isErrorEnabled()) log.error("exception on uncompression", e);
-                }
+                uncompressor.uncompress(compressed_payload, msg.getOffset(), msg.getLength(),
+                                        uncompressed_payload, 0, hdr.original_size);
+                return uncompressed_payload;
             }
-            catch(InterruptedException e) {
-                Thread.currentThread().interrupt(); // set the interrupt bit again, so caller can handle it
+            catch(Exception e) {
+                num_uncompression_failures++;
+                if(log.isErrorEnabled()) log.error("exception on uncompression", e);
             }
             finally {
-                if(inflater != null)
-                    inflater_pool.offer(inflater);
+                pool.release(uncompressor);
             }
         }
         return null;
@@ -191,7 +189,8 @@ public class COMPRESS extends Protocol {
 
 
     public static class CompressHeader extends Header {
-        int original_size=0;
+        byte codec=CodecPool.DEFLATE;
+        int  original_size=0;
 
         public CompressHeader() {
             super();
@@ -201,15 +200,22 @@ public class COMPRESS extends Protocol {
             original_size=s;
         }
 
+        public CompressHeader(byte codec, int s) {
+            this.codec=codec;
+            original_size=s;
+        }
+
         public int size() {
-            return Global.INT_SIZE;
+            return Global.BYTE_SIZE + Global.INT_SIZE;
         }
 
         public void writeTo(DataOutput out) throws Exception {
+            out.writeByte(codec);
             out.writeInt(original_size);
         }
 
         public void readFrom(DataInput in) throws Exception {
+            codec=in.readByte();
             original_size=in.readInt();
         }
     }
@@ -2,7 +2,6 @@
 package org.jgroups.protocols;
 
 import org.jgroups.*;
-import org.jgroups.annotations.GuardedBy;
 import org.jgroups.annotations.MBean;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
@@ -11,19 +10,21 @@ import org.jgroups.util.QueueClosedException;
 import org.jgroups.util.Util;
 
 import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.lang.reflect.Constructor;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.List;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ENCRYPT layer. Encrypt and decrypt communication in JGroups
@@ -115,6 +116,22 @@ public class ENCRYPT extends Protocol {
     }
 
     private static final String DEFAULT_SYM_ALGO="AES";
+    /** Max number of previous keys whose ciphers are kept to decrypt messages encrypted with a previous key */
+    private static final int    MAX_PREVIOUS_KEYS=16;
+    /** Length of the GCM authentication tag in bits */
+    private static final int    GCM_TAG_LENGTH=128;
+    /** Constructor of GCMParameterSpec(int tag_length, byte[] iv), null if not available (JDK 6) */
+    private static final Constructor<?> GCM_PARAMETER_SPEC;
+
+    static {
+        Constructor<?> ctor=null;
+        try {
+            ctor=Class.forName("javax.crypto.spec.GCMParameterSpec").getConstructor(int.class, byte[].class);
+        }
+        catch(Throwable t) {
+        }
+        GCM_PARAMETER_SPEC=ctor;
+    }
     // address info
     Address local_addr=null;
     // keyserver address
@@ -135,7 +152,9 @@ public class ENCRYPT extends Protocol {
     @Property(name="asym_algorithm", description="Cipher engine transformation for asymmetric algorithm. Default is RSA")
     String asymAlgorithm="RSA";
 
-    @Property(name="sym_algorithm", description="Cipher engine transformation for symmetric algorithm. Default is AES")
+    @Property(name="sym_algorithm", description="Cipher engine transformation for symmetric algorithm. Default is AES. " +
+      "Transformations requiring an IV (e.g. AES/CBC/PKCS5Padding) are supported: the IV is sent in the header. " +
+      "AES/GCM/NoPadding authenticates and encrypts messages in one pass")
     String symAlgorithm=DEFAULT_SYM_ALGO;
 
     @Property(name="asym_init", description="Initial public/private key length. Default is 512")
@@ -166,15 +185,15 @@ public class ENCRYPT extends Protocol {
     //	 for client to store server's public Key
     PublicKey serverPubKey=null;
 
-    // needed because we do simultaneous encode/decode with these ciphers - which
-    // would be a threading issue
-    Cipher symEncodingCipher;
+    @Property(description="Max number of idle ciphers kept per key for encryption and decryption each. " +
+      "0 uses the number of cores")
+    protected int cipher_pool_size=0;
 
-    @GuardedBy("decrypt_lock")
-    Cipher symDecodingCipher;
+    // ciphers are not thread safe, so every thread encrypting or decrypting a message uses its own cipher from
+    // the pools. The pools are replaced when the key changes
+    protected volatile CipherPool encrypt_ciphers;
 
-    /** To synchronize access to symDecodingCipher */
-    protected final Lock decrypt_lock=new ReentrantLock();
+    protected volatile CipherPool decrypt_ciphers;
 
     // version filed for secret key
     private String symVersion=null;
@@ -182,14 +201,18 @@ public class ENCRYPT extends Protocol {
     SecretKey secretKey=null;
 
     // map to hold previous keys so we can decrypt some earlier messages if we need to
-    final Map<String,Cipher> keyMap=new WeakHashMap<String,Cipher>();
+    final Map<String,CipherPool> keyMap=Collections.synchronizedMap(new LinkedHashMap<String,CipherPool>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,CipherPool> eldest) {
+            return size() > MAX_PREVIOUS_KEYS;
+        }
+    });
 
     // queues to buffer data while we are swapping shared key
     // or obtsining key for first time
 
-    private boolean queue_up=true;
+    private volatile boolean queue_up=true;
 
-    private boolean queue_down=false;
+    private volatile boolean queue_down=false;
 
     // queue to hold upcoming messages while key negotiation is happening
     private BlockingQueue<Message> upMessageQueue=new LinkedBlockingQueue<Message>();
@@ -344,24 +367,17 @@ public class ENCRYPT extends Protocol {
         if(log.isDebugEnabled())
             log.debug(" Initializing symmetric ciphers");
 
-        if(symProvider != null && !symProvider.trim().isEmpty()) {
-            symEncodingCipher=Cipher.getInstance(algorithm, symProvider);
-            symDecodingCipher=Cipher.getInstance(algorithm, symProvider);
-        }
-        else {
-            symEncodingCipher=Cipher.getInstance(algorithm);
-            symDecodingCipher=Cipher.getInstance(algorithm);
-        }
-
-        symEncodingCipher.init(Cipher.ENCRYPT_MODE, secret);
-        symDecodingCipher.init(Cipher.DECRYPT_MODE, secret);
-
         //set the version
         MessageDigest digest=MessageDigest.getInstance("MD5");
         digest.reset();
         digest.update(secret.getEncoded());
+        String version=byteArrayToHexString(digest.digest());
 
-        symVersion = byteArrayToHexString(digest.digest());
+        CipherPool tmp_encrypt_ciphers=new CipherPool(algorithm, secret, version, Cipher.ENCRYPT_MODE);
+        decrypt_ciphers=new CipherPool(algorithm, secret, version, Cipher.DECRYPT_MODE);
+        encrypt_ciphers=tmp_encrypt_ciphers;
+
+        symVersion=version;
         if(log.isDebugEnabled()) {
             log.debug(" Initialized symmetric ciphers with secret key (" + symVersion.length() + " bytes)");
         }
@@ -491,10 +507,9 @@ public class ENCRYPT extends Protocol {
                             }
                         }
 
-                        // try and decrypt the message - we need to copy msg as we modify its
-                        // buffer (http://jira.jboss.com/jira/browse/JGRP-538)
+                        // try and decrypt the message; batches from different senders are decrypted in parallel
                         try {
-                            Message tmpMsg=decryptMessage(symDecodingCipher, msg.copy());
+                            Message tmpMsg=decryptMessage(msg);
                             if(tmpMsg != null)
                                 batch.replace(msg, tmpMsg);
                             else
@@ -637,9 +652,8 @@ public class ENCRYPT extends Protocol {
             if(!suppliedKey)
                 drainUpQueue();
 
-            // try and decrypt the message - we need to copy msg as we modify its
-            // buffer (http://jira.jboss.com/jira/browse/JGRP-538)
-            Message tmpMsg=decryptMessage(symDecodingCipher, msg.copy());
+            // try and decrypt the message
+            Message tmpMsg=decryptMessage(msg);
             if(tmpMsg != null) {
                 if(log.isTraceEnabled())
                     log.trace("decrypted message " + tmpMsg);
@@ -710,6 +724,8 @@ public class ENCRYPT extends Protocol {
      * @throws Exception
      */
     private void drainUpQueue() throws Exception {
+        if(upMessageQueue.isEmpty()) // doesn't acquire the queue's lock
+            return;
         if(log.isTraceEnabled()) {
             int size=upMessageQueue.size();
             if(size > 0)
@@ -717,7 +733,7 @@ public class ENCRYPT extends Protocol {
         }
         Message tmp=null;
         while((tmp=upMessageQueue.poll(0L, TimeUnit.MILLISECONDS)) != null) {
-            Message msg=decryptMessage(symDecodingCipher, tmp.copy());
+            Message msg=decryptMessage(tmp);
 
             if(msg != null)
                 passItUp(new Event(Event.MSG, msg));
@@ -741,10 +757,10 @@ public class ENCRYPT extends Protocol {
 
         // put the previous key into the map
         // if the keys are already there then they will overwrite
-        keyMap.put(getSymVersion(), getSymDecodingCipher());
+        keyMap.put(getSymVersion(), decrypt_ciphers);
 
         setSecretKey(key);
-        initSymCiphers(key.getAlgorithm(), key);
+        initSymCiphers(symAlgorithm, key);
         setSymVersion(version);
 
         // drain the up queue
@@ -760,48 +776,35 @@ public class ENCRYPT extends Protocol {
      * Does the actual work for decrypting - if version does not match current
      * cipher then tries to use previous cipher
      * 
-     * @param cipher
      * @param msg
-     * @return
+     * @return The decrypted message, or null if no cipher matches the version of the message
      * @throws Exception
      */
-    private Message decryptMessage(Cipher cipher, Message msg) throws Exception {
+    private Message decryptMessage(Message msg) throws Exception {
         EncryptHeader hdr=(EncryptHeader)msg.getHeader(this.id);
-        if(!hdr.getVersion().equals(getSymVersion())) {
+        CipherPool ciphers=decrypt_ciphers;
+        if(!hdr.getVersion().equals(ciphers.version)) {
             log.warn("attempting to use stored cipher as message does not use current encryption version ");
-            cipher=keyMap.get(hdr.getVersion());
-            if(cipher == null) {
+            ciphers=keyMap.get(hdr.getVersion());
+            if(ciphers == null) {
                 log.warn("Unable to find a matching cipher in previous key map");
                 return null;
             }
-            else {
-                if(log.isTraceEnabled())
-                    log.trace("decrypting using previous cipher version " + hdr.getVersion());
-                return _decrypt(cipher, msg, hdr.encrypt_entire_msg);
-            }
-        }
-
-        else {
-
-            // reset buffer with decrypted message
-            return _decrypt(cipher, msg, hdr.encrypt_entire_msg);
+            if(log.isTraceEnabled())
+                log.trace("decrypting using previous cipher version " + hdr.getVersion());
         }
+        return _decrypt(ciphers, msg, hdr);
     }
 
-    private Message _decrypt(Cipher cipher, Message msg, boolean decrypt_entire_msg) throws Exception {
-        byte[] decrypted_msg;
-
-        decrypt_lock.lock();
-        try {
-            decrypted_msg=cipher.doFinal(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
-        }
-        finally {
-            decrypt_lock.unlock();
-        }
+    private static Message _decrypt(CipherPool ciphers, Message msg, EncryptHeader hdr) throws Exception {
+        byte[] decrypted_msg=ciphers.doFinal(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), hdr.iv);
 
-        if(!decrypt_entire_msg) {
-            msg.setBuffer(decrypted_msg);
-            return msg;
+        if(!hdr.encrypt_entire_msg) {
+            // we must not modify msg, as it may be retransmitted (http://jira.jboss.com/jira/browse/JGRP-538),
+            // but there's no need to copy its (encrypted) buffer either
+            Message ret=msg.copy(false);
+            ret.setBuffer(decrypted_msg);
+            return ret;
         }
 
         Message ret=(Message)Util.streamableFromByteBuffer(Message.class, decrypted_msg);
@@ -936,6 +939,8 @@ public class ENCRYPT extends Protocol {
      * @throws QueueClosedException
      */
     private void drainDownQueue() throws Exception {
+        if(downMessageQueue.isEmpty()) // doesn't acquire the queue's lock
+            return;
         if(log.isTraceEnabled()) {
             int size=downMessageQueue.size();
             if(size > 0)
@@ -957,17 +962,16 @@ public class ENCRYPT extends Protocol {
             return;
         }
 
-        EncryptHeader hdr=new EncryptHeader(EncryptHeader.ENCRYPT, getSymVersion());
+        CipherPool ciphers=encrypt_ciphers;
+        EncryptHeader hdr=new EncryptHeader(EncryptHeader.ENCRYPT, ciphers.version);
         hdr.encrypt_entire_msg=this.encrypt_entire_message;
+        hdr.iv=ciphers.nextIV();
 
         if(encrypt_entire_message) {
             if(msg.getSrc() == null)
                 msg.setSrc(local_addr);
             byte[] serialized_msg=Util.streamableToByteBuffer(msg);
-            byte[] encrypted_msg=encryptMessage(symEncodingCipher,
-                                                serialized_msg,
-                                                0,
-                                                serialized_msg.length);
+            byte[] encrypted_msg=ciphers.doFinal(serialized_msg, 0, serialized_msg.length, hdr.iv);
             // we need to exclude existing headers, they will be seen again when we decrypt and unmarshal the message
             // on the receiver
             Message tmp=msg.copy(false, false);
@@ -984,24 +988,10 @@ public class ENCRYPT extends Protocol {
 
         // copy neeeded because same message (object) may be retransmitted -> no double encryption
         Message msgEncrypted=msg.copy(false);
-        msgEncrypted.setBuffer(encryptMessage(symEncodingCipher,
-                                              msg.getRawBuffer(),
-                                              msg.getOffset(),
-                                              msg.getLength()));
+        msgEncrypted.setBuffer(ciphers.doFinal(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), hdr.iv));
         passItDown(new Event(Event.MSG, msgEncrypted));
     }
 
-    /**
-     * 
-     * @param cipher
-     * @param plain
-     * @return
-     * @throws Exception
-     */
-    private synchronized byte[] encryptMessage(Cipher cipher, byte[] plain, int offset, int length) throws Exception {
-        return cipher.doFinal(plain,offset,length);
-    }
-
     private SecretKeySpec decodeKey(byte[] encodedKey) throws Exception {
         // try and decode secrey key sent from keyserver
         byte[] keyBytes;
@@ -1157,17 +1147,17 @@ public class ENCRYPT extends Protocol {
     }
 
     /**
-     * @return Returns the symDecodingCipher.
+     * @return Returns a decoding cipher for the current key; the cipher is not used by the protocol
      */
-    protected Cipher getSymDecodingCipher() {
-        return symDecodingCipher;
+    protected Cipher getSymDecodingCipher() throws Exception {
+        return decrypt_ciphers.acquire();
     }
 
     /**
-     * @return Returns the symEncodingCipher.
+     * @return Returns an encoding cipher for the current key; the cipher is not used by the protocol
      */
-    protected Cipher getSymEncodingCipher() {
-        return symEncodingCipher;
+    protected Cipher getSymEncodingCipher() throws Exception {
+        return encrypt_ciphers.acquire();
     }
 
     /**
@@ -1200,6 +1190,131 @@ public class ENCRYPT extends Protocol {
         this.keyServerAddr=keyServerAddr;
     }
 
+    protected Cipher createSymCipher(String algorithm) throws Exception {
+        if(symProvider != null && !symProvider.trim().isEmpty())
+            return Cipher.getInstance(algorithm, symProvider);
+        return Cipher.getInstance(algorithm);
+    }
+
+
+    /**
+     * Pool of ciphers for one key and mode (encryption or decryption). Ciphers are not thread safe, so every thread
+     * acquires its own cipher; acquire() and release() never block. The number of idle ciphers is bounded by
+     * cipher_pool_size, the number of ciphers in use is not.<p/>
+     * If the transformation requires an IV (e.g. AES/CBC/PKCS5Padding or AES/GCM/NoPadding), a new IV is generated
+     * for every message and sent in the {@link EncryptHeader}. For GCM and CTR, IVs only have to be unique, so they
+     * are a random prefix followed by a counter. For other modes (e.g. CBC), IVs have to be unpredictable and are random.
+     */
+    protected class CipherPool {
+        protected final String        algorithm;
+        protected final SecretKey     key;
+        protected final String        version;
+        protected final int           mode;      // Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+        protected final int           iv_length; // 0 if the transformation doesn't use an IV, e.g. ECB
+        protected final boolean       unique_iv; // IVs need to be unique, but not unpredictable (GCM, CTR)
+        protected final boolean       gcm;
+        protected final Queue<Cipher> idle=new ConcurrentLinkedQueue<Cipher>();
+        protected final AtomicInteger num_idle=new AtomicInteger(0);
+        protected final int           max_idle;
+        protected final byte[]        iv_prefix;
+        protected final AtomicLong    iv_counter;
+        protected final SecureRandom  random;
+
+        protected CipherPool(String algorithm, SecretKey key, String version, int mode) throws Exception {
+            this.algorithm=algorithm;
+            this.key=key;
+            this.version=version;
+            this.mode=mode;
+            this.max_idle=cipher_pool_size > 0? cipher_pool_size : Runtime.getRuntime().availableProcessors();
+
+            // a cipher initialized for encryption without an IV generates one if the transformation requires it
+            Cipher cipher=createSymCipher(algorithm);
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            byte[] iv=cipher.getIV();
+            iv_length=iv != null? iv.length : 0;
+            String upper=algorithm.toUpperCase();
+            gcm=upper.contains("/GCM");
+            unique_iv=gcm || upper.contains("/CTR");
+            if(gcm && GCM_PARAMETER_SPEC == null)
+                throw new IllegalStateException(algorithm + " requires javax.crypto.spec.GCMParameterSpec (JDK 7 or higher)");
+            if(iv_length > 0 && mode == Cipher.ENCRYPT_MODE) {
+                random=new SecureRandom();
+                iv_prefix=new byte[Math.max(0, iv_length - Global.LONG_SIZE)];
+                random.nextBytes(iv_prefix);
+                iv_counter=new AtomicLong(random.nextLong());
+            }
+            else {
+                random=null;
+                iv_prefix=null;
+                iv_counter=null;
+            }
+            if(iv_length == 0 && mode == Cipher.ENCRYPT_MODE)
+                release(cipher);
+        }
+
+        /** Returns a cipher; if the transformation uses an IV, the cipher has to be initialized by the caller */
+        protected Cipher acquire() throws Exception {
+            Cipher cipher=idle.poll();
+            if(cipher != null) {
+                num_idle.decrementAndGet();
+                return cipher;
+            }
+            cipher=createSymCipher(algorithm);
+            if(iv_length == 0)
+                cipher.init(mode, key);
+            return cipher;
+        }
+
+        protected void release(Cipher cipher) {
+            if(num_idle.incrementAndGet() <= max_idle)
+                idle.offer(cipher);
+            else
+                num_idle.decrementAndGet();
+        }
+
+        /** Returns a new IV, or null if the transformation doesn't use IVs. Only called on encryption pools */
+        protected byte[] nextIV() {
+            if(iv_length == 0)
+                return null;
+            byte[] iv=new byte[iv_length];
+            if(!unique_iv) {
+                random.nextBytes(iv);
+                return iv;
+            }
+            System.arraycopy(iv_prefix, 0, iv, 0, iv_prefix.length);
+            long counter=iv_counter.getAndIncrement();
+            for(int i=iv_length-1; i >= iv_prefix.length; i--) {
+                iv[i]=(byte)counter;
+                counter>>>=8;
+            }
+            return iv;
+        }
+
+        /** Encrypts or decrypts a buffer with a cipher from the pool */
+        protected byte[] doFinal(byte[] buf, int offset, int length, byte[] iv) throws Exception {
+            Cipher cipher=acquire();
+            if(iv_length > 0) {
+                if(iv == null || iv.length != iv_length)
+                    throw new IllegalArgumentException("IV of " + (iv != null? iv.length : 0) + " bytes doesn't match " +
+                                                         algorithm + " (" + iv_length + " bytes)");
+                cipher.init(mode, key, createParameterSpec(iv));
+            }
+            byte[] retval=cipher.doFinal(buf, offset, length);
+            release(cipher); // not released if doFinal() failed, as its state is undefined
+            return retval;
+        }
+
+        protected AlgorithmParameterSpec createParameterSpec(byte[] iv) throws Exception {
+            return gcm? (AlgorithmParameterSpec)GCM_PARAMETER_SPEC.newInstance(GCM_TAG_LENGTH, iv) : new IvParameterSpec(iv);
+        }
+
+        public String toString() {
+            return algorithm + " (" + (mode == Cipher.ENCRYPT_MODE? "encrypt" : "decrypt") + ", version=" + version +
+              ", idle=" + num_idle + ")";
+        }
+    }
+
+
     public static class EncryptHeader extends org.jgroups.Header {
         short type;
         public static final short ENCRYPT     = 0;
@@ -1208,6 +1323,7 @@ public class ENCRYPT extends Protocol {
 
         String version;
         boolean encrypt_entire_msg=false;
+        byte[] iv; // null if the transformation doesn't use an IV
 
         public EncryptHeader() {}
 
@@ -1226,12 +1342,20 @@ public class ENCRYPT extends Protocol {
             out.writeShort(type);
             Util.writeString(version, out);
             out.writeBoolean(encrypt_entire_msg);
+            out.writeByte(iv != null? iv.length : 0);
+            if(iv != null)
+                out.write(iv);
         }
 
         public void readFrom(DataInput in) throws Exception {
             type=in.readShort();
             version=Util.readString(in);
             encrypt_entire_msg=in.readBoolean();
+            int iv_length=in.readUnsignedByte();
+            if(iv_length > 0) {
+                iv=new byte[iv_length];
+                in.readFully(iv);
+            }
         }
 
         public String toString() {
@@ -1239,9 +1363,11 @@ public class ENCRYPT extends Protocol {
         }
 
         public int size() {
-            int retval=Global.SHORT_SIZE + Global.BYTE_SIZE + Global.BYTE_SIZE;
+            int retval=Global.SHORT_SIZE + Global.BYTE_SIZE + Global.BYTE_SIZE + Global.BYTE_SIZE;
             if(version != null)
                 retval+=version.length() + 2;
+            if(iv != null)
+                retval+=iv.length;
             return retval;
         }
 
@@ -1259,5 +1385,8 @@ public class ENCRYPT extends Protocol {
         protected String getVersion() {
             return version;
         }
+
+        public byte[]        getIv()          {return iv;}
+        public EncryptHeader setIv(byte[] iv) {this.iv=iv; return this;}
     }
 }
@@ -6,6 +6,7 @@ import org.jgroups.Message;
 import org.jgroups.View;
 import org.jgroups.annotations.*;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.FixedSizeBitSet;
 import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Range;
 import org.jgroups.util.Util;
@@ -35,6 +36,11 @@ import java.util.concurrent.locks.ReentrantLock;
  * byte[] array anyway. We assume that the size addition for headers and src and
  * dest address is minimal when the transport finally has to serialize the
  * message, so we add a constant (200 bytes).
+ * <p>
+ * Fragments are views (offset and length) over the buffer of the original message, so no data is copied when
+ * fragmenting. Every fragment carries the length of the original message and its offset (see {@link Frag2Header}),
+ * so the receiver allocates the buffer of the original message when it receives the first fragment and copies every
+ * fragment into it as it arrives, instead of keeping all fragments and copying them again when complete.
  * 
  * @author Bela Ban
  */
@@ -152,7 +158,7 @@ public class FRAG2 extends Protocol {
 
             case Event.MSG:
                 Message msg=(Message)evt.getArg();
-                FragHeader hdr=(FragHeader)msg.getHeader(this.id);
+                Frag2Header hdr=(Frag2Header)msg.getHeader(this.id);
                 if(hdr != null) { // needs to be defragmented
                     Message assembled_msg=unfragment(msg, hdr);
                     if(assembled_msg != null) {
@@ -180,7 +186,7 @@ public class FRAG2 extends Protocol {
 
     public void up(MessageBatch batch) {
         for(Message msg: batch) {
-            FragHeader hdr=(FragHeader)msg.getHeader(this.id);
+            Frag2Header hdr=(Frag2Header)msg.getHeader(this.id);
             if(hdr != null) { // needs to be defragmented
                 batch.remove(msg);
                 Message assembled_msg=unfragment(msg,hdr);
@@ -230,6 +236,7 @@ public class FRAG2 extends Protocol {
      [2344,3,1]{dst,src,buf2} and
      [2344,3,2]{dst,src,buf3}
      </pre>
+     The fragments' buffers refer to the buffer of msg, they are not copies.
      */
     protected void fragment(Message msg) {
         try {
@@ -252,7 +259,7 @@ public class FRAG2 extends Protocol {
                 // don't copy the buffer, only src, dest and headers. Only copy the headers one time !
                 Message frag_msg=msg.copy(false, i == 0);
                 frag_msg.setBuffer(buffer, (int)r.low, (int)r.high);
-                FragHeader hdr=new FragHeader(frag_id, i, num_frags);
+                Frag2Header hdr=new Frag2Header(frag_id, i, num_frags, msg.getLength(), (int)r.low - msg.getOffset());
                 frag_msg.putHeader(this.id, hdr);
                 down_prot.down(new Event(Event.MSG, frag_msg));
             }
@@ -264,13 +271,10 @@ public class FRAG2 extends Protocol {
 
 
     /**
-     1. Get all the fragment buffers
-     2. When all are received -> Assemble them into one big buffer
-     3. Read headers and byte buffer from big buffer
-     4. Set headers and buffer in msg
-     5. Return the message
+     1. Copy the fragment into the buffer of the entry (allocated on reception of the first fragment)
+     2. When all fragments are received -> return the message with the buffer and the headers of fragment 0
      */
-    protected Message unfragment(Message msg, FragHeader hdr) {
+    protected Message unfragment(Message msg, Frag2Header hdr) {
         Address   sender=msg.getSrc();
         Message   assembled_msg=null;
 
@@ -285,7 +289,7 @@ public class FRAG2 extends Protocol {
 
         FragEntry entry=frag_table.get(hdr.id);
         if(entry == null) {
-            entry=new FragEntry(hdr.num_frags);
+            entry=new FragEntry(hdr.num_frags, hdr.original_length);
             FragEntry tmp=frag_table.putIfAbsent(hdr.id, entry);
             if(tmp != null)
                 entry=tmp;
@@ -293,7 +297,7 @@ public class FRAG2 extends Protocol {
 
         entry.lock();
         try {
-            entry.set(hdr.frag_id, msg);
+            entry.set(msg, hdr);
             if(entry.isComplete()) {
                 assembled_msg=entry.assembleMessage();
                 frag_table.remove(hdr.id);
@@ -323,15 +327,20 @@ public class FRAG2 extends Protocol {
 
 
     /**
-     * Class represents an entry for a message. Each entry holds an array of byte arrays sorted
-     * once all the byte buffer entries have been filled the fragmentation is considered complete.<br/>
-     * All methods are unsynchronized, use getLock() to obtain a lock for concurrent access.
+     * Entry for a fragmented message. The buffer of the original message is allocated when the entry is created, and
+     * every fragment is copied into its place in the buffer when it is added, so the fragments themselves can be
+     * garbage collected right away.<br/>
+     * All methods are unsynchronized, use lock() to obtain a lock for concurrent access.
      */
     protected static class FragEntry {
-        // each fragment is a byte buffer
-        final Message fragments[];
+        // the buffer of the original message, the fragments are copied into it
+        final byte[]          buffer;
+        // the fragments received so far
+        final FixedSizeBitSet received;
+        // a copy of fragment 0 (without buffer); it has the headers of the original message
+        Message               msg;
         //the number of fragments we have received
-        int number_of_frags_recvd=0;
+        int                   number_of_frags_recvd=0;
 
         protected final Lock lock=new ReentrantLock();
 
@@ -339,9 +348,11 @@ public class FRAG2 extends Protocol {
         /**
          * Creates a new entry
          * @param tot_frags the number of fragments to expect for this message
+         * @param original_length the length of the original message
          */
-        protected FragEntry(int tot_frags) {
-            fragments=new Message[tot_frags];
+        protected FragEntry(int tot_frags, int original_length) {
+            received=new FixedSizeBitSet(tot_frags);
+            buffer=new byte[original_length];
         }
 
         /** Use to synchronize on FragEntry */
@@ -354,17 +365,20 @@ public class FRAG2 extends Protocol {
         }
 
         /**
-         * adds on fragmentation buffer to the message
-         * @param frag_id the number of the fragment being added 0..(tot_num_of_frags - 1)
-         * @param frag the byte buffer containing the data for this fragmentation, should not be null
+         * Copies a fragment into the buffer
+         * @param frag the fragment, should not be null
+         * @param hdr the header of the fragment; its frag_id is in range 0..(tot_num_of_frags - 1)
          */
-        public void set(int frag_id, Message frag) {
+        public void set(Message frag, Frag2Header hdr) {
             // don't count an already received fragment (should not happen though because the
             // reliable transmission protocol(s) below should weed out duplicates
-            if(fragments[frag_id] == null) {
-                fragments[frag_id]=frag;
-                number_of_frags_recvd++;
-            }
+            if(received.get(hdr.frag_id))
+                return;
+            System.arraycopy(frag.getRawBuffer(), frag.getOffset(), buffer, hdr.offset, frag.getLength());
+            received.set(hdr.frag_id);
+            number_of_frags_recvd++;
+            if(hdr.frag_id == 0)
+                msg=frag.copy(false); // doesn't copy the payload, but copies the headers
         }
 
         /** returns true if this fragmentation is complete
@@ -372,56 +386,25 @@ public class FRAG2 extends Protocol {
          *
          */
         public boolean isComplete() {
-            /*first make a simple check*/
-            if(number_of_frags_recvd < fragments.length) {
-                return false;
-            }
-            /*then double check just in case*/
-            for(Message msg: fragments) {
-                if(msg == null)
-                    return false;
-            }
-            /*all fragmentations have been received*/
-            return true;
+            return number_of_frags_recvd >= received.size();
         }
 
         /**
-         * Assembles all the fragments into one buffer. Takes all Messages, and combines their buffers into one
-         * buffer.
+         * Returns the message with the buffer into which all fragments were copied.
          * This method does not check if the fragmentation is complete (use {@link #isComplete()} to verify
          * before calling this method)
          * @return the complete message in one buffer
          *
          */
         protected Message assembleMessage() {
-            Message retval;
-            byte[]  combined_buffer, tmp;
-            int     combined_length=0, length, offset;
-            int     index=0;
-
-            for(Message fragment: fragments)
-                combined_length+=fragment.getLength();
-
-            combined_buffer=new byte[combined_length];
-            retval=fragments[0].copy(false); // doesn't copy the payload, but copies the headers
-
-            for(int i=0; i < fragments.length; i++) {
-                Message fragment=fragments[i];
-                fragments[i]=null; // help garbage collection a bit
-                tmp=fragment.getRawBuffer();
-                length=fragment.getLength();
-                offset=fragment.getOffset();
-                System.arraycopy(tmp, offset, combined_buffer, index, length);
-                index+=length;
-            }
-
-            retval.setBuffer(combined_buffer);
-            return retval;
+            msg.setBuffer(buffer);
+            return msg;
         }
 
         public String toString() {
             StringBuilder ret=new StringBuilder();
-            ret.append("[tot_frags=").append(fragments.length).append(", number_of_frags_recvd=").append(number_of_frags_recvd).append(']');
+            ret.append("[tot_frags=").append(received.size()).append(", number_of_frags_recvd=").append(number_of_frags_recvd)
+              .append(", length=").append(buffer.length).append(']');
             return ret.toString();
         }
 
@@ -13,6 +13,7 @@ import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Util;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -20,6 +21,12 @@ import java.util.*;
  * to send). When the credits have been exhausted, the sender blocks. Each receiver also keeps track of
  * how many credits it has received from a sender. When credits for a sender fall below a threshold,
  * the receiver sends more credits to the sender.
+ * <p/>
+ * With adaptive=true, every receiver has its own window (the max number of bytes a sender can send to it before
+ * receiving credits), which is sized between min_window and max_credits: the drain rate of a receiver and the bytes
+ * queued for it are estimated from its credit responses. When a sender uses up the window of a fast receiver, the
+ * window grows by window_increase; when the time the receiver needs to drain its queue exceeds max_queue_delay, or a
+ * sender blocks for max_block_time, the window shrinks by window_decrease (AIMD).
  * 
  * @author Bela Ban
  */
@@ -82,6 +89,25 @@ public abstract class FlowControl extends Protocol {
     @Property(description="Does not block a down message if it is a result of handling an up message in the" +
             "same thread. Fixes JGRP-928")
     protected boolean ignore_synchronous_response=true;
+
+    @Property(description="Sizes the window of every receiver between min_window and max_credits, based on its drain " +
+      "rate and queue depth estimated from its credit responses. Needs to be the same on all members")
+    protected boolean adaptive=false;
+
+    @Property(description="Min window (in bytes) of a receiver when adaptive=true. Receivers send credits when they " +
+      "have received min_window x (1 - min_threshold) bytes. Computed as max_credits x min_threshold unless explicitly set")
+    protected long min_window=0;
+
+    @Property(description="Number of bytes by which the window of a receiver grows when a sender used it up and the " +
+      "receiver keeps up (adaptive=true). Computed as (max_credits - min_window) / 10 unless explicitly set")
+    protected long window_increase=0;
+
+    @Property(description="Factor by which the window of a receiver shrinks when it is congested (adaptive=true)")
+    protected double window_decrease=0.5;
+
+    @Property(description="Max time (ms) a receiver may need to drain the bytes queued for it, as estimated from its " +
+      "drain rate. If it needs longer, its window shrinks (adaptive=true)")
+    protected long max_queue_delay=50;
     
     
     
@@ -101,6 +127,9 @@ public abstract class FlowControl extends Protocol {
      */
     protected final Map<Address,Credit> received=Util.createConcurrentMap();
 
+    /** The windows of the receivers of a sender, only used when adaptive=true */
+    protected final Map<Address,Window> windows=Util.createConcurrentMap();
+
 
     /** Whether FlowControl is still running, this is set to false when the protocol terminates (on stop()) */
     protected volatile boolean running=true;
@@ -126,6 +155,8 @@ public abstract class FlowControl extends Protocol {
     public void resetStats() {
         super.resetStats();
         num_credit_responses_sent=num_credit_responses_received=num_credit_requests_received=num_credit_requests_sent=0;
+        for(Window window: windows.values())
+            window.resetStats();
     }
 
     public long getMaxCredits() {
@@ -152,6 +183,22 @@ public abstract class FlowControl extends Protocol {
         this.min_credits=min_credits;
     }
 
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive=adaptive;
+    }
+
+    public long getMinWindow() {
+        return min_window;
+    }
+
+    public void setMinWindow(long min_window) {
+        this.min_window=min_window;
+    }
+
     public abstract int getNumberOfBlockings();
 
     public long getMaxBlockTime() {
@@ -242,6 +289,15 @@ public abstract class FlowControl extends Protocol {
         return num_credit_responses_sent;
     }
     
+    @ManagedAttribute(description="The windows (adaptive=true), estimated drain rates and queue depths of the " +
+      "receivers, and the number of times and time (ms) senders blocked on them")
+    public String getWindows() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,Window> entry: windows.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        return sb.toString();
+    }
+
     public abstract String printSenderCredits();
 
     @ManagedOperation(description="Print receiver credits")
@@ -297,6 +353,16 @@ public abstract class FlowControl extends Protocol {
         boolean min_credits_set = min_credits != 0;
         if(!min_credits_set)
             min_credits=(long)(max_credits * min_threshold);
+        if(adaptive) {
+            if(min_window <= 0)
+                min_window=(long)(max_credits * min_threshold);
+            if(min_window > max_credits)
+                throw new IllegalArgumentException("min_window (" + min_window + ") must be <= max_credits (" + max_credits + ")");
+            if(window_increase <= 0)
+                window_increase=Math.max(1, (max_credits - min_window) / 10);
+            if(window_decrease <= 0 || window_decrease >= 1)
+                throw new IllegalArgumentException("window_decrease (" + window_decrease + ") must be > 0 and < 1");
+        }
     }
 
     public void start() throws Exception {
@@ -474,10 +540,10 @@ public abstract class FlowControl extends Protocol {
         if(info != null) {
             Integer frag_size=(Integer)info.get("frag_size");
             if(frag_size != null) {
-                if(frag_size > max_credits) {
+                if(frag_size > (adaptive? min_window : max_credits)) {
                     log.warn("The fragmentation size of the fragmentation protocol is " + frag_size +
-                            ", which is greater than the max credits. While this is not incorrect, " +
-                            "it may cause blockings. Frag size should be less than max_credits " +
+                            ", which is greater than the max credits (min window). While this is not incorrect, " +
+                            "it may cause blockings. Frag size should be less than max_credits (min_window) " +
                             "(http://jira.jboss.com/jira/browse/JGRP-590)");
                 }
                 frag_size_received=true;
@@ -558,7 +624,10 @@ public abstract class FlowControl extends Protocol {
         // add members not in membership to received and sent hashmap (with full credits)
         for(Address addr: mbrs) {
             if(!received.containsKey(addr))
-                received.put(addr, new Credit(max_credits));
+                received.put(addr, adaptive? new Credit(min_window, (long)(min_window * min_threshold), null)
+                  : new Credit(max_credits));
+            if(adaptive && !windows.containsKey(addr))
+                windows.put(addr, new Window(min_window));
         }
         // remove members that left
         for(Iterator<Address> it=received.keySet().iterator(); it.hasNext();) {
@@ -566,6 +635,7 @@ public abstract class FlowControl extends Protocol {
             if(!mbrs.contains(addr))
                 it.remove();
         }
+        windows.keySet().retainAll(mbrs);
     }
 
 
@@ -581,14 +651,24 @@ public abstract class FlowControl extends Protocol {
 
 
     protected class Credit {
-        protected long credits_left;
-        protected int  num_blockings=0;
-        protected long total_blocking_time=0;
-        protected long last_credit_request=0;
+        protected long         credits_left;
+        protected long         max;    // the max number of credits (the window of the receiver if adaptive=true)
+        protected final long   min;    // a receiver sends credits when credits_left falls below min
+        protected final Window window; // the window of the receiver, null unless adaptive=true
+        protected int          num_blockings=0;
+        protected long         total_blocking_time=0;
+        protected long         last_credit_request=0;
 
         
         protected Credit(long credits) {
+            this(credits, min_credits, null);
+        }
+
+        protected Credit(long credits, long min, Window window) {
             this.credits_left=credits;
+            this.max=credits;
+            this.min=min;
+            this.window=window;
         }
 
 
@@ -606,11 +686,18 @@ public abstract class FlowControl extends Protocol {
             catch(InterruptedException e) {
             }
             finally {
-                total_blocking_time+=System.currentTimeMillis() - start;
+                long time=System.currentTimeMillis() - start;
+                total_blocking_time+=time;
                 num_blockings++;
+                if(window != null)
+                    window.blocked(time);
             }
 
-            return decrement(credits);
+            if(decrement(credits))
+                return true;
+            if(window != null && System.currentTimeMillis() - start >= timeout) // no credits received for timeout ms
+                setMax(window.blockTimedOut());
+            return false;
         }
 
         
@@ -624,10 +711,10 @@ public abstract class FlowControl extends Protocol {
 
 
         protected synchronized long decrementAndGet(long credits) {
-            credits_left=Math.max(0, credits_left - credits);
-            if(credits_left <= min_credits) {
-                long credit_response=Math.min(max_credits, max_credits - credits_left);
-                credits_left=max_credits;
+            credits_left-=credits; // < 0 if a batch larger than max was received: the credits for it must not get lost
+            if(credits_left <= min) {
+                long credit_response=max - credits_left;
+                credits_left=max;
                 return credit_response;
             }
             return 0;
@@ -635,10 +722,21 @@ public abstract class FlowControl extends Protocol {
 
 
         protected synchronized void increment(long credits) {
-            credits_left=Math.min(max_credits, credits_left + credits);
+            credits_left=Math.min(max, credits_left + credits);
             notifyAll();
         }
 
+        /** Sets the window: credits_left is incremented or decremented (but not below 0) by the difference */
+        protected synchronized void setMax(long new_max) {
+            if(new_max == max)
+                return;
+            credits_left=Math.max(0, credits_left + new_max - max);
+            max=new_max;
+            notifyAll();
+        }
+
+        protected synchronized long getMax() {return max;}
+
         protected synchronized boolean needToSendCreditRequest() {
             long current_time=System.currentTimeMillis();
             if(current_time - last_credit_request >= max_block_time) {
@@ -655,7 +753,7 @@ public abstract class FlowControl extends Protocol {
         protected synchronized long get() {return credits_left;}
 
         protected synchronized void set(long new_credits) {
-            credits_left=Math.min(max_credits, new_credits);
+            credits_left=Math.min(max, new_credits);
             notifyAll();
         }
 
@@ -666,4 +764,97 @@ public abstract class FlowControl extends Protocol {
     }
 
 
+    /**
+     * The adaptive window of a receiver. The drain rate of the receiver is estimated from the credits it sends and the
+     * time between its credit responses, the queue depth as the number of bytes sent to it for which no credits have
+     * been received yet. The window grows additively when a sender has used it up and the receiver drains its queue
+     * in less than max_queue_delay ms, and shrinks multiplicatively when it needs longer, or when a sender blocked on
+     * it for max_block_time ms.
+     */
+    protected class Window {
+        protected long   size;             // the current window in bytes
+        protected double drain_rate;       // bytes / ms drained by the receiver: avg_credits / avg_interval
+        protected double avg_credits;      // moving average of the credits of a credit response
+        protected double avg_interval;     // moving average of the time (ms) between credit responses
+        protected long   queue_depth;      // bytes sent to the receiver without credits (at the last credit response)
+        protected long   last_response;    // time (ns) of the last credit response
+        protected long   last_decrease;    // time (ns) of the last decrease of the window
+        protected boolean received_credits; // false until the first credit response has been received
+        protected int    num_increases, num_decreases, num_blockings;
+        protected long   total_blocking_time; // ms
+
+        protected Window(long size) {
+            this.size=size;
+            // System.nanoTime() has an arbitrary origin, so the timestamps can't start at 0. The window can be
+            // decreased right away
+            long now=System.nanoTime();
+            last_response=now;
+            last_decrease=now - TimeUnit.NANOSECONDS.convert(max_queue_delay, TimeUnit.MILLISECONDS);
+        }
+
+        protected synchronized long size() {return size;}
+
+        /**
+         * Called when credits have been received from the receiver
+         * @param credits The number of credits received
+         * @param outstanding The number of bytes sent to the receiver for which no credits have been received
+         * @return The new window
+         */
+        protected synchronized long creditsReceived(long credits, long outstanding) {
+            long now=System.nanoTime();
+            if(received_credits) {
+                // the averages are computed separately: responses which are sent back to back (e.g. in reply to a
+                // credit request) would skew an average of the individual rates
+                double interval=(now - last_response) / 1000000.0;
+                avg_credits=avg_credits == 0? credits : avg_credits * 0.75 + credits * 0.25;
+                avg_interval=avg_interval == 0? interval : avg_interval * 0.75 + interval * 0.25;
+                if(avg_interval > 0)
+                    drain_rate=avg_credits / avg_interval;
+            }
+            last_response=now;
+            received_credits=true;
+            queue_depth=Math.max(0, outstanding);
+
+            if(drain_rate > 0 && queue_depth / drain_rate > max_queue_delay)
+                return decrease(now);
+            if(queue_depth + credits >= size / 2 && size < max_credits) { // the window was used (mostly) up
+                size=Math.min(max_credits, size + window_increase);
+                num_increases++;
+            }
+            return size;
+        }
+
+        /** Called when a sender blocked for max_block_time ms without receiving credits from the receiver */
+        protected synchronized long blockTimedOut() {
+            return decrease(System.nanoTime());
+        }
+
+        protected synchronized void blocked(long time) {
+            num_blockings++;
+            total_blocking_time+=time;
+        }
+
+        protected synchronized void resetStats() {
+            num_increases=num_decreases=num_blockings=0;
+            total_blocking_time=0;
+        }
+
+        /** Shrinks the window, but not more than once every max_queue_delay ms: the queue needs time to drain */
+        protected long decrease(long now) {
+            if(size > min_window && now - last_decrease >= TimeUnit.NANOSECONDS.convert(max_queue_delay, TimeUnit.MILLISECONDS)) {
+                size=Math.max(min_window, (long)(size * window_decrease));
+                last_decrease=now;
+                num_decreases++;
+            }
+            return size;
+        }
+
+        public synchronized String toString() {
+            return "window=" + Util.printBytes(size) + ", drain rate=" + Util.printBytes(drain_rate * 1000) + "/s" +
+              ", queue=" + Util.printBytes(queue_depth) + ", increases=" + num_increases + ", decreases=" + num_decreases +
+              ", blockings=" + num_blockings + ", time blocked=" + total_blocking_time + " ms";
+        }
+    }
+
+
 }
@@ -0,0 +1,49 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * Header used by {@link FRAG2}. Every fragment carries the length of the original message and its offset into it,
+ * so the receiver can allocate the buffer of the original message when the first fragment is received (regardless of
+ * its frag_id) and copy every fragment into its final place.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class Frag2Header extends FragHeader {
+    public int original_length; // the length of the original message
+    public int offset;          // the offset of this fragment in the original message
+
+
+    public Frag2Header() {
+    } // used for externalization
+
+    public Frag2Header(long id, int frag_id, int num_frags, int original_length, int offset) {
+        super(id, frag_id, num_frags);
+        this.original_length=original_length;
+        this.offset=offset;
+    }
+
+    public String toString() {
+        return "[id=" + id + ", frag_id=" + frag_id + ", num_frags=" + num_frags + ", original_length=" +
+          original_length + ", offset=" + offset + ']';
+    }
+
+    public void writeTo(DataOutput out) throws Exception {
+        super.writeTo(out);
+        out.writeInt(original_length);
+        out.writeInt(offset);
+    }
+
+    public int size() {
+        return super.size() + 2*Global.INT_SIZE;
+    }
+
+    public void readFrom(DataInput in) throws Exception {
+        super.readFrom(in);
+        original_length=in.readInt();
+        offset=in.readInt();
+    }
+}
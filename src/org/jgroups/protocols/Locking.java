@@ -1,6 +1,7 @@
 package org.jgroups.protocols;
 
 import org.jgroups.*;
+import org.jgroups.annotations.GuardedBy;
 import org.jgroups.annotations.MBean;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
@@ -11,18 +12,22 @@ import org.jgroups.blocks.locking.LockNotification;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.Owner;
 import org.jgroups.util.Streamable;
+import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 
@@ -30,6 +35,11 @@ import java.util.concurrent.locks.LockSupport;
  * Base locking protocol, handling most of the protocol communication with other instances. To use distributed locking,
  * {@link org.jgroups.blocks.locking.LockService} is placed on a channel. LockService talks to a subclass of Locking
  * via events.
+ * <p/>
+ * If use_leases is true, an owner which unlocks a lock keeps it (as a lease) and can relock it without any messages.
+ * When a different owner requests the lock, the lock server sends a REVOKE_LEASE to the lease holder, which releases
+ * the lock if it isn't used, or else releases it on the next unlock and replies with LEASE_IN_USE, so that a tryLock()
+ * without timeout is denied. Unused leases are released after lease_timeout ms.
  * @author Bela Ban
  * @since 2.12
  * @see org.jgroups.protocols.CENTRAL_LOCK
@@ -41,6 +51,17 @@ abstract public class Locking extends Protocol {
     @Property(description="bypasses message bundling if set")
     protected boolean bypass_bundling=true;
 
+    @Property(description="If true, an unlocked lock is kept as a lease which can be relocked locally until another " +
+      "owner requests it")
+    protected boolean use_leases=false;
+
+    @Property(description="Time (ms) after which an unused lease is released")
+    protected long lease_timeout=10000;
+
+    @Property(description="Number of stripes of the server lock table: requests for locks in different stripes are " +
+      "processed concurrently")
+    protected int num_lock_stripes=32;
+
 
     protected Address local_addr;
 
@@ -49,10 +70,19 @@ abstract public class Locking extends Protocol {
     // server side locks
     protected final ConcurrentMap<String,ServerLock> server_locks=Util.createConcurrentMap(20);
 
+    /** Serializes the creation, modification and removal of server locks; the stripe of a lock is picked by its name */
+    protected Lock[] server_lock_stripes=createStripes(num_lock_stripes);
+
     // client side locks
     protected final ConcurrentMap<String,Map<Owner,ClientLock>> client_locks=Util.createConcurrentMap(20);
 
     protected final Set<LockNotification> lock_listeners=new HashSet<LockNotification>();
+
+    protected Future<?> lease_expiry_task;
+
+    protected final AtomicInteger num_lease_acquisitions=new AtomicInteger(0);
+
+    protected final AtomicInteger num_leases_revoked=new AtomicInteger(0);
     
 
 
@@ -69,7 +99,9 @@ abstract public class Locking extends Protocol {
         SIG_RET,           // response to alert of signal
         DELETE_LOCK_AWAIT, // request to delete a waiter
         CREATE_AWAITER,    // request to create a server lock await (sent by coordinator to backups). Used by CentralLockService
-        DELETE_AWAITER     // request to delete a server lock await (sent by coordinator to backups). Used by CentralLockService
+        DELETE_AWAITER,    // request to delete a server lock await (sent by coordinator to backups). Used by CentralLockService
+        REVOKE_LEASE,      // request to the lease holder to release the lock as a different owner requested it
+        LEASE_IN_USE       // response to REVOKE_LEASE: the lease holder will release the lock when it unlocks it
     }
 
 
@@ -105,6 +137,60 @@ abstract public class Locking extends Protocol {
     public String getView() {
         return view != null? view.toString() : null;
     }
+
+    @ManagedAttribute(description="Number of locks acquired from a lease, without contacting the lock server")
+    public int getNumberOfLeaseAcquisitions() {return num_lease_acquisitions.get();}
+
+    @ManagedAttribute(description="Number of leases released on request of the lock server")
+    public int getNumberOfLeasesRevoked() {return num_leases_revoked.get();}
+
+    @ManagedAttribute(description="Number of unused locks currently held as leases")
+    public int getNumberOfLeases() {
+        int retval=0;
+        for(Map<Owner,ClientLock> map: client_locks.values())
+            for(ClientLock lock: map.values())
+                if(lock.leased)
+                    retval++;
+        return retval;
+    }
+
+    @ManagedAttribute(description="Number of server locks")
+    public int getNumberOfServerLocks() {return server_locks.size();}
+
+    public void resetStats() {
+        super.resetStats();
+        num_lease_acquisitions.set(0);
+        num_leases_revoked.set(0);
+    }
+
+    public void init() throws Exception {
+        super.init();
+        if(num_lock_stripes < 1)
+            throw new IllegalArgumentException("num_lock_stripes (" + num_lock_stripes + ") has to be >= 1");
+        if(use_leases && lease_timeout <= 0)
+            throw new IllegalArgumentException("lease_timeout (" + lease_timeout + ") has to be > 0");
+        if(server_lock_stripes.length != num_lock_stripes)
+            server_lock_stripes=createStripes(num_lock_stripes);
+    }
+
+    public void start() throws Exception {
+        super.start();
+        if(use_leases) {
+            TimeScheduler timer=getTransport().getTimer();
+            lease_expiry_task=timer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {expireLeases();}
+                public String toString() {return Locking.class.getSimpleName() + ": LeaseExpiryTask";}
+            }, lease_timeout, lease_timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        if(lease_expiry_task != null) {
+            lease_expiry_task.cancel(false);
+            lease_expiry_task=null;
+        }
+        super.stop();
+    }
    
 
 
@@ -247,6 +333,12 @@ abstract public class Locking extends Protocol {
                     case DELETE_AWAITER:
                         handleDeleteAwaitingRequest(req.lock_name, req.owner);
                         break;
+                    case REVOKE_LEASE:
+                        handleRevokeLeaseRequest(req.lock_name, req.owner, msg.getSrc());
+                        break;
+                    case LEASE_IN_USE:
+                        handleLeaseInUseResponse(req);
+                        break;
                     default:
                         log.error("Request of type " + req.type + " not known");
                         break;
@@ -268,14 +360,39 @@ abstract public class Locking extends Protocol {
         return getLock(name, getOwner(), create_if_absent);
     }
 
-    @ManagedOperation(description="Unlocks all currently held locks")
+    @ManagedOperation(description="Unlocks all currently held locks and releases all leases")
     public void unlockAll() {
         List<ClientLock> locks=new ArrayList<ClientLock>();
         Collection<Map<Owner,ClientLock>> maps=client_locks.values();
         for(Map<Owner,ClientLock> map: maps)
             locks.addAll(map.values());
-        for(ClientLock lock: locks)
+        for(ClientLock lock: locks) {
             lock.unlock();
+            lock.releaseLease();
+        }
+    }
+
+    /** Releases all leases */
+    public void releaseLeases() {
+        for(ClientLock lock: getLeases())
+            lock.releaseLease();
+    }
+
+    /** Releases the leases which haven't been used for lease_timeout ms */
+    protected void expireLeases() {
+        long now=System.currentTimeMillis();
+        for(ClientLock lock: getLeases())
+            if(now - lock.last_used >= lease_timeout)
+                lock.releaseLease();
+    }
+
+    protected List<ClientLock> getLeases() {
+        List<ClientLock> retval=new ArrayList<ClientLock>();
+        for(Map<Owner,ClientLock> map: client_locks.values())
+            for(ClientLock lock: map.values())
+                if(lock.leased)
+                    retval.add(lock);
+        return retval;
     }
 
 
@@ -304,7 +421,9 @@ abstract public class Locking extends Protocol {
                     sb.append(", ");
                 sb.append(entry2.getKey());
                 ClientLock cl=entry2.getValue();
-                if(!cl.acquired || cl.denied)
+                if(cl.leased)
+                    sb.append(", leased");
+                else if(!cl.acquired || cl.denied)
                     sb.append(", unlocked");
             }
             sb.append(")");
@@ -317,14 +436,35 @@ abstract public class Locking extends Protocol {
         if(log.isDebugEnabled())
             log.debug("view=" + view);
         List<Address> members=view.getMembers();
-        for(Map.Entry<String,ServerLock> entry: server_locks.entrySet()) {
-            entry.getValue().handleView(members);
-        }
-        for(Map.Entry<String,ServerLock> entry: server_locks.entrySet()) {
-            ServerLock lock=entry.getValue();
-            if(lock.isEmpty() && lock.current_owner == null)
-                server_locks.remove(entry.getKey());
+        List<Request> rsps=new ArrayList<Request>();
+        for(String lock_name: server_locks.keySet()) {
+            Lock stripe=stripe(lock_name);
+            stripe.lock();
+            try {
+                ServerLock lock=server_locks.get(lock_name);
+                if(lock == null)
+                    continue;
+                lock.handleView(members, rsps);
+                if(lock.isEmpty() && lock.current_owner == null)
+                    server_locks.remove(lock_name);
+            }
+            finally {
+                stripe.unlock();
+            }
         }
+        sendResponses(rsps);
+    }
+
+    protected static Lock[] createStripes(int num) {
+        Lock[] retval=new Lock[num];
+        for(int i=0; i < retval.length; i++)
+            retval[i]=new ReentrantLock();
+        return retval;
+    }
+
+    /** Returns the lock which serializes access to the server lock with the given name */
+    protected Lock stripe(String lock_name) {
+        return server_lock_stripes[(lock_name.hashCode() & Integer.MAX_VALUE) % server_lock_stripes.length];
     }
 
 
@@ -378,6 +518,17 @@ abstract public class Locking extends Protocol {
     }
 
 
+    /** Sends the responses collected under a stripe lock. Must be called after the stripe lock has been released */
+    protected void sendResponses(List<Request> rsps) {
+        for(Request rsp: rsps) {
+            if(rsp.type == Type.SIG_RET)
+                sendSignalResponse(rsp.owner, rsp.lock_name);
+            else
+                sendLockResponse(rsp.type, rsp.owner, rsp.lock_name);
+        }
+    }
+
+
     protected void sendSignalResponse(Owner dest, String lock_name) {
         Request rsp=new Request(Type.SIG_RET, lock_name, dest, 0);
         Message lock_granted_rsp=new Message(dest.getAddress(), rsp).putHeader(id, new LockingHeader());
@@ -397,21 +548,26 @@ abstract public class Locking extends Protocol {
 
 
     protected void handleLockRequest(Request req) {
-        ServerLock lock=server_locks.get(req.lock_name);
-        if(lock == null) {
-            lock=new ServerLock(req.lock_name);
-            ServerLock tmp=server_locks.putIfAbsent(req.lock_name, lock);
-            if(tmp != null)
-                lock=tmp;
-            else {
+        List<Request> rsps=new ArrayList<Request>(1);
+        Lock stripe=stripe(req.lock_name);
+        stripe.lock();
+        try {
+            ServerLock lock=server_locks.get(req.lock_name);
+            if(lock == null) {
+                lock=new ServerLock(req.lock_name);
+                server_locks.put(req.lock_name, lock);
                 notifyLockCreated(req.lock_name);
             }
+            lock.handleRequest(req, rsps);
+            // We remove the lock if there is no waiters or owner
+            if(lock.isEmpty() && lock.current_owner == null && lock.condition.queue.isEmpty()) {
+                server_locks.remove(req.lock_name);
+            }
         }
-        lock.handleRequest(req);
-        // We remove the lock if there is no waiters or owner
-        if(lock.isEmpty() && lock.current_owner == null && lock.condition.queue.isEmpty()) {
-            server_locks.remove(req.lock_name);
+        finally {
+            stripe.unlock();
         }
+        sendResponses(rsps);
     }
 
 
@@ -426,24 +582,60 @@ abstract public class Locking extends Protocol {
          if(lock != null)
              lock.lockDenied();
     }
+
+    /** Releases the lease if the lock isn't used, else tells the sender that we'll release it on the next unlock */
+    protected void handleRevokeLeaseRequest(String lock_name, Owner owner, Address sender) {
+        ClientLock lock=getLock(lock_name, owner, false);
+        if(lock != null && !lock.revokeLease())
+            sendRequest(sender, Type.LEASE_IN_USE, lock_name, owner, 0, false);
+    }
+
+    protected void handleLeaseInUseResponse(Request req) {
+        List<Request> rsps=new ArrayList<Request>();
+        Lock stripe=stripe(req.lock_name);
+        stripe.lock();
+        try {
+            ServerLock lock=server_locks.get(req.lock_name);
+            if(lock != null)
+                lock.handleRequest(req, rsps);
+        }
+        finally {
+            stripe.unlock();
+        }
+        sendResponses(rsps);
+    }
     
     protected void handleAwaitRequest(String lock_name, Owner owner) {
-        ServerLock lock=server_locks.get(lock_name);
-        if (lock != null) {
-            lock.condition.addWaiter(owner);
+        Lock stripe=stripe(lock_name);
+        stripe.lock();
+        try {
+            ServerLock lock=server_locks.get(lock_name);
+            if (lock != null) {
+                lock.condition.addWaiter(owner);
+            }
+            else {
+                log.error("Condition await was received but lock was not created.  Waiter may block forever");
+            }
         }
-        else {
-            log.error("Condition await was received but lock was not created.  Waiter may block forever");
+        finally {
+            stripe.unlock();
         }
     }
     
     protected void handleDeleteAwaitRequest(String lock_name, Owner owner) {
-        ServerLock lock=server_locks.get(lock_name);
-        if (lock != null) {
-            lock.condition.removeWaiter(owner);
+        Lock stripe=stripe(lock_name);
+        stripe.lock();
+        try {
+            ServerLock lock=server_locks.get(lock_name);
+            if (lock != null) {
+                lock.condition.removeWaiter(owner);
+            }
+            else {
+                log.error("Condition await delete was received, but lock was gone");
+            }
         }
-        else {
-            log.error("Condition await delete was received, but lock was gone");
+        finally {
+            stripe.unlock();
         }
     }
     
@@ -460,24 +652,40 @@ abstract public class Locking extends Protocol {
     }
     
     protected void handleSignalRequest(Request req) {
-        ServerLock lock=server_locks.get(req.lock_name);
-        if (lock != null) {
-            lock.handleRequest(req);
+        List<Request> rsps=new ArrayList<Request>();
+        Lock stripe=stripe(req.lock_name);
+        stripe.lock();
+        try {
+            ServerLock lock=server_locks.get(req.lock_name);
+            if (lock != null) {
+                lock.handleRequest(req, rsps);
+            }
+            else {
+                log.error("Condition signal was received but lock was not created.  Couldn't notify anyone.");
+            }
         }
-        else {
-            log.error("Condition signal was received but lock was not created.  Couldn't notify anyone.");
+        finally {
+            stripe.unlock();
         }
+        sendResponses(rsps);
     }
     
     protected void handleCreateLockRequest(String lock_name, Owner owner) {
-        synchronized(server_locks) {
+        Lock stripe=stripe(lock_name);
+        stripe.lock();
+        try {
             server_locks.put(lock_name, new ServerLock(lock_name, owner));
         }
+        finally {
+            stripe.unlock();
+        }
     }
 
 
     protected void handleDeleteLockRequest(String lock_name) {
-        synchronized(server_locks) {
+        Lock stripe=stripe(lock_name);
+        stripe.lock();
+        try {
             ServerLock lock = server_locks.get(lock_name);
             if(lock == null)
                 return;
@@ -490,22 +698,32 @@ abstract public class Locking extends Protocol {
                 }
             }
         }
+        finally {
+            stripe.unlock();
+        }
     }
 
 
     protected void handleCreateAwaitingRequest(String lock_name, Owner owner) {
-        synchronized(server_locks) {
+        Lock stripe=stripe(lock_name);
+        stripe.lock();
+        try {
             ServerLock lock = server_locks.get(lock_name);
             if (lock == null) {
                 lock = new ServerLock(lock_name);
             }
             lock.condition.queue.add(owner);
         }
+        finally {
+            stripe.unlock();
+        }
     }
 
 
     protected void handleDeleteAwaitingRequest(String lock_name, Owner owner) {
-        synchronized(server_locks) {
+        Lock stripe=stripe(lock_name);
+        stripe.lock();
+        try {
             ServerLock lock = server_locks.get(lock_name);
             if (lock != null) {
                 synchronized (lock.condition) {
@@ -516,6 +734,9 @@ abstract public class Locking extends Protocol {
                 }
             }
         }
+        finally {
+            stripe.unlock();
+        }
     }
 
 
@@ -524,7 +745,7 @@ abstract public class Locking extends Protocol {
         if(owners == null) {
             if(!create_if_absent)
                 return null;
-            owners=new HashMap<Owner,ClientLock>();
+            owners=Util.createConcurrentMap(4);
             Map<Owner,ClientLock> existing=client_locks.putIfAbsent(name,owners);
             if(existing != null)
                 owners=existing;
@@ -539,6 +760,18 @@ abstract public class Locking extends Protocol {
         return lock;
     }
 
+    /** Adds a lock which was removed (e.g. because its lease was released) while its owner was about to acquire it */
+    protected void addClientLock(String lock_name, Owner owner, ClientLock lock) {
+        Map<Owner,ClientLock> owners=client_locks.get(lock_name);
+        if(owners == null) {
+            owners=Util.createConcurrentMap(4);
+            Map<Owner,ClientLock> existing=client_locks.putIfAbsent(lock_name, owners);
+            if(existing != null)
+                owners=existing;
+        }
+        owners.put(owner, lock);
+    }
+
     protected void removeClientLock(String lock_name, Owner owner) {
         Map<Owner,ClientLock> owners=client_locks.get(lock_name);
         if(owners != null) {
@@ -640,25 +873,39 @@ abstract public class Locking extends Protocol {
             this.condition=new ServerCondition(this);
         }
 
-        protected synchronized void handleRequest(Request req) {
+        /**
+         * Handles a request. The responses are not sent, but added to rsps, so that they can be sent after the
+         * stripe lock has been released
+         */
+        protected synchronized void handleRequest(Request req, List<Request> rsps) {
             switch(req.type) {
                 case GRANT_LOCK:
                     if(current_owner == null) {
                         setOwner(req.owner);
-                        sendLockResponse(Type.LOCK_GRANTED, req.owner, req.lock_name);
+                        rsps.add(new Request(Type.LOCK_GRANTED, req.lock_name, req.owner, 0));
                     }
                     else {
                         if(current_owner.equals(req.owner)) {
-                            sendLockResponse(Type.LOCK_GRANTED, req.owner, req.lock_name);
+                            rsps.add(new Request(Type.LOCK_GRANTED, req.lock_name, req.owner, 0));
+                        }
+                        else if(use_leases) {
+                            // the current owner might only hold a lease: a tryLock() without timeout is denied when
+                            // the owner replies with LEASE_IN_USE
+                            addToQueue(req);
+                            rsps.add(new Request(Type.REVOKE_LEASE, req.lock_name, current_owner, 0));
                         }
                         else {
                             if(req.is_trylock && req.timeout <= 0)
-                                sendLockResponse(Type.LOCK_DENIED, req.owner, req.lock_name);
+                                rsps.add(new Request(Type.LOCK_DENIED, req.lock_name, req.owner, 0));
                             else
                                 addToQueue(req);
                         }
                     }
                     break;
+                case LEASE_IN_USE:
+                    if(current_owner != null && current_owner.equals(req.owner))
+                        denyTryLocks(rsps);
+                    break;
                 case RELEASE_LOCK:
                 case LOCK_AWAIT:
                     if(current_owner == null)
@@ -669,19 +916,19 @@ abstract public class Locking extends Protocol {
                         addToQueue(req);
                     break;
                 case COND_SIG:
-                    condition.signal(false);
+                    condition.signal(false, rsps);
                     break;
                 case COND_SIG_ALL:
-                    condition.signal(true);
+                    condition.signal(true, rsps);
                     break;
                 default:
                     throw new IllegalArgumentException("type " + req.type + " is invalid here");
             }
 
-            processQueue();
+            processQueue(rsps);
         }
 
-        protected synchronized void handleView(List<Address> members) {
+        protected synchronized void handleView(List<Address> members, List<Request> rsps) {
             if(current_owner != null && !members.contains(current_owner.getAddress())) {
                 Owner tmp=current_owner;
                 setOwner(null);
@@ -702,7 +949,7 @@ abstract public class Locking extends Protocol {
                 }
             }
 
-            processQueue();
+            processQueue(rsps);
         }
 
 
@@ -730,6 +977,17 @@ abstract public class Locking extends Protocol {
             }
         }
 
+        /** Denies all queued tryLock() requests without timeout */
+        protected void denyTryLocks(List<Request> rsps) {
+            for(Iterator<Request> it=queue.iterator(); it.hasNext();) {
+                Request req=it.next();
+                if(req.type == Type.GRANT_LOCK && req.is_trylock && req.timeout <= 0) {
+                    it.remove();
+                    rsps.add(new Request(Type.LOCK_DENIED, req.lock_name, req.owner, 0));
+                }
+            }
+        }
+
         /** Checks if a certain request from a given owner is already in the queue */
         protected boolean isRequestPresent(Type type, Owner owner) {
             for(Request req: queue)
@@ -747,13 +1005,13 @@ abstract public class Locking extends Protocol {
         }
 
 
-        protected void processQueue() {
+        protected void processQueue(List<Request> rsps) {
             if(current_owner == null) {
                 while(!queue.isEmpty()) {
                     Request req=queue.remove(0);
                     if(req.type == Type.GRANT_LOCK) {
                         setOwner(req.owner);
-                        sendLockResponse(Type.LOCK_GRANTED, req.owner, req.lock_name);
+                        rsps.add(new Request(Type.LOCK_GRANTED, req.lock_name, req.owner, 0));
                         break;
                     }
                 }
@@ -813,7 +1071,8 @@ abstract public class Locking extends Protocol {
             queue.remove(waiter);
         }
         
-        public synchronized void signal(boolean all) {
+        /** Adds a SIG_RET response for each signalled waiter to rsps */
+        public synchronized void signal(boolean all, List<Request> rsps) {
             if (queue.isEmpty()) {
                 if (log.isTraceEnabled()) {
                     log.trace("Signal for [" + lock.lock_name + 
@@ -828,7 +1087,7 @@ abstract public class Locking extends Protocol {
                     if (log.isTraceEnabled()) {
                         log.trace("Signalled " + entry + " for " + lock.lock_name);
                     }
-                    sendSignalResponse(entry, lock.lock_name);
+                    rsps.add(new Request(Type.SIG_RET, lock.lock_name, entry, 0));
                 }
             }
             else {
@@ -838,7 +1097,7 @@ abstract public class Locking extends Protocol {
                     if (log.isTraceEnabled()) {
                         log.trace("Signalled " + entry + " for " + lock.lock_name);
                     }
-                    sendSignalResponse(entry, lock.lock_name);
+                    rsps.add(new Request(Type.SIG_RET, lock.lock_name, entry, 0));
                 }
             }
         }
@@ -853,6 +1112,10 @@ abstract public class Locking extends Protocol {
         protected volatile boolean  denied;
         protected volatile boolean  is_trylock;
         protected long              timeout;
+        protected volatile boolean  leased;   // unlocked, but the lock server still has us as owner (use_leases=true)
+        protected boolean           revoked;  // the lock server asked us to release the lock on the next unlock
+        protected volatile long     last_used;
+        protected boolean           removed;  // removed from client_locks when the lease was released
         
         protected final ClientCondition condition;
 
@@ -897,7 +1160,7 @@ abstract public class Locking extends Protocol {
         }
 
         public String toString() {
-            return name + " (locked=" + acquired +")";
+            return name + " (locked=" + acquired + (leased? ", leased" : "") + ")";
         }
 
         protected synchronized void lockGranted() {
@@ -916,7 +1179,10 @@ abstract public class Locking extends Protocol {
 
         protected synchronized void acquire(boolean throwInterrupt) throws InterruptedException {
             if(!acquired) {
+                if(acquireLease())
+                    return;
                 owner=getOwner();
+                readd();
                 sendGrantLockRequest(name, owner, 0, false);
                 boolean interrupted=false;
                 while(!acquired) {
@@ -945,8 +1211,15 @@ abstract public class Locking extends Protocol {
                 return;
             this.timeout=0;
             this.is_trylock=false;
+            if(use_leases && acquired && !denied && !force && !revoked) { // keep the lock as lease
+                acquired=false;
+                leased=true;
+                last_used=System.currentTimeMillis();
+                notifyAll();
+                return;
+            }
             sendReleaseLockRequest(name, owner);
-            acquired=denied=false;
+            acquired=denied=leased=revoked=false;
             notifyAll();
 
             removeClientLock(name, owner);
@@ -958,9 +1231,12 @@ abstract public class Locking extends Protocol {
             if(denied)
                 return false;
             if(!acquired) {
+                if(acquireLease())
+                    return true;
                 is_trylock=true;
                 this.timeout=timeout;
                 owner=getOwner();
+                readd();
                 sendGrantLockRequest(name, owner, timeout, true);
 
                 long target_time=use_timeout? System.currentTimeMillis() + timeout : 0;
@@ -1004,6 +1280,52 @@ abstract public class Locking extends Protocol {
                 _unlock(true);
             return acquired && !denied;
         }
+
+        /** Acquires the lock locally if we hold a lease */
+        @GuardedBy("this")
+        protected boolean acquireLease() {
+            if(!leased)
+                return false;
+            leased=false;
+            acquired=true;
+            num_lease_acquisitions.incrementAndGet();
+            return true;
+        }
+
+        /** Adds the lock to client_locks again if the lease was released after the caller looked it up */
+        @GuardedBy("this")
+        protected void readd() {
+            if(removed) {
+                removed=false;
+                addClientLock(name, owner, this);
+            }
+        }
+
+        /** Releases the lease, if we hold one */
+        protected synchronized void releaseLease() {
+            if(!leased)
+                return;
+            sendReleaseLockRequest(name, owner);
+            leased=revoked=false;
+            removed=true;
+            removeClientLock(name, owner);
+            notifyLockDeleted(name);
+            owner=null;
+        }
+
+        /**
+         * Releases the lease if the lock isn't used, or else releases the lock on the next unlock
+         * @return True if the lock was released, false if it is in use
+         */
+        protected synchronized boolean revokeLease() {
+            if(leased) {
+                releaseLease();
+                num_leases_revoked.incrementAndGet();
+                return true;
+            }
+            revoked=true;
+            return false;
+        }
     }
     
     protected class ClientCondition implements Condition {
@@ -101,14 +101,16 @@ public class MFC extends FlowControl {
 
         long block_time=max_block_times != null? getMaxBlockTime(length) : max_block_time;
         while(running) {
-            boolean rc=credits.decrement(length, block_time);
+            boolean rc=adaptive? decrementAdaptive(length, block_time) : credits.decrement(length, block_time);
             if(rc || max_block_times != null || !running)
                 break;
 
             if(needToSendCreditRequest()) {
                 List<Tuple<Address,Long>> targets=credits.getMembersWithCreditsLessThan(min_credits);
-                for(Tuple<Address,Long> tuple: targets)
-                    sendCreditRequest(tuple.getVal1(), Math.min(max_credits, max_credits - tuple.getVal2()));
+                for(Tuple<Address,Long> tuple: targets) {
+                    long max=credits.getMaxCredits(tuple.getVal1());
+                    sendCreditRequest(tuple.getVal1(), Math.max(0, max - tuple.getVal2()));
+                }
             }
         }
         
@@ -119,6 +121,29 @@ public class MFC extends FlowControl {
 
 
 
+    /**
+     * Decrements the credits and, if we have to block, charges the blocking time to the members with insufficient
+     * credits. If no credits were received for block_time ms, their windows are shrunk
+     */
+    protected boolean decrementAdaptive(int length, long block_time) {
+        if(credits.decrement(length, 0))
+            return true;
+        List<Address> blockers=credits.getMembersWithInsufficientCredits(length);
+        long start=System.currentTimeMillis();
+        boolean rc=credits.decrement(length, block_time);
+        long time=System.currentTimeMillis() - start;
+        for(Address blocker: blockers) {
+            Window window=windows.get(blocker);
+            if(window == null)
+                continue;
+            window.blocked(time);
+            if(!rc && time >= block_time)
+                credits.setMaxCredits(blocker, window.blockTimedOut());
+        }
+        return rc;
+    }
+
+
     protected synchronized boolean needToSendCreditRequest() {
         long curr_time=System.currentTimeMillis();
         long wait_time=curr_time - last_credit_request;
@@ -133,6 +158,14 @@ public class MFC extends FlowControl {
 
     protected void handleCredit(Address sender, long increase) {
         credits.replenish(sender, increase);
+        Window window=adaptive? windows.get(sender) : null;
+        if(window != null) {
+            Long val=credits.get(sender);
+            if(val != null) {
+                long outstanding=credits.getMaxCredits(sender) - (val - credits.getAccumulatedCredits());
+                credits.setMaxCredits(sender, window.creditsReceived(increase, outstanding));
+            }
+        }
         if(log.isTraceEnabled()) {
             StringBuilder sb=new StringBuilder();
             sb.append("received " + increase + " credits from ").append(sender).append(", new credits for " + sender + " : ")
@@ -151,8 +184,11 @@ public class MFC extends FlowControl {
                 credits.remove(key);
         }
 
-        for(Address key: mbrs)
-            credits.putIfAbsent(key);
+        for(Address key: mbrs) {
+            Window window=windows.get(key);
+            if(credits.putIfAbsent(key) == null && window != null)
+                credits.setMaxCredits(key, window.size());
+        }
     }
 
 
@@ -98,6 +98,15 @@ public class PEER_LOCK extends Locking {
                 lockGranted();
         }
 
+        /** A lock whose lease was released needs the grants of all members again */
+        protected void readd() {
+            if(removed) {
+                grants.clear();
+                grants.addAll(view.getMembers());
+            }
+            super.readd();
+        }
+
         protected synchronized void handleLockGrantedResponse(Owner owner, Address sender) {
             if(grants.isEmpty())
                 return;
@@ -31,6 +31,11 @@ public class SCOPE extends Protocol {
 
     protected long thread_pool_keep_alive_time=30000;
 
+    @Property(name="thread_pool.type",description="The executor used for the thread pool: \"pool\" (thread pool), " +
+      "\"virtual\" (new virtual thread per task, max_threads limits the concurrency) or the name of a class " +
+      "implementing ExecutorFactory",writable=false)
+    protected String thread_pool_type="pool";
+
     @Property(description="Thread naming pattern for threads in this channel. Default is cl")
     protected String thread_naming_pattern="cl";
 
@@ -173,8 +178,8 @@ public class SCOPE extends Protocol {
 
     public void start() throws Exception {
         super.start();
-        thread_pool=createThreadPool(thread_pool_min_threads, thread_pool_max_threads,
-                                     thread_pool_keep_alive_time, thread_factory);
+        thread_pool=createThreadPool(Util.createExecutorFactory(thread_pool_type), thread_pool_min_threads,
+                                     thread_pool_max_threads, thread_pool_keep_alive_time, thread_factory);
         if(expiration_interval > 0 && expiration_time > 0)
             startExpiryTask();
     }
@@ -308,12 +313,13 @@ public class SCOPE extends Protocol {
 
     protected static ExecutorService createThreadPool(int min_threads, int max_threads, long keep_alive_time,
                                                       final org.jgroups.util.ThreadFactory factory) {
+        return createThreadPool(new DefaultExecutorFactory(), min_threads, max_threads, keep_alive_time, factory);
+    }
 
-        ThreadPoolExecutor pool=new ThreadPoolExecutor(min_threads, max_threads, keep_alive_time,
-                                                       TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
-        pool.setThreadFactory(factory);
-        pool.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
-        return pool;
+    protected static ExecutorService createThreadPool(ExecutorFactory executor_factory, int min_threads, int max_threads,
+                                                      long keep_alive_time, final org.jgroups.util.ThreadFactory factory) {
+        return executor_factory.create("SCOPE", min_threads, max_threads, keep_alive_time, new SynchronousQueue<Runnable>(),
+                                       new ThreadPoolExecutor.CallerRunsPolicy(), factory);
     }
 
     protected static void shutdownThreadPool(Executor thread_pool) {
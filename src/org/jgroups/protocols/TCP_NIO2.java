@@ -0,0 +1,168 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.blocks.NioConnectionMap;
+import org.jgroups.blocks.TCPConnectionMap;
+
+import java.util.Collection;
+
+/**
+ * TCP transport which multiplexes all connections over a small, fixed number of I/O threads, using
+ * {@link NioConnectionMap}. Contrary to {@link TCP}, the number of threads doesn't grow with the number of
+ * connections, so large clusters can run over TCP without creating 2 threads per member. Can be used as a
+ * replacement for TCP, as it accepts all of TCP's properties (use_send_queues and send_queue_size are ignored).
+ * <p/>
+ * When more than max_queued_bytes are queued for a connection, a sender (usually the bundler) blocks until the
+ * peer catches up, or max_send_block_time ms have elapsed, in which case the message is dropped and later
+ * retransmitted.
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Experimental
+@MBean(description="TCP transport multiplexing all connections over a fixed number of I/O threads")
+public class TCP_NIO2 extends BasicTCP implements TCPConnectionMap.Receiver {
+
+    @Property(description="Number of I/O threads (each with its own selector) handling reads and writes of all " +
+      "connections",writable=false)
+    protected int  io_threads=2;
+
+    @Property(description="Size (in bytes) of the direct buffer every connection reads into. Messages bigger than " +
+      "this are read into a buffer of their own",writable=false)
+    protected int  read_buffer_size=64 * 1024;
+
+    @Property(description="Max number of bytes queued for a connection whose socket is not writable, before " +
+      "senders are blocked",writable=false)
+    protected int  max_queued_bytes=2 * 1024 * 1024;
+
+    @Property(description="Max time (in ms) a sender blocks when max_queued_bytes are queued for a connection; the " +
+      "message is dropped (and retransmitted later) when the time has elapsed",writable=false)
+    protected long max_send_block_time=2000;
+
+    protected NioConnectionMap ct;
+
+
+    public TCP_NIO2() {}
+
+    @ManagedAttribute
+    public int getOpenConnections() {
+        return ct != null? ct.getNumConnections() : 0;
+    }
+
+    @ManagedAttribute(description="Number of sends which blocked because max_queued_bytes were queued")
+    public long getNumBlockedSends() {
+        return ct != null? ct.getNumBlockedSends() : 0;
+    }
+
+    @ManagedAttribute(description="Number of messages dropped after blocking for max_send_block_time ms")
+    public long getNumDroppedSends() {
+        return ct != null? ct.getNumDroppedSends() : 0;
+    }
+
+    @ManagedAttribute(description="Number of bytes queued for sending over all connections")
+    public long getQueuedBytes() {
+        return ct != null? ct.getQueuedBytes() : 0;
+    }
+
+    @ManagedOperation
+    public String printConnections() {
+        return ct.printConnections();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        if(ct != null)
+            ct.resetStats();
+    }
+
+    public void init() throws Exception {
+        super.init();
+        if(io_threads < 1)
+            throw new IllegalArgumentException("io_threads (" + io_threads + ") has to be >= 1");
+        if(read_buffer_size < 1024)
+            throw new IllegalArgumentException("read_buffer_size (" + read_buffer_size + ") has to be >= 1024");
+    }
+
+    public void send(Address dest, byte[] data, int offset, int length) throws Exception {
+        if(ct != null)
+            ct.send(dest, data, offset, length);
+    }
+
+    public void retainAll(Collection<Address> members) {
+        ct.retainAll(members);
+    }
+
+    public void start() throws Exception {
+        ct=createConnectionMap().log(log);
+        ct.setReceiveBufferSize(recv_buf_size);
+        ct.setSendBufferSize(send_buf_size);
+        ct.setSocketConnectionTimeout(sock_conn_timeout);
+        ct.peerAddressReadTimeout(peer_addr_read_timeout);
+        ct.setTcpNodelay(tcp_nodelay);
+        ct.setLinger(linger);
+        ct.readBufferSize(read_buffer_size).maxQueuedBytes(max_queued_bytes).maxSendBlockTime(max_send_block_time);
+
+        // we first start threads in TP (http://jira.jboss.com/jira/browse/JGRP-626)
+        super.start();
+    }
+
+    public void stop() {
+        if(log.isDebugEnabled()) log.debug("closing sockets and stopping threads");
+        ct.stop(); //not needed, but just in case
+        super.stop();
+    }
+
+
+    protected void handleConnect() throws Exception {
+        if(isSingleton()) {
+            if(connect_count == 0) {
+                ct.start();
+            }
+            super.handleConnect();
+        }
+        else
+            ct.start();
+    }
+
+    protected void handleDisconnect() {
+        if(isSingleton()) {
+            super.handleDisconnect();
+            if(connect_count == 0) {
+                ct.stop();
+            }
+        }
+        else
+            ct.stop();
+    }
+
+    protected NioConnectionMap createConnectionMap() throws Exception {
+        long reaperInterval=reaper_interval, connExpireTime=conn_expire_time;
+        if(reaperInterval != 0 || connExpireTime != 0) {
+            if(reaperInterval == 0) {
+                reaperInterval=5000;
+                if(log.isWarnEnabled())
+                    log.warn("reaper_interval was 0, set it to " + reaperInterval);
+            }
+            if(connExpireTime == 0) {
+                connExpireTime=1000 * 60 * 5;
+                if(log.isWarnEnabled())
+                    log.warn("conn_expire_time was 0, set it to " + connExpireTime);
+            }
+        }
+        return new NioConnectionMap("jgroups.tcp.srv_sock", getThreadFactory(), this, bind_addr, external_addr,
+                                    external_port, bind_port, bind_port+port_range, io_threads,
+                                    reaperInterval, connExpireTime)
+          .clientBindAddress(client_bind_addr)
+          .clientBindPort(client_bind_port)
+          .deferClientBinding(defer_client_bind_addr);
+    }
+
+    protected PhysicalAddress getPhysicalAddress() {
+        return ct != null? (PhysicalAddress)ct.getLocalAddress() : null;
+    }
+}
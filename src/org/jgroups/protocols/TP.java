@@ -20,7 +20,10 @@ import java.net.NetworkInterface;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 
 
 /**
@@ -53,6 +56,7 @@ public abstract class TP extends Protocol {
 
     protected static final byte LIST=1; // we have a list of messages rather than a single message when set
     protected static final byte MULTICAST=2; // message is a multicast (versus a unicast) message when set
+    protected static final byte COMPRESSED=4; // everything after the flags is compressed (bundle_compression)
 
     protected static final boolean can_bind_to_mcast_addr; // are we running on Linux ?
 
@@ -164,6 +168,11 @@ public abstract class TP extends Protocol {
               description="Thread rejection policy. Possible values are Abort, Discard, DiscardOldest and Run")
     protected String oob_thread_pool_rejection_policy="discard";
 
+    @Property(name="oob_thread_pool.type",description="The executor used for the OOB thread pool: \"pool\" (thread " +
+      "pool), \"virtual\" (new virtual thread per message, max_threads limits the concurrency) or the name of a class " +
+      "implementing ExecutorFactory",writable=false)
+    protected String oob_thread_pool_type="pool";
+
     protected int thread_pool_min_threads=2;
 
     protected int thread_pool_max_threads=10;
@@ -184,6 +193,20 @@ public abstract class TP extends Protocol {
               description="Thread rejection policy. Possible values are Abort, Discard, DiscardOldest and Run")
     protected String thread_pool_rejection_policy="Discard";
 
+    @Property(name="thread_pool.type",description="The executor used for the regular thread pool: \"pool\" (thread " +
+      "pool), \"virtual\" (new virtual thread per message, max_threads limits the concurrency) or the name of a class " +
+      "implementing ExecutorFactory",writable=false)
+    protected String thread_pool_type="pool";
+
+    @Property(description="If true, regular messages are not passed to the regular thread pool, but queued per sender " +
+      "and delivered in order by the threads of the OOB thread pool. Messages from different senders are delivered " +
+      "concurrently",writable=false)
+    protected boolean per_sender_delivery=false;
+
+    @Property(description="Max number of messages (or message batches) of a sender delivered by a thread before it " +
+      "picks the next sender. 0 delivers all queued messages of a sender. Ignored if per_sender_delivery is false")
+    protected int per_sender_max_tasks=100;
+
 
     @Property(name="internal_thread_pool.enabled",description="Switch for enabling thread pool for internal messages",
               writable=false)
@@ -208,6 +231,11 @@ public abstract class TP extends Protocol {
               description="Thread rejection policy. Possible values are Abort, Discard, DiscardOldest and Run")
     protected String internal_thread_pool_rejection_policy="discard";
 
+    @Property(name="internal_thread_pool.type",description="The executor used for the internal thread pool: \"pool\" " +
+      "(thread pool), \"virtual\" (new virtual thread per message, max_threads limits the concurrency) or the name " +
+      "of a class implementing ExecutorFactory",writable=false)
+    protected String internal_thread_pool_type="pool";
+
 
 
     @Property(description="Type of timer to be used. Valid values are \"old\" (DefaultTimeScheduler, used up to 2.10), " +
@@ -316,12 +344,40 @@ public abstract class TP extends Protocol {
      */
     protected long max_bundle_timeout=20;
 
-    @Property(description="The type of bundler used. Has to be \"old\" or \"new\" (default)")
+    @Property(description="The type of bundler used. Has to be \"old\", \"new\" (default) or \"multi\" " +
+      "(one lock-free queue per destination, drained by bundler_threads threads)")
     protected String bundler_type="new";
 
-    @Property(description="The max number of elements in a bundler if the bundler supports size limitations")
+    @Property(description="The max number of elements in a bundler if the bundler supports size limitations. " +
+      "With bundler_type=\"multi\", this is the capacity of each per-destination queue")
     protected int bundler_capacity=20000;
 
+    @Property(description="Number of bundler threads draining the per-destination queues. " +
+      "Only used with bundler_type=\"multi\"")
+    protected int bundler_threads=2;
+
+    @Property(description="Compresses packets (bundles or single messages) of at least bundle_compression.min_size " +
+      "bytes before they're sent: \"none\", \"lz4\" (fast) or \"deflate\" (compresses better, but is CPU intensive). " +
+      "Receivers uncompress packets regardless of their own setting",writable=false)
+    protected String bundle_compression="none";
+
+    @Property(name="bundle_compression.min_size",description="Min size (in bytes) of a packet to be compressed")
+    protected int bundle_compression_min_size=1000;
+
+    @Property(name="bundle_compression.level",description="Compression level (1=best speed, 9=best compression). " +
+      "Only used with bundle_compression=\"deflate\"",writable=false)
+    protected int bundle_compression_level=Deflater.BEST_SPEED;
+
+    @Property(name="buffer_pool.size",description="Max number of pooled receive buffers. If > 0, received messages " +
+      "keep their payload as a slice of the pooled buffer (instead of a copy), and the buffer is returned to the pool " +
+      "once all messages read from it have been delivered to the application. Receivers must therefore not hold on " +
+      "to a message's buffer after receive() returns. 0 disables pooling",writable=false)
+    protected int buffer_pool_size=0;
+
+    @Property(name="buffer_pool.buffer_size",description="Size of a pooled receive buffer. Has to be big enough " +
+      "to hold the largest packet received by the transport",writable=false)
+    protected int buffer_pool_buffer_size=66000;
+
 
     @Property(name="max_bundle_size", description="Maximum number of bytes for messages to be queued until they are sent")
     public void setMaxBundleSize(int size) {
@@ -346,6 +402,8 @@ public abstract class TP extends Protocol {
     @ManagedAttribute public int getBundlerBufferSize() {
         if(bundler instanceof TransferQueueBundler)
             return ((TransferQueueBundler)bundler).getBufferSize();
+        if(bundler instanceof MultiQueueBundler)
+            return ((MultiQueueBundler)bundler).getBufferSize();
         return 0;
     }
 
@@ -441,6 +499,16 @@ public abstract class TP extends Protocol {
 
     public long getTimerKeepAliveTime() {return timer_keep_alive_time;}
 
+    @ManagedAttribute(description="Number of receive buffers taken from the buffer pool")
+    public int getBufferPoolHits() {
+        return buffer_pool != null? buffer_pool.getNumHits() : 0;
+    }
+
+    @ManagedAttribute(description="Number of receive buffers which had to be allocated because the buffer pool was empty")
+    public int getBufferPoolMisses() {
+        return buffer_pool != null? buffer_pool.getNumMisses() : 0;
+    }
+
     @ManagedAttribute
     public int getTimerQueueSize() {
         if(timer instanceof TimeScheduler2)
@@ -462,6 +530,15 @@ public abstract class TP extends Protocol {
     @ManagedAttribute(description="Number of bytes received")
     protected long num_bytes_received=0;
 
+    @ManagedAttribute(description="Number of packets sent compressed (bundle_compression)")
+    protected long num_compressed_packets_sent=0;
+
+    @ManagedAttribute(description="Number of bytes of the compressed packets before compression")
+    protected long num_bytes_before_compression=0;
+
+    @ManagedAttribute(description="Number of bytes of the compressed packets after compression")
+    protected long num_bytes_after_compression=0;
+
     /** The name of the group to which this member is connected. With a shared transport, the channel name is
      * in TP.ProtocolAdapter (cluster_name), and this field is not used */
     @ManagedAttribute(description="Channel (cluster) name")
@@ -543,6 +620,9 @@ public abstract class TP extends Protocol {
     /** Used if thread_pool is a ThreadPoolExecutor and thread_pool_queue_enabled is true */
     protected BlockingQueue<Runnable> thread_pool_queue;
 
+    /** Delivers regular messages in order per sender on the OOB thread pool; null unless per_sender_delivery is true */
+    protected SerialExecutor<Address> sender_executor;
+
     // ================================== Internal thread pool ======================
 
     /** The thread pool which handles JGroups internal messages (Flag.INTERNAL)*/
@@ -551,6 +631,9 @@ public abstract class TP extends Protocol {
     /** Used if thread_pool is a ThreadPoolExecutor and thread_pool_queue_enabled is true */
     protected BlockingQueue<Runnable> internal_thread_pool_queue;
 
+    /** Records the time messages and batches wait in the queues of the thread pools; null unless instrumented */
+    protected volatile Histogram      queue_times;
+
     // ================================== Timer thread pool  =========================
     protected TimeScheduler timer;
 
@@ -565,6 +648,12 @@ public abstract class TP extends Protocol {
 
     protected Bundler bundler;
 
+    /** Codecs used to compress packets, null if bundle_compression is "none" */
+    protected CodecPool bundle_codecs;
+
+    /** Pool of receive buffers, null unless buffer_pool_size > 0 */
+    protected BufferPool buffer_pool;
+
     protected DiagnosticsHandler diag_handler=null;
     protected final List<DiagnosticsHandler.ProbeHandler> preregistered_probe_handlers=new LinkedList<DiagnosticsHandler.ProbeHandler>();
 
@@ -645,6 +734,7 @@ public abstract class TP extends Protocol {
     public void resetStats() {
         num_msgs_sent=num_msgs_received=num_bytes_sent=num_bytes_received=0;
         num_oob_msgs_received=num_incoming_msgs_received=num_internal_msgs_received=0;
+        num_compressed_packets_sent=num_bytes_before_compression=num_bytes_after_compression=0;
     }
 
     public void registerProbeHandler(DiagnosticsHandler.ProbeHandler handler) {
@@ -702,6 +792,8 @@ public abstract class TP extends Protocol {
             shutdownThreadPool(this.oob_thread_pool);
         }
         this.oob_thread_pool=oob_thread_pool;
+        if(sender_executor != null)
+            sender_executor=createSenderExecutor();
     }
 
     public ThreadFactory getOOBThreadPoolThreadFactory() {
@@ -725,6 +817,8 @@ public abstract class TP extends Protocol {
 
     public TimeScheduler getTimer() {return timer;}
 
+    public BufferPool getBufferPool() {return buffer_pool;}
+
     /**
      * Sets a new timer. This should be done before the transport is initialized; be very careful, as replacing a
      * running timer with tasks in it can wreak havoc !
@@ -791,6 +885,9 @@ public abstract class TP extends Protocol {
 
     public ConcurrentMap<String,Protocol> getUpProtocols() {return up_prots;}
 
+    public Histogram getQueueTimes()               {return queue_times;}
+    public void      setQueueTimes(Histogram h)    {queue_times=h;}
+
     
     @ManagedAttribute(description="Current number of threads in the OOB thread pool")
     public int getOOBPoolSize() {
@@ -815,6 +912,18 @@ public abstract class TP extends Protocol {
         RejectedExecutionHandler handler=Util.parseRejectionPolicy(rejection_policy);
         if(oob_thread_pool instanceof ThreadPoolExecutor)
             ((ThreadPoolExecutor)oob_thread_pool).setRejectedExecutionHandler(new ShutdownRejectedExecutionHandler(handler));
+        if(sender_executor != null)
+            sender_executor=createSenderExecutor();
+    }
+
+    @ManagedAttribute(description="Number of senders for which regular messages are queued (per_sender_delivery)")
+    public int getNumSenderQueues() {
+        return sender_executor != null? sender_executor.size() : 0;
+    }
+
+    @ManagedAttribute(description="Number of regular messages (or batches) queued for delivery (per_sender_delivery)")
+    public int getSenderQueueSize() {
+        return sender_executor != null? sender_executor.getNumQueuedTasks() : 0;
     }
 
 
@@ -993,6 +1102,12 @@ public abstract class TP extends Protocol {
         if(suppress_time_different_cluster_warnings > 0)
             suppress_log_different_cluster=new SuppressLog<Address>(log, "MsgDroppedDiffCluster", "SuppressMsg");
 
+        if(buffer_pool_size > 0 && buffer_pool == null)
+            buffer_pool=new BufferPool(buffer_pool_size, buffer_pool_buffer_size);
+
+        if(!"none".equalsIgnoreCase(bundle_compression))
+            bundle_codecs=new CodecPool(CodecPool.parse(bundle_compression), bundle_compression_level, 0);
+
         Util.verifyRejectionPolicy(oob_thread_pool_rejection_policy);
         Util.verifyRejectionPolicy(thread_pool_rejection_policy);
         Util.verifyRejectionPolicy(internal_thread_pool_rejection_policy);
@@ -1006,7 +1121,8 @@ public abstract class TP extends Protocol {
                     oob_thread_pool_queue=new LinkedBlockingQueue<Runnable>(oob_thread_pool_queue_max_size);
                 else
                     oob_thread_pool_queue=new SynchronousQueue<Runnable>();
-                oob_thread_pool=createThreadPool(oob_thread_pool_min_threads, oob_thread_pool_max_threads, oob_thread_pool_keep_alive_time,
+                oob_thread_pool=createThreadPool(Util.createExecutorFactory(oob_thread_pool_type), "OOB",
+                                                 oob_thread_pool_min_threads, oob_thread_pool_max_threads, oob_thread_pool_keep_alive_time,
                                                  oob_thread_pool_rejection_policy, oob_thread_pool_queue, oob_thread_factory);
             }
             else { // otherwise use the caller's thread to unmarshal the byte buffer into a message
@@ -1023,7 +1139,8 @@ public abstract class TP extends Protocol {
                     thread_pool_queue=new LinkedBlockingQueue<Runnable>(thread_pool_queue_max_size);
                 else
                     thread_pool_queue=new SynchronousQueue<Runnable>();
-                thread_pool=createThreadPool(thread_pool_min_threads, thread_pool_max_threads, thread_pool_keep_alive_time,
+                thread_pool=createThreadPool(Util.createExecutorFactory(thread_pool_type), "Incoming",
+                                             thread_pool_min_threads, thread_pool_max_threads, thread_pool_keep_alive_time,
                                              thread_pool_rejection_policy, thread_pool_queue, default_thread_factory);
             }
             else { // otherwise use the caller's thread to unmarshal the byte buffer into a message
@@ -1041,12 +1158,16 @@ public abstract class TP extends Protocol {
                     internal_thread_pool_queue=new LinkedBlockingQueue<Runnable>(internal_thread_pool_queue_max_size);
                 else
                     internal_thread_pool_queue=new SynchronousQueue<Runnable>();
-                internal_thread_pool=createThreadPool(internal_thread_pool_min_threads, internal_thread_pool_max_threads, internal_thread_pool_keep_alive_time,
-                                                 internal_thread_pool_rejection_policy, internal_thread_pool_queue, oob_thread_factory);
+                internal_thread_pool=createThreadPool(Util.createExecutorFactory(internal_thread_pool_type), "INT",
+                                                      internal_thread_pool_min_threads, internal_thread_pool_max_threads, internal_thread_pool_keep_alive_time,
+                                                      internal_thread_pool_rejection_policy, internal_thread_pool_queue, oob_thread_factory);
             }
             // if the internal thread pool is disabled, we won't create it (not even a DirectExecutor)
         }
 
+        if(per_sender_delivery)
+            sender_executor=createSenderExecutor();
+
 
         Map<String, Object> m=new HashMap<String, Object>(2);
         if(bind_addr != null)
@@ -1096,6 +1217,9 @@ public abstract class TP extends Protocol {
 
         if(internal_thread_pool instanceof ThreadPoolExecutor)
             shutdownThreadPool(internal_thread_pool);
+
+        if(bundle_codecs != null)
+            bundle_codecs.destroy();
     }
 
     /**
@@ -1169,6 +1293,8 @@ public abstract class TP extends Protocol {
                 log.warn("bundler_type=\"old2\" has been removed; using DefaultBundler (old)");
             bundler=new DefaultBundler();
         }
+        else if(bundler_type.equals("multi"))
+            bundler=new MultiQueueBundler(bundler_capacity, bundler_threads);
         else
             log.warn("bundler_type \"" + bundler_type + "\" not known; using default bundler (new)");
         if(bundler == null)
@@ -1267,11 +1393,15 @@ public abstract class TP extends Protocol {
             boolean internal=msg.isFlagSet(Message.Flag.INTERNAL);
             Executor pool=internal && internal_thread_pool != null? internal_thread_pool
               : internal || msg.isFlagSet(Message.Flag.OOB)? oob_thread_pool : thread_pool;
-            pool.execute(new Runnable() {
+            Runnable handler=new Runnable() {
                 public void run() {
                     passMessageUp(copy, cluster_name, false, multicast, false);
                 }
-            });
+            };
+            if(pool == thread_pool)
+                executeRegular(copy.getSrc(), handler);
+            else
+                pool.execute(handler);
 
             if(!multicast)
                 return null;
@@ -1391,6 +1521,19 @@ public abstract class TP extends Protocol {
      * @param length
      */
     protected void receive(Address sender, byte[] data, int offset, int length) {
+        receive(sender, data, offset, length, null);
+    }
+
+    /**
+     * Subclasses must call this method when a packet has been received into a buffer from {@link #buffer_pool}.
+     * The payloads of the messages read from the buffer are slices of it. The buffer is released by this method,
+     * so the caller must not release it again
+     */
+    protected void receive(Address sender, PooledBuffer buf, int offset, int length) {
+        receive(sender, buf.getBuf(), offset, length, buf);
+    }
+
+    protected void receive(Address sender, byte[] data, int offset, int length, PooledBuffer pooled) {
         if(data == null) return;
         DataInputStream dis=null;
         try {
@@ -1410,11 +1553,20 @@ public abstract class TP extends Protocol {
             }
 
             byte flags=dis.readByte();
+            if((flags & COMPRESSED) == COMPRESSED) {
+                byte[] uncompressed=uncompress(dis, data, offset, length);
+                if(pooled != null) { // the messages are read from the uncompressed copy
+                    pooled.release();
+                    pooled=null;
+                }
+                in_stream=new ExposedByteArrayInputStream(uncompressed);
+                dis=new DataInputStream(in_stream);
+            }
             boolean is_message_list=(flags & LIST) == LIST;
             final boolean multicast=(flags & MULTICAST) == MULTICAST;
 
             if(is_message_list) { // used if message bundling is enabled
-                final MessageBatch[] batches=readMessageBatch(dis, multicast);
+                final MessageBatch[] batches=readMessageBatch(dis, multicast, in_stream, pooled);
                 final MessageBatch batch=batches[0], oob_batch=batches[1], internal_batch=batches[2];
 
                 if(oob_batch != null) {
@@ -1423,7 +1575,7 @@ public abstract class TP extends Protocol {
                 }
                 if(batch != null) {
                     num_incoming_msgs_received+=batch.size();
-                    thread_pool.execute(new BatchHandler(batch));
+                    executeRegular(batch.sender(), new BatchHandler(batch));
                 }
                 if(internal_batch != null) {
                     num_internal_msgs_received+=internal_batch.size();
@@ -1432,7 +1584,7 @@ public abstract class TP extends Protocol {
                 }
             }
             else {
-                Message msg=readMessage(dis);
+                Message msg=readMessage(dis, in_stream, pooled);
                 if(msg.isFlagSet(Message.Flag.INTERNAL))
                     num_internal_msgs_received++;
                 else if(msg.isFlagSet(Message.Flag.OOB))
@@ -1445,7 +1597,10 @@ public abstract class TP extends Protocol {
                   : internal || msg.isFlagSet(Message.Flag.OOB)? oob_thread_pool : thread_pool;
                 TpHeader hdr=(TpHeader)msg.getHeader(id);
                 String cluster_name=hdr.channel_name;
-                pool.execute(new MyHandler(msg, cluster_name, multicast));
+                if(pool == thread_pool)
+                    executeRegular(msg.getSrc(), new MyHandler(msg, cluster_name, multicast));
+                else
+                    pool.execute(new MyHandler(msg, cluster_name, multicast));
             }
         }
         catch(Throwable t) {
@@ -1454,23 +1609,54 @@ public abstract class TP extends Protocol {
         }
         finally {
             Util.close(dis);
+            if(pooled != null)
+                pooled.release(); // the messages sliced from the buffer hold their own references
         }
     }
 
 
 
+    /**
+     * Passes a handler for regular messages to the regular thread pool, or - if per_sender_delivery is enabled - to
+     * the queue of the sender, so that the messages of a sender are delivered in order by one thread at a time
+     */
+    protected void executeRegular(Address sender, Runnable handler) {
+        SerialExecutor<Address> executor=sender_executor;
+        if(executor != null && sender != null)
+            executor.execute(sender, handler);
+        else
+            thread_pool.execute(handler);
+    }
+
+    protected SerialExecutor<Address> createSenderExecutor() {
+        if(oob_thread_pool instanceof ThreadPoolExecutor) // a discarded drainer would stall its sender's queue
+            SerialExecutor.protect((ThreadPoolExecutor)oob_thread_pool);
+        return new SerialExecutor<Address>(oob_thread_pool, per_sender_max_tasks);
+    }
+
+
+    protected void recordQueueTime(long created) {
+        Histogram tmp=queue_times;
+        if(tmp != null && created > 0)
+            tmp.record(System.nanoTime() - created);
+    }
+
+
     protected class MyHandler implements Runnable {
         protected final Message msg;
         protected final String  cluster_name;
         protected final boolean multicast;
+        protected final long    created; // 0 unless the queue times are recorded
 
         public MyHandler(Message msg, String cluster_name, boolean multicast) {
             this.msg=msg;
             this.cluster_name=cluster_name;
             this.multicast=multicast;
+            this.created=queue_times != null? System.nanoTime() : 0;
         }
 
         public void run() {
+            recordQueueTime(created);
             if(stats) {
                 num_msgs_received++;
                 num_bytes_received+=msg.getLength();
@@ -1491,12 +1677,15 @@ public abstract class TP extends Protocol {
 
     protected class BatchHandler implements Runnable {
         protected final MessageBatch batch;
+        protected final long         created; // 0 unless the queue times are recorded
 
         public BatchHandler(final MessageBatch batch) {
             this.batch=batch;
+            this.created=queue_times != null? System.nanoTime() : 0;
         }
 
         public void run() {
+            recordQueueTime(created);
             if(stats) {
                 num_msgs_received+=batch.size();
                 num_bytes_received+=batch.length();
@@ -1548,6 +1737,8 @@ public abstract class TP extends Protocol {
 
 
     protected void doSend(Buffer buf, Address dest, boolean multicast) throws Exception {
+        if(bundle_codecs != null && buf.getLength() >= bundle_compression_min_size)
+            buf=compress(buf);
         if(stats) {
             num_msgs_sent++;
             num_bytes_sent+=buf.getLength();
@@ -1561,6 +1752,60 @@ public abstract class TP extends Protocol {
     }
 
 
+    /**
+     * Compresses everything after the version and flags of a packet. The compressed packet is
+     * | version | flags (COMPRESSED set) | codec | original length | compressed data |.
+     * Returns buf if compression doesn't make the packet smaller
+     */
+    protected Buffer compress(Buffer buf) {
+        final int hdr_size=Global.SHORT_SIZE + Global.BYTE_SIZE, compressed_hdr_size=hdr_size + Global.BYTE_SIZE + Global.INT_SIZE;
+        byte[] data=buf.getBuf();
+        int offset=buf.getOffset(), length=buf.getLength() - hdr_size;
+        byte[] compressed=new byte[buf.getLength()];
+        Codec codec=bundle_codecs.acquire();
+        int compressed_size;
+        try {
+            compressed_size=codec.compress(data, offset + hdr_size, length, compressed, compressed_hdr_size,
+                                           compressed.length - compressed_hdr_size);
+        }
+        finally {
+            bundle_codecs.release(codec);
+        }
+        if(compressed_size < 0)
+            return buf;
+
+        compressed[0]=data[offset];
+        compressed[1]=data[offset+1];
+        compressed[2]=(byte)(data[offset+2] | COMPRESSED);
+        compressed[3]=bundle_codecs.getType();
+        for(int i=0; i < Global.INT_SIZE; i++) // big endian, as read by DataInput.readInt()
+            compressed[4+i]=(byte)(length >>> (24 - i*8));
+        if(stats) {
+            num_compressed_packets_sent++;
+            num_bytes_before_compression+=buf.getLength();
+            num_bytes_after_compression+=compressed_hdr_size + compressed_size;
+        }
+        return new Buffer(compressed, 0, compressed_hdr_size + compressed_size);
+    }
+
+    /** Uncompresses the rest of a packet compressed by {@link #compress(Buffer)}; in has read the version and flags */
+    protected static byte[] uncompress(DataInputStream in, byte[] data, int offset, int length) throws Exception {
+        final int hdr_size=Global.SHORT_SIZE + Global.BYTE_SIZE + Global.BYTE_SIZE + Global.INT_SIZE;
+        byte type=in.readByte();
+        int original_length=in.readInt();
+        byte[] retval=new byte[original_length];
+        CodecPool pool=CodecPool.get(type);
+        Codec codec=pool.acquire();
+        try {
+            codec.uncompress(data, offset + hdr_size, length - hdr_size, retval, 0, original_length);
+        }
+        finally {
+            pool.release(codec);
+        }
+        return retval;
+    }
+
+
     protected void sendToSingleMember(Address dest, byte[] buf, int offset, int length) throws Exception {
         if(dest instanceof PhysicalAddress) {
             sendUnicast((PhysicalAddress)dest, buf, offset, length);
@@ -1629,8 +1874,13 @@ public abstract class TP extends Protocol {
     }
 
     protected static Message readMessage(DataInputStream instream) throws Exception {
+        return readMessage(instream, null, null);
+    }
+
+    protected static Message readMessage(DataInputStream instream, ExposedByteArrayInputStream in_stream,
+                                         PooledBuffer pooled) throws Exception {
         Message msg=new Message(false); // don't create headers, readFrom() will do this
-        msg.readFrom(instream);
+        msg.readFrom(instream, in_stream, pooled);
         return msg;
     }
 
@@ -1711,6 +1961,15 @@ public abstract class TP extends Protocol {
      * @throws Exception
      */
     public static MessageBatch[] readMessageBatch(DataInputStream in, boolean multicast) throws Exception {
+        return readMessageBatch(in, multicast, null, null);
+    }
+
+    /**
+     * Same as {@link #readMessageBatch(java.io.DataInputStream,boolean)}, but if pooled is not null, the messages'
+     * payloads are slices of the pooled buffer (read by in_stream) rather than copies
+     */
+    public static MessageBatch[] readMessageBatch(DataInputStream in, boolean multicast,
+                                                  ExposedByteArrayInputStream in_stream, PooledBuffer pooled) throws Exception {
         MessageBatch[] batches=new MessageBatch[3]; // [0]: reg, [1]: OOB, [2]: internal
         Address dest=Util.readAddress(in);
         Address src=Util.readAddress(in);
@@ -1719,7 +1978,7 @@ public abstract class TP extends Protocol {
         int len=in.readInt();
         for(int i=0; i < len; i++) {
             Message msg=new Message(false);
-            msg.readFrom(in);
+            msg.readFrom(in, in_stream, pooled);
             msg.setDest(dest);
             if(msg.getSrc() == null)
                 msg.setSrc(src);
@@ -1772,6 +2031,10 @@ public abstract class TP extends Protocol {
                     logical_addr_cache.retainAll(members);
                     fetchLocalAddresses();
                     UUID.retainAll(members);
+                    if(bundler instanceof MultiQueueBundler)
+                        ((MultiQueueBundler)bundler).retainAll(members);
+                    if(sender_executor != null)
+                        sender_executor.retainAll(members);
 
                     if(suppress_log_different_version != null)
                         suppress_log_different_version.removeExpired(suppress_time_different_version_warnings);
@@ -1892,6 +2155,10 @@ public abstract class TP extends Protocol {
             global_thread_factory.renameThread(TransferQueueBundler.THREAD_NAME,
                                                ((TransferQueueBundler)bundler).getThread());
         }
+        if(bundler instanceof MultiQueueBundler) {
+            for(Thread thread: ((MultiQueueBundler)bundler).getThreads())
+                global_thread_factory.renameThread(MultiQueueBundler.THREAD_NAME, thread);
+        }
     }
 
 
@@ -1903,6 +2170,10 @@ public abstract class TP extends Protocol {
             if(thread != null)
                 global_thread_factory.renameThread(TransferQueueBundler.THREAD_NAME, thread);
         }
+        if(bundler instanceof MultiQueueBundler) {
+            for(Thread thread: ((MultiQueueBundler)bundler).getThreads())
+                global_thread_factory.renameThread(MultiQueueBundler.THREAD_NAME, thread);
+        }
     }
 
     protected void setInAllThreadFactories(String cluster_name, Address local_address, String pattern) {
@@ -1929,12 +2200,16 @@ public abstract class TP extends Protocol {
 
     protected static ExecutorService createThreadPool(int min_threads, int max_threads, long keep_alive_time, String rejection_policy,
                                                       BlockingQueue<Runnable> queue, final ThreadFactory factory) {
+        return createThreadPool(new DefaultExecutorFactory(), null, min_threads, max_threads, keep_alive_time,
+                                rejection_policy, queue, factory);
+    }
 
-        ThreadPoolExecutor pool=new ThreadPoolExecutor(min_threads, max_threads, keep_alive_time, TimeUnit.MILLISECONDS, queue);
-        pool.setThreadFactory(factory);
+    protected static ExecutorService createThreadPool(ExecutorFactory executor_factory, String name, int min_threads,
+                                                      int max_threads, long keep_alive_time, String rejection_policy,
+                                                      BlockingQueue<Runnable> queue, final ThreadFactory factory) {
         RejectedExecutionHandler handler=Util.parseRejectionPolicy(rejection_policy);
-        pool.setRejectedExecutionHandler(new ShutdownRejectedExecutionHandler(handler));
-        return pool;
+        return executor_factory.create(name, min_threads, max_threads, keep_alive_time, queue,
+                                       new ShutdownRejectedExecutionHandler(handler), factory);
     }
 
 
@@ -2332,6 +2607,192 @@ public abstract class TP extends Protocol {
     }
 
 
+    /**
+     * Bundler which maintains a lock-free send queue per destination (plus one for multicasts), drained by a small
+     * number of bundler threads. Senders only contend on the queue of their destination, and a given queue is
+     * always drained by the same bundler thread, which serializes its messages directly into the queue's reusable
+     * output buffer. Contrary to {@link TransferQueueBundler}, no map or message lists are created per bundle.
+     */
+    protected class MultiQueueBundler implements Bundler {
+        protected final int                                     capacity;
+        protected final ConcurrentMap<SingletonAddress,SendQueue> queues=Util.createConcurrentMap();
+        protected final BundlerThread[]                         threads;
+        protected volatile boolean                              running=true;
+        public static final String                              THREAD_NAME="MultiQueueBundler";
+
+
+        protected MultiQueueBundler(int capacity, int num_threads) {
+            if(capacity <= 0) throw new IllegalArgumentException("Bundler capacity cannot be " + capacity);
+            if(num_threads <= 0) throw new IllegalArgumentException("Number of bundler threads cannot be " + num_threads);
+            this.capacity=capacity;
+            threads=new BundlerThread[num_threads];
+            for(int i=0; i < threads.length; i++)
+                threads[i]=new BundlerThread();
+        }
+
+        public void start() {
+            running=true;
+            for(BundlerThread t: threads)
+                t.start();
+        }
+
+        public void stop() {
+            running=false;
+            for(BundlerThread t: threads)
+                t.stop();
+        }
+
+        public List<Thread> getThreads() {
+            List<Thread> retval=new ArrayList<Thread>(threads.length);
+            for(BundlerThread t: threads)
+                if(t.thread != null)
+                    retval.add(t.thread);
+            return retval;
+        }
+
+        public int getBufferSize() {
+            int retval=0;
+            for(SendQueue queue: queues.values())
+                retval+=queue.queue.size();
+            return retval;
+        }
+
+        public void send(Message msg) throws Exception {
+            long length=msg.size();
+            if(length > max_bundle_size)
+                throw new Exception("message size (" + length + ") is greater than max bundling size (" + max_bundle_size +
+                                      "). Set the fragmentation/bundle size in FRAG and TP correctly");
+
+            String cluster_name=!isSingleton()? TP.this.channel_name : ((TpHeader)msg.getHeader(id)).channel_name;
+            SingletonAddress dest=new SingletonAddress(cluster_name, msg.getDest());
+            SendQueue queue=queues.get(dest);
+            if(queue == null) {
+                SendQueue tmp=new SendQueue(dest);
+                queue=queues.putIfAbsent(dest, tmp);
+                if(queue == null)
+                    queue=tmp;
+            }
+
+            // the queue is full: wait until the bundler thread has drained some messages
+            while(!queue.queue.offer(msg)) {
+                if(!running)
+                    return;
+                queue.schedule();
+                LockSupport.parkNanos(100000); // 0.1 ms
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            queue.schedule();
+        }
+
+        /** Removes the (empty) queues of destinations which are not members anymore */
+        public void retainAll(Collection<Address> mbrs) {
+            for(Iterator<Map.Entry<SingletonAddress,SendQueue>> it=queues.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<SingletonAddress,SendQueue> entry=it.next();
+                Address addr=entry.getKey().getAddress();
+                if(addr != null && !mbrs.contains(addr) && entry.getValue().queue.isEmpty())
+                    it.remove();
+            }
+        }
+
+
+        /** A queue for a given destination, with a reusable buffer into which message lists are marshalled */
+        protected class SendQueue {
+            protected final SingletonAddress             dest;
+            protected final boolean                      multicast;
+            protected final MPSCRingBuffer<Message>      queue=new MPSCRingBuffer<Message>(capacity);
+            protected final AtomicBoolean                scheduled=new AtomicBoolean(false);
+            protected final BundlerThread                owner;
+            protected final List<Message>                list=new ArrayList<Message>(64);
+            protected final ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(1024);
+            protected final ExposedDataOutputStream      dos=new ExposedDataOutputStream(out_stream);
+
+            protected SendQueue(SingletonAddress dest) {
+                this.dest=dest;
+                this.multicast=dest.getAddress() == null;
+                this.owner=threads[(dest.hashCode() & Integer.MAX_VALUE) % threads.length];
+            }
+
+            /** Hands this queue to its bundler thread, unless it has already been handed over */
+            protected void schedule() {
+                if(scheduled.compareAndSet(false, true))
+                    owner.ready.add(this);
+            }
+
+            /** Called by the owning bundler thread only */
+            protected void process() {
+                long count=0;
+                Message msg;
+                while((msg=queue.poll()) != null) {
+                    long size=msg.size();
+                    if(count + size >= max_bundle_size && !list.isEmpty()) {
+                        sendBundle(count);
+                        count=0;
+                    }
+                    list.add(msg);
+                    count+=size;
+                }
+                if(!list.isEmpty())
+                    sendBundle(count);
+
+                // senders which found the flag set didn't reschedule us, so we need to check again
+                scheduled.set(false);
+                if(!queue.isEmpty())
+                    schedule();
+            }
+
+            protected void sendBundle(long count) {
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": sending " + list.size() + " msgs (" + count + " bytes) to " +
+                                (multicast? "cluster" : dest.getAddress()));
+                try {
+                    out_stream.reset();
+                    dos.reset();
+                    writeMessageList(dest.getAddress(), list.get(0).getSrc(), dest.getClusterName(), list, dos, multicast, id);
+                    doSend(new Buffer(out_stream.getRawBuffer(), 0, out_stream.size()), dest.getAddress(), multicast);
+                }
+                catch(Throwable e) {
+                    if(log.isErrorEnabled()) log.error(local_addr + ": exception sending bundled msgs: " + e + ":, cause: " + e.getCause());
+                }
+                finally {
+                    list.clear();
+                }
+            }
+        }
+
+
+        protected class BundlerThread implements Runnable {
+            protected final BlockingQueue<SendQueue> ready=new LinkedBlockingQueue<SendQueue>();
+            protected volatile Thread                thread;
+
+            protected void start() {
+                if(thread == null || !thread.isAlive()) {
+                    thread=getThreadFactory().newThread(this, THREAD_NAME);
+                    thread.start();
+                }
+            }
+
+            protected void stop() {
+                if(thread != null)
+                    thread.interrupt();
+            }
+
+            public void run() {
+                while(running) {
+                    try {
+                        ready.take().process();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    catch(Throwable t) {
+                        log.error(local_addr + ": failed sending bundled messages", t);
+                    }
+                }
+            }
+        }
+    }
+
+
 
 
 
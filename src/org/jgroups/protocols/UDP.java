@@ -1,10 +1,12 @@
 package org.jgroups.protocols;
 
 
+import org.jgroups.Address;
 import org.jgroups.Global;
 import org.jgroups.PhysicalAddress;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.IpAddress;
+import org.jgroups.util.PooledBuffer;
 import org.jgroups.util.Util;
 
 import java.io.IOException;
@@ -221,6 +223,9 @@ public class UDP extends TP {
      * Creates the unicast and multicast sockets and starts the unicast and multicast receiver threads
      */
     public void start() throws Exception {
+        if(buffer_pool != null && buffer_pool.getBufferSize() < 65535)
+            throw new IllegalArgumentException("buffer_pool.buffer_size (" + buffer_pool.getBufferSize() +
+                                                 ") has to be big enough for a datagram packet (65535 bytes)");
         try {
             createSockets();
             super.start();
@@ -668,11 +673,18 @@ public class UDP extends TP {
 
 
         public void run() {
-            final byte           receive_buf[]=new byte[66000]; // to be on the safe side (IPv6 == 65575 bytes, IPv4 = 65535)
-            final DatagramPacket packet=new DatagramPacket(receive_buf, receive_buf.length);
+            byte                 receive_buf[]=buffer_pool != null? null
+              : new byte[66000]; // to be on the safe side (IPv6 == 65575 bytes, IPv4 = 65535)
+            final DatagramPacket packet=new DatagramPacket(new byte[0], 0);
 
             while(thread != null && Thread.currentThread().equals(thread)) {
+                PooledBuffer pooled=null;
                 try {
+                    if(buffer_pool != null) { // receive into a pooled buffer, messages will refer to it without copying
+                        pooled=buffer_pool.get();
+                        receive_buf=pooled.getBuf();
+                    }
+                    packet.setData(receive_buf, 0, receive_buf.length);
                     receiver_socket.receive(packet);
                     int len=packet.getLength();
                     if(len > receive_buf.length) {
@@ -682,10 +694,14 @@ public class UDP extends TP {
                                       "Use the FRAG2 protocol and make its frag_size lower than " + receive_buf.length);
                     }
 
-                    receive(new IpAddress(packet.getAddress(), packet.getPort()),
-                            receive_buf,
-                            packet.getOffset(),
-                            len);
+                    Address sender=new IpAddress(packet.getAddress(), packet.getPort());
+                    if(pooled != null) {
+                        PooledBuffer tmp=pooled;
+                        pooled=null; // released by receive()
+                        receive(sender, tmp, packet.getOffset(), len);
+                    }
+                    else
+                        receive(sender, receive_buf, packet.getOffset(), len);
                 }
                 catch(SocketException sock_ex) {
                     if(log.isDebugEnabled()) log.debug("receiver socket is closed, exception=" + sock_ex);
@@ -695,6 +711,10 @@ public class UDP extends TP {
                     if(log.isErrorEnabled())
                         log.error("failed receiving packet", ex);
                 }
+                finally {
+                    if(pooled != null)
+                        pooled.release();
+                }
             }
             if(log.isDebugEnabled()) log.debug(name + " thread terminated");
         }
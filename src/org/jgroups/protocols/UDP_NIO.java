@@ -0,0 +1,264 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.Property;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.PooledBuffer;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UDP transport whose unicast socket is a {@link DatagramChannel}. Can be used as a drop-in replacement for UDP, as
+ * it accepts all of UDP's properties.
+ * <p/>
+ * Packets are received by receiver_threads threads on both the unicast channel and the multicast socket: receive
+ * calls on the same socket are serialized, but while one thread unmarshals a packet and passes it up, another one
+ * already receives the next packet. Unicast packets are read into a direct ByteBuffer (one per thread), so the JDK
+ * doesn't need to allocate temporary direct buffers, and unicasts are sent without creating a DatagramPacket
+ * per message.
+ * <p/>
+ * Multicast packets are still sent and received on a MulticastSocket, as a DatagramChannel can only join a
+ * multicast group from JDK 7 on.
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Experimental
+@MBean(description="UDP transport based on NIO datagram channels, using multiple receiver threads")
+public class UDP_NIO extends UDP {
+
+    @Property(description="Number of threads receiving packets on the unicast channel and the multicast socket (each)",
+              writable=false)
+    protected int receiver_threads=2;
+
+    /** The channel of the unicast socket. {@link UDP#sock} is the channel's socket adapter */
+    protected DatagramChannel ucast_ch;
+
+    protected ChannelReceiver[] ucast_receivers;
+
+    protected PacketReceiver[]  mcast_receivers;
+
+    protected final AtomicLong  num_truncated=new AtomicLong(0);
+
+
+    @ManagedAttribute(description="Number of unicast packets which were bigger than the receive buffer and got truncated")
+    public long getNumTruncatedPackets() {return num_truncated.get();}
+
+    public int  getReceiverThreads()      {return receiver_threads;}
+
+
+    public void init() throws Exception {
+        super.init();
+        if(receiver_threads < 1)
+            throw new IllegalArgumentException("receiver_threads (" + receiver_threads + ") has to be >= 1");
+    }
+
+    public void start() throws Exception {
+        super.start();
+        ucast_receivers=new ChannelReceiver[receiver_threads];
+        for(int i=0; i < ucast_receivers.length; i++)
+            ucast_receivers[i]=new ChannelReceiver(ucast_ch, "unicast receiver-" + (i+1));
+
+        if(ip_mcast) {
+            mcast_receivers=new PacketReceiver[receiver_threads];
+            for(int i=0; i < mcast_receivers.length; i++)
+                mcast_receivers[i]=new PacketReceiver(mcast_sock, "multicast receiver-" + (i+1), new Runnable() {
+                    public void run() {
+                        closeMulticastSocket();
+                    }
+                });
+        }
+    }
+
+
+    protected void _send(InetAddress dest, int port, boolean mcast, byte[] data, int offset, int length) throws Exception {
+        if(mcast) { // needs the multicast socket for the TTL and the outgoing interface
+            super._send(dest, port, true, data, offset, length);
+            return;
+        }
+        DatagramChannel ch=ucast_ch;
+        if(ch == null || !ch.isOpen())
+            return;
+        try {
+            // the JDK copies a heap buffer into a cached (per-thread) direct buffer: no need to do this ourselves
+            ch.send(ByteBuffer.wrap(data, offset, length), new InetSocketAddress(dest, port));
+        }
+        catch(Exception ex) {
+            throw new Exception("dest=" + dest + ":" + port + " (" + length + " bytes)", ex);
+        }
+    }
+
+
+    protected DatagramSocket createEphemeralDatagramSocket() throws SocketException {
+        return createChannelSocket(0, 0);
+    }
+
+    protected DatagramSocket createDatagramSocketWithBindPort() throws Exception {
+        int max_port=bind_port + port_range;
+        DatagramSocket retval=createChannelSocket(bind_port, max_port);
+        if(retval == null)
+            throw new Exception("failed to open a port in range " + bind_port + '-' + max_port);
+        return retval;
+    }
+
+    /**
+     * Opens a DatagramChannel and binds it to the first free port in range [start_port .. end_port]
+     * (an ephemeral port if start_port is 0)
+     * @return The channel's socket, or null if no port in the range could be bound to
+     */
+    protected DatagramSocket createChannelSocket(int start_port, int end_port) throws SocketException {
+        for(int port=start_port; port <= end_port; port++) {
+            DatagramChannel ch=null;
+            try {
+                ch=DatagramChannel.open();
+                ch.socket().bind(new InetSocketAddress(bind_addr, port));
+                ucast_ch=ch;
+                return ch.socket();
+            }
+            catch(SecurityException sec_ex) { // not allowed to listen on this port
+                closeChannel(ch);
+            }
+            catch(IOException ex) { // cannot listen on this port
+                closeChannel(ch);
+                if(start_port == 0)
+                    throw ex instanceof SocketException? (SocketException)ex : new SocketException(ex.toString());
+            }
+        }
+        return null;
+    }
+
+    protected void closeUnicastSocket() {
+        super.closeUnicastSocket();
+        closeChannel(ucast_ch); // closing the socket adapter closes the channel, too; this is just to be sure
+    }
+
+    void startThreads() throws Exception {
+        for(ChannelReceiver receiver: ucast_receivers)
+            receiver.start();
+        if(mcast_receivers != null)
+            for(PacketReceiver receiver: mcast_receivers)
+                receiver.start();
+    }
+
+    void stopThreads() {
+        if(mcast_receivers != null)
+            for(PacketReceiver receiver: mcast_receivers)
+                receiver.stop();
+
+        // closing the channel makes all threads blocked in receive() throw an AsynchronousCloseException
+        closeUnicastSocket();
+        for(ChannelReceiver receiver: ucast_receivers)
+            receiver.stop();
+    }
+
+    protected static void closeChannel(DatagramChannel ch) {
+        if(ch != null) {
+            try {
+                ch.close();
+            }
+            catch(IOException e) {
+            }
+        }
+    }
+
+
+    /**
+     * Receives unicast packets from the channel into a direct ByteBuffer and passes them up. Multiple instances
+     * can receive on the same channel
+     */
+    protected class ChannelReceiver implements Runnable {
+        protected final DatagramChannel ch;
+        protected final String          name;
+        protected volatile Thread       thread;
+
+        public ChannelReceiver(DatagramChannel ch, String name) {
+            this.ch=ch;
+            this.name=name;
+        }
+
+        public synchronized void start() {
+            if(thread == null || !thread.isAlive()) {
+                thread=getThreadFactory().newThread(this, name);
+                thread.start();
+            }
+        }
+
+        /** Needs to be called after the channel has been closed, or else the interrupt would close it */
+        public synchronized void stop() {
+            Thread tmp=thread;
+            thread=null;
+            if(tmp != null && tmp.isAlive()) {
+                tmp.interrupt();
+                try {
+                    tmp.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt(); // set interrupt flag again
+                }
+            }
+        }
+
+        public void run() {
+            // one byte more than the max datagram size (IPv6 == 65575 bytes, IPv4 = 65535), to detect truncation
+            final ByteBuffer direct_buf=ByteBuffer.allocateDirect(66001);
+            byte[] receive_buf=buffer_pool != null? null : new byte[66000];
+
+            while(thread == Thread.currentThread()) {
+                PooledBuffer pooled=null;
+                try {
+                    direct_buf.clear();
+                    SocketAddress addr=ch.receive(direct_buf);
+                    if(addr == null)
+                        continue;
+                    direct_buf.flip();
+                    int len=direct_buf.remaining();
+
+                    if(buffer_pool != null) { // messages will refer to the pooled buffer without copying
+                        pooled=buffer_pool.get();
+                        receive_buf=pooled.getBuf();
+                    }
+                    if(len > receive_buf.length) {
+                        num_truncated.incrementAndGet();
+                        if(log.isErrorEnabled())
+                            log.error("size of the received packet (" + len + ") is bigger than allocated buffer (" +
+                                        receive_buf.length + "): will not be able to handle packet. " +
+                                        "Use the FRAG2 protocol and make its frag_size lower than " + receive_buf.length);
+                        continue;
+                    }
+                    direct_buf.get(receive_buf, 0, len);
+
+                    InetSocketAddress sender_addr=(InetSocketAddress)addr;
+                    Address sender=new IpAddress(sender_addr.getAddress(), sender_addr.getPort());
+                    if(pooled != null) {
+                        PooledBuffer tmp=pooled;
+                        pooled=null; // released by receive()
+                        receive(sender, tmp, 0, len);
+                    }
+                    else
+                        receive(sender, receive_buf, 0, len);
+                }
+                catch(ClosedChannelException closed_ex) { // also catches AsynchronousCloseException
+                    if(log.isDebugEnabled()) log.debug("receiver channel is closed, exception=" + closed_ex);
+                    break;
+                }
+                catch(Throwable ex) {
+                    if(log.isErrorEnabled())
+                        log.error("failed receiving packet", ex);
+                }
+                finally {
+                    if(pooled != null)
+                        pooled.release();
+                }
+            }
+            if(log.isDebugEnabled()) log.debug(name + " thread terminated");
+        }
+    }
+}
@@ -99,7 +99,7 @@ public class UFC extends FlowControl {
     public void stop() {
         super.stop();
         for(Credit cred: sent.values())
-            cred.set(max_credits);
+            cred.set(cred.getMax());
     }
 
 
@@ -123,7 +123,7 @@ public class UFC extends FlowControl {
                 break;
 
             if(cred.needToSendCreditRequest())
-                sendCreditRequest(dest, Math.max(0, max_credits - cred.get()));
+                sendCreditRequest(dest, Math.max(0, cred.getMax() - cred.get()));
         }
 
         // send message - either after regular processing, or after blocking (when enough credits available again)
@@ -137,8 +137,10 @@ public class UFC extends FlowControl {
 
         // add members not in membership to received and sent hashmap (with full credits)
         for(Address addr: mbrs) {
-            if(!sent.containsKey(addr))
-                sent.put(addr, new Credit(max_credits));
+            if(!sent.containsKey(addr)) {
+                Window window=windows.get(addr);
+                sent.put(addr, window != null? new Credit(window.size(), min_credits, window) : new Credit(max_credits));
+            }
         }
 
         // remove members that left
@@ -155,7 +157,7 @@ public class UFC extends FlowControl {
         if(sender == null || (cred=sent.get(sender)) == null || increase <= 0)
             return;
 
-        long new_credit=Math.min(max_credits, cred.get() + increase);
+        long new_credit=Math.min(cred.getMax(), cred.get() + increase);
         if(log.isTraceEnabled()) {
             StringBuilder sb=new StringBuilder();
             sb.append("received " + increase + " credits from ").append(sender).append(", old credits: ").append(cred)
@@ -163,6 +165,8 @@ public class UFC extends FlowControl {
             log.trace(sb);
         }
         cred.increment(increase);
+        if(cred.window != null)
+            cred.setMax(cred.window.creditsReceived(increase, cred.getMax() - cred.get()));
     }
     
 
@@ -9,6 +9,7 @@ import org.jgroups.stack.Protocol;
 import org.jgroups.util.*;
 
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
@@ -54,6 +55,22 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
       "is compacted (only for experts)",writable=false)
     protected long   xmit_table_max_compaction_time=10 * 60 * 1000;
 
+    @Property(description="Type of the retransmission tables: \"table\" (Table) or \"lockless\" (LocklessTable). " +
+      "A lockless table doesn't grow: its capacity is xmit_table_num_rows * xmit_table_msgs_per_row and messages " +
+      "which are too far ahead of the lowest seqno are rejected (only for experts)",writable=false)
+    protected String xmit_table_type="table";
+
+    @Property(description="Stores the marshalled messages of the send windows in direct (off-heap) memory. Requires " +
+      "xmit_table_type=lockless",writable=false)
+    protected boolean xmit_table_off_heap=false;
+
+    @Property(description="Size (in bytes) of a chunk of direct memory used by the off-heap send windows",writable=false)
+    protected int    off_heap_chunk_size=1024 * 1024;
+
+    @Property(description="Max number of free chunks of direct memory kept for reuse by the off-heap send windows",
+              writable=false)
+    protected int    off_heap_max_free_chunks=16;
+
     @Property(description="Interval (in milliseconds) at which messages in the send windows are resent")
     protected long   xmit_interval=500;
 
@@ -63,11 +80,25 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     @Property(description="Send an ack for a batch immediately instead of using a delayed ack")
     protected boolean ack_batches_immediately=true;
 
+    @Property(description="Time (in ms) during which ACKs are collected before they are sent by a task running " +
+      "every ack_window ms. ACKs for batches and first messages are then not sent right away (overrides " +
+      "ack_batches_immediately). 0 disables ACK coalescing",writable=false)
+    protected long    ack_window=0;
+
+    @Property(description="Piggybacks a pending ACK for a member on the next data message sent to that member")
+    protected boolean piggyback_acks=true;
+
+    @Property(description="When pending ACKs are sent and at least multi_ack_threshold members are owed an ACK, a single " +
+      "multicast containing all ACKs is sent instead of one ACK per member. Only used if the transport supports " +
+      "IP multicasting. Has to be the same on all members. 0 disables multi-ACKs",writable=false)
+    protected int     multi_ack_threshold=0;
+
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
 
     protected long   num_msgs_sent=0, num_msgs_received=0;
     protected long   num_acks_sent=0, num_acks_received=0, num_xmits=0;
+    protected long   num_acks_piggybacked=0, num_multi_acks_sent=0;
 
     @ManagedAttribute(description="Number of retransmit requests received")
     protected final AtomicLong xmit_reqs_received=new AtomicLong(0);
@@ -104,10 +135,23 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
     protected long                     max_retransmit_time=60 * 1000L;
 
+    /** Stores the messages of all send windows if xmit_table_off_heap is true, null otherwise */
+    protected OffHeapMessageStore      off_heap_store;
+
     protected AgeOutCache<Address>     cache;
 
     protected Future<?>                connection_reaper; // closes idle connections
 
+    /** Sends the pending ACKs every ack_window ms */
+    protected Future<?>                ack_flusher;
+
+    /** Set in start(): multi_ack_threshold > 0 and the transport supports IP multicasting */
+    protected boolean                  send_multi_acks;
+
+    /** Scratch lists of the members and receiver entries with a pending ACK, used by flushPendingAcks() */
+    protected final List<Address>       pending_ack_dests=new ArrayList<Address>();
+    protected final List<ReceiverEntry> pending_ack_entries=new ArrayList<ReceiverEntry>();
+
 
 
     public void setMaxMessageBatchSize(int size) {
@@ -170,9 +214,21 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     @ManagedAttribute
     public long getNumAcksReceived() {return num_acks_received;}
 
+    @ManagedAttribute(description="Number of ACKs sent piggybacked on data messages")
+    public long getNumAcksPiggybacked() {return num_acks_piggybacked;}
+
+    @ManagedAttribute(description="Number of multicast multi-ACKs sent")
+    public long getNumMultiAcksSent() {return num_multi_acks_sent;}
+
+    @ManagedAttribute(description="Whether the task sending the pending ACKs is running")
+    public boolean isAckFlusherRunning() {return ack_flusher != null && !ack_flusher.isDone();}
+
     @ManagedAttribute
     public long getNumXmits() {return num_xmits;}
 
+    @ManagedAttribute(description="Number of chunks of direct memory allocated by the off-heap send windows")
+    public int getNumOffHeapChunksAllocated() {return off_heap_store != null? off_heap_store.getNumChunksAllocated() : 0;}
+
     public long getMaxRetransmitTime() {return max_retransmit_time;}
 
     @Property(description="Max number of milliseconds we try to retransmit a message to any given member. After that, " +
@@ -323,7 +379,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
     public void resetStats() {
         num_msgs_sent=num_msgs_received=num_acks_sent=num_acks_received=0;
-        num_xmits=0;
+        num_acks_piggybacked=num_multi_acks_sent=num_xmits=0;
     }
 
 
@@ -336,20 +392,34 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
 
 
+    public void init() throws Exception {
+        super.init();
+        if(!xmit_table_type.equalsIgnoreCase("table") && !xmit_table_type.equalsIgnoreCase("lockless"))
+            throw new IllegalArgumentException("xmit_table_type (" + xmit_table_type + ") has to be \"table\" or \"lockless\"");
+        if(xmit_table_off_heap && !xmit_table_type.equalsIgnoreCase("lockless"))
+            throw new IllegalArgumentException("xmit_table_off_heap requires xmit_table_type=lockless");
+        if(xmit_table_off_heap)
+            off_heap_store=new OffHeapMessageStore(off_heap_chunk_size, off_heap_max_free_chunks);
+    }
+
     public void start() throws Exception {
         timer=getTransport().getTimer();
         if(timer == null)
             throw new Exception("timer is null");
         if(max_retransmit_time > 0)
             cache=new AgeOutCache<Address>(timer, max_retransmit_time, this);
+        send_multi_acks=multi_ack_threshold > 0 && getTransport().supportsMulticasting();
         running=true;
         if(conn_expiry_timeout > 0)
             startConnectionReaper();
         startRetransmitTask();
+        if(ack_window > 0)
+            startAckFlusher();
     }
 
     public void stop() {
         running=false;
+        stopAckFlusher();
         stopRetransmitTask();
         stopConnectionReaper();
         xmit_task_map.clear();
@@ -361,8 +431,13 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         switch(evt.getType()) {
             case Event.MSG:
                 Message msg=(Message)evt.getArg();
-                if(msg.getDest() == null || msg.isFlagSet(Message.Flag.NO_RELIABILITY))  // only handle unicast messages
+                if(msg.getDest() == null || msg.isFlagSet(Message.Flag.NO_RELIABILITY)) { // only handle unicast messages
+                    if(msg.getDest() == null && isMultiAck(msg)) { // consumed even if we don't send multi-ACKs ourselves
+                        handleMultiAck(msg.getSrc(), msg);
+                        return null;
+                    }
                     break;  // pass up
+                }
 
                 Header hdr=(Header)msg.getHeader(this.id);
                 if(hdr == null)
@@ -370,7 +445,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                 Address sender=msg.getSrc();
                 switch(hdr.type) {
                     case Header.DATA:      // received regular message
-                        handleDataReceived(sender, hdr.seqno, hdr.conn_id, hdr.first, msg, evt);
+                        if(hdr.hasAck())
+                            handleAckReceived(sender, hdr.ack_seqno, hdr.ack_conn_id);
+                        handleDataReceived(sender, hdr.seqno, hdr.conn_id, hdr.first(), msg, evt);
                         break; // we pass the deliverable message up in handleDataReceived()
                     default:
                         handleUpEvent(sender, msg, hdr);
@@ -395,6 +472,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
             case Header.XMIT_REQ:  // received ACK for previously sent message
                 handleXmitRequest(sender, (SeqnoList)msg.getObject());
                 break;
+            case Header.MULTI_ACK:
+                handleMultiAck(sender, msg);
+                break;
             default:
                 log.error("UnicastHeader type " + hdr.type + " not known !");
                 break;
@@ -404,12 +484,20 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
     public void up(MessageBatch batch) {
         if(batch.dest() == null) { // not a unicast batch
-            up_prot.up(batch);
+            for(Message msg: batch) { // multi-ACKs are consumed even if we don't send them ourselves
+                if(msg != null && isMultiAck(msg)) {
+                    batch.remove(msg);
+                    handleMultiAck(batch.sender(), msg);
+                }
+            }
+            if(!batch.isEmpty())
+                up_prot.up(batch);
             return;
         }
 
-        int                       size=batch.size();
-        Map<Short,List<Message>>  msgs=new TreeMap<Short,List<Message>>(); // map of messages, keyed by conn-id
+        // the messages are added to the receiver window in the order of the batch, so no per-batch structures are needed
+        Address       sender=batch.sender();
+        ReceiverEntry entry=null;
         for(Message msg: batch) {
             if(msg == null || msg.isFlagSet(Message.Flag.NO_RELIABILITY))
                 continue;
@@ -428,14 +516,15 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                 continue;
             }
 
-            List<Message> list=msgs.get(hdr.conn_id);
-            if(list == null)
-                msgs.put(hdr.conn_id, list=new ArrayList<Message>(size));
-            list.add(msg);
+            if(hdr.hasAck())
+                handleAckReceived(sender, hdr.ack_seqno, hdr.ack_conn_id);
+            ReceiverEntry tmp=addBatchMessage(sender, msg, hdr);
+            if(tmp != null)
+                entry=tmp;
         }
 
-        if(!msgs.isEmpty())
-            handleBatchReceived(batch.sender(), msgs); // process msgs:
+        if(entry != null)
+            handleBatchReceived(sender, entry); // deliver the messages added to the receiver window
         if(!batch.isEmpty())
             up_prot.up(batch);
     }
@@ -475,14 +564,18 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
                 short send_conn_id=entry.send_conn_id;
                 long seqno=entry.sent_msgs_seqno.getAndIncrement();
+                Header hdr=Header.createDataHeader(seqno, send_conn_id, seqno == DEFAULT_FIRST_SEQNO);
                 long sleep=10;
                 while(running) {
                     try {
-                        msg.putHeader(this.id,Header.createDataHeader(seqno,send_conn_id,seqno == DEFAULT_FIRST_SEQNO));
-                        entry.sent_msgs.add(seqno,msg);  // add *including* UnicastHeader, adds to retransmitter
-                        if(conn_expiry_timeout > 0)
-                            entry.update();
-                        break;
+                        msg.putHeader(this.id, hdr);
+                        if(entry.sent_msgs.add(seqno,msg)) { // add *including* UnicastHeader, adds to retransmitter
+                            if(conn_expiry_timeout > 0)
+                                entry.update();
+                            break;
+                        }
+                        Util.sleep(sleep); // a lockless table is full; retry until ACKs purged it
+                        sleep=Math.min(5000, sleep*2);
                     }
                     catch(Throwable t) {
                         if(!running)
@@ -501,8 +594,10 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                     log.trace(sb);
                 }
 
+                // the ACK is only added to a copy: the message in sent_msgs is retransmitted later, with a stale ACK
+                Message ack_msg=piggyback_acks? piggybackAck(dst, msg, hdr) : null;
                 num_msgs_sent++;
-                return down_prot.down(evt);
+                return down_prot.down(ack_msg != null? new Event(Event.MSG, ack_msg) : evt);
 
             case Event.VIEW_CHANGE:  // remove connections to peers that are not members anymore !
                 View view=(View)evt.getArg();
@@ -641,56 +736,61 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
 
 
-    protected void handleBatchReceived(Address sender, Map<Short,List<Message>> map) {
-        for(Map.Entry<Short,List<Message>> element: map.entrySet()) {
-            final List<Message> msg_list=element.getValue();
-            if(log.isTraceEnabled()) {
-                StringBuilder sb=new StringBuilder();
-                sb.append(local_addr).append(" <-- DATA(").append(sender).append(": " + printMessageList(msg_list)).append(')');
-                log.trace(sb);
-            }
+    /**
+     * Adds a message of a batch to the receiver window of sender and passes it up if it is an OOB message
+     * @return The receiver entry, or null if the message was dropped
+     */
+    protected ReceiverEntry addBatchMessage(Address sender, Message msg, Header hdr) {
+        if(log.isTraceEnabled()) {
+            StringBuilder sb=new StringBuilder();
+            sb.append(local_addr).append(" <-- DATA(").append(sender).append(": #").append(hdr.seqno);
+            if(hdr.conn_id != 0) sb.append(", conn_id=").append(hdr.conn_id);
+            if(hdr.first()) sb.append(", first");
+            sb.append(')');
+            log.trace(sb);
+        }
 
-            short          conn_id=element.getKey();
-            ReceiverEntry  entry=null;
-            for(Message msg: msg_list) {
-                Header hdr=(Header)msg.getHeader(id);
-                entry=getReceiverEntry(sender, hdr.seqno, hdr.first, conn_id);
-                if(entry == null)
-                    continue;
-                Table<Message> win=entry.received_msgs;
-                boolean msg_added=win.add(hdr.seqno, msg); // win is guaranteed to be non-null if we get here
-                num_msgs_received++;
+        ReceiverEntry entry=getReceiverEntry(sender, hdr.seqno, hdr.first(), hdr.conn_id);
+        if(entry == null)
+            return null;
+        if(conn_expiry_timeout > 0)
+            entry.update();
+        Table<Message> win=entry.received_msgs;
+        boolean msg_added=win.add(hdr.seqno, msg); // win is guaranteed to be non-null if we get here
+        num_msgs_received++;
 
-                if(hdr.first && msg_added)
-                    sendAck(sender, hdr.seqno, conn_id); // send an ack immediately when we received the first message of a conn
+        if(hdr.first() && msg_added) {
+            if(ack_window > 0)
+                entry.sendAck(true);
+            else
+                sendAck(sender, hdr.seqno, hdr.conn_id); // send an ack immediately when we received the first message of a conn
+        }
 
-                // An OOB message is passed up immediately. Later, when remove() is called, we discard it. This affects ordering !
-                // http://jira.jboss.com/jira/browse/JGRP-377
-                if(msg.isFlagSet(Message.Flag.OOB) && msg_added) {
-                    try {
-                        up_prot.up(new Event(Event.MSG, msg));
-                    }
-                    catch(Throwable t) {
-                        log.error("couldn't deliver OOB message " + msg, t);
-                    }
-                }
+        // An OOB message is passed up immediately. Later, when remove() is called, we discard it. This affects ordering !
+        // http://jira.jboss.com/jira/browse/JGRP-377
+        if(msg.isFlagSet(Message.Flag.OOB) && msg_added) {
+            try {
+                up_prot.up(new Event(Event.MSG, msg));
+            }
+            catch(Throwable t) {
+                log.error("couldn't deliver OOB message " + msg, t);
             }
-            if(entry != null && conn_expiry_timeout > 0)
-                entry.update();
         }
+        return entry;
+    }
 
-        ReceiverEntry entry=recv_table.get(sender);
-        Table<Message> win=entry != null? entry.received_msgs : null;
-        if(win != null) {
-            final AtomicBoolean processing=win.getProcessing();
-            if(processing.compareAndSet(false, true)) {
-                if(ack_batches_immediately)
-                    sendAck(sender, win.getHighestDeliverable(), entry.recv_conn_id);
-                else
-                    entry.sendAck(true);
 
-                removeAndDeliver(processing, win, sender);
-            }
+    /** Acks and delivers the messages of a batch which were added to the receiver window of entry by addBatchMessage() */
+    protected void handleBatchReceived(Address sender, ReceiverEntry entry) {
+        Table<Message> win=entry.received_msgs;
+        final AtomicBoolean processing=win.getProcessing();
+        if(processing.compareAndSet(false, true)) {
+            if(ack_batches_immediately && ack_window <= 0)
+                sendAck(sender, win.getHighestDeliverable(), entry.recv_conn_id);
+            else
+                entry.sendAck(true);
+
+            removeAndDeliver(processing, win, sender);
         }
     }
 
@@ -812,9 +912,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
 
     protected ReceiverEntry getOrCreateReceiverEntry(Address sender, long seqno, short conn_id) {
-        Table<Message> table=new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, seqno-1,
-                                                xmit_table_resize_factor, xmit_table_max_compaction_time);
-        ReceiverEntry entry=new ReceiverEntry(table, conn_id);
+        ReceiverEntry entry=new ReceiverEntry(createTable(seqno-1, null), conn_id);
         ReceiverEntry entry2=recv_table.putIfAbsent(sender, entry);
         if(entry2 != null)
             return entry2;
@@ -823,6 +921,14 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         return entry;
     }
 
+    protected Table<Message> createTable(long offset, LocklessTable.Store<Message> store) {
+        if(xmit_table_type.equalsIgnoreCase("lockless"))
+            return new LocklessTable<Message>(xmit_table_num_rows * xmit_table_msgs_per_row, xmit_table_msgs_per_row,
+                                              offset, store);
+        return new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, offset,
+                                  xmit_table_resize_factor, xmit_table_max_compaction_time);
+    }
+
     /** Add the ACK to hashtable.sender.sent_msgs */
     protected void handleAckReceived(Address sender, long seqno, short conn_id) {
         if(log.isTraceEnabled())
@@ -839,7 +945,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
         Table<Message> win=entry != null? entry.sent_msgs : null;
         if(win != null) {
-            win.purge(seqno, true); // removes all messages <= seqno (forced purge)
+            if(seqno > win.getLow()) // an old (e.g. reordered) ACK must not move the window backwards
+                win.purge(seqno, true); // removes all messages <= seqno (forced purge)
             num_acks_received++;
         }
     }
@@ -878,7 +985,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                 Message copy=rsp.copy();
                 Header hdr=(Header)copy.getHeader(this.id);
                 Header newhdr=hdr.copy();
-                newhdr.first=true;
+                newhdr.first(true);
                 copy.putHeader(this.id, newhdr);
                 down_prot.down(new Event(Event.MSG, copy));
             }
@@ -946,6 +1053,124 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         }
     }
 
+    /**
+     * If an ACK is pending for dst, clears the pending flag and returns a copy of msg whose header (a copy of hdr)
+     * carries the ACK. The original message and header (kept for retransmission) are not changed
+     * @return The copy to be sent, or null if no ACK is pending
+     */
+    protected Message piggybackAck(Address dst, Message msg, Header hdr) {
+        ReceiverEntry entry=recv_table.get(dst);
+        if(entry == null || !entry.send_ack || !entry.sendAck()) // sendAck() resets send_ack to false
+            return null;
+        long seqno=entry.received_msgs.getHighestDelivered();
+        Message copy=msg.copy(true).putHeader(this.id, hdr.copy().piggybackAck(seqno, entry.recv_conn_id));
+        num_acks_piggybacked++;
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder().append(local_addr).append(" --> ACK(").append(dst).
+              append(": #").append(seqno).append(", piggybacked)"));
+        return copy;
+    }
+
+    /**
+     * Sends an ACK to all members for which an ACK is pending and clears their pending flags. If send_multi_acks is
+     * true and at least multi_ack_threshold members are owed an ACK, all ACKs are sent in a single multicast
+     */
+    protected synchronized void flushPendingAcks() {
+        for(Map.Entry<Address,ReceiverEntry> entry: recv_table.entrySet()) {
+            ReceiverEntry val=entry.getValue();
+            if(val.received_msgs != null && val.sendAck()) { // sendAck() resets send_ack to false
+                pending_ack_dests.add(entry.getKey());
+                pending_ack_entries.add(val);
+            }
+        }
+        try {
+            int size=pending_ack_dests.size();
+            if(size == 0)
+                return;
+            if(send_multi_acks && size >= multi_ack_threshold && sendMultiAck(pending_ack_dests, pending_ack_entries))
+                return;
+            for(int i=0; i < size; i++) {
+                ReceiverEntry val=pending_ack_entries.get(i);
+                sendAck(pending_ack_dests.get(i), val.received_msgs.getHighestDelivered(), val.recv_conn_id);
+            }
+        }
+        finally {
+            pending_ack_dests.clear();
+            pending_ack_entries.clear();
+        }
+    }
+
+    /**
+     * Multicasts the ACKs for all members in dests. The payload is a list of | address | seqno | conn_id | tuples;
+     * every receiver only processes the ACK addressed to itself
+     * @return True if the multi-ACK was sent, false otherwise
+     */
+    protected boolean sendMultiAck(List<Address> dests, List<ReceiverEntry> entries) {
+        if(!running)
+            return true;
+        int size=dests.size();
+        try {
+            ExposedByteArrayOutputStream out=new ExposedByteArrayOutputStream(size * 32);
+            ExposedDataOutputStream dos=new ExposedDataOutputStream(out);
+            dos.writeInt(size);
+            for(int i=0; i < size; i++) {
+                ReceiverEntry entry=entries.get(i);
+                Util.writeAddress(dests.get(i), dos);
+                Util.writeLong(entry.received_msgs.getHighestDelivered(), dos);
+                dos.writeShort(entry.recv_conn_id);
+            }
+            Message multi_ack=new Message(null, out.getRawBuffer(), 0, out.size())
+              .setFlag(Message.Flag.INTERNAL, Message.Flag.NO_RELIABILITY).putHeader(this.id, Header.createMultiAckHeader());
+            if(log.isTraceEnabled())
+                log.trace(local_addr + " --> MULTI_ACK(" + dests + ")");
+            down_prot.down(new Event(Event.MSG, multi_ack));
+            num_multi_acks_sent++;
+            num_acks_sent+=size;
+            return true;
+        }
+        catch(Throwable t) {
+            log.error("failed sending multi-ACK to " + dests + "; sending individual ACKs", t);
+            return false;
+        }
+    }
+
+    protected boolean isMultiAck(Message msg) {
+        Header hdr=(Header)msg.getHeader(this.id);
+        return hdr != null && hdr.type == Header.MULTI_ACK;
+    }
+
+    /** Processes the ACK for the local member (if present) in a multi-ACK received from sender */
+    protected void handleMultiAck(Address sender, Message msg) {
+        try {
+            DataInput in=new DataInputStream(new ExposedByteArrayInputStream(msg.getRawBuffer(), msg.getOffset(), msg.getLength()));
+            int size=in.readInt();
+            for(int i=0; i < size; i++) {
+                Address dest=Util.readAddress(in);
+                long seqno=Util.readLong(in);
+                short conn_id=in.readShort();
+                if(local_addr != null && local_addr.equals(dest)) {
+                    handleAckReceived(sender, seqno, conn_id);
+                    break;
+                }
+            }
+        }
+        catch(Throwable t) {
+            log.error(local_addr + ": failed reading multi-ACK from " + sender, t);
+        }
+    }
+
+    protected synchronized void startAckFlusher() {
+        if(ack_flusher == null || ack_flusher.isDone())
+            ack_flusher=timer.scheduleWithFixedDelay(new AckFlusher(), ack_window, ack_window, TimeUnit.MILLISECONDS);
+    }
+
+    protected synchronized void stopAckFlusher() {
+        if(ack_flusher != null) {
+            ack_flusher.cancel(false);
+            ack_flusher=null;
+        }
+    }
+
     protected synchronized void startConnectionReaper() {
         if(connection_reaper == null || connection_reaper.isDone())
             connection_reaper=timer.scheduleWithFixedDelay(new ConnectionReaper(), conn_expiry_timeout, conn_expiry_timeout, TimeUnit.MILLISECONDS);
@@ -1006,21 +1231,31 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     /**
      * The following types and fields are serialized:
      * <pre>
-     * | DATA | seqno | conn_id | first |
-     * | ACK  | seqno |
-     * | SEND_FIRST_SEQNO |
+     * | DATA | seqno | conn_id | flags | [ack_seqno | ack_conn_id] |
+     * | ACK  | seqno | conn_id |
+     * | SEND_FIRST_SEQNO | seqno |
+     * | XMIT_REQ |
+     * | MULTI_ACK |
      * </pre>
+     * A DATA header carries a piggybacked ACK if flag {@link #ACK_FLAG} is set. The ACKs of a MULTI_ACK are in the
+     * message's payload
      */
     public static class Header extends org.jgroups.Header {
         public static final byte DATA             = 0;
         public static final byte ACK              = 1;
         public static final byte SEND_FIRST_SEQNO = 2;
         public static final byte XMIT_REQ         = 3; // SeqnoList of missing message is in the message's payload
+        public static final byte MULTI_ACK        = 4; // list of (dest, seqno, conn_id) ACKs is in the message's payload
+
+        protected static final byte FIRST_FLAG    = 1;
+        protected static final byte ACK_FLAG      = 1 << 1;
 
         byte    type;
-        long    seqno;    // DATA and ACK
-        short   conn_id;  // DATA
-        boolean first;    // DATA
+        long    seqno;       // DATA and ACK
+        short   conn_id;     // DATA and ACK
+        byte    flags;       // DATA
+        long    ack_seqno;   // DATA (only if ACK_FLAG is set)
+        short   ack_conn_id; // DATA (only if ACK_FLAG is set)
 
 
         public Header() {} // used for externalization
@@ -1038,7 +1273,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
             this.type=type;
             this.seqno=seqno;
             this.conn_id=conn_id;
-            this.first=first;
+            if(first)
+                flags|=FIRST_FLAG;
         }
 
         public static Header createDataHeader(long seqno, short conn_id, boolean first) {
@@ -1057,17 +1293,37 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
             return new Header(XMIT_REQ);
         }
 
+        public static Header createMultiAckHeader() {
+            return new Header(MULTI_ACK);
+        }
+
 
+        public long    getSeqno() {return seqno;}
+        public boolean first()    {return (flags & FIRST_FLAG) == FIRST_FLAG;}
+        public boolean hasAck()   {return (flags & ACK_FLAG) == ACK_FLAG;}
+
+        public Header first(boolean flag) {
+            if(flag)
+                flags|=FIRST_FLAG;
+            else
+                flags&=~FIRST_FLAG;
+            return this;
+        }
 
-        public long getSeqno() {
-            return seqno;
+        /** Adds an ACK for the given seqno and conn_id to a DATA header */
+        public Header piggybackAck(long ack_seqno, short ack_conn_id) {
+            this.ack_seqno=ack_seqno;
+            this.ack_conn_id=ack_conn_id;
+            flags|=ACK_FLAG;
+            return this;
         }
 
         public String toString() {
             StringBuilder sb=new StringBuilder();
             sb.append(type2Str(type)).append(", seqno=").append(seqno);
             if(conn_id != 0) sb.append(", conn_id=").append(conn_id);
-            if(first) sb.append(", first");
+            if(first()) sb.append(", first");
+            if(hasAck()) sb.append(", ack=").append(ack_seqno).append(" (conn_id=").append(ack_conn_id).append(")");
             return sb.toString();
         }
 
@@ -1077,6 +1333,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                 case ACK:              return "ACK";
                 case SEND_FIRST_SEQNO: return "SEND_FIRST_SEQNO";
                 case XMIT_REQ:         return "XMIT_REQ";
+                case MULTI_ACK:        return "MULTI_ACK";
                 default:               return "<unknown>";
             }
         }
@@ -1087,7 +1344,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                 case DATA:
                     retval+=Util.size(seqno) // seqno
                       + Global.SHORT_SIZE    // conn_id
-                      + Global.BYTE_SIZE;    // first
+                      + Global.BYTE_SIZE;    // flags
+                    if(hasAck())
+                        retval+=Util.size(ack_seqno) + Global.SHORT_SIZE; // ack_conn_id
                     break;
                 case ACK:
                     retval+=Util.size(seqno) + Global.SHORT_SIZE; // conn_id
@@ -1096,13 +1355,18 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                     retval+=Util.size(seqno);
                     break;
                 case XMIT_REQ:
+                case MULTI_ACK:
                     break;
             }
             return retval;
         }
 
         public Header copy() {
-            return new Header(type, seqno, conn_id, first);
+            Header hdr=new Header(type, seqno, conn_id, false);
+            hdr.flags=flags;
+            hdr.ack_seqno=ack_seqno;
+            hdr.ack_conn_id=ack_conn_id;
+            return hdr;
         }
 
 
@@ -1112,7 +1376,11 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                 case DATA:
                     Util.writeLong(seqno, out);
                     out.writeShort(conn_id);
-                    out.writeBoolean(first);
+                    out.writeByte(flags);
+                    if(hasAck()) {
+                        Util.writeLong(ack_seqno, out);
+                        out.writeShort(ack_conn_id);
+                    }
                     break;
                 case ACK:
                     Util.writeLong(seqno, out);
@@ -1122,6 +1390,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                     Util.writeLong(seqno, out);
                     break;
                 case XMIT_REQ:
+                case MULTI_ACK:
                     break;
             }
         }
@@ -1132,7 +1401,11 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                 case DATA:
                     seqno=Util.readLong(in);
                     conn_id=in.readShort();
-                    first=in.readBoolean();
+                    flags=in.readByte();
+                    if(hasAck()) {
+                        ack_seqno=Util.readLong(in);
+                        ack_conn_id=in.readShort();
+                    }
                     break;
                 case ACK:
                     seqno=Util.readLong(in);
@@ -1142,6 +1415,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                     seqno=Util.readLong(in);
                     break;
                 case XMIT_REQ:
+                case MULTI_ACK:
                     break;
             }
         }
@@ -1160,8 +1434,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
         public SenderEntry(short send_conn_id) {
             this.send_conn_id=send_conn_id;
-            this.sent_msgs=new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, 0,
-                                              xmit_table_resize_factor, xmit_table_max_compaction_time);
+            this.sent_msgs=createTable(0, off_heap_store);
             update();
         }
 
@@ -1209,6 +1482,16 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         }
     }
 
+    protected class AckFlusher implements Runnable {
+        public void run() {
+            flushPendingAcks();
+        }
+
+        public String toString() {
+            return UNICAST3.class.getSimpleName() + ": AckFlusher (interval=" + ack_window + " ms)";
+        }
+    }
+
     protected class ConnectionReaper implements Runnable {
         public void run() {
             reapIdleConnections();
@@ -1224,7 +1507,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
      * Retransmitter task which periodically (every xmit_interval ms):
      * <ul>
      *     <li>If any of the receiver windows have the ack flag set, clears the flag and sends an ack for the
-     *         highest delivered seqno to the sender</li>
+     *         highest delivered seqno to the sender (unless ACKs are coalesced, see ack_window)</li>
      *     <li>Checks all receiver windows for missing messages and asks senders for retransmission</li>
      *     <li>For all sender windows, checks if highest acked (HA) < highest sent (HS). If not, and HA/HS is the same
      *         as on the last retransmission run, send the highest sent message again</li>
@@ -1245,15 +1528,15 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     public void triggerXmit() {
         SeqnoList missing;
 
+        // send acks if needed (with ACK coalescing, this is done by the AckFlusher)
+        if(ack_window <= 0)
+            flushPendingAcks();
+
         for(Map.Entry<Address,ReceiverEntry> entry: recv_table.entrySet()) {
             Address        target=entry.getKey(); // target to send retransmit requests to
             ReceiverEntry  val=entry.getValue();
             Table<Message> win=val != null? val.received_msgs : null;
 
-            // send acks if needed
-            if(win != null && val.sendAck()) // sendAck() resets send_ack to false
-                sendAck(target, win.getHighestDelivered(), val.recv_conn_id);
-
             // retransmit missing messages
             if(win != null && win.getNumMissing() > 0 && (missing=win.getMissing()) != null) { // getNumMissing() is fast
                 long highest=missing.getLast();
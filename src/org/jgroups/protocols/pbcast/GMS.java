@@ -18,6 +18,7 @@ import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -44,6 +45,11 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     @Property(description="Timeout (in ms) to complete merge")
     long merge_timeout=5000; // time to wait for all MERGE_RSPS
 
+    @Property(description="Max number of GET_DIGEST_REQs a subgroup coordinator has outstanding when fetching the " +
+      "digests of its members during a merge. If the subgroup has more members, the requests are unicast in batches " +
+      "of this size, else a single request is multicast. 0 always multicasts")
+    int max_digest_fetch_batch=0;
+
     @Property(description="Number of join attempts before we give up and become a singleton. Zero means 'never give up'.")
     long max_join_attempts=0;
 
@@ -94,12 +100,21 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     @Property(description="Logs warnings for reception of views less than the current, and for views which don't include self")
     boolean log_view_warnings=true;
 
+    @Property(description="If true, views are multicast as delta views (the members which left and joined, relative " +
+      "to the previous view) rather than full views. Members which don't have the previous view fetch the full view " +
+      "from the coordinator")
+    protected boolean use_delta_views=true;
+
 
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
 
     private int num_views=0;
 
+    protected final AtomicInteger num_delta_views_sent=new AtomicInteger(0);
+
+    protected final AtomicInteger num_full_view_requests=new AtomicInteger(0);
+
     /** Stores the last 20 views */
     private BoundedList<Tuple<View,Long>> prev_views;
 
@@ -166,6 +181,10 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     public String getView() {return view != null? view.getViewId().toString() : "null";}
     @ManagedAttribute
     public int getNumberOfViews() {return num_views;}
+    @ManagedAttribute(description="Number of views multicast as delta views")
+    public int getNumberOfDeltaViewsSent() {return num_delta_views_sent.get();}
+    @ManagedAttribute(description="Number of full views sent to members which couldn't install a delta view")
+    public int getNumberOfFullViewRequests() {return num_full_view_requests.get();}
     @ManagedAttribute
     public String getLocalAddress() {return local_addr != null? local_addr.toString() : "null";}
     @ManagedAttribute
@@ -191,6 +210,12 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     @ManagedOperation(description="Prints the last (max 20) MergeIds")
     public String printMergeIdHistory() {return merger.getMergeIdHistory();}
 
+    @ManagedAttribute(description="Time (ms) of the last merge led by this member")
+    public long getLastMergeTime() {return merger.getLastMergeTime();}
+
+    @ManagedOperation(description="Prints the latencies of the phases of the merges this member took part in")
+    public String printMergeStats() {return merger.printMergeStats();}
+
     @ManagedOperation
     public String printPreviousMembers() {
         StringBuilder sb=new StringBuilder();
@@ -300,6 +325,9 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         super.resetStats();
         num_views=0;
         prev_views.clear();
+        num_delta_views_sent.set(0);
+        num_full_view_requests.set(0);
+        merger.resetStats();
     }
 
 
@@ -330,6 +358,8 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
             throw new IllegalArgumentException("view_ack_collection_timeout has to be greater than 0");
         if(merge_timeout <= 0)
             throw new IllegalArgumentException("merge_timeout has to be greater than 0");
+        if(max_digest_fetch_batch < 0)
+            throw new IllegalArgumentException("max_digest_fetch_batch has to be >= 0");
         prev_members=new BoundedList<Address>(num_prev_mbrs);
         prev_views=new BoundedList<Tuple<View,Long>>(num_prev_views);
         TP transport=getTransport();
@@ -499,8 +529,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         if(new_view instanceof MergeView)
             view_change_msg.setFlag(Message.Flag.NO_TOTAL_ORDER);
 
-        GmsHeader hdr=new GmsHeader(GmsHeader.VIEW, new_view);
-        hdr.my_digest=digest;
+        GmsHeader hdr=createViewHeader(new_view, digest);
         view_change_msg.putHeader(this.id,hdr);
 
         if(!ackMembers.isEmpty())
@@ -544,6 +573,42 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         }
     }
 
+    /**
+     * Creates the header for a view change. If use_delta_views is true, the view is sent as a delta view relative to
+     * the current view, and the digest (if present) only contains the joined members: the other members already have
+     * entries for the existing members, which would be skipped by setDigest() anyway.
+     */
+    protected GmsHeader createViewHeader(View new_view, Digest digest) {
+        DeltaView delta=use_delta_views? DeltaView.create(view, new_view) : null;
+        GmsHeader hdr=new GmsHeader(GmsHeader.VIEW, delta != null? delta : new_view);
+        hdr.my_digest=digest;
+        if(delta != null) {
+            num_delta_views_sent.incrementAndGet();
+            if(digest != null) {
+                MutableDigest tmp=new MutableDigest(delta.getNewMembers().length);
+                for(Address mbr: delta.getNewMembers()) {
+                    long[] seqnos=digest.get(mbr);
+                    if(seqnos != null)
+                        tmp.add(mbr, seqnos[0], seqnos[1], false);
+                }
+                hdr.my_digest=tmp.size() > 0? tmp : null;
+            }
+        }
+        return hdr;
+    }
+
+    /** Sends the current view and digest to a member which couldn't create the view from a delta view */
+    protected void sendCurrentView(Address dest) {
+        Tuple<View,Digest> tuple=getViewAndDigest();
+        if(tuple == null)
+            return;
+        num_full_view_requests.incrementAndGet();
+        GmsHeader hdr=new GmsHeader(GmsHeader.VIEW, tuple.getVal1());
+        hdr.my_digest=tuple.getVal2();
+        Message view_msg=new Message(dest).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL).putHeader(this.id, hdr);
+        down_prot.down(new Event(Event.MSG, view_msg));
+    }
+
     public void sendJoinResponse(JoinRsp rsp, Address dest) {
         Message m=new Message(dest).putHeader(this.id, new GMS.GmsHeader(GMS.GmsHeader.JOIN_RSP, rsp));
         getDownProtocol().down(new Event(Event.MSG, m));
@@ -789,6 +854,24 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                             return null;
 
                         Address coord=msg.getSrc();
+                        if(new_view instanceof DeltaView) {
+                            View current_view=view;
+                            try {
+                                new_view=((DeltaView)new_view).createView(current_view);
+                            }
+                            catch(Throwable t) {
+                                // a joiner gets the full view with the JoinRsp
+                                if(current_view == null || current_view.getViewId().compareToIDs(new_view.getViewId()) >= 0)
+                                    return null;
+                                if(log.isDebugEnabled())
+                                    log.debug(local_addr + ": failed creating view from delta view " + new_view + " (" +
+                                                t.getMessage() + "); fetching the full view from " + coord);
+                                Message full_view_req=new Message(coord).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+                                  .putHeader(this.id, new GmsHeader(GmsHeader.GET_CURRENT_VIEW));
+                                down_prot.down(new Event(Event.MSG, full_view_req));
+                                return null;
+                            }
+                        }
                         if(!new_view.containsMember(coord)) {
                             sendViewAck(coord); // we need to send the ack first, otherwise the connection is removed
                             impl.handleViewChange(new_view, hdr.my_digest);
@@ -861,6 +944,10 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                         }
                         break;
 
+                    case GmsHeader.GET_CURRENT_VIEW:
+                        sendCurrentView(msg.getSrc());
+                        return null;
+
                     case GmsHeader.GET_DIGEST_RSP:
                         Digest digest_rsp=hdr.my_digest;
                         impl.handleDigestResponse(msg.getSrc(), digest_rsp);
@@ -1006,6 +1093,10 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         public static final byte GET_DIGEST_REQ=13;
         public static final byte GET_DIGEST_RSP=14;
         public static final byte INSTALL_DIGEST=15;
+        public static final byte GET_CURRENT_VIEW=16;
+
+        protected static final byte VIEW_TYPE_VIEW=0, VIEW_TYPE_MERGE_VIEW=1, VIEW_TYPE_DELTA_VIEW=2;
+        protected static final byte DIGEST_WITH_ADDRESSES=1, DIGEST_INDEXED_BY_VIEW=2; // 0: no digest
 
 
         byte type=0;
@@ -1064,6 +1155,19 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
             return mbr;
         }
 
+        public View getView() {
+            return view;
+        }
+
+        public Digest getDigest() {
+            return my_digest;
+        }
+
+        public GmsHeader setDigest(Digest digest) {
+            this.my_digest=digest;
+            return this;
+        }
+
         public MergeId getMergeId() {
             return merge_id;
         }
@@ -1139,6 +1243,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                 case GET_DIGEST_REQ: return "GET_DIGEST_REQ";
                 case GET_DIGEST_RSP: return "GET_DIGEST_RSP";
                 case INSTALL_DIGEST: return "INSTALL_DIGEST";
+                case GET_CURRENT_VIEW: return "GET_CURRENT_VIEW";
                 default: return "<unknown>";
             }
         }
@@ -1146,13 +1251,12 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
         public void writeTo(DataOutput out) throws Exception {
             out.writeByte(type);
-            boolean isMergeView=view != null && view instanceof MergeView;
-            out.writeBoolean(isMergeView);
+            out.writeByte(view instanceof MergeView? VIEW_TYPE_MERGE_VIEW : view instanceof DeltaView? VIEW_TYPE_DELTA_VIEW : VIEW_TYPE_VIEW);
             Util.writeStreamable(view, out);
             Util.writeAddress(mbr, out);
             Util.writeAddresses(mbrs, out);
             Util.writeStreamable(join_rsp, out);
-            Util.writeStreamable(my_digest, out);
+            writeDigest(out);
             Util.writeStreamable(merge_id, out);
             out.writeBoolean(merge_rejected);
             out.writeBoolean(useFlushIfPresent);
@@ -1160,20 +1264,58 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
         public void readFrom(DataInput in) throws Exception {
             type=in.readByte();
-            boolean isMergeView=in.readBoolean();
-            if(isMergeView)
-                view=(View)Util.readStreamable(MergeView.class, in);
-            else
-                view=(View)Util.readStreamable(View.class, in);
+            byte view_type=in.readByte();
+            switch(view_type) {
+                case VIEW_TYPE_MERGE_VIEW: view=(View)Util.readStreamable(MergeView.class, in); break;
+                case VIEW_TYPE_DELTA_VIEW: view=(View)Util.readStreamable(DeltaView.class, in); break;
+                default:                   view=(View)Util.readStreamable(View.class, in); break;
+            }
             mbr=Util.readAddress(in);
             mbrs=Util.readAddresses(in, ArrayList.class);
             join_rsp=(JoinRsp)Util.readStreamable(JoinRsp.class, in);
-            my_digest=(Digest)Util.readStreamable(Digest.class, in);
+            readDigest(in);
             merge_id=(MergeId)Util.readStreamable(MergeId.class, in);
             merge_rejected=in.readBoolean();
             useFlushIfPresent=in.readBoolean();
         }
 
+        /**
+         * Returns the members by which the digest can be indexed, so that it can be written without addresses. These
+         * are the members of the view, or the joined members of a delta view, as the receiver knows them when reading
+         * the digest. Returns null if the digest has members which are not in the view.
+         */
+        protected List<Address> indexMembers() {
+            if(view == null || my_digest == null)
+                return null;
+            List<Address> retval=view instanceof DeltaView? Arrays.asList(((DeltaView)view).getNewMembers()) : view.getMembers();
+            return my_digest.containedIn(retval)? retval : null;
+        }
+
+        protected void writeDigest(DataOutput out) throws Exception {
+            List<Address> index_mbrs=indexMembers();
+            if(index_mbrs != null) {
+                out.writeByte(DIGEST_INDEXED_BY_VIEW);
+                my_digest.writeTo(out, index_mbrs);
+            }
+            else if(my_digest != null) {
+                out.writeByte(DIGEST_WITH_ADDRESSES);
+                my_digest.writeTo(out);
+            }
+            else
+                out.writeByte(0);
+        }
+
+        protected void readDigest(DataInput in) throws Exception {
+            byte digest_type=in.readByte();
+            if(digest_type == 0)
+                return;
+            my_digest=new Digest();
+            if(digest_type == DIGEST_INDEXED_BY_VIEW)
+                my_digest.readFrom(in, view instanceof DeltaView? Arrays.asList(((DeltaView)view).getNewMembers()) : view.getMembers());
+            else
+                my_digest.readFrom(in);
+        }
+
         public int size() {
             int retval=Global.BYTE_SIZE *2; // type + merge_rejected
 
@@ -1190,9 +1332,11 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
             if(join_rsp != null)
                 retval+=join_rsp.serializedSize();
 
-            retval+=Global.BYTE_SIZE; // presence for my_digest
-            if(my_digest != null)
-                retval+=my_digest.serializedSize();
+            retval+=Global.BYTE_SIZE; // presence for my_digest (with or without addresses)
+            if(my_digest != null) {
+                List<Address> index_mbrs=indexMembers();
+                retval+=index_mbrs != null? my_digest.serializedSize(index_mbrs) : my_digest.serializedSize();
+            }
 
             retval+=Global.BYTE_SIZE; // presence for merge_id
             if(merge_id != null)
@@ -7,7 +7,6 @@ import org.jgroups.Global;
 import org.jgroups.View;
 import org.jgroups.ViewId;
 import org.jgroups.util.Digest;
-import org.jgroups.util.MutableDigest;
 import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
 
@@ -84,14 +83,8 @@ public class JoinRsp implements Streamable {
         }
 
         // 3. Digest
-        if(digest != null && view != null) { // if digest is present, view *has* to be present !
-            for(Address mbr: view) {
-                long[] seqnos=digest.get(mbr);
-                if(seqnos == null)
-                    seqnos=new long[]{-1, -1};
-                Util.writeLongSequence(seqnos[0], seqnos[1], out);
-            }
-        }
+        if(digest != null && view != null) // if digest is present, view *has* to be present !
+            digest.writeTo(out, view.getMembers());
 
         // 4. fail_reason
         if(fail_reason != null)
@@ -121,15 +114,8 @@ public class JoinRsp implements Streamable {
 
         // 3. Digest
         if(members != null && (flags & DIGEST_PRESENT) == DIGEST_PRESENT) {
-            MutableDigest tmp=new MutableDigest(size);
-            for(int i=0; i < size; i++) {
-                Address mbr=members.get(i);
-                long[] seqnos=Util.readLongSequence(in);
-                if(seqnos[0] == -1 && seqnos[1] == -1)
-                    continue;
-                tmp.add(mbr, seqnos[0], seqnos[1], false);
-            }
-            digest=tmp;
+            digest=new Digest();
+            digest.readFrom(in, members);
         }
 
         // 4. fail_reason
@@ -148,10 +134,8 @@ public class JoinRsp implements Streamable {
                 retval+=Util.size(mbr);
         }
         
-        if(digest != null) {
-            for(Digest.DigestEntry entry: digest)
-                retval+=Util.size(entry.getHighestDeliveredSeqno(), entry.getHighestReceivedSeqno());
-        }
+        if(digest != null && view != null)
+            retval+=digest.serializedSize(view.getMembers());
         
         if(fail_reason != null)
             retval+=fail_reason.length() +2;
@@ -26,8 +26,12 @@ public class Merger {
     /** For MERGE_REQ/MERGE_RSP correlation, contains MergeData elements */
     private final ResponseCollector<MergeData> merge_rsps=new ResponseCollector<MergeData>();
 
-    /** For GET_DIGEST / DIGEST_RSP correlation */
-    private final ResponseCollector<Digest>    digest_collector=new ResponseCollector<Digest>();
+    /** For GET_DIGEST / DIGEST_RSP correlation: only records who responded, the digests go into fetched_digest */
+    private final ResponseCollector<Boolean>   digest_collector=new ResponseCollector<Boolean>();
+
+    /** The digest into which the GET_DIGEST_RSPs are merged as they arrive; null when no digests are being fetched */
+    @GuardedBy("digest_collector")
+    private MutableDigest                      fetched_digest;
 
     /** To serialize access to merge_id */
     private final Lock                         merge_lock=new ReentrantLock();
@@ -42,6 +46,13 @@ public class Merger {
 
     private final Lock                         merge_killer_lock=new ReentrantLock();
 
+    /** Latencies of the phases of the merges led by this member */
+    protected final PhaseTime                  merge_time=new PhaseTime(), fetch_merge_data_time=new PhaseTime(),
+                                               consolidate_time=new PhaseTime(), send_merge_view_time=new PhaseTime();
+
+    /** Latencies of the phases run by this member as subgroup coordinator */
+    protected final PhaseTime                  fetch_digests_time=new PhaseTime(), install_merge_view_time=new PhaseTime();
+
 
 
     public Merger(GMS gms) {
@@ -50,6 +61,24 @@ public class Merger {
 
     public String getMergeIdAsString() {return merge_id != null? merge_id.toString() : null;}
     public String getMergeIdHistory()  {return merge_id_history.toString();}
+    public long   getLastMergeTime()   {return merge_time.last();}
+
+    public String printMergeStats() {
+        StringBuilder sb=new StringBuilder();
+        sb.append("merge:              ").append(merge_time).append("\n")
+          .append("fetch merge data:   ").append(fetch_merge_data_time).append("\n")
+          .append("consolidate:        ").append(consolidate_time).append("\n")
+          .append("send merge view:    ").append(send_merge_view_time).append("\n")
+          .append("fetch digests:      ").append(fetch_digests_time).append("\n")
+          .append("install merge view: ").append(install_merge_view_time).append("\n");
+        return sb.toString();
+    }
+
+    public void resetStats() {
+        for(PhaseTime time: Arrays.asList(merge_time, fetch_merge_data_time, consolidate_time, send_merge_view_time,
+                                          fetch_digests_time, install_merge_view_time))
+            time.reset();
+    }
     
     /**
      * Invoked upon receiving a MERGE event from the MERGE layer. Starts the merge protocol.
@@ -177,7 +206,9 @@ public class Merger {
         newViewMembers.removeAll(gms.members.getMembers());
 
         try {
+            long start=System.currentTimeMillis();
             gms.castViewChange(data.view,data.digest,null,newViewMembers);
+            install_merge_view_time.add(System.currentTimeMillis() - start);
             // if we have flush in stack send ack back to merge coordinator
             if(gms.flushProtocolInStack) { //[JGRP-700] - FLUSH: flushing should span merge
                 Message ack=new Message(data.getSender()).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL);
@@ -205,7 +236,10 @@ public class Merger {
 
 
     public void handleDigestResponse(Address sender, Digest digest) {
-        digest_collector.add(sender, digest);
+        synchronized(digest_collector) {
+            if(digest != null && fetched_digest != null && digest_collector.add(sender, Boolean.TRUE))
+                fetched_digest.add(digest);
+        }
     }
 
 
@@ -342,8 +376,11 @@ public class Merger {
 
 
     /**
-     * Multicasts a GET_DIGEST_REQ to all current members and waits for all responses (GET_DIGEST_RSP) or N ms.
-     * @return
+     * Fetches the digests of all current members and merges them into one digest. If the number of members is
+     * greater than GMS.max_digest_fetch_batch, the GET_DIGEST_REQs are unicast to batches of max_digest_fetch_batch
+     * members, else a GET_DIGEST_REQ is multicast to all members. Waits for all responses (GET_DIGEST_RSP) or
+     * GMS.merge_timeout / 2 ms. Each response is added to the resulting digest when it is received, so the
+     * responses are never buffered.
      */
     private Digest fetchDigestsFromAllMembersInSubPartition(List<Address> current_mbrs, MergeId merge_id) {
         
@@ -351,35 +388,97 @@ public class Merger {
         if(current_mbrs == null || current_mbrs.size() == 1 && current_mbrs.get(0).equals(gms.local_addr))
             return (Digest)gms.getDownProtocol().down(new Event(Event.GET_DIGEST, gms.local_addr));
 
-        GMS.GmsHeader hdr=new GMS.GmsHeader(GMS.GmsHeader.GET_DIGEST_REQ);
-        hdr.merge_id=merge_id;
-        Message get_digest_req=new Message().setFlag(Message.Flag.OOB, Message.Flag.INTERNAL).putHeader(gms.getId(), hdr);
-
+        long start=System.currentTimeMillis();
         long max_wait_time=gms.merge_timeout / 2; // gms.merge_timeout is guaranteed to be > 0, verified in init()
-        digest_collector.reset(current_mbrs);
-
-        gms.getDownProtocol().down(new Event(Event.MSG, get_digest_req));
-
-        // add my own digest first - the get_digest_req needs to be sent first *before* getting our own digest, so
-        // we have that message in our digest !
-        Digest digest=(Digest)gms.getDownProtocol().down(new Event(Event.GET_DIGEST, gms.local_addr));
-        digest_collector.add(gms.local_addr, digest);
-        digest_collector.waitForAllResponses(max_wait_time);
+        MutableDigest retval=new MutableDigest(current_mbrs.size());
+        boolean got_all;
+        try {
+            if(gms.max_digest_fetch_batch > 0 && current_mbrs.size() > gms.max_digest_fetch_batch)
+                got_all=fetchDigestsInBatches(current_mbrs, merge_id, start + max_wait_time, retval);
+            else {
+                GMS.GmsHeader hdr=new GMS.GmsHeader(GMS.GmsHeader.GET_DIGEST_REQ);
+                hdr.merge_id=merge_id;
+                Message get_digest_req=new Message().setFlag(Message.Flag.OOB, Message.Flag.INTERNAL).putHeader(gms.getId(), hdr);
+                startFetchingDigests(current_mbrs, retval);
+
+                gms.getDownProtocol().down(new Event(Event.MSG, get_digest_req));
+
+                // add my own digest first - the get_digest_req needs to be sent first *before* getting our own digest, so
+                // we have that message in our digest !
+                Digest digest=(Digest)gms.getDownProtocol().down(new Event(Event.GET_DIGEST, gms.local_addr));
+                handleDigestResponse(gms.local_addr, digest);
+                got_all=digest_collector.waitForAllResponses(max_wait_time);
+            }
+        }
+        finally {
+            stopFetchingDigests();
+        }
+        long time=System.currentTimeMillis() - start;
+        fetch_digests_time.add(time);
         if(log.isTraceEnabled()) {
-            if(digest_collector.hasAllResponses())
-                log.trace(gms.local_addr + ": fetched all digests for " + current_mbrs);
+            if(got_all)
+                log.trace(gms.local_addr + ": fetched all digests for " + current_mbrs + " in " + time + " ms");
             else
                 log.trace(gms.local_addr + ": fetched incomplete digests (after timeout of " + max_wait_time + ") ms for " + current_mbrs);
         }
-        Map<Address,Digest> responses=new HashMap<Address,Digest>(digest_collector.getResults());
-        MutableDigest retval=new MutableDigest(responses.size());
-        for(Digest dig: responses.values()) {
-            if(dig != null)
-                retval.add(dig);
-        }
         return retval;
     }
 
+    /**
+     * Unicasts GET_DIGEST_REQs to batches of GMS.max_digest_fetch_batch members and waits for the responses of a batch
+     * (which are added to digest when received) before sending the requests to the next batch, so that at most
+     * max_digest_fetch_batch responses are outstanding at any time.
+     * @return True if all members sent their digest before deadline
+     */
+    protected boolean fetchDigestsInBatches(List<Address> current_mbrs, MergeId merge_id, long deadline, MutableDigest digest) {
+        // no multicast is sent, so we can add our own digest first
+        digest.add((Digest)gms.getDownProtocol().down(new Event(Event.GET_DIGEST, gms.local_addr)));
+        List<Address> batch=new ArrayList<Address>(gms.max_digest_fetch_batch);
+        for(Iterator<Address> it=current_mbrs.iterator(); it.hasNext();) {
+            Address mbr=it.next();
+            if(!mbr.equals(gms.local_addr))
+                batch.add(mbr);
+            if(batch.size() < gms.max_digest_fetch_batch && it.hasNext())
+                continue;
+            if(batch.isEmpty())
+                break;
+            long wait_time=deadline - System.currentTimeMillis();
+            if(wait_time <= 0)
+                return false;
+            startFetchingDigests(batch, digest);
+            for(Address target: batch) {
+                GMS.GmsHeader hdr=new GMS.GmsHeader(GMS.GmsHeader.GET_DIGEST_REQ);
+                hdr.merge_id=merge_id;
+                Message get_digest_req=new Message(target).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+                  .putHeader(gms.getId(), hdr);
+                gms.getDownProtocol().down(new Event(Event.MSG, get_digest_req));
+            }
+            boolean got_all=digest_collector.waitForAllResponses(wait_time);
+            stopFetchingDigests(); // the responses of this batch have been added; discard late ones
+            if(!got_all)
+                return false;
+            batch.clear();
+        }
+        return true;
+    }
+
+    /** Expects digests from mbrs; each response from one of mbrs will be added to digest when it is received */
+    protected void startFetchingDigests(Collection<Address> mbrs, MutableDigest digest) {
+        synchronized(digest_collector) {
+            digest_collector.reset(mbrs);
+            fetched_digest=digest;
+        }
+    }
+
+    /** Stops adding responses to the digest passed to startFetchingDigests(); this also waits for a response that
+     * is currently being added */
+    protected void stopFetchingDigests() {
+        synchronized(digest_collector) {
+            fetched_digest=null;
+            digest_collector.reset();
+        }
+    }
+
     /**
      * Fetches the digests from all members and installs them again. Used only for diagnosis and support; don't
      * use this otherwise !
@@ -585,6 +684,7 @@ public class Merger {
 
             try {
                _run(new_merge_id, coordsCopy); // might remove members from coordsCopy
+               merge_time.add(System.currentTimeMillis() - start);
             }
             catch(Throwable ex) {
                 if(log.isWarnEnabled())
@@ -616,7 +716,9 @@ public class Merger {
                             " coords");
 
             /* 2. Fetch the current Views/Digests from all subgroup coordinators */
+            long start=System.currentTimeMillis();
             success=getMergeDataFromSubgroupCoordinators(coords, new_merge_id, gms.merge_timeout);
+            fetch_merge_data_time.add(System.currentTimeMillis() - start);
             List<Address> missing=null;
             if(!success) {
                 missing=merge_rsps.getMissing();
@@ -642,17 +744,21 @@ public class Merger {
                 throw new Exception("merge leader rejected merge request");
 
             /* 4. Combine all views and digests into 1 View/1 Digest */
+            start=System.currentTimeMillis();
             List<MergeData> merge_data=new ArrayList<MergeData>(merge_rsps.getResults().values());
             MergeData combined_merge_data=consolidateMergeData(merge_data);
             if(combined_merge_data == null)
                 throw new Exception("could not consolidate merge");
+            consolidate_time.add(System.currentTimeMillis() - start);
 
             /* 4. Send the new View/Digest to all coordinators (including myself). On reception, they will
                    install the digest and view in all of their subgroup members */
             if(log.isDebugEnabled())
                 log.debug(gms.local_addr + ": installing merge view " + combined_merge_data.view.getViewId() +
                             " (" + combined_merge_data.view.size() + " members) in " + coords.keySet().size() + " coords");
+            start=System.currentTimeMillis();
             sendMergeView(coords.keySet(), combined_merge_data, new_merge_id);
+            send_merge_view_time.add(System.currentTimeMillis() - start);
         }
 
 
@@ -745,7 +851,7 @@ public class Merger {
             }
 
             // determine the new digest
-            Digest new_digest=consolidateDigests(merge_rsps, merge_rsps.size());
+            Digest new_digest=consolidateDigests(merge_rsps, new_mbrs.size());
             if(new_digest == null)
                 return null;
 
@@ -788,6 +894,27 @@ public class Merger {
     }
 
 
+    /** Keeps the number, last, max and average time (in ms) of a phase of the merge protocol */
+    protected static class PhaseTime {
+        protected long count, last, max, total;
+
+        public synchronized void add(long time) {
+            count++;
+            last=time;
+            max=Math.max(max, time);
+            total+=time;
+        }
+
+        public synchronized long last() {return last;}
+
+        public synchronized void reset() {count=last=max=total=0;}
+
+        public synchronized String toString() {
+            return count == 0? "n/a" : String.format("last=%d ms, avg=%.2f ms, max=%d ms (%d)", last, total / (double)count, max, count);
+        }
+    }
+
+
     private class MergeKiller implements Runnable {
         private final MergeId my_merge_id;
 
@@ -113,6 +113,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       "is compacted (only for experts)",writable=false)
     protected long xmit_table_max_compaction_time=10000;
 
+    @Property(description="Type of the retransmission table: \"table\" (Table) or \"lockless\" (LocklessTable). " +
+      "A lockless table doesn't grow: its capacity is xmit_table_num_rows * xmit_table_msgs_per_row and messages " +
+      "which are too far ahead of the lowest seqno are rejected (only for experts)",writable=false)
+    protected String xmit_table_type="table";
+
     @Property(description="Size of the queue to hold messages received after creating the channel, but before being " +
       "connected (is_server=false). After becoming the server, the messages in the queue are fed into up() and the " +
       "queue is cleared. The motivation is to avoid retransmissions (see https://issues.jboss.org/browse/JGRP-1509 " +
@@ -170,6 +175,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     /** Map to store sent and received messages (keyed by sender) */
     protected final ConcurrentMap<Address,Table<Message>> xmit_table=Util.createConcurrentMap();
 
+    /** The senders of xmit_table and their tables, indexed by position: the members of the current view come first
+     * (in view order). Used to create digests and to handle STABLE digests (which are indexed by the view) without
+     * creating maps or hashing addresses. Recreated whenever xmit_table or the view changes */
+    protected volatile XmitIndex        xmit_index=XmitIndex.EMPTY;
+
     /** RetransmitTask running every xmit_interval ms */
     protected Future<?>                 xmit_task;
     /** Used by the retransmit task to keep the last retransmitted seqno per sender (https://issues.jboss.org/browse/JGRP-1539) */
@@ -196,6 +206,17 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
     protected BoundedList<Message>      become_server_queue;
 
+    /** Set if the transport pools its receive buffers: messages in xmit_table then hold a reference to their
+     * pooled buffer until they're purged, so that the buffer isn't reused while they may still be retransmitted */
+    protected boolean                   retain_msgs;
+
+    protected static final Table.Visitor<Message> releaser=new Table.Visitor<Message>() {
+        public boolean visit(long seqno, Message msg, int row, int column) {
+            msg.release();
+            return true;
+        }
+    };
+
      /** Log to suppress identical warnings for messages from non-members */
     protected SuppressLog<Address>      suppress_log_non_member;
 
@@ -364,6 +385,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
     public void init() throws Exception {
+        if(!xmit_table_type.equalsIgnoreCase("table") && !xmit_table_type.equalsIgnoreCase("lockless"))
+            throw new IllegalArgumentException("xmit_table_type (" + xmit_table_type + ") has to be \"table\" or \"lockless\"");
         if(xmit_from_random_member) {
             if(discard_delivered_msgs) {
                 discard_delivered_msgs=false;
@@ -434,6 +457,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             throw new Exception("timer is null");
         running=true;
         leaving=false;
+        retain_msgs=getTransport().getBufferPool() != null;
         startRetransmitTask();
     }
 
@@ -728,8 +752,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         while(running) {
             try {
                 msg.putHeader(this.id, NakAckHeader2.createMessageHeader(msg_id));
-                buf.add(msg_id, msg);
-                break;
+                if(buf.add(msg_id, msg)) // false: a lockless table is full; retry until STABLE purged it
+                    break;
+                Util.sleep(sleep);
+                sleep=Math.min(5000, sleep*2);
             }
             catch(Throwable t) {
                 if(!running)
@@ -770,7 +796,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
         num_messages_received++;
         boolean loopback=local_addr.equals(sender);
+        if(retain_msgs && !loopback)
+            msg.retain(); // has to be done before adding, as the msg might get delivered (and released) right away
         boolean added=loopback || buf.add(hdr.seqno, msg);
+        if(retain_msgs && !loopback && !added)
+            msg.release();
 
         if(added && log.isTraceEnabled())
             log.trace(new StringBuilder().append(local_addr).append(": received ").append(sender).append('#').append(hdr.seqno));
@@ -815,6 +845,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         int size=msgs.size();
         num_messages_received+=size;
         boolean loopback=local_addr.equals(sender);
+        if(retain_msgs && !loopback) // duplicates keep their reference: their buffers won't return to the pool
+            for(Tuple<Long,Message> tuple: msgs)
+                tuple.getVal2().retain();
         boolean added=loopback || (oob ? buf.add(msgs, true) : buf.add(msgs));
 
         if(added && log.isTraceEnabled())
@@ -1177,6 +1210,29 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 }
             }
         }
+        updateXmitIndex();
+    }
+
+
+    /** Recreates xmit_index from xmit_table; the members of the current view come first, in view order */
+    protected synchronized void updateXmitIndex() {
+        List<Address> mbrs=members;
+        Map<Address,Table<Message>> copy=new HashMap<Address,Table<Message>>(xmit_table);
+        Address[] senders=new Address[copy.size()];
+        Table<Message>[] tables=XmitIndex.createTables(copy.size());
+        int index=0;
+        for(Address mbr: mbrs) {
+            Table<Message> buf=copy.remove(mbr);
+            if(buf != null) {
+                senders[index]=mbr;
+                tables[index++]=buf;
+            }
+        }
+        for(Map.Entry<Address,Table<Message>> entry: copy.entrySet()) {
+            senders[index]=entry.getKey();
+            tables[index++]=entry.getValue();
+        }
+        xmit_index=new XmitIndex(senders, tables);
     }
 
 
@@ -1184,14 +1240,14 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
      * Returns a message digest: for each member P the highest delivered and received seqno is added
      */
     public Digest getDigest() {
-        final Map<Address,long[]> map=new HashMap<Address,long[]>();
-        for(Map.Entry<Address,Table<Message>> entry: xmit_table.entrySet()) {
-            Address sender=entry.getKey(); // guaranteed to be non-null (CCHM)
-            Table<Message> buf=entry.getValue(); // guaranteed to be non-null (CCHM)
-            long[] seqnos=buf.getDigest();
-            map.put(sender, seqnos);
+        XmitIndex index=xmit_index;
+        long[] seqnos=new long[index.senders.length * 2];
+        for(int i=0; i < index.senders.length; i++) {
+            long[] tmp=index.tables[i].getDigest();
+            seqnos[i * 2]=tmp[0];
+            seqnos[i * 2 +1]=tmp[1];
         }
-        return new Digest(map);
+        return new Digest(index.senders, seqnos); // the members are listed in view order
     }
 
 
@@ -1255,6 +1311,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             buf=createTable(highest_delivered_seqno);
             xmit_table.put(member, buf);
         }
+        updateXmitIndex();
         sb.append("\n").append("resulting digest: " + getDigest());
         digest_history.add(sb.toString());
         if(log.isDebugEnabled())
@@ -1303,6 +1360,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             buf=createTable(highest_delivered_seqno);
             xmit_table.put(member, buf);
         }
+        updateXmitIndex();
         sb.append("\n").append("resulting digest: " + getDigest());
         if(set_own_seqno)
             sb.append("\nnew seqno for " + local_addr + ": " + seqno);
@@ -1313,6 +1371,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
 
     protected Table<Message> createTable(long initial_seqno) {
+        if(xmit_table_type.equalsIgnoreCase("lockless"))
+            return new LocklessTable<Message>(xmit_table_num_rows * xmit_table_msgs_per_row, xmit_table_msgs_per_row,
+                                              initial_seqno);
         return new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row,
                                   initial_seqno, xmit_table_resize_factor, xmit_table_max_compaction_time);
     }
@@ -1337,8 +1398,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
         stability_msgs.add(digest);
 
+        XmitIndex index=xmit_index;
+        int pos=0;
         for(Digest.DigestEntry entry: digest) {
             Address member=entry.getMember();
+            int i=pos++;
             if(member == null)
                 continue;
             long hd=entry.getHighestDeliveredSeqno();
@@ -1348,7 +1412,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             // check whether the last seqno received for a sender P in the stability vector is > last seqno
             // received for P in my digest. if yes, request retransmission (see "Last Message Dropped" topic
             // in DESIGN)
-            Table<Message> buf=xmit_table.get(member);
+            Table<Message> buf=index.get(i, member); // STABILITY digests are indexed by the view, as is index
+            if(buf == null)
+                buf=xmit_table.get(member);
             if(buf != null) {
                 my_highest_rcvd=buf.getHighestReceived();
                 stability_highest_rcvd=hr;
@@ -1370,8 +1436,12 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 log.trace(local_addr + ": deleting msgs <= " + hd + " from " + member);
 
             // delete *delivered* msgs that are stable
-            if(buf != null)
-                buf.purge(hd);  // delete all messages with seqnos <= seqno
+            if(buf != null) {
+                if(retain_msgs)
+                    buf.purge(hd, false, releaser);
+                else
+                    buf.purge(hd);  // delete all messages with seqnos <= seqno
+            }
         }
     }
 
@@ -1420,6 +1490,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     protected void reset() {
         seqno.set(0);
         xmit_table.clear();
+        updateXmitIndex();
     }
 
 
@@ -1506,5 +1577,26 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
 
+    /** Immutable snapshot of the senders of xmit_table and their tables */
+    protected static class XmitIndex {
+        protected static final XmitIndex EMPTY=new XmitIndex(new Address[0], createTables(0));
 
+        protected final Address[]        senders;
+        protected final Table<Message>[] tables;
+
+        protected XmitIndex(Address[] senders, Table<Message>[] tables) {
+            this.senders=senders;
+            this.tables=tables;
+        }
+
+        @SuppressWarnings("unchecked")
+        protected static Table<Message>[] createTables(int size) {
+            return (Table<Message>[])new Table<?>[size];
+        }
+
+        /** Returns the table of sender if it is at position index, else null */
+        protected Table<Message> get(int index, Address sender) {
+            return index < senders.length && senders[index].equals(sender)? tables[index] : null;
+        }
+    }
 }
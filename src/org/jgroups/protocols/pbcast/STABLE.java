@@ -29,6 +29,9 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * When send_stable_msgs_to_coord_only is true, far fewer messages are exchanged, as members don't multicast
  * STABLE messages, but instead send them only to the coordinator.
+ * <p>
+ * The stability vector and the votes are indexed by the position of a member in the current view, and STABLE and
+ * STABILITY messages ship the seqnos in view order (plus the view id) rather than a digest with addresses.
  * @author Bela Ban
  */
 @MBean(description="Computes the broadcast messages that are stable")
@@ -84,17 +87,28 @@ public class STABLE extends Protocol {
 
     
     protected Address             local_addr;
-    protected final Set<Address>  mbrs=new LinkedHashSet<Address>(); // we don't need ordering here
 
+    /** The members of the current view; the stability vector and the votes are indexed by position in members */
+    @GuardedBy("lock")
+    protected Address[]           members=new Address[0];
+
+    @GuardedBy("lock")
+    protected ViewId              view_id;
+
+    /**
+     * Keeps track of the highest seqnos from all members (the stability vector): the highest delivered seqno of the
+     * member at index I in members is at I*2, the highest received seqno at I*2+1. Unknown seqnos are -1
+     */
     @GuardedBy("lock")
-    protected final MutableDigest digest=new MutableDigest(10); // keeps track of the highest seqnos from all members
+    protected long[]              digest=new long[0];
 
     /**
-     * Keeps track of who we already heard from (STABLE_GOSSIP msgs). This is cleared initially, and we add the sender
-     * when a STABLE message is received. When the list is full (responses from all members), we send a STABILITY message
+     * Keeps track of who we already heard from (STABLE_GOSSIP msgs), indexed by position in members. This is cleared
+     * initially, and we set the sender's bit when a STABLE message is received. When all bits are set (responses from
+     * all members), we send a STABILITY message
      */
     @GuardedBy("lock")
-    protected final Set<Address>  votes=new HashSet<Address>();
+    protected FixedSizeBitSet     votes=new FixedSizeBitSet(0);
 
     protected final Lock          lock=new ReentrantLock();
 
@@ -247,12 +261,24 @@ public class STABLE extends Protocol {
     }
 
     protected void handleUpEvent(StableHeader hdr, Address sender) {
+        ViewId hdr_view_id=hdr.view_id;
+        long[] seqnos=hdr.seqnos;
+        if(hdr_view_id == null && hdr.stableDigest != null) { // digest with addresses: index it by the current view
+            lock.lock();
+            try {
+                hdr_view_id=view_id;
+                seqnos=hdr.stableDigest.getSeqnos(members);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
         switch(hdr.type) {
             case StableHeader.STABLE_GOSSIP:
-                handleStableMessage(hdr.stableDigest, sender);
+                handleStableMessage(hdr_view_id, seqnos, sender);
                 break;
             case StableHeader.STABILITY:
-                handleStabilityMessage(hdr.stableDigest, sender);
+                handleStabilityMessage(hdr_view_id, seqnos, sender);
                 break;
             default:
                 if(log.isErrorEnabled()) log.error("StableHeader type " + hdr.type + " not known");
@@ -379,12 +405,10 @@ public class STABLE extends Protocol {
 
     protected void handleViewChange(View v) {
         List<Address> tmp=v.getMembers();
-        synchronized(mbrs) {
-            mbrs.clear();
-            mbrs.addAll(tmp);
-        }
         lock.lock();
         try {
+            members=tmp.toArray(new Address[tmp.size()]);
+            view_id=v.getViewId();
             coordinator=tmp.get(0);
             resetDigest();
             if(!initialized)
@@ -398,11 +422,11 @@ public class STABLE extends Protocol {
 
 
 
-    /** Update my own digest from a digest received by somebody else. Returns whether the update was successful.
+    /** Update my own digest from the seqnos received by somebody else. Returns whether the update was successful.
      *  Needs to be called with a lock on digest */
     @GuardedBy("lock")
-    protected boolean updateLocalDigest(Digest d, Address sender) {
-        if(d == null || d.size() == 0)
+    protected boolean updateLocalDigest(ViewId sender_view_id, long[] seqnos, Address sender) {
+        if(seqnos == null || seqnos.length == 0)
             return false;
 
         if(!initialized) {
@@ -411,7 +435,7 @@ public class STABLE extends Protocol {
             return false;
         }
 
-        if(!digest.sameSenders(d)) {
+        if(!view_id.equals(sender_view_id) || seqnos.length != digest.length) {
             // to avoid sending incorrect stability/stable msgs, we simply reset our votes list, see DESIGN
             resetDigest();
             return false;
@@ -420,59 +444,69 @@ public class STABLE extends Protocol {
         StringBuilder sb=null;
         if(log.isTraceEnabled()) {
             sb=new StringBuilder().append(local_addr).append(": handling digest from ").append(sender).append(" (").
-                    append(votes.size()).append(" votes):\nmine:   ").append(digest.printHighestDeliveredSeqnos())
-                    .append("\nother:  ").append(d.printHighestDeliveredSeqnos());
+                    append(votes.cardinality()).append(" votes):\nmine:   ").append(printDigest(digest))
+                    .append("\nother:  ").append(printDigest(seqnos));
         }
 
-        for(Digest.DigestEntry entry: d) {
-            Address mbr=entry.getMember();
-            long highest_delivered=entry.getHighestDeliveredSeqno();
-            long highest_received=entry.getHighestReceivedSeqno();
-
-            // compute the minimum of the highest seqnos deliverable (for garbage collection)
-            long[] seqnos=digest.get(mbr);
-            if(seqnos == null)
-                continue;
-            long my_highest_delivered=seqnos[0];
-            // compute the maximum of the highest seqnos seen (for retransmission of last missing message)
-            long my_highest_received=seqnos[1];
-
-            long new_highest_delivered=Math.min(my_highest_delivered, highest_delivered);
-            long new_highest_received=Math.max(my_highest_received, highest_received);
-            digest.setHighestDeliveredAndSeenSeqnos(mbr, new_highest_delivered, new_highest_received);
-        }
+        merge(digest, seqnos);
         if(sb != null) { // implies log.isTraceEnabled() == true
-            sb.append("\nresult: ").append(digest.printHighestDeliveredSeqnos()).append("\n");
+            sb.append("\nresult: ").append(printDigest(digest)).append("\n");
             log.trace(sb);
         }
         return true;
     }
 
 
+    /**
+     * Merges seqnos into digest (both indexed by the same view): computes the minimum of the highest seqnos
+     * deliverable (for garbage collection) and the maximum of the highest seqnos seen (for retransmission of last
+     * missing message)
+     */
+    protected static void merge(long[] digest, long[] seqnos) {
+        for(int i=0; i < digest.length; i+=2) {
+            digest[i]=Math.min(digest[i], seqnos[i]);
+            digest[i+1]=Math.max(digest[i+1], seqnos[i+1]);
+        }
+    }
+
     @GuardedBy("lock")
     protected void resetDigest() {
         Digest tmp=getDigest();
-        digest.replace(tmp);
+        if(tmp != null)
+            digest=tmp.getSeqnos(members);
+        else {
+            digest=new long[members.length * 2];
+            Arrays.fill(digest, -1);
+        }
         if(log.isTraceEnabled())
-            log.trace(local_addr + ": resetting digest from NAKACK: " + digest.printHighestDeliveredSeqnos());
-        votes.clear();
+            log.trace(local_addr + ": resetting digest from NAKACK: " + printDigest(digest));
+        votes=new FixedSizeBitSet(members.length);
     }
 
     /**
-     * Adds mbr to votes and returns true if we have all the votes, otherwise false.
-     * @param mbr
+     * Adds the member at index to votes and returns true if we have all the votes, otherwise false.
      */
     @GuardedBy("lock")
-    protected boolean addVote(Address mbr) {
-        boolean added=votes.add(mbr);
-        return added && allVotesReceived(votes);
+    protected boolean addVote(int index) {
+        if(votes.get(index))
+            return false;
+        votes.set(index);
+        return votes.cardinality() == members.length;
     }
 
-    /** Votes is already locked and guaranteed to be non-null */
-    protected boolean allVotesReceived(Set<Address> votes) {
-        synchronized(mbrs) {
-            return votes.equals(mbrs); // compares identity, size and element-wise (if needed)
-        }
+    @GuardedBy("lock")
+    protected int indexOf(Address mbr) {
+        for(int i=0; i < members.length; i++)
+            if(members[i].equals(mbr))
+                return i;
+        return -1;
+    }
+
+    /** Prints seqnos indexed by the current view */
+    @GuardedBy("lock")
+    protected String printDigest(long[] seqnos) {
+        return seqnos.length == members.length * 2? new Digest(members, seqnos).printHighestDeliveredSeqnos()
+          : Arrays.toString(seqnos);
     }
 
 
@@ -533,11 +567,11 @@ public class STABLE extends Protocol {
     }
 
 
-    protected void startStabilityTask(Digest d, long delay) {
+    protected void startStabilityTask(ViewId view_id, long[] seqnos, long delay) {
         stability_lock.lock();
         try {
             if(stability_task_future == null || stability_task_future.isDone()) {
-                StabilitySendTask stability_task=new StabilitySendTask(d); // runs only once
+                StabilitySendTask stability_task=new StabilitySendTask(view_id, seqnos); // runs only once
                 stability_task_future=timer.schedule(stability_task, delay, TimeUnit.MILLISECONDS);
             }
         }
@@ -569,8 +603,8 @@ public class STABLE extends Protocol {
      maximum of all seqnos will be taken to trigger possible retransmission of last missing seqno (see DESIGN
      for details).
      */
-    protected void handleStableMessage(Digest d, Address sender) {
-        if(d == null || sender == null) {
+    protected void handleStableMessage(ViewId sender_view_id, long[] seqnos, Address sender) {
+        if(seqnos == null || sender == null) {
             if(log.isErrorEnabled()) log.error("digest or sender is null");
             return;
         }
@@ -587,19 +621,23 @@ public class STABLE extends Protocol {
             return;
         }
 
-        Digest copy=null;
+        long[] copy=null;
+        ViewId copy_view_id=null;
         lock.lock();
         try {
-            if(votes.contains(sender))  // already received gossip from sender; discard it
+            int index=indexOf(sender);
+            if(index < 0 || votes.get(index))  // not a member, or already received gossip from sender; discard it
                 return;
             num_stable_msgs_received++;
-            boolean success=updateLocalDigest(d, sender);
+            boolean success=updateLocalDigest(sender_view_id, seqnos, sender);
             if(!success) // we can only add the sender to votes if *all* elements of my digest were updated
                 return;
 
-            boolean all_votes_received=addVote(sender);
-            if(all_votes_received)
-                copy=digest.copy();
+            boolean all_votes_received=addVote(index);
+            if(all_votes_received) {
+                copy=digest.clone();
+                copy_view_id=view_id;
+            }
         }
         finally {
             lock.unlock();
@@ -608,13 +646,13 @@ public class STABLE extends Protocol {
         // we don't yet reset digest: new STABLE messages will be discarded anyway as we have already
         // received votes from their senders
         if(copy != null) {
-            sendStabilityMessage(copy);
+            sendStabilityMessage(copy_view_id, copy);
         }
     }
 
 
-    protected void handleStabilityMessage(Digest stable_digest, Address sender) {
-        if(stable_digest == null) {
+    protected void handleStabilityMessage(ViewId sender_view_id, long[] seqnos, Address sender) {
+        if(seqnos == null) {
             if(log.isErrorEnabled()) log.error("stability digest is null");
             return;
         }
@@ -632,22 +670,26 @@ public class STABLE extends Protocol {
              return;
          }
 
-         if(log.isTraceEnabled())
-             log.trace(new StringBuilder(local_addr + ": received stability msg from ").append(sender).append(": ").append(stable_digest.printHighestDeliveredSeqnos()));
          stopStabilityTask();
 
+        Digest stable_digest;
         lock.lock();
         try {
             // we won't handle the gossip d, if d's members don't match the membership in my own digest,
             // this is part of the fix for the NAKACK problem (bugs #943480 and #938584)
-            if(!this.digest.sameSenders(stable_digest)) {
+            if(!view_id.equals(sender_view_id) || seqnos.length != members.length * 2) {
                 if(log.isDebugEnabled()) {
-                    log.debug(local_addr + ": received digest from " + sender + " (digest=" + stable_digest + ") which does not match my own digest ("+
-                            this.digest + "): ignoring digest and re-initializing own digest");
+                    log.debug(local_addr + ": received digest from " + sender + " (view " + sender_view_id +
+                                ") which does not match my own view (" + view_id + "): ignoring digest and " +
+                                "re-initializing own digest");
                 }
                 resetDigest();
                 return;
             }
+            stable_digest=new Digest(members, seqnos);
+            if(log.isTraceEnabled())
+                log.trace(new StringBuilder(local_addr + ": received stability msg from ").append(sender).append(": ")
+                            .append(stable_digest.printHighestDeliveredSeqnos()));
             num_stability_msgs_received++;
             resetDigest();
         }
@@ -665,7 +707,7 @@ public class STABLE extends Protocol {
 
     /**
      * Bcasts a STABLE message of the current digest to all members. Message contains highest seqnos of all members
-     * seen by this member. Highest seqnos are retrieved from the NAKACK layer below.
+     * seen by this member, in the order of the current view. Highest seqnos are retrieved from the NAKACK layer below.
      * @param d A <em>copy</em> of this.digest
      */
     protected void sendStableMessage(Digest d) {
@@ -676,13 +718,25 @@ public class STABLE extends Protocol {
         }
 
         if(d != null && d.size() > 0) {
+            ViewId tmp_view_id;
+            long[] seqnos;
+            lock.lock();
+            try {
+                if(view_id == null)
+                    return;
+                tmp_view_id=view_id;
+                seqnos=d.getSeqnos(members);
+            }
+            finally {
+                lock.unlock();
+            }
             Address dest=send_stable_msgs_to_coord_only? coordinator : null;
             if(log.isTraceEnabled())
                 log.trace(local_addr + ": sending stable msg to " + (send_stable_msgs_to_coord_only? coordinator : "cluster") +
                             ": " + d.printHighestDeliveredSeqnos());
             num_stable_msgs_sent++;
             final Message msg=new Message(dest).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.NO_RELIABILITY)
-              .putHeader(this.id,new StableHeader(StableHeader.STABLE_GOSSIP,d));
+              .putHeader(this.id,new StableHeader(StableHeader.STABLE_GOSSIP, tmp_view_id, seqnos));
 
             Runnable r=new Runnable() {
                 public void run() {
@@ -707,9 +761,9 @@ public class STABLE extends Protocol {
      elapses, some other member sent the STABILITY message, we just cancel our own message. If, during
      waiting for N msecs to send STABILITY message S1, another STABILITY message S2 is to be sent, we just
      discard S2.
-     @param tmp A copy of te stability digest, so we don't need to copy it again
+     @param tmp A copy of te stability digest (indexed by the view), so we don't need to copy it again
      */
-    protected void sendStabilityMessage(Digest tmp) {
+    protected void sendStabilityMessage(ViewId tmp_view_id, long[] tmp) {
         long delay;
 
         if(suspended) {
@@ -721,8 +775,8 @@ public class STABLE extends Protocol {
         // give other members a chance to mcast STABILITY message. if we receive STABILITY by the end of our random
         // sleep, we will not send the STABILITY msg. this prevents that all mbrs mcast a STABILITY msg at the same time
         delay=Util.random(stability_delay);
-        if(log.isTraceEnabled()) log.trace(local_addr + ": sending stability msg (in " + delay + " ms) " + tmp.printHighestDeliveredSeqnos());
-        startStabilityTask(tmp, delay);
+        if(log.isTraceEnabled()) log.trace(local_addr + ": sending stability msg (in " + delay + " ms) " + Arrays.toString(tmp));
+        startStabilityTask(tmp_view_id, tmp, delay);
     }
 
 
@@ -746,6 +800,10 @@ public class STABLE extends Protocol {
         protected int    type;
         protected Digest stableDigest; // changed by Bela April 4 2004
 
+        /** The view the seqnos are indexed by: the seqnos of the member at index I are at I*2 and I*2+1 */
+        protected ViewId view_id;
+        protected long[] seqnos;
+
         public StableHeader() {
         }
 
@@ -755,6 +813,17 @@ public class STABLE extends Protocol {
             this.stableDigest=digest;
         }
 
+        public StableHeader(int type, ViewId view_id, long[] seqnos) {
+            this.type=type;
+            this.view_id=view_id;
+            this.seqnos=seqnos;
+        }
+
+
+        public int    getType()   {return type;}
+        public ViewId getViewId() {return view_id;}
+        public long[] getSeqnos() {return seqnos;}
+
 
         static String type2String(int t) {
             switch(t) {
@@ -771,26 +840,56 @@ public class STABLE extends Protocol {
             StringBuilder sb=new StringBuilder();
             sb.append('[');
             sb.append(type2String(type));
-            sb.append("]: digest is ");
-            sb.append(stableDigest);
+            sb.append("]: ");
+            if(view_id != null)
+                sb.append("view ").append(view_id).append(", seqnos are ").append(Arrays.toString(seqnos));
+            else
+                sb.append("digest is ").append(stableDigest);
             return sb.toString();
         }
 
         public int size() {
-            int retval=Global.INT_SIZE + Global.BYTE_SIZE; // type + presence for digest
-            if(stableDigest != null)
-                retval+=stableDigest.serializedSize();
+            int retval=Global.INT_SIZE + Global.BYTE_SIZE; // type + indexed by view_id or not
+            if(view_id != null) {
+                retval+=view_id.serializedSize() + Global.SHORT_SIZE;
+                for(int i=0; i < seqnos.length; i+=2)
+                    retval+=Util.size(seqnos[i], seqnos[i+1]);
+            }
+            else {
+                retval+=Global.BYTE_SIZE; // presence for digest
+                if(stableDigest != null)
+                    retval+=stableDigest.serializedSize();
+            }
             return retval;
         }
 
         public void writeTo(DataOutput out) throws Exception {
             out.writeInt(type);
-            Util.writeStreamable(stableDigest, out);
+            out.writeBoolean(view_id != null);
+            if(view_id != null) {
+                view_id.writeTo(out);
+                out.writeShort(seqnos.length / 2);
+                for(int i=0; i < seqnos.length; i+=2)
+                    Util.writeLongSequence(seqnos[i], seqnos[i+1], out);
+            }
+            else
+                Util.writeStreamable(stableDigest, out);
         }
 
         public void readFrom(DataInput in) throws Exception {
             type=in.readInt();
-            stableDigest=(Digest)Util.readStreamable(Digest.class, in);
+            if(in.readBoolean()) {
+                view_id=new ViewId();
+                view_id.readFrom(in);
+                seqnos=new long[in.readShort() * 2];
+                for(int i=0; i < seqnos.length; i+=2) {
+                    long[] tmp=Util.readLongSequence(in);
+                    seqnos[i]=tmp[0];
+                    seqnos[i+1]=tmp[1];
+                }
+            }
+            else
+                stableDigest=(Digest)Util.readStreamable(Digest.class, in);
         }
     }
 
@@ -848,10 +947,12 @@ public class STABLE extends Protocol {
      * Multicasts a STABILITY message.
      */
     protected class StabilitySendTask implements Runnable {
-        Digest stability_digest=null;
+        final ViewId view_id;
+        final long[] stability_digest;
 
-        StabilitySendTask(Digest d) {
-            this.stability_digest=d;
+        StabilitySendTask(ViewId view_id, long[] seqnos) {
+            this.view_id=view_id;
+            this.stability_digest=seqnos;
         }
 
         public void run() {
@@ -864,9 +965,9 @@ public class STABLE extends Protocol {
 
             if(stability_digest != null) {
                 Message msg=new Message().setFlag(Message.Flag.OOB,Message.Flag.INTERNAL,Message.Flag.NO_RELIABILITY);
-                StableHeader hdr=new StableHeader(StableHeader.STABILITY, stability_digest);
+                StableHeader hdr=new StableHeader(StableHeader.STABILITY, view_id, stability_digest);
                 msg.putHeader(id, hdr);
-                if(log.isTraceEnabled()) log.trace(local_addr + ": sending stability msg " + stability_digest.printHighestDeliveredSeqnos());
+                if(log.isTraceEnabled()) log.trace(local_addr + ": sending stability msg " + Arrays.toString(stability_digest));
                 num_stability_msgs_sent++;
                 down_prot.down(new Event(Event.MSG, msg));
             }
@@ -0,0 +1,237 @@
+package org.jgroups.protocols.pbcast;
+
+import org.jgroups.*;
+import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.Property;
+import org.jgroups.util.Digest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Variant of {@link STABLE} which aggregates the digests of the members up a tree instead of having every member send
+ * its digest to the coordinator (or to all members). The tree is laid over the positions of the members in the
+ * current view: the coordinator is the root and the member at index I has the members at indices
+ * I*fanout+1 .. I*fanout+fanout as children.
+ * <p/>
+ * A leaf sends its digest to its parent when it gossips. An inner member waits until it has received the digests of
+ * all of its children, merges them with its own digest and sends the result to its parent. When the root has received
+ * the digests of all of its children, the merged digest is the stability vector: it is sent back down the tree (or
+ * multicast) as STABILITY message. Every member therefore receives at most fanout STABLE messages per round, and a
+ * round needs N-1 STABLE messages instead of N (send_stable_msgs_to_coord_only=true) or N*N.
+ * <p/>
+ * A gossip which is lost (or dropped because the parent has a different view) is resent with the next gossip of the
+ * sender; duplicate gossips in the same round are discarded.
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Experimental
+@MBean(description="Computes the broadcast messages that are stable by aggregating digests up a tree of the members")
+public class STABLE_TREE extends STABLE {
+
+    @Property(description="Max number of children of a member in the tree")
+    protected int     fanout=8;
+
+    @Property(description="If true, the root multicasts the STABILITY message, else it is sent down the tree")
+    protected boolean multicast_stability=false;
+
+
+    /** The merged digests of the children which have sent their digest in the current round, null if none has */
+    @GuardedBy("lock")
+    protected long[]  children_digest;
+
+
+    public int  getFanout()          {return fanout;}
+    public void setFanout(int fanout) {this.fanout=fanout;}
+
+
+    public void init() throws Exception {
+        super.init();
+        if(fanout < 1)
+            throw new IllegalArgumentException("fanout (" + fanout + ") has to be >= 1");
+    }
+
+
+    /** Sends the merged digest to the parent (or the stability vector to all members, if we're the root) if all
+     * children have sent their digests. Called when gossiping */
+    protected void sendStableMessage(Digest d) {
+        if(suspended) {
+            if(log.isTraceEnabled())
+                log.trace("will not send STABLE message as I'm suspended");
+            return;
+        }
+        if(d == null || d.size() == 0)
+            return;
+
+        ViewId tmp_view_id;
+        long[] seqnos;
+        Address parent;
+        lock.lock();
+        try {
+            int index=view_id != null? indexOf(local_addr) : -1;
+            if(index < 0 || !allChildrenReceived(index))
+                return;
+            tmp_view_id=view_id;
+            seqnos=mergeWithChildren(d);
+            parent=index == 0? null : members[parent(index)];
+        }
+        finally {
+            lock.unlock();
+        }
+        send(parent, tmp_view_id, seqnos);
+    }
+
+
+    /** Handles the digest sent by one of our children */
+    protected void handleStableMessage(ViewId sender_view_id, long[] seqnos, Address sender) {
+        if(seqnos == null || sender == null) {
+            if(log.isErrorEnabled()) log.error("digest or sender is null");
+            return;
+        }
+        if(!initialized || suspended) {
+            if(log.isTraceEnabled())
+                log.trace("STABLE message will not be handled as I'm " + (suspended? "suspended" : "not yet initialized"));
+            return;
+        }
+
+        ViewId tmp_view_id;
+        long[] merged;
+        Address parent;
+        lock.lock();
+        try {
+            // a gossip from a different view is discarded: the child resends it with its next gossip
+            if(!view_id.equals(sender_view_id) || seqnos.length != members.length * 2)
+                return;
+            int index=indexOf(local_addr), sender_index=indexOf(sender);
+            if(index < 0 || sender_index <= 0 || parent(sender_index) != index || votes.get(sender_index))
+                return; // not one of our children, or already received its digest in this round
+            num_stable_msgs_received++;
+            votes.set(sender_index);
+            if(children_digest == null)
+                children_digest=seqnos.clone();
+            else
+                merge(children_digest, seqnos);
+            if(!allChildrenReceived(index))
+                return;
+            tmp_view_id=view_id;
+            merged=mergeWithChildren(getDigest());
+            parent=index == 0? null : members[parent(index)];
+        }
+        finally {
+            lock.unlock();
+        }
+        send(parent, tmp_view_id, merged);
+    }
+
+
+    /** Passes the STABILITY message on to our children before handling it */
+    protected void handleStabilityMessage(ViewId sender_view_id, long[] seqnos, Address sender) {
+        if(!multicast_stability && seqnos != null && initialized && !suspended) {
+            List<Address> children=null;
+            lock.lock();
+            try {
+                if(view_id.equals(sender_view_id))
+                    children=children(indexOf(local_addr));
+            }
+            finally {
+                lock.unlock();
+            }
+            if(children != null) {
+                for(Address child: children) {
+                    Message msg=new Message(child).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.NO_RELIABILITY)
+                      .putHeader(id, new StableHeader(StableHeader.STABILITY, sender_view_id, seqnos));
+                    num_stability_msgs_sent++;
+                    down_prot.down(new Event(Event.MSG, msg));
+                }
+            }
+        }
+        super.handleStabilityMessage(sender_view_id, seqnos, sender);
+    }
+
+
+    @GuardedBy("lock")
+    protected void resetDigest() {
+        super.resetDigest();
+        children_digest=null;
+    }
+
+
+    /**
+     * Sends seqnos to parent as STABLE message or, if parent is null (we're the root), the stability vector down the
+     * tree (or to all members)
+     */
+    protected void send(Address parent, final ViewId tmp_view_id, final long[] seqnos) {
+        if(parent == null) {
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": sending stability msg " + printDigest(tmp_view_id, seqnos));
+            if(multicast_stability) {
+                num_stability_msgs_sent++;
+                Message msg=new Message().setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.NO_RELIABILITY)
+                  .putHeader(id, new StableHeader(StableHeader.STABILITY, tmp_view_id, seqnos));
+                down_prot.down(new Event(Event.MSG, msg));
+            }
+            else
+                handleStabilityMessage(tmp_view_id, seqnos, local_addr); // sends it to our children
+            return;
+        }
+
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": sending stable msg to " + parent + ": " + printDigest(tmp_view_id, seqnos));
+        num_stable_msgs_sent++;
+        final Message msg=new Message(parent).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.NO_RELIABILITY)
+          .putHeader(id, new StableHeader(StableHeader.STABLE_GOSSIP, tmp_view_id, seqnos));
+        timer.execute(new Runnable() { // run in a separate thread so we don't block (JGRP-532)
+            public void run() {
+                down_prot.down(new Event(Event.MSG, msg));
+            }
+
+            public String toString() {return STABLE_TREE.class.getSimpleName() + ": STABLE-GOSSIP";}
+        });
+    }
+
+
+    /** Merges our own digest with the digests of our children */
+    @GuardedBy("lock")
+    protected long[] mergeWithChildren(Digest own) {
+        long[] retval=own.getSeqnos(members);
+        if(children_digest != null)
+            merge(retval, children_digest);
+        return retval;
+    }
+
+    @GuardedBy("lock")
+    protected boolean allChildrenReceived(int index) {
+        for(int i=index * fanout + 1; i <= index * fanout + fanout && i < members.length; i++)
+            if(!votes.get(i))
+                return false;
+        return true;
+    }
+
+    @GuardedBy("lock")
+    protected List<Address> children(int index) {
+        List<Address> retval=new ArrayList<Address>(fanout);
+        if(index < 0)
+            return retval;
+        for(int i=index * fanout + 1; i <= index * fanout + fanout && i < members.length; i++)
+            retval.add(members[i]);
+        return retval;
+    }
+
+    protected int parent(int index) {
+        return (index - 1) / fanout;
+    }
+
+    protected String printDigest(ViewId tmp_view_id, long[] seqnos) {
+        lock.lock();
+        try {
+            return tmp_view_id.equals(view_id)? printDigest(seqnos) : tmp_view_id + ": " + Arrays.toString(seqnos);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,1000 @@
+package org.jgroups.protocols.pbcast;
+
+import org.jgroups.*;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.Property;
+import org.jgroups.util.BlockingInputStream;
+import org.jgroups.util.Digest;
+import org.jgroups.util.StateTransferResult;
+import org.jgroups.util.Util;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Streaming state transfer which transfers the segments of a state concurrently, possibly from multiple state
+ * providers.
+ * <p/>
+ * If the application implements {@link SegmentedStateListener}, the requester asks the (first) state provider for its
+ * digest and the number of segments, and then assigns the segments round-robin to max_providers members. Every state
+ * provider streams up to num_senders of its segments concurrently, each from a separate thread of the thread pool.
+ * Otherwise, the state is transferred as a single segment from the first provider, using
+ * {@link MessageListener#getState(java.io.OutputStream)} and {@link MessageListener#setState(java.io.InputStream)}.
+ * <p/>
+ * A segment is sent in chunks of buffer_size bytes. Every chunk carries a sequence number and (optionally) a CRC32
+ * checksum, which are verified by the requester. The chunks of a segment are sent with a sliding window: a provider
+ * sends at most window_size chunks of a segment ahead of the last chunk acked by the requester, so that the memory
+ * needed by the requester is bounded, while a slow reader of one segment doesn't stall the others.
+ * <p/>
+ * If the application implements {@link VersionedStateListener} (and delta is true), the first provider also returns
+ * the versions of its segments, and the requester only fetches the segments whose local versions differ (delta state
+ * transfer). This way, a member rejoining after a short outage only fetches the segments which changed in the meantime.
+ * <p/>
+ * When multiple providers are used, the digest of the first provider is installed, so the application needs to make
+ * sure that the segments of the providers are consistent, e.g. by using FLUSH or because the segments don't change
+ * during the state transfer.
+ * @author Bela Ban
+ * @since  3.3
+ * @see STATE
+ */
+@MBean(description="Streaming state transfer of segments in parallel, from one or more state providers")
+public class STATE_PARALLEL extends StreamingStateTransfer {
+
+    /* ----------------------------------------- Properties -------------------------------------------------- */
+    @Property(description="Max number of segments a state provider sends concurrently to a requester")
+    protected int num_senders=4;
+
+    @Property(description="Max number of chunks (of buffer_size bytes) of a segment which are sent ahead of the " +
+      "last chunk acked by the state requester")
+    protected int window_size=16;
+
+    @Property(description="Max number of members from which the segments are fetched concurrently. The digest of the " +
+      "first provider is installed, so the segments of all providers need to be consistent")
+    protected int max_providers=1;
+
+    @Property(description="Whether to add a CRC32 checksum to every chunk, which is verified by the state requester")
+    protected boolean checksum=true;
+
+    @Property(description="If the application implements VersionedStateListener, only the segments whose versions " +
+      "differ between state provider and requester are transferred")
+    protected boolean delta=true;
+
+
+    /* --------------------------------------------- Fields ------------------------------------------------------ */
+
+    /** The application's segments; if null, the receiver of the channel is used if it implements the interface */
+    protected volatile SegmentedStateListener segmented_state_listener;
+
+    /** State transfers to requesters (used in the state provider) */
+    protected final ConcurrentMap<Address,OutgoingTransfer> transfers=new ConcurrentHashMap<Address,OutgoingTransfer>();
+
+    /** The current state transfer (used in the state requester) */
+    protected volatile IncomingTransfer incoming;
+
+    protected final AtomicInteger num_segments_fetched=new AtomicInteger(0);
+
+    protected final AtomicInteger num_segments_skipped=new AtomicInteger(0);
+
+
+    public STATE_PARALLEL setSegmentedStateListener(SegmentedStateListener l) {
+        this.segmented_state_listener=l; return this;
+    }
+
+    public SegmentedStateListener getSegmentedStateListener() {
+        SegmentedStateListener l=segmented_state_listener;
+        if(l != null)
+            return l;
+        JChannel ch=stack != null? stack.getChannel() : null;
+        Receiver receiver=ch != null? ch.getReceiver() : null;
+        return receiver instanceof SegmentedStateListener? (SegmentedStateListener)receiver : null;
+    }
+
+    @ManagedAttribute(description="Number of state transfers to requesters")
+    public int getNumberOfOutgoingTransfers() {return transfers.size();}
+
+    @ManagedAttribute(description="Whether a state transfer to this member is in progress")
+    public boolean isStateTransferInProgress() {return incoming != null;}
+
+    @ManagedAttribute(description="Number of segments fetched from state providers")
+    public int getNumberOfSegmentsFetched() {return num_segments_fetched.get();}
+
+    @ManagedAttribute(description="Number of segments which were not fetched, as their versions didn't change")
+    public int getNumberOfSegmentsSkipped() {return num_segments_skipped.get();}
+
+    public void resetStats() {
+        super.resetStats();
+        num_segments_fetched.set(0);
+        num_segments_skipped.set(0);
+    }
+
+
+    public void start() throws Exception {
+        super.start();
+        if(num_senders <= 0 || window_size <= 0 || max_providers <= 0)
+            throw new IllegalArgumentException("num_senders, window_size and max_providers have to be > 0");
+    }
+
+    public void stop() {
+        for(Address requester: transfers.keySet())
+            removeTransfer(requester);
+        IncomingTransfer tmp=incoming;
+        if(tmp != null)
+            tmp.close();
+        incoming=null;
+        super.stop();
+    }
+
+    public Object up(Event evt) {
+        if(evt.getType() == Event.MSG) {
+            Message msg=(Message)evt.getArg();
+            Header tmp=msg.getHeader(this.id);
+            if(tmp instanceof SegmentHeader) {
+                SegmentHeader hdr=(SegmentHeader)tmp;
+                Address sender=msg.getSrc();
+                switch(hdr.type) {
+                    case SegmentHeader.INFO_REQ:
+                        handleInfoReq(sender, hdr.versioned);
+                        break;
+                    case SegmentHeader.INFO_RSP:
+                        handleInfoRsp(sender, hdr.segment, hdr.digest, hdr.versions);
+                        break;
+                    case SegmentHeader.SEGMENTS_REQ:
+                        handleSegmentsReq(sender, hdr.segments);
+                        break;
+                    case SegmentHeader.DATA:
+                        handleData(sender, hdr, msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+                        break;
+                    case SegmentHeader.EOF:
+                        handleEOF(sender, hdr.segment, hdr.seqno);
+                        break;
+                    case SegmentHeader.ACK:
+                        handleAck(sender, hdr.segment, hdr.seqno);
+                        break;
+                    case SegmentHeader.CANCEL:
+                        removeTransfer(sender);
+                        break;
+                    default:
+                        log.error("type " + hdr.type + " not known in SegmentHeader");
+                        break;
+                }
+                return null;
+            }
+        }
+        return super.up(evt);
+    }
+
+
+    /* --------------------------------------- Requester --------------------------------------------------- */
+
+    /**
+     * Asks the first state provider for its digest and the number of segments, plus the versions of the segments if
+     * we can do a delta state transfer
+     */
+    protected void requestState(Address target) {
+        IncomingTransfer tmp=incoming;
+        if(tmp != null)
+            tmp.close();
+        incoming=new IncomingTransfer(target);
+        boolean versioned=delta && getSegmentedStateListener() instanceof VersionedStateListener;
+        send(target, new SegmentHeader(SegmentHeader.INFO_REQ).versioned(versioned), false);
+    }
+
+    protected void handleInfoRsp(Address sender, int num_segments, Digest digest, long[] versions) {
+        IncomingTransfer transfer=incoming;
+        if(transfer == null || !transfer.primary.equals(sender))
+            return;
+        SegmentedStateListener l=getSegmentedStateListener();
+        if(num_segments < 0 || l == null)
+            transfer.startFullTransfer(digest);
+        else
+            transfer.startSegmentedTransfer(l, changedSegments(l, num_segments, versions), digest);
+    }
+
+    /** Returns the segments whose local versions differ from the provider's versions (all if versions is null) */
+    protected int[] changedSegments(SegmentedStateListener l, int num_segments, long[] versions) {
+        boolean compare=versions != null && versions.length == num_segments && l instanceof VersionedStateListener;
+        int[] retval=new int[num_segments];
+        int num=0;
+        for(int i=0; i < num_segments; i++)
+            if(!compare || ((VersionedStateListener)l).getVersion(i) != versions[i])
+                retval[num++]=i;
+        if(stats) {
+            num_segments_fetched.addAndGet(num);
+            num_segments_skipped.addAndGet(num_segments - num);
+        }
+        return num == num_segments? retval : Arrays.copyOf(retval, num);
+    }
+
+    protected void handleData(Address sender, SegmentHeader hdr, byte[] buf, int offset, int length) {
+        IncomingTransfer transfer=incoming;
+        if(transfer == null)
+            return;
+        try {
+            transfer.getSegment(sender, hdr.segment).add(hdr, buf, offset, length);
+        }
+        catch(Throwable t) {
+            finish(transfer, t);
+        }
+    }
+
+    protected void handleEOF(Address sender, int segment, long num_chunks) {
+        IncomingTransfer transfer=incoming;
+        if(transfer == null)
+            return;
+        if(log.isTraceEnabled())
+            log.trace(local_addr + " <-- EOF(" + segment + ") <-- " + sender);
+        try {
+            transfer.getSegment(sender, segment).eof(num_chunks);
+        }
+        catch(Throwable t) {
+            finish(transfer, t);
+        }
+    }
+
+    protected void handleException(Throwable exception) {
+        IncomingTransfer transfer=incoming;
+        if(transfer != null)
+            finish(transfer, exception);
+    }
+
+    /**
+     * Ends a state transfer: the remaining segments are cancelled, the barrier is opened and the application is
+     * notified. In the case of a full transfer, the latter is done by {@link #setStateInApplication(Address,InputStream,Digest)}
+     * on success
+     */
+    protected void finish(IncomingTransfer transfer, Throwable ex) {
+        if(!transfer.done.compareAndSet(false, true))
+            return;
+        if(incoming == transfer)
+            incoming=null;
+        transfer.close();
+        if(ex != null) {
+            log.warn(local_addr + ": state transfer from " + transfer.providers + " failed: " + ex);
+            super.handleException(ex);
+        }
+        else if(transfer.segmented) {
+            openBarrierAndResumeStable();
+            up_prot.up(new Event(Event.STATE_TRANSFER_INPUTSTREAM_CLOSED, new StateTransferResult()));
+        }
+    }
+
+    protected void handleViewChange(View v) {
+        super.handleViewChange(v);
+        for(Address requester: transfers.keySet())
+            if(!v.containsMember(requester))
+                removeTransfer(requester);
+
+        IncomingTransfer transfer=incoming;
+        if(transfer != null) {
+            for(Address provider: transfer.providers) {
+                if(!v.containsMember(provider)) {
+                    finish(transfer, new EOFException("state provider " + provider + " left"));
+                    break;
+                }
+            }
+        }
+    }
+
+    protected List<Address> selectProviders(Address primary) {
+        List<Address> retval=new ArrayList<Address>(max_providers);
+        retval.add(primary);
+        synchronized(members) {
+            for(Address mbr: members) {
+                if(retval.size() >= max_providers)
+                    break;
+                if(!mbr.equals(local_addr) && !mbr.equals(primary))
+                    retval.add(mbr);
+            }
+        }
+        return retval;
+    }
+
+
+    /* --------------------------------------- Provider ---------------------------------------------------- */
+
+    protected void handleInfoReq(Address requester, boolean versioned) {
+        if(stats)
+            num_state_reqs.incrementAndGet();
+        try {
+            SegmentedStateListener l=getSegmentedStateListener();
+            int num_segments=l != null? l.getNumberOfSegments() : -1;
+            addTransfer(requester, true);  // closes the barrier before the digest and the versions are fetched
+            Digest digest=isDigestNeeded()? (Digest)down_prot.down(Event.GET_DIGEST_EVT) : null;
+            long[] versions=null;
+            if(versioned && l instanceof VersionedStateListener) {
+                versions=new long[num_segments];
+                for(int i=0; i < num_segments; i++)
+                    versions[i]=((VersionedStateListener)l).getVersion(i);
+            }
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": responding to state requester " + requester + " (" +
+                            (num_segments < 0? "full state" : num_segments + (versions != null? " versioned" : "") +
+                              " segments") + ")");
+            send(requester, new SegmentHeader(SegmentHeader.INFO_RSP).segment(num_segments).digest(digest).versions(versions), false);
+        }
+        catch(Throwable t) {
+            removeTransfer(requester);
+            sendException(requester, t);
+        }
+    }
+
+    protected void handleSegmentsReq(Address requester, int[] segments) {
+        try {
+            if(segments != null && getSegmentedStateListener() == null)
+                throw new IllegalStateException(local_addr + ": no SegmentedStateListener registered");
+            addTransfer(requester, false).start(segments);
+        }
+        catch(Throwable t) {
+            removeTransfer(requester);
+            sendException(requester, t);
+        }
+    }
+
+    protected void handleAck(Address requester, int segment, long next) {
+        OutgoingTransfer transfer=transfers.get(requester);
+        if(transfer != null)
+            transfer.ack(segment, next);
+    }
+
+    protected OutgoingTransfer addTransfer(Address requester, boolean new_request) {
+        state_lock.lock();
+        try {
+            OutgoingTransfer transfer=transfers.get(requester);
+            if(transfer != null) {
+                if(new_request)
+                    throw new IllegalStateException("requester " + requester + " has a pending state transfer; " +
+                                                      "concurrent state transfers from the same member are not supported");
+                return transfer;
+            }
+            if(transfers.isEmpty())
+                closeBarrierAndSuspendStable();
+            transfers.put(requester, transfer=new OutgoingTransfer(requester));
+            return transfer;
+        }
+        finally {
+            state_lock.unlock();
+        }
+    }
+
+    protected void removeTransfer(Address requester) {
+        state_lock.lock();
+        try {
+            OutgoingTransfer transfer=transfers.remove(requester);
+            if(transfer == null)
+                return;
+            transfer.close();
+            if(transfers.isEmpty())
+                openBarrierAndResumeStable();
+        }
+        finally {
+            state_lock.unlock();
+        }
+    }
+
+    /** Not used: segments are sent to the requester by {@link OutgoingTransfer} */
+    protected void createStreamToRequester(Address requester) {
+    }
+
+    /** Not used: segments are received from the providers by {@link IncomingTransfer} */
+    protected void createStreamToProvider(Address provider, StateHeader hdr) {
+    }
+
+
+    protected void send(Address dest, SegmentHeader hdr, boolean oob) {
+        Message msg=new Message(dest).putHeader(this.id, hdr);
+        if(oob)
+            msg.setFlag(Message.Flag.OOB);
+        down_prot.down(new Event(Event.MSG, msg));
+    }
+
+    protected static int checksum(byte[] buf, int offset, int length) {
+        CRC32 crc=new CRC32();
+        crc.update(buf, offset, length);
+        return (int)crc.getValue();
+    }
+
+
+
+    /** A state transfer to a requester. Run by up to num_senders threads, each sending one segment at a time */
+    protected class OutgoingTransfer implements Runnable {
+        protected final Address                                requester;
+        protected final Queue<Integer>                         segments=new ConcurrentLinkedQueue<Integer>();
+        protected final ConcurrentMap<Integer,SegmentOutputStream> streams=new ConcurrentHashMap<Integer,SegmentOutputStream>();
+        protected final AtomicInteger                          remaining=new AtomicInteger(0);
+        protected volatile boolean                             full; // the full state is sent as segment 0
+        protected volatile boolean                             closed;
+
+        public OutgoingTransfer(Address requester) {
+            this.requester=requester;
+        }
+
+        /** Starts sending the given segments; null means that the full state is sent as a single segment */
+        public void start(int[] segs) {
+            if(segs == null) {
+                full=true;
+                segs=new int[]{0};
+            }
+            if(segs.length == 0) {
+                removeTransfer(requester);
+                return;
+            }
+            remaining.set(segs.length);
+            for(int segment: segs)
+                segments.add(segment);
+
+            int num_threads=0;
+            for(int i=0; i < Math.min(num_senders, segs.length); i++) {
+                try {
+                    thread_pool.execute(this);
+                    num_threads++;
+                }
+                catch(RejectedExecutionException ex) { // the running threads will send the remaining segments
+                    break;
+                }
+            }
+            if(num_threads == 0)
+                throw new RejectedExecutionException("no threads available to send the state to " + requester);
+        }
+
+        public void run() {
+            Integer segment;
+            while(!closed && (segment=segments.poll()) != null) {
+                SegmentOutputStream out=new SegmentOutputStream(requester, segment);
+                streams.put(segment, out);
+                try {
+                    if(full)
+                        up_prot.up(new Event(Event.STATE_TRANSFER_OUTPUTSTREAM, out));
+                    else
+                        getSegmentedStateListener().getSegment(segment, out);
+                    out.close();
+                    if(stats)
+                        num_bytes_sent.addAndGet(out.num_bytes);
+                }
+                catch(Throwable t) {
+                    if(!closed) {
+                        log.warn(local_addr + ": failed getting segment " + segment + " from the application", t);
+                        sendException(requester, t);
+                        removeTransfer(requester);
+                    }
+                    return;
+                }
+                finally {
+                    streams.remove(segment);
+                }
+                if(remaining.decrementAndGet() == 0) {
+                    if(stats && num_state_reqs.get() > 0)
+                        avg_state_size=num_bytes_sent.get() / num_state_reqs.doubleValue();
+                    removeTransfer(requester);
+                }
+            }
+        }
+
+        public void ack(int segment, long next) {
+            SegmentOutputStream out=streams.get(segment);
+            if(out != null)
+                out.ack(next);
+        }
+
+        /** Stops sending; threads blocked on a full window are woken up */
+        public void close() {
+            closed=true;
+            segments.clear();
+            for(SegmentOutputStream out: streams.values())
+                out.abort();
+        }
+    }
+
+
+    /** Sends the chunks of a segment, blocking when window_size chunks are unacked */
+    protected class SegmentOutputStream extends OutputStream {
+        protected final Address   requester;
+        protected final int       segment;
+        protected final byte[]    buf=new byte[buffer_size];
+        protected int             index;      // the number of bytes in buf
+        protected long            seqno;      // the seqno of the next chunk
+        protected long            num_bytes;
+        protected boolean         closed;
+        protected final Lock      lock=new ReentrantLock();
+        protected final Condition acked_cond=lock.newCondition();
+        protected long            acked;      // all chunks below acked have been received by the requester
+        protected boolean         aborted;
+
+        public SegmentOutputStream(Address requester, int segment) {
+            this.requester=requester;
+            this.segment=segment;
+        }
+
+        public void write(int b) throws IOException {
+            checkClosed();
+            buf[index++]=(byte)b;
+            if(index == buf.length)
+                sendChunk();
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            while(len > 0) {
+                int num=Math.min(len, buf.length - index);
+                System.arraycopy(b, off, buf, index, num);
+                index+=num;
+                off+=num;
+                len-=num;
+                if(index == buf.length)
+                    sendChunk();
+            }
+        }
+
+        /** Sends the last chunk and the EOF */
+        public void close() throws IOException {
+            if(closed)
+                return;
+            if(index > 0)
+                sendChunk();
+            closed=true;
+            if(log.isTraceEnabled())
+                log.trace(local_addr + " --> EOF(" + segment + ") --> " + requester);
+            send(requester, new SegmentHeader(SegmentHeader.EOF).segment(segment).seqno(seqno), false);
+        }
+
+        protected void ack(long next) {
+            lock.lock();
+            try {
+                if(next > acked) {
+                    acked=next;
+                    acked_cond.signalAll();
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        protected void abort() {
+            lock.lock();
+            try {
+                aborted=true;
+                acked_cond.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        protected void sendChunk() throws IOException {
+            lock.lock();
+            try {
+                while(!aborted && seqno - acked >= window_size)
+                    acked_cond.await();
+                if(aborted)
+                    throw new EOFException("state transfer to " + requester + " was cancelled");
+            }
+            catch(InterruptedException e) {
+                InterruptedIOException ex=new InterruptedIOException();
+                ex.bytesTransferred=(int)num_bytes;
+                throw ex;
+            }
+            finally {
+                lock.unlock();
+            }
+
+            // we're copying buf, as it is reused for the next chunk
+            byte[] data=Arrays.copyOf(buf, index);
+            SegmentHeader hdr=new SegmentHeader(SegmentHeader.DATA).segment(segment).seqno(seqno++);
+            if(checksum)
+                hdr.checksum(checksum(data, 0, data.length));
+            down_prot.down(new Event(Event.MSG, new Message(requester, data).putHeader(id, hdr)));
+            num_bytes+=index;
+            index=0;
+        }
+
+        protected void checkClosed() throws IOException {
+            if(closed)
+                throw new IOException("the output stream is closed");
+        }
+    }
+
+
+    /** A state transfer from one or more state providers */
+    protected class IncomingTransfer {
+        protected final Address                           primary; // provides the digest and the number of segments
+        protected volatile List<Address>                  providers;
+        protected final ConcurrentMap<Integer,SegmentInput> inputs=new ConcurrentHashMap<Integer,SegmentInput>();
+        protected final Map<Address,Integer>              pending=new HashMap<Address,Integer>(); // segments without EOF
+        protected final AtomicInteger                     remaining=new AtomicInteger(0); // segments not yet read
+        protected final AtomicBoolean                     done=new AtomicBoolean(false);
+        protected volatile SegmentedStateListener         listener;
+        protected volatile boolean                        segmented;
+        protected final Map<Integer,Address>              assignments=new ConcurrentHashMap<Integer,Address>();
+
+        public IncomingTransfer(Address primary) {
+            this.primary=primary;
+            this.providers=Collections.singletonList(primary);
+            pending.put(primary, 0); // the primary is cancelled if we fail before requesting segments
+        }
+
+        /** Fetches the full state from the primary and passes it to the application as a single stream */
+        protected void startFullTransfer(final Digest digest) {
+            final SegmentInput input=new SegmentInput(this, primary, 0);
+            inputs.put(0, input);
+            remaining.set(1);
+            addPending(primary, 1);
+            send(primary, new SegmentHeader(SegmentHeader.SEGMENTS_REQ), false);
+
+            // use another thread to read state because the state requester has to receive state chunks from the state provider
+            getThreadFactory().newThread(new Runnable() {
+                public void run() {
+                    setStateInApplication(primary, input.in, digest);
+                    finish(IncomingTransfer.this, null);
+                }
+            }, "STATE_PARALLEL state reader").start();
+        }
+
+        /** Fetches the given segments, assigning them round-robin to the providers */
+        protected void startSegmentedTransfer(SegmentedStateListener l, int[] segments, Digest digest) {
+            listener=l;
+            segmented=true;
+            List<Address> tmp=providers=selectProviders(primary);
+            closeBarrierAndSuspendStable();
+            if(digest != null)
+                down_prot.down(new Event(Event.OVERWRITE_DIGEST, digest));
+            remaining.set(segments.length);
+            if(segments.length == 0) {
+                finish(this, null);
+                return;
+            }
+
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": fetching " + segments.length + " segments from " + tmp);
+            int num_providers=tmp.size();
+            for(int i=0; i < num_providers; i++) {
+                int[] segs=new int[(segments.length - i + num_providers - 1) / num_providers];
+                for(int j=0; j < segs.length; j++)
+                    assignments.put(segs[j]=segments[i + j * num_providers], tmp.get(i));
+                if(segs.length == 0)
+                    continue;
+                Address provider=tmp.get(i);
+                addPending(provider, segs.length);
+                send(provider, new SegmentHeader(SegmentHeader.SEGMENTS_REQ).segments(segs), false);
+            }
+        }
+
+        /** Returns the segment, creating it and starting a reader thread for it when the first chunk is received */
+        protected SegmentInput getSegment(Address provider, final int segment) throws IOException {
+            SegmentInput input=inputs.get(segment);
+            if(input != null || !segmented)
+                return check(input, provider, segment);
+            if(!provider.equals(assignments.get(segment)))
+                return check(null, provider, segment);
+            final SegmentInput tmp=new SegmentInput(this, provider, segment);
+            if((input=inputs.putIfAbsent(segment, tmp)) != null)
+                return check(input, provider, segment);
+
+            getThreadFactory().newThread(new Runnable() {
+                public void run() {
+                    try {
+                        listener.setSegment(segment, tmp.in);
+                    }
+                    catch(Throwable t) {
+                        finish(IncomingTransfer.this, t);
+                    }
+                    finally {
+                        Util.close(tmp.in); // chunks received from now on are discarded
+                    }
+                    if(remaining.decrementAndGet() == 0)
+                        finish(IncomingTransfer.this, null);
+                }
+            }, "STATE_PARALLEL segment reader").start();
+            return tmp;
+        }
+
+        protected synchronized void addPending(Address provider, int num) {
+            Integer count=pending.get(provider);
+            pending.put(provider, count == null? num : count + num);
+        }
+
+        protected synchronized void removePending(Address provider) {
+            Integer count=pending.get(provider);
+            if(count == null)
+                return;
+            if(count <= 1)
+                pending.remove(provider);
+            else
+                pending.put(provider, count - 1);
+        }
+
+        /** Closes all segments and cancels the segments which are still being sent by the providers */
+        protected void close() {
+            for(SegmentInput input: inputs.values())
+                Util.close(input.in);
+            List<Address> cancel;
+            synchronized(this) {
+                cancel=new ArrayList<Address>(pending.keySet());
+                pending.clear();
+            }
+            for(Address provider: cancel)
+                send(provider, new SegmentHeader(SegmentHeader.CANCEL), false);
+        }
+
+        protected SegmentInput check(SegmentInput input, Address provider, int segment) throws IOException {
+            if(input == null || !input.provider.equals(provider))
+                throw new IOException("received segment " + segment + " from " + provider + ", but it was not requested");
+            return input;
+        }
+    }
+
+
+    /**
+     * Receives the chunks of a segment from a provider and adds them to the input stream read by the application.
+     * Chunks are delivered in order, as they're sent as regular messages. Chunks are acked when they have been read by
+     * the application, so the stream never needs to hold more than window_size chunks and adding a chunk doesn't block
+     */
+    protected class SegmentInput {
+        protected final IncomingTransfer    transfer;
+        protected final Address             provider;
+        protected final int                 segment;
+        protected final BlockingInputStream in;
+        protected final Queue<Long>         chunks=new ArrayDeque<Long>(); // end offsets of the chunks not yet read
+        protected long                      next;          // the seqno of the next expected chunk
+        protected long                      received;      // the number of bytes received
+        protected long                      read;          // the number of bytes read by the application
+        protected long                      num_read;      // the number of chunks read by the application
+        protected long                      last_ack;
+
+        public SegmentInput(IncomingTransfer transfer, Address provider, int segment) {
+            this.transfer=transfer;
+            this.provider=provider;
+            this.segment=segment;
+            this.in=new BlockingInputStream(window_size * buffer_size) {
+                public int read() throws IOException {
+                    int retval=super.read();
+                    if(retval >= 0)
+                        bytesRead(1);
+                    return retval;
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int retval=super.read(b, off, len);
+                    if(retval > 0)
+                        bytesRead(retval);
+                    return retval;
+                }
+            };
+        }
+
+        protected void add(SegmentHeader hdr, byte[] buf, int offset, int length) throws IOException {
+            synchronized(this) {
+                if(hdr.seqno != next)
+                    throw new IOException("segment " + segment + " from " + provider + ": expected chunk " + next +
+                                            ", but received chunk " + hdr.seqno);
+                if(hdr.has_checksum && hdr.checksum != checksum(buf, offset, length))
+                    throw new IOException("segment " + segment + " from " + provider + ": checksum of chunk " +
+                                            hdr.seqno + " doesn't match");
+                next++;
+                received+=length;
+                chunks.add(received);
+            }
+            in.write(buf, offset, length); // discards the chunk if the application closed the stream
+            if(in.isClosed())
+                bytesRead(length);
+        }
+
+        protected void eof(long num_chunks) throws IOException {
+            synchronized(this) {
+                if(num_chunks != next)
+                    throw new IOException("segment " + segment + " from " + provider + ": received " + next +
+                                            " chunks, but " + num_chunks + " were sent");
+            }
+            transfer.removePending(provider);
+            Util.close(in);
+        }
+
+        /** Acks the chunks which have been read completely, every window_size / 2 chunks */
+        protected void bytesRead(int num) {
+            long ack;
+            synchronized(this) {
+                read+=num;
+                while(!chunks.isEmpty() && chunks.peek() <= read) {
+                    chunks.remove();
+                    num_read++;
+                }
+                if(num_read - last_ack < Math.max(1, window_size / 2))
+                    return;
+                ack=last_ack=num_read;
+            }
+            send(provider, new SegmentHeader(SegmentHeader.ACK).segment(segment).seqno(ack), true);
+        }
+    }
+
+
+
+    public static class SegmentHeader extends Header {
+        public static final byte INFO_REQ     = 1; // requester -> provider: get the digest and the number of segments
+        public static final byte INFO_RSP     = 2;
+        public static final byte SEGMENTS_REQ = 3; // requester -> provider: send the given segments (or the full state)
+        public static final byte DATA         = 4; // a chunk of a segment
+        public static final byte EOF          = 5;
+        public static final byte ACK          = 6; // requester -> provider: all chunks < seqno have been received
+        public static final byte CANCEL       = 7; // requester -> provider: stop sending segments
+
+
+        protected byte    type;
+        protected int     segment;      // the number of segments in an INFO_RSP (-1 if the state is not segmented)
+        protected long    seqno;        // the seqno of a chunk, the number of chunks (EOF) or the next chunk (ACK)
+        protected boolean has_checksum;
+        protected int     checksum;
+        protected int[]   segments;     // the requested segments, null for the full state (SEGMENTS_REQ)
+        protected Digest  digest;       // INFO_RSP
+        protected boolean versioned;    // INFO_REQ: whether the requester wants the versions of the segments
+        protected long[]  versions;     // INFO_RSP: the versions of the segments, or null
+
+
+        public SegmentHeader() {
+        } // for externalization
+
+        public SegmentHeader(byte type) {
+            this.type=type;
+        }
+
+        public byte          getType()           {return type;}
+        public int           getSegment()        {return segment;}
+        public long          getSeqno()          {return seqno;}
+        public Digest        getDigest()         {return digest;}
+        public SegmentHeader segment(int s)      {this.segment=s; return this;}
+        public SegmentHeader seqno(long s)       {this.seqno=s; return this;}
+        public SegmentHeader checksum(int c)     {this.checksum=c; has_checksum=true; return this;}
+        public SegmentHeader segments(int[] s)   {this.segments=s; return this;}
+        public SegmentHeader digest(Digest d)    {this.digest=d; return this;}
+        public SegmentHeader versioned(boolean v){this.versioned=v; return this;}
+        public SegmentHeader versions(long[] v)  {this.versions=v; return this;}
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder(type2Str(type));
+            switch(type) {
+                case INFO_REQ:
+                    if(versioned)
+                        sb.append(", versioned");
+                    break;
+                case INFO_RSP:
+                    sb.append(", segments=").append(segment);
+                    if(digest != null)
+                        sb.append(", digest=").append(digest);
+                    if(versions != null)
+                        sb.append(", versions=").append(Arrays.toString(versions));
+                    break;
+                case SEGMENTS_REQ:
+                    sb.append(", segments=").append(segments == null? "full state" : Arrays.toString(segments));
+                    break;
+                case DATA:
+                case EOF:
+                case ACK:
+                    sb.append(", segment=").append(segment).append(", seqno=").append(seqno);
+                    break;
+            }
+            return sb.toString();
+        }
+
+        public static String type2Str(byte t) {
+            switch(t) {
+                case INFO_REQ:     return "INFO_REQ";
+                case INFO_RSP:     return "INFO_RSP";
+                case SEGMENTS_REQ: return "SEGMENTS_REQ";
+                case DATA:         return "DATA";
+                case EOF:          return "EOF";
+                case ACK:          return "ACK";
+                case CANCEL:       return "CANCEL";
+                default:           return "<unknown>";
+            }
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeByte(type);
+            switch(type) {
+                case INFO_REQ:
+                    out.writeBoolean(versioned);
+                    break;
+                case INFO_RSP:
+                    out.writeInt(segment);
+                    Util.writeStreamable(digest, out);
+                    out.writeInt(versions != null? versions.length : -1);
+                    if(versions != null)
+                        for(long version: versions)
+                            out.writeLong(version);
+                    break;
+                case SEGMENTS_REQ:
+                    out.writeInt(segments != null? segments.length : -1);
+                    if(segments != null)
+                        for(int s: segments)
+                            out.writeInt(s);
+                    break;
+                case DATA:
+                    out.writeInt(segment);
+                    Util.writeLong(seqno, out);
+                    out.writeBoolean(has_checksum);
+                    if(has_checksum)
+                        out.writeInt(checksum);
+                    break;
+                case EOF:
+                case ACK:
+                    out.writeInt(segment);
+                    Util.writeLong(seqno, out);
+                    break;
+            }
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            type=in.readByte();
+            int len;
+            switch(type) {
+                case INFO_REQ:
+                    versioned=in.readBoolean();
+                    break;
+                case INFO_RSP:
+                    segment=in.readInt();
+                    digest=(Digest)Util.readStreamable(Digest.class, in);
+                    len=in.readInt();
+                    if(len >= 0) {
+                        versions=new long[len];
+                        for(int i=0; i < len; i++)
+                            versions[i]=in.readLong();
+                    }
+                    break;
+                case SEGMENTS_REQ:
+                    len=in.readInt();
+                    if(len >= 0) {
+                        segments=new int[len];
+                        for(int i=0; i < len; i++)
+                            segments[i]=in.readInt();
+                    }
+                    break;
+                case DATA:
+                    segment=in.readInt();
+                    seqno=Util.readLong(in);
+                    if((has_checksum=in.readBoolean()))
+                        checksum=in.readInt();
+                    break;
+                case EOF:
+                case ACK:
+                    segment=in.readInt();
+                    seqno=Util.readLong(in);
+                    break;
+            }
+        }
+
+        public int size() {
+            int retval=Global.BYTE_SIZE; // type
+            switch(type) {
+                case INFO_REQ:
+                    retval+=Global.BYTE_SIZE;
+                    break;
+                case INFO_RSP:
+                    retval+=Global.INT_SIZE + Global.BYTE_SIZE; // segment and presence byte for digest
+                    if(digest != null)
+                        retval+=digest.serializedSize();
+                    retval+=Global.INT_SIZE + (versions != null? versions.length * Global.LONG_SIZE : 0);
+                    break;
+                case SEGMENTS_REQ:
+                    retval+=Global.INT_SIZE + (segments != null? segments.length * Global.INT_SIZE : 0);
+                    break;
+                case DATA:
+                    retval+=Global.INT_SIZE + Util.size(seqno) + Global.BYTE_SIZE + (has_checksum? Global.INT_SIZE : 0);
+                    break;
+                case EOF:
+                case ACK:
+                    retval+=Global.INT_SIZE + Util.size(seqno);
+                    break;
+            }
+            return retval;
+        }
+    }
+}
@@ -58,6 +58,11 @@ public abstract class StreamingStateTransfer extends Protocol {
     @Property(description="Keep alive for pool threads serving state requests")
     protected long pool_thread_keep_alive=20 * 1000;
 
+    @Property(description="The executor serving state requests: \"pool\" (thread pool), \"virtual\" (new virtual " +
+      "thread per state request, max_pool limits the concurrency) or the name of a class implementing ExecutorFactory",
+              writable=false)
+    protected String pool_type="pool";
+
 
 
     /*
@@ -91,7 +96,7 @@ public abstract class StreamingStateTransfer extends Protocol {
 
     /** Thread pool (configured with {@link #max_pool} and {@link #pool_thread_keep_alive}) to run
      * {@link org.jgroups.protocols.pbcast.StreamingStateTransfer.StateGetter} threads on */
-    protected ThreadPoolExecutor thread_pool;
+    protected ExecutorService thread_pool;
 
 
     /**
@@ -105,6 +110,10 @@ public abstract class StreamingStateTransfer extends Protocol {
     protected final Lock state_lock=new ReentrantLock();
 
 
+    public boolean isBarrierClosed() {
+        return barrier_closed.get();
+    }
+
     @ManagedAttribute
     public int getNumberOfStateRequests() {
         return num_state_reqs.get();
@@ -120,8 +129,12 @@ public abstract class StreamingStateTransfer extends Protocol {
         return avg_state_size;
     }
 
-    @ManagedAttribute public int  getThreadPoolSize() {return thread_pool.getPoolSize();}
-    @ManagedAttribute public long getThreadPoolCompletedTasks() {return thread_pool.getCompletedTaskCount();}
+    @ManagedAttribute public int  getThreadPoolSize() {
+        return thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)thread_pool).getPoolSize() : 0;
+    }
+    @ManagedAttribute public long getThreadPoolCompletedTasks() {
+        return thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)thread_pool).getCompletedTaskCount() : 0;
+    }
 
     public List<Integer> requiredDownServices() {
         List<Integer> retval=new ArrayList<Integer>(2);
@@ -191,10 +204,9 @@ public abstract class StreamingStateTransfer extends Protocol {
                 }
                 else {
                     state_provider=target;
-                    Message state_req=new Message(target).putHeader(this.id, new StateHeader(StateHeader.STATE_REQ));
                     if(log.isDebugEnabled())
                         log.debug(local_addr + ": asking " + target + " for state");
-                    down_prot.down(new Event(Event.MSG, state_req));
+                    requestState(target);
                 }
                 return null; // don't pass down any further !
 
@@ -281,6 +293,12 @@ public abstract class StreamingStateTransfer extends Protocol {
             throw new IllegalArgumentException("Protocol stack must have only one state transfer protocol");
     }
 
+    /** Sends the state request to the state provider */
+    protected void requestState(Address target) {
+        Message state_req=new Message(target).putHeader(this.id, new StateHeader(StateHeader.STATE_REQ));
+        down_prot.down(new Event(Event.MSG, state_req));
+    }
+
     protected void handleStateChunk(Address sender, byte[] buffer, int offset, int length) {
     }
 
@@ -397,10 +415,7 @@ public abstract class StreamingStateTransfer extends Protocol {
 
     
 
-    protected ThreadPoolExecutor createThreadPool() {
-        ThreadPoolExecutor threadPool=new ThreadPoolExecutor(0, max_pool, pool_thread_keep_alive,
-                                                             TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
-
+    protected ExecutorService createThreadPool() throws Exception {
         ThreadFactory factory=new ThreadFactory() {
             private final AtomicInteger thread_id=new AtomicInteger(1);
 
@@ -408,9 +423,10 @@ public abstract class StreamingStateTransfer extends Protocol {
                 return getThreadFactory().newThread(command, "StreamingStateTransfer-sender-" + thread_id.getAndIncrement());
             }
         };
-        threadPool.setRejectedExecutionHandler(new ShutdownRejectedExecutionHandler(threadPool.getRejectedExecutionHandler()));
-        threadPool.setThreadFactory(factory);
-        return threadPool;
+        return Util.createExecutorFactory(pool_type).create("StreamingStateTransfer-sender", 0, max_pool, pool_thread_keep_alive,
+                                                            new SynchronousQueue<Runnable>(),
+                                                            new ShutdownRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy()),
+                                                            factory);
     }
 
     protected Address determineCoordinator() {
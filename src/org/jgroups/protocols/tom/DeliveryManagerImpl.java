@@ -5,31 +5,40 @@ import org.jgroups.Message;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * The implementation of the Delivery Manager
+ * The implementation of the Delivery Manager. Lock-free: the messages are kept in a concurrent skip list, ordered by
+ * sequence number. The entries are immutable, so setting the final sequence number of a message adds a new entry
+ * before the old one is removed: the old entry (not ready to deliver) blocks the delivery of all messages after it
+ * until the new entry is in place.
  *
  * @author Pedro Ruivo
  * @since 3.1
  */
 public class DeliveryManagerImpl implements DeliveryManager {
     private static final MessageInfoComparator COMPARATOR = new MessageInfoComparator();
-    private final SortedSet<MessageInfo> deliverySet= new TreeSet<MessageInfo>(COMPARATOR);
+    private final ConcurrentSkipListSet<MessageInfo> deliverySet = new ConcurrentSkipListSet<MessageInfo>(COMPARATOR);
     private final ConcurrentMap<MessageID, MessageInfo> messageCache = new ConcurrentHashMap<MessageID, MessageInfo>(8192, .75f, 64);
-    private final Set<Message> singleDestinationSet = new HashSet<Message>();
+    private final Queue<Message> singleDestinationSet = new ConcurrentLinkedQueue<Message>();
+
+    //the delivery thread parks until it is signalled
+    private final AtomicBoolean signalled = new AtomicBoolean(false);
+    private volatile Thread deliveryThread;
 
     /**
-     * Add a new group message to be deliver 
+     * Add a new group message to be deliver
      * @param messageID         the message ID
      * @param message           the message (needed to be deliver later)
      * @param sequenceNumber    the initial sequence number
      */
     public void addNewMessageToDeliver(MessageID messageID, Message message, long sequenceNumber) {
         MessageInfo messageInfo = new MessageInfo(messageID, message, sequenceNumber);
-        synchronized (deliverySet) {
-            deliverySet.add(messageInfo);
-        }
+        deliverySet.add(messageInfo);
         messageCache.put(messageID, messageInfo);
     }
 
@@ -39,45 +48,6 @@ public class DeliveryManagerImpl implements DeliveryManager {
      * @param finalSequenceNumber   the final sequence number
      */
     public void markReadyToDeliver(MessageID messageID, long finalSequenceNumber) {
-        markReadyToDeliverV2(messageID, finalSequenceNumber);
-    }
-
-    @SuppressWarnings({"SuspiciousMethodCalls"})    
-    private void markReadyToDeliverV1(MessageID messageID, long finalSequenceNumber) {
-        //This is an old version. It was the bottleneck. Updated to version 2. It can be removed later
-        synchronized (deliverySet) {
-            MessageInfo messageInfo = null;
-            boolean needsUpdatePosition = false;
-            Iterator<MessageInfo> iterator = deliverySet.iterator();
-
-            while (iterator.hasNext()) {
-                MessageInfo aux = iterator.next();
-                if (aux.equals(messageID)) {
-                    messageInfo = aux;
-                    if (messageInfo.sequenceNumber != finalSequenceNumber) {
-                        needsUpdatePosition = true;
-                        iterator.remove();
-                    }
-                    break;
-                }
-            }
-
-            if (messageInfo == null) {
-                throw new IllegalStateException("Message ID not found in to deliver list. this can't happen. " +
-                        "Message ID is " + messageID);
-            }
-            messageInfo.updateAndmarkReadyToDeliver(finalSequenceNumber);
-            if (needsUpdatePosition) {
-                deliverySet.add(messageInfo);
-            }
-
-            if (!deliverySet.isEmpty() && deliverySet.first().isReadyToDeliver()) {
-                deliverySet.notify();
-            }
-        }
-    }
-
-    private void markReadyToDeliverV2(MessageID messageID, long finalSequenceNumber) {
         MessageInfo messageInfo = messageCache.remove(messageID);
 
         if (messageInfo == null) {
@@ -85,114 +55,113 @@ public class DeliveryManagerImpl implements DeliveryManager {
                     "Message ID is " + messageID);
         }
 
-        boolean needsUpdatePosition = messageInfo.isUpdatePositionNeeded(finalSequenceNumber);
-
-        synchronized (deliverySet) {
-            if (needsUpdatePosition) {
-                deliverySet.remove(messageInfo);
-                messageInfo.updateAndmarkReadyToDeliver(finalSequenceNumber);
-                deliverySet.add(messageInfo);
-            } else {
-                messageInfo.updateAndmarkReadyToDeliver(finalSequenceNumber);
-            }
-            
-            if (deliverySet.first().isReadyToDeliver()) {
-                deliverySet.notify();
-            }
-        }
+        //the final sequence number is >= the proposed one, so the new entry is never before the old one
+        deliverySet.add(messageInfo.readyToDeliver(finalSequenceNumber));
+        deliverySet.remove(messageInfo);
+        signalIfReady();
     }
 
     public final void removeLeavers(Collection<Address> leavers) {
         if (leavers == null) {
             return;
         }
-        List<MessageInfo> toRemove = new LinkedList<MessageInfo>();
-        synchronized (deliverySet) {
-            for (MessageInfo messageInfo : deliverySet) {
-                if (leavers.contains(messageInfo.getMessage().getSrc()) && !messageInfo.isReadyToDeliver()) {
-                    toRemove.add(messageInfo);
-                }
-            }
-            deliverySet.removeAll(toRemove);
-            if (!deliverySet.isEmpty() && deliverySet.first().isReadyToDeliver()) {
-                deliverySet.notify();
+        for (MessageInfo messageInfo : deliverySet) {
+            if (leavers.contains(messageInfo.getMessage().getSrc()) && !messageInfo.isReadyToDeliver()) {
+                deliverySet.remove(messageInfo);
+                messageCache.remove(messageInfo.messageID, messageInfo);
             }
         }
-        for (MessageInfo removed : toRemove) {
-            messageCache.remove(removed.messageID);
-        }
+        signalIfReady();
     }
 
     //see the interface javadoc
     @Override
     public List<Message> getNextMessagesToDeliver() throws InterruptedException {
-        LinkedList<Message> toDeliver = new LinkedList<Message>();
-        synchronized (deliverySet) {
-            while (deliverySet.isEmpty() && singleDestinationSet.isEmpty()) {
-                deliverySet.wait();
-            }
-            
-            if (!singleDestinationSet.isEmpty()) {
-                toDeliver.addAll(singleDestinationSet);
-                singleDestinationSet.clear();
-                return toDeliver;
+        deliveryThread = Thread.currentThread();
+        for (;;) {
+            signalled.set(false);
+            List<Message> toDeliver = null;
+
+            Message single;
+            while ((single = singleDestinationSet.poll()) != null) {
+                if (toDeliver == null) {
+                    toDeliver = new ArrayList<Message>();
+                }
+                toDeliver.add(single);
             }
 
-            if (!deliverySet.first().isReadyToDeliver()) {
-                deliverySet.wait();
+            //only the delivery thread removes entries which are ready, so the first entry can't be removed concurrently
+            MessageInfo first;
+            while ((first = firstEntry()) != null && first.isReadyToDeliver()) {
+                if (toDeliver == null) {
+                    toDeliver = new ArrayList<Message>();
+                }
+                toDeliver.add(first.getMessage());
+                deliverySet.remove(first);
             }
 
-           if (!singleDestinationSet.isEmpty()) {
-                toDeliver.addAll(singleDestinationSet);
-                singleDestinationSet.clear();                
-           }
-
-            Iterator<MessageInfo> iterator = deliverySet.iterator();
+            if (toDeliver != null) {
+                return toDeliver;
+            }
 
-            while (iterator.hasNext()) {
-                MessageInfo messageInfo = iterator.next();
-                if (messageInfo.isReadyToDeliver()) {
-                    toDeliver.add(messageInfo.getMessage());
-                    iterator.remove();
-                } else {
-                    break;
+            while (!signalled.get()) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
                 }
             }
         }
-        return toDeliver;
     }
 
     /**
      * remove all the pending messages
      */
     public void clear() {
-        synchronized (deliverySet) {
-            deliverySet.clear();
-            messageCache.clear();
-        }
+        deliverySet.clear();
+        messageCache.clear();
     }
 
    /**
     * delivers a message that has only as destination member this node
-    * 
+    *
     * @param msg  the message
     */
     public void deliverSingleDestinationMessage(Message msg) {
-        synchronized (deliverySet) {
-            singleDestinationSet.add(msg);
-            deliverySet.notify();
+        singleDestinationSet.add(msg);
+        signal();
+    }
+
+    private MessageInfo firstEntry() {
+        try {
+            return deliverySet.first();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    private void signalIfReady() {
+        MessageInfo first = firstEntry();
+        if (first != null && first.isReadyToDeliver()) {
+            signal();
+        }
+    }
+
+    //unparks the delivery thread, unless it has already been signalled and not yet looked at the messages
+    private void signal() {
+        if (signalled.compareAndSet(false, true)) {
+            LockSupport.unpark(deliveryThread);
         }
     }
 
     /**
-     * Keeps the state of a message
+     * Keeps the state of a message. Immutable, as the position of an entry in the delivery set depends on its fields
      */
     private static class MessageInfo {
 
-        private MessageID messageID;
-        private Message message;
-        private volatile long sequenceNumber;
-        private volatile boolean readyToDeliver;
+        private final MessageID messageID;
+        private final Message message;
+        private final long sequenceNumber;
+        private final boolean readyToDeliver;
 
         public MessageInfo(MessageID messageID, Message message, long sequenceNumber) {
             if (messageID == null) {
@@ -205,49 +174,25 @@ public class DeliveryManagerImpl implements DeliveryManager {
             this.message.setSrc(messageID.getAddress());
         }
 
+        private MessageInfo(MessageInfo other, long finalSequenceNumber) {
+            this.messageID = other.messageID;
+            this.message = other.message;
+            this.sequenceNumber = finalSequenceNumber;
+            this.readyToDeliver = true;
+        }
+
         private Message getMessage() {
             return message;
         }
 
-        private void updateAndmarkReadyToDeliver(long finalSequenceNumber) {
-            this.readyToDeliver = true;
-            this.sequenceNumber = finalSequenceNumber;
+        private MessageInfo readyToDeliver(long finalSequenceNumber) {
+            return new MessageInfo(this, finalSequenceNumber);
         }
 
         private boolean isReadyToDeliver() {
             return readyToDeliver;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
-            }
-
-            if (o == null) {
-                return false;
-            }
-
-            boolean isMessageID = o.getClass() == MessageID.class;
-
-            if (o.getClass() != getClass() && !isMessageID) {
-                return false;
-            }
-
-            if (isMessageID) {
-                return messageID.equals(o);
-            }
-
-            MessageInfo that = (MessageInfo) o;
-
-            return messageID.equals(that.messageID);
-        }
-
-        @Override
-        public int hashCode() {
-            return messageID.hashCode();
-        }
-
         @Override
         public String toString() {
             return "MessageInfo{" +
@@ -256,33 +201,30 @@ public class DeliveryManagerImpl implements DeliveryManager {
                     ", readyToDeliver=" + readyToDeliver +
                     '}';
         }
-
-        public boolean isUpdatePositionNeeded(long finalSequenceNumber) {
-            return sequenceNumber != finalSequenceNumber;
-        }
     }
 
+    /**
+     * Orders by sequence number, then by message ID. The ready flag is part of the order, so that the old and the new
+     * entry of a message with an unchanged sequence number can both be in the set
+     */
     private static class MessageInfoComparator implements Comparator<MessageInfo> {
 
         @Override
         public int compare(MessageInfo messageInfo, MessageInfo messageInfo1) {
-            if (messageInfo == null) {
-                return messageInfo1 == null ? 0 : 1;
-            } else if (messageInfo1 == null) {
-                return -1;
+            if (messageInfo.sequenceNumber != messageInfo1.sequenceNumber) {
+                return messageInfo.sequenceNumber < messageInfo1.sequenceNumber ? -1 : 1;
             }
 
             int compareMessageID = messageInfo.messageID.compareTo(messageInfo1.messageID);
-
-            if (compareMessageID == 0) {
-                return 0;
+            if (compareMessageID != 0) {
+                return compareMessageID;
             }
 
-            if (messageInfo.sequenceNumber != messageInfo1.sequenceNumber) {
-                return Long.signum(messageInfo.sequenceNumber - messageInfo1.sequenceNumber);
+            //the entry which isn't ready yet comes first: it blocks delivery until it is removed
+            if (messageInfo.readyToDeliver != messageInfo1.readyToDeliver) {
+                return messageInfo.readyToDeliver ? 1 : -1;
             }
-
-            return compareMessageID;
+            return 0;
         }
     }
 
@@ -291,8 +233,6 @@ public class DeliveryManagerImpl implements DeliveryManager {
      * @return unmodifiable set of messages
      */
     public Set<MessageInfo> getMessageSet() {
-        synchronized (deliverySet) {
-            return Collections.unmodifiableSet(deliverySet);
-        }
+        return Collections.unmodifiableSet(deliverySet);
     }
 }
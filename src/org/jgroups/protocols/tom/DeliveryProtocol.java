@@ -1,6 +1,6 @@
 package org.jgroups.protocols.tom;
 
-import org.jgroups.Message;
+import org.jgroups.util.MessageBatch;
 
 /**
  * The interface that the Total Order Anycast protocol must implement. This is invoked by the delivery thread
@@ -11,8 +11,8 @@ import org.jgroups.Message;
 public interface DeliveryProtocol {
 
     /**
-     * deliver a message
-     * @param message   message to deliver
+     * deliver a batch of messages, in the order of the batch
+     * @param batch   the messages to deliver
      */
-    void deliver(Message message);
+    void deliver(MessageBatch batch);
 }
@@ -3,11 +3,13 @@ package org.jgroups.protocols.tom;
 import org.jgroups.Message;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.util.MessageBatch;
 
 import java.util.List;
 
 /**
- * The delivery thread. Is the only thread that delivers the Total Order Anycast message in order
+ * The delivery thread. Is the only thread that delivers the Total Order Anycast message in order. All messages which
+ * are ready to be delivered are delivered as one {@link MessageBatch}
  *
  * @author Pedro Ruivo
  * @since 3.1
@@ -51,12 +53,11 @@ public class DeliveryThread extends Thread {
             try {
                 List<Message> messages = deliveryManager.getNextMessagesToDeliver();
 
-                for (Message msg : messages) {
-                    try {
-                        deliveryProtocol.deliver(msg);
-                    } catch(Throwable t) {
-                        log.warn("Exception caught while delivering message " + msg + ":" + t.getMessage());
-                    }
+                //the contiguous run of deliverable messages is passed up as one batch
+                try {
+                    deliveryProtocol.deliver(new MessageBatch(messages));
+                } catch(Throwable t) {
+                    log.warn("Exception caught while delivering " + messages.size() + " messages:" + t.getMessage());
                 }
             } catch (InterruptedException e) {
                 //interrupted
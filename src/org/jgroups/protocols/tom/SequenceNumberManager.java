@@ -1,29 +1,36 @@
 package org.jgroups.protocols.tom;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * Manages the messages sequence number (keeps it up-to-date)
+ * Manages the messages sequence number (keeps it up-to-date). Lock-free: all methods are CAS loops.
  *
  * @author Pedro Ruivo
  * @since 3.1
  */
 public class SequenceNumberManager {
 
-    private long sequenceNumber = 0;
+    private final AtomicLong sequenceNumber = new AtomicLong(0);
 
     /**
      * 
      * @return the next sequence number
      */
-    public synchronized long getAndIncrement() {
-        return sequenceNumber++;
+    public long getAndIncrement() {
+        return sequenceNumber.getAndIncrement();
     }
 
     /**
      * updates the sequence number to the maximum between them
      * @param otherSequenceNumber   the sequence number received
      */
-    public synchronized void update(long otherSequenceNumber) {
-        sequenceNumber = Math.max(sequenceNumber, otherSequenceNumber + 1);
+    public void update(long otherSequenceNumber) {
+        for (;;) {
+            long current = sequenceNumber.get();
+            if (current > otherSequenceNumber || sequenceNumber.compareAndSet(current, otherSequenceNumber + 1)) {
+                return;
+            }
+        }
     }
 
     /**
@@ -32,12 +39,13 @@ public class SequenceNumberManager {
      * @return                      the next sequence number or the received sequence number, if the received sequence
      *                              number is higher the the actual sequence number
      */
-    public synchronized long updateAndGet(long otherSequenceNumber) {
-        if (sequenceNumber >= otherSequenceNumber) {
-            return sequenceNumber++;
-        } else {
-            sequenceNumber = otherSequenceNumber + 1;
-            return otherSequenceNumber;
+    public long updateAndGet(long otherSequenceNumber) {
+        for (;;) {
+            long current = sequenceNumber.get();
+            long propose = Math.max(current, otherSequenceNumber);
+            if (sequenceNumber.compareAndSet(current, propose + 1)) {
+                return propose;
+            }
         }
     }
 }
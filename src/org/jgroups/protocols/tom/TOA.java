@@ -6,11 +6,18 @@ import org.jgroups.annotations.MBean;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.ExposedByteArrayInputStream;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.ExposedDataOutputStream;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Util;
 
-import java.util.Collection;
-import java.util.List;
-import java.util.Set;
+import java.io.DataInputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -18,7 +25,9 @@ import java.util.concurrent.atomic.AtomicLong;
  * message sent to a subset of the cluster members (an anycast). Example: send a totally ordered message to {D,E}
  * out of a membership of {A,B,C,D,E,F}.<p/>
  * Skeen's algorithm uses consensus among the anycast target members to find the currently highest
- * sequence number (seqno) and delivers the message according to the order established by the seqnos.
+ * sequence number (seqno) and delivers the message according to the order established by the seqnos.<p/>
+ * The proposed and final seqnos of concurrent anycasts are batched into one message per destination, and messages
+ * which are ready to be delivered are passed up as one {@link MessageBatch}.
  *
  * @author Pedro Ruivo
  * @since 3.1
@@ -26,6 +35,9 @@ import java.util.concurrent.atomic.AtomicLong;
 @Experimental
 @MBean(description = "Implementation of Total Order Anycast based on Skeen's Algorithm")
 public class TOA extends Protocol implements DeliveryProtocol {
+    //max number of proposes or final sequence numbers sent in a single message
+    private static final int MAX_BATCH_SIZE = 1024;
+
     //managers
     private DeliveryManagerImpl deliverManager;
     private SenderManager senderManager;
@@ -40,6 +52,12 @@ public class TOA extends Protocol implements DeliveryProtocol {
     private final SequenceNumberManager sequenceNumberManager = new SequenceNumberManager();
     private final AtomicLong messageIdCounter = new AtomicLong(0);
 
+    //batchers for the proposes (key: origin of the messages) and the final sequence numbers (key: destination)
+    private final ConcurrentMap<Address, SequenceNumberBatcher> proposeBatchers =
+          new ConcurrentHashMap<Address, SequenceNumberBatcher>();
+    private final ConcurrentMap<Address, SequenceNumberBatcher> finalBatchers =
+          new ConcurrentHashMap<Address, SequenceNumberBatcher>();
+
     //stats: profiling information
     private final StatsCollector statsCollector = new StatsCollector();
     private volatile View currentView;
@@ -96,10 +114,14 @@ public class TOA extends Protocol implements DeliveryProtocol {
                         handleDataMessage(message, header);
                         break;
                     case ToaHeader.PROPOSE_MESSAGE:
-                        handleSequenceNumberPropose(message.getSrc(), header);
+                        handleSequenceNumberPropose(message.getSrc(), header.getMessageID(), header.getSequencerNumber());
                         break;
                     case ToaHeader.FINAL_MESSAGE:
-                        handleFinalSequenceNumber(header);
+                        handleFinalSequenceNumber(header.getMessageID(), header.getSequencerNumber());
+                        break;
+                    case ToaHeader.BATCH_PROPOSE_MESSAGE:
+                    case ToaHeader.BATCH_FINAL_MESSAGE:
+                        handleSequenceNumberBatch(message, header.getType());
                         break;
                     case ToaHeader.SINGLE_DESTINATION_MESSAGE:
                         if (log.isTraceEnabled()) {
@@ -125,15 +147,17 @@ public class TOA extends Protocol implements DeliveryProtocol {
     }
 
     @Override
-    public void deliver(Message message) {
-        message.setDest(localAddress);
-
-        if (log.isDebugEnabled()) {
-            log.debug("Deliver message " + message + " in total order");
+    public void deliver(MessageBatch batch) {
+        boolean debug = log.isDebugEnabled();
+        for (Message message : batch) {
+            message.setDest(localAddress);
+            if (debug) {
+                log.debug("Deliver message " + message + " in total order");
+            }
+            statsCollector.incrementMessageDeliver();
         }
-
-        up_prot.up(new Event(Event.MSG, message));
-        statsCollector.incrementMessageDeliver();
+        batch.dest(localAddress);
+        up_prot.up(batch);
     }
 
     private void handleViewChange(View view) {
@@ -146,28 +170,24 @@ public class TOA extends Protocol implements DeliveryProtocol {
         //basis behavior: drop leavers message (as senders)
         List<Address> leavers = Util.leftMembers(oldView, view);
         deliverManager.removeLeavers(leavers);
+        if (leavers != null) {
+            for (Address leaver : leavers) {
+                proposeBatchers.remove(leaver);
+                finalBatchers.remove(leaver);
+            }
+        }
 
         //basis behavior: avoid waiting for the acks
         Collection<MessageID> pendingSentMessages = senderManager.getPendingMessageIDs();
         for (MessageID messageID : pendingSentMessages) {
             long finalSequenceNumber = senderManager.removeLeavers(messageID, leavers);
             if (finalSequenceNumber != SenderManager.NOT_READY) {
-                ToaHeader finalHeader = ToaHeader.createNewHeader(ToaHeader.FINAL_MESSAGE,messageID);
-                finalHeader.setSequencerNumber(finalSequenceNumber);
-                Message finalMessage = new Message().src(localAddress).putHeader(this.id,finalHeader)
-                  .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
-
-                Set<Address> destinations = senderManager.getDestination(messageID);
-                if (destinations.contains(localAddress)) {
-                    destinations.remove(localAddress);
-                }
-
                 if (log.isTraceEnabled()) {
                     log.trace("Message " + messageID + " is ready to be deliver. Final sequencer number is " +
                             finalSequenceNumber);
                 }
 
-                send(destinations,finalMessage, false);
+                sendFinalSequenceNumber(messageID, finalSequenceNumber);
                 //returns true if we are in destination set
                 if (senderManager.markSent(messageID)) {
                     deliverManager.markReadyToDeliver(messageID, finalSequenceNumber);
@@ -286,15 +306,9 @@ public class TOA extends Protocol implements DeliveryProtocol {
                         myProposeSequenceNumber);
             }
 
-            //create a new message and send it back
-            ToaHeader newHeader = ToaHeader.createNewHeader(ToaHeader.PROPOSE_MESSAGE,messageID);
-            newHeader.setSequencerNumber(myProposeSequenceNumber);
-
-            Message proposeMessage = new Message().src(localAddress).dest(messageID.getAddress())
-              .putHeader(this.id, newHeader).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
-
-            //multicastSenderThread.addUnicastMessage(proposeMessage);
-            down_prot.down(new Event(Event.MSG, proposeMessage));
+            //send the propose back, batched with the proposes of other messages from the same origin
+            getBatcher(proposeBatchers, messageID.getAddress(), ToaHeader.BATCH_PROPOSE_MESSAGE)
+              .add(messageID.getId(), myProposeSequenceNumber);
             duration = statsCollector.now() - startTime;
         } catch (Exception e) {
             logException("Exception caught while processing the data message " + header.getMessageID(), e);
@@ -303,43 +317,30 @@ public class TOA extends Protocol implements DeliveryProtocol {
         }
     }
 
-    private void handleSequenceNumberPropose(Address from, ToaHeader header) {
+    private void handleSequenceNumberPropose(Address from, MessageID messageID, long sequenceNumber) {
         long startTime = statsCollector.now();
         long duration = -1;
         boolean lastProposeReceived = false;
 
         boolean trace = log.isTraceEnabled();
         try {
-            MessageID messageID = header.getMessageID();
             if (trace) {
-                log.trace("Received the proposed sequence number message with " + header + " from " +
+                log.trace("Received the proposed sequence number " + sequenceNumber + " for " + messageID + " from " +
                         from);
             }
 
-            sequenceNumberManager.update(header.getSequencerNumber());
-            long finalSequenceNumber = senderManager.addPropose(messageID, from,
-                    header.getSequencerNumber());
+            sequenceNumberManager.update(sequenceNumber);
+            long finalSequenceNumber = senderManager.addPropose(messageID, from, sequenceNumber);
 
             if (finalSequenceNumber != SenderManager.NOT_READY) {
                 lastProposeReceived = true;
 
-                ToaHeader finalHeader = ToaHeader.createNewHeader(ToaHeader.FINAL_MESSAGE,messageID);
-                finalHeader.setSequencerNumber(finalSequenceNumber);
-
-                Message finalMessage = new Message().src(localAddress).putHeader(this.id, finalHeader)
-                  .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
-
-                Set<Address> destinations = senderManager.getDestination(messageID);
-                if (destinations.contains(localAddress)) {
-                    destinations.remove(localAddress);
-                }
-
                 if (trace) {
                     log.trace("Message " + messageID + " is ready to be deliver. Final sequencer number is " +
                             finalSequenceNumber);
                 }
 
-                send(destinations,finalMessage, false);
+                sendFinalSequenceNumber(messageID, finalSequenceNumber);
                 //returns true if we are in destination set
                 if (senderManager.markSent(messageID)) {
                     deliverManager.markReadyToDeliver(messageID, finalSequenceNumber);
@@ -348,32 +349,83 @@ public class TOA extends Protocol implements DeliveryProtocol {
 
             duration = statsCollector.now() - startTime;
         } catch (Exception e) {
-            logException("Exception caught while processing the propose sequence number for " + header.getMessageID(), e);
+            logException("Exception caught while processing the propose sequence number for " + messageID, e);
         } finally {
             statsCollector.addProposeSequenceNumberDuration(duration, lastProposeReceived);
         }
     }
 
-    private void handleFinalSequenceNumber(ToaHeader header) {
+    private void handleFinalSequenceNumber(MessageID messageID, long sequenceNumber) {
         long startTime = statsCollector.now();
         long duration = -1;
 
         try {
-            MessageID messageID = header.getMessageID();
             if (log.isTraceEnabled()) {
-                log.trace("Received the final sequence number message with " + header);
+                log.trace("Received the final sequence number " + sequenceNumber + " for " + messageID);
             }
 
-            sequenceNumberManager.update(header.getSequencerNumber());
-            deliverManager.markReadyToDeliver(messageID, header.getSequencerNumber());
+            sequenceNumberManager.update(sequenceNumber);
+            deliverManager.markReadyToDeliver(messageID, sequenceNumber);
             duration = statsCollector.now() - startTime;
         } catch (Exception e) {
-            logException("Exception caught while processing the final sequence number for " + header.getMessageID(), e);
+            logException("Exception caught while processing the final sequence number for " + messageID, e);
         } finally {
             statsCollector.addFinalSequenceNumberDuration(duration);
         }
     }
 
+    /**
+     * Handles the proposes (the messages were sent by this member) or the final sequence numbers (the messages were
+     * sent by the sender of the batch) of several messages
+     */
+    private void handleSequenceNumberBatch(Message message, byte type) {
+        Address from = message.getSrc();
+        Address origin = type == ToaHeader.BATCH_PROPOSE_MESSAGE ? localAddress : from;
+        try {
+            DataInputStream in = new DataInputStream(new ExposedByteArrayInputStream(message.getRawBuffer(),
+                                                                                     message.getOffset(),
+                                                                                     message.getLength()));
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                MessageID messageID = new MessageID(origin, Util.readLong(in));
+                long sequenceNumber = Util.readLong(in);
+                if (type == ToaHeader.BATCH_PROPOSE_MESSAGE) {
+                    handleSequenceNumberPropose(from, messageID, sequenceNumber);
+                } else {
+                    handleFinalSequenceNumber(messageID, sequenceNumber);
+                }
+            }
+        } catch (Exception e) {
+            logException("Exception caught while processing a " + ToaHeader.type2String(type) + " from " + from, e);
+        }
+    }
+
+    /**
+     * Sends the final sequence number to all destinations of the message, except this member, batched with the final
+     * sequence numbers of other messages to the same destination
+     */
+    private void sendFinalSequenceNumber(MessageID messageID, long finalSequenceNumber) {
+        for (Address destination : senderManager.getDestination(messageID)) {
+            if (!destination.equals(localAddress)) {
+                getBatcher(finalBatchers, destination, ToaHeader.BATCH_FINAL_MESSAGE)
+                      .add(messageID.getId(), finalSequenceNumber);
+            }
+        }
+    }
+
+    private SequenceNumberBatcher getBatcher(ConcurrentMap<Address, SequenceNumberBatcher> batchers,
+                                             Address destination, byte type) {
+        SequenceNumberBatcher batcher = batchers.get(destination);
+        if (batcher == null) {
+            SequenceNumberBatcher tmp = batchers.putIfAbsent(destination,
+                                                             batcher = new SequenceNumberBatcher(destination, type));
+            if (tmp != null) {
+                batcher = tmp;
+            }
+        }
+        return batcher;
+    }
+
     private void logException(String msg, Exception e) {
         if (log.isDebugEnabled()) {
             log.debug(msg, e);
@@ -382,6 +434,64 @@ public class TOA extends Protocol implements DeliveryProtocol {
         }
     }
 
+    /**
+     * Batches the proposes (to the origin of the messages) or the final sequence numbers (to a destination) of
+     * concurrent anycasts. The thread which adds an entry to an empty batcher sends all entries in the batcher,
+     * including the ones added by other threads in the meantime; no thread ever waits for a batch to fill up.
+     */
+    private class SequenceNumberBatcher {
+        private final Address destination;
+        private final byte type;
+        private final Queue<long[]> entries = new ConcurrentLinkedQueue<long[]>(); // message id and sequence number
+        private final AtomicInteger size = new AtomicInteger(0);
+
+        private SequenceNumberBatcher(Address destination, byte type) {
+            this.destination = destination;
+            this.type = type;
+        }
+
+        private void add(long messageId, long sequenceNumber) {
+            entries.add(new long[] {messageId, sequenceNumber});
+            if (size.getAndIncrement() != 0) {
+                return; // another thread is sending the entries
+            }
+            int sent;
+            do {
+                sent = sendBatch(Math.min(size.get(), MAX_BATCH_SIZE));
+            } while (size.addAndGet(-sent) != 0);
+        }
+
+        //entries are added before size is incremented, so there are always at least size entries in the queue
+        private int sendBatch(int max) {
+            List<long[]> batch = new ArrayList<long[]>(max);
+            long[] entry;
+            while (batch.size() < max && (entry = entries.poll()) != null) {
+                batch.add(entry);
+            }
+            try {
+                ExposedByteArrayOutputStream outStream = new ExposedByteArrayOutputStream(Global.INT_SIZE + batch.size() * 10);
+                ExposedDataOutputStream out = new ExposedDataOutputStream(outStream);
+                out.writeInt(batch.size());
+                for (long[] tmp : batch) {
+                    Util.writeLong(tmp[0], out);
+                    Util.writeLong(tmp[1], out);
+                }
+                Message message = new Message(destination).src(localAddress)
+                      .putHeader(id, ToaHeader.createBatchHeader(type))
+                      .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
+                message.setBuffer(outStream.getRawBuffer(), 0, outStream.size());
+                if (log.isTraceEnabled()) {
+                    log.trace("Sending " + batch.size() + " entries in a " + ToaHeader.type2String(type) + " to " +
+                            destination);
+                }
+                down_prot.down(new Event(Event.MSG, message));
+            } catch (Exception e) {
+                logException("Exception caught while sending a " + ToaHeader.type2String(type) + " to " + destination, e);
+            }
+            return batch.size();
+        }
+    }
+
     @ManagedOperation
     public String getMessageList() {
         return deliverManager.getMessageSet().toString();
@@ -23,6 +23,9 @@ public class ToaHeader extends Header {
     public static final byte PROPOSE_MESSAGE             = 1 << 1;
     public static final byte FINAL_MESSAGE               = 1 << 2;
     public static final byte SINGLE_DESTINATION_MESSAGE  = 1 << 3;
+    //proposes and final sequence numbers of several messages, in the payload (see TOA.SequenceNumberBatcher)
+    public static final byte BATCH_PROPOSE_MESSAGE       = 1 << 4;
+    public static final byte BATCH_FINAL_MESSAGE         = 1 << 5;
 
     private byte type = 0;
     private MessageID messageID; //address and sequence number
@@ -104,6 +107,8 @@ public class ToaHeader extends Header {
             case PROPOSE_MESSAGE: return "PROPOSE_MESSAGE";
             case FINAL_MESSAGE: return "FINAL_MESSAGE";
             case SINGLE_DESTINATION_MESSAGE: return "SINGLE_DESTINATION_MESSAGE";
+            case BATCH_PROPOSE_MESSAGE: return "BATCH_PROPOSE_MESSAGE";
+            case BATCH_FINAL_MESSAGE: return "BATCH_FINAL_MESSAGE";
             default: return "UNKNOWN";
         }
     }
@@ -124,6 +129,12 @@ public class ToaHeader extends Header {
       return header;
    }
 
+   public static ToaHeader createBatchHeader(byte type) {
+      ToaHeader header = new ToaHeader();
+      header.setType(type);
+      return header;
+   }
+
     private void setType(byte type) {
         this.type = type;
     }
@@ -0,0 +1,250 @@
+package org.jgroups.stack;
+
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Header;
+import org.jgroups.Message;
+import org.jgroups.protocols.TP;
+import org.jgroups.util.Histogram;
+import org.jgroups.util.MessageBatch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the time messages and message batches spend in the up() and down() methods of the protocols of a stack,
+ * in the queues of the thread pools of the transport, and from being sent to being delivered.<p/>
+ * Installed into a running stack by {@link ProtocolStack#instrument(boolean)}, which inserts a {@link Timer} between
+ * every 2 protocols and above the top protocol. The times of a protocol are exclusive: the time spent in the protocols
+ * above (up) or below (down) it is subtracted. Only the time until a call returns is measured: e.g. the down time of
+ * the transport doesn't include sending a message which was queued by the bundler.<p/>
+ * The send-to-deliver times are measured with the wall clock of the sender and the receiver, so they're only accurate
+ * if the clocks are synchronized. Messages sent by a member with instrumentation enabled carry a {@link TimeHeader}.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class Instrumentation {
+    protected final ProtocolStack            stack;
+    protected final Map<Protocol,Histogram>  up_times=new LinkedHashMap<Protocol,Histogram>();
+    protected final Map<Protocol,Histogram>  down_times=new LinkedHashMap<Protocol,Histogram>();
+    protected final Histogram                channel_times=new Histogram();  // delivery to the application
+    protected final Histogram                queue_times=new Histogram();    // thread pools of the transport
+    protected final Histogram                delivery_times=new Histogram(); // send-to-deliver
+    protected final List<Timer>              timers=new ArrayList<Timer>();
+    protected Timer                          top;
+    protected TP                             transport;
+
+    // the time spent in the Timers nested in the current up() or down() call
+    protected static final ThreadLocal<long[]> nested=new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    protected static final long BASE_MILLIS=System.currentTimeMillis(), BASE_NANOS=System.nanoTime();
+
+
+    public Instrumentation(ProtocolStack stack) {
+        this.stack=stack;
+    }
+
+    public Histogram getUpTimes(Protocol prot)   {return up_times.get(prot);}
+    public Histogram getDownTimes(Protocol prot) {return down_times.get(prot);}
+    public Histogram getChannelTimes()           {return channel_times;}
+    public Histogram getQueueTimes()             {return queue_times;}
+    public Histogram getDeliveryTimes()          {return delivery_times;}
+
+    /** The wall clock time in nanoseconds: currentTimeMillis() has only millisecond precision */
+    public static long wallClockNanos() {
+        return BASE_MILLIS * 1000000L + System.nanoTime() - BASE_NANOS;
+    }
+
+    public void reset() {
+        for(Histogram histogram: up_times.values())
+            histogram.reset();
+        for(Histogram histogram: down_times.values())
+            histogram.reset();
+        channel_times.reset();
+        queue_times.reset();
+        delivery_times.reset();
+    }
+
+    /** Prints the times of all protocols from top to bottom, the thread pool times and the send-to-deliver times */
+    public String print() {
+        StringBuilder sb=new StringBuilder();
+        sb.append("channel:\n  up:   ").append(print(channel_times)).append("\n");
+        for(Map.Entry<Protocol,Histogram> entry: up_times.entrySet()) {
+            Protocol prot=entry.getKey();
+            sb.append(prot.getName()).append(":\n  up:   ").append(print(entry.getValue()))
+              .append("\n  down: ").append(print(down_times.get(prot))).append("\n");
+        }
+        sb.append("thread pools (queue time): ").append(print(queue_times)).append("\n");
+        sb.append("send-to-deliver: ").append(print(delivery_times)).append("\n");
+        return sb.toString();
+    }
+
+
+    /** Inserts the timers into the stack. Must be called with the lock of the stack held */
+    protected void install() {
+        List<Protocol> prots=stack.getProtocols();
+        if(prots.isEmpty())
+            return;
+        for(Protocol prot: prots) {
+            up_times.put(prot, new Histogram());
+            down_times.put(prot, new Histogram());
+        }
+
+        Protocol top_prot=prots.get(0);
+        top=new Timer(channel_times, down_times.get(top_prot), delivery_times);
+        top.setUpProtocol(top_prot.getUpProtocol());
+        top.setDownProtocol(top_prot);
+        top_prot.setUpProtocol(top);
+        timers.add(top);
+
+        for(int i=0; i < prots.size() -1; i++) {
+            Protocol upper=prots.get(i), lower=prots.get(i+1);
+            if(lower instanceof TP && ((TP)lower).isSingleton())
+                continue; // a shared transport passes messages up to the ProtocolAdapter of the channel
+            Timer timer=new Timer(up_times.get(upper), down_times.get(lower), null);
+            timer.setUpProtocol(upper);
+            timer.setDownProtocol(lower);
+            upper.setDownProtocol(timer);
+            lower.setUpProtocol(timer);
+            timers.add(timer);
+        }
+
+        Protocol bottom=prots.get(prots.size() -1);
+        if(bottom instanceof TP) {
+            transport=(TP)bottom;
+            transport.setQueueTimes(queue_times);
+        }
+    }
+
+    /** Removes the timers from the stack. Must be called with the lock of the stack held */
+    protected void uninstall() {
+        for(Timer timer: timers) {
+            Protocol above=timer.getUpProtocol(), below=timer.getDownProtocol();
+            if(below != null)
+                below.setUpProtocol(above);
+            if(above != null && above != stack)
+                above.setDownProtocol(below);
+        }
+        timers.clear();
+        if(transport != null && transport.getQueueTimes() == queue_times)
+            transport.setQueueTimes(null);
+    }
+
+    protected static String print(Histogram histogram) {
+        return histogram != null? histogram.print(1000, " us") : "n/a";
+    }
+
+
+    /**
+     * Measures the up() times of the protocol above it and the down() times of the protocol below it. The Timer above
+     * the top protocol also adds a {@link TimeHeader} to sent messages, and measures the send-to-deliver times of
+     * received messages with a header.
+     */
+    public static class Timer extends Protocol {
+        protected final Histogram up_histogram, down_histogram, delivery_histogram;
+
+        public Timer(Histogram up_histogram, Histogram down_histogram, Histogram delivery_histogram) {
+            this.up_histogram=up_histogram;
+            this.down_histogram=down_histogram;
+            this.delivery_histogram=delivery_histogram;
+        }
+
+        public Object up(Event evt) {
+            if(evt.getType() != Event.MSG)
+                return up_prot.up(evt);
+            if(delivery_histogram != null)
+                recordDeliveryTime((Message)evt.getArg());
+            long[] inner=nested.get();
+            long saved=inner[0], start=System.nanoTime();
+            inner[0]=0;
+            try {
+                return up_prot.up(evt);
+            }
+            finally {
+                long time=System.nanoTime() - start;
+                up_histogram.record(time - inner[0]);
+                inner[0]=saved + time;
+            }
+        }
+
+        public void up(MessageBatch batch) {
+            if(delivery_histogram != null)
+                for(Message msg: batch)
+                    recordDeliveryTime(msg);
+            long[] inner=nested.get();
+            long saved=inner[0], start=System.nanoTime();
+            inner[0]=0;
+            try {
+                up_prot.up(batch);
+            }
+            finally {
+                long time=System.nanoTime() - start;
+                up_histogram.record(time - inner[0]);
+                inner[0]=saved + time;
+            }
+        }
+
+        public Object down(Event evt) {
+            if(evt.getType() != Event.MSG)
+                return down_prot.down(evt);
+            if(delivery_histogram != null)
+                ((Message)evt.getArg()).putHeader(id, new TimeHeader(wallClockNanos()));
+            long[] inner=nested.get();
+            long saved=inner[0], start=System.nanoTime();
+            inner[0]=0;
+            try {
+                return down_prot.down(evt);
+            }
+            finally {
+                long time=System.nanoTime() - start;
+                down_histogram.record(time - inner[0]);
+                inner[0]=saved + time;
+            }
+        }
+
+        protected void recordDeliveryTime(Message msg) {
+            TimeHeader hdr=(TimeHeader)msg.getHeader(id);
+            if(hdr != null)
+                delivery_histogram.record(wallClockNanos() - hdr.time);
+        }
+    }
+
+
+    /** Carries the wall clock time (in ns) at which a message was sent */
+    public static class TimeHeader extends Header {
+        protected long time;
+
+        public TimeHeader() {
+        }
+
+        public TimeHeader(long time) {
+            this.time=time;
+        }
+
+        public long getTime() {return time;}
+
+        public int size() {
+            return Global.LONG_SIZE;
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeLong(time);
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            time=in.readLong();
+        }
+
+        public String toString() {
+            return "time=" + time;
+        }
+    }
+}
@@ -45,6 +45,7 @@ public class ProtocolStack extends Protocol {
     // protected List<ProtocolConfiguration> configs;
     private JChannel                      channel;
     private volatile boolean              stopped=true;
+    private volatile Instrumentation      instrumentation; // null unless instrument(true) was called
 
 
     private final DiagnosticsHandler.ProbeHandler props_handler=new DiagnosticsHandler.ProbeHandler() {
@@ -67,6 +68,20 @@ public class ProtocolStack extends Protocol {
                     map.put("protocols", sb.toString());
                     return map;
                 }
+                if(key.startsWith("instrument")) {
+                    int index=key.indexOf('=');
+                    String cmd=index >= 0? key.substring(index+1).trim() : null;
+                    if("on".equalsIgnoreCase(cmd) || "true".equalsIgnoreCase(cmd))
+                        instrument(true);
+                    else if("off".equalsIgnoreCase(cmd) || "false".equalsIgnoreCase(cmd))
+                        instrument(false);
+                    Instrumentation tmp=instrumentation;
+                    if(tmp != null && "reset".equalsIgnoreCase(cmd))
+                        tmp.reset();
+                    HashMap<String, String> map=new HashMap<String, String>(1);
+                    map.put("instrument", tmp != null? "\n" + tmp.print() : "disabled");
+                    return map;
+                }
                 if(key.startsWith("remove-protocol")) {
                     key=key.substring("remove-protocol".length());
                     int index=key.indexOf("=");
@@ -137,7 +152,7 @@ public class ProtocolStack extends Protocol {
         }
 
         public String[] supportedKeys() {
-            return new String[]{"props", "print-protocols", "\nremove-protocol=<name>",
+            return new String[]{"props", "print-protocols", "\ninstrument[=on | off | reset]", "\nremove-protocol=<name>",
               "\ninsert-protocol=<name>=above | below=<name>"};
         }
     };
@@ -167,13 +182,34 @@ public class ProtocolStack extends Protocol {
         List<Protocol> v=new ArrayList<Protocol>(15);
         Protocol p=top_prot;
         while(p != null) {
-            v.add(p);
+            if(!(p instanceof Instrumentation.Timer))
+                v.add(p);
             p=p.getDownProtocol();
         }
         return v;
     }
 
 
+    /**
+     * Enables or disables the instrumentation of this stack: if enabled, the time messages spend in every protocol,
+     * in the thread pools and from send to delivery is recorded. See {@link Instrumentation} for details.
+     */
+    public synchronized void instrument(boolean flag) {
+        if(flag && instrumentation == null) {
+            Instrumentation tmp=new Instrumentation(this);
+            tmp.install();
+            instrumentation=tmp;
+        }
+        else if(!flag && instrumentation != null) {
+            instrumentation.uninstall();
+            instrumentation=null;
+        }
+    }
+
+    /** Returns the instrumentation of this stack, or null if not enabled */
+    public Instrumentation getInstrumentation() {return instrumentation;}
+
+
     public List<Protocol> copyProtocols(ProtocolStack targetStack) throws IllegalAccessException, InstantiationException {
         List<Protocol> list=getProtocols();
         List<Protocol> retval=new ArrayList<Protocol>(list.size());
@@ -1013,6 +1049,9 @@ public class ProtocolStack extends Protocol {
     }
 
     public Object down(Event evt) {
+        Instrumentation tmp=instrumentation;
+        if(tmp != null && tmp.top != null)
+            return tmp.top.down(evt);
         if(top_prot != null)
             return top_prot.down(evt);
         return null;
@@ -0,0 +1,63 @@
+package org.jgroups.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of byte[] buffers of the same size, used by the transport to receive packets. Buffers are handed out
+ * as {@link PooledBuffer} instances and come back to the pool when their reference count drops to 0. When the pool
+ * is empty, a new buffer is allocated; when it is full, released buffers are simply dropped (and garbage collected).
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class BufferPool {
+    protected final BlockingQueue<byte[]> pool;
+    protected final int                   buffer_size;
+    protected final AtomicInteger         num_hits=new AtomicInteger(0);   // buffer taken from the pool
+    protected final AtomicInteger         num_misses=new AtomicInteger(0); // buffer had to be allocated
+
+
+    /**
+     * Creates a new pool
+     * @param capacity The max number of buffers kept in the pool
+     * @param buffer_size The size of each buffer
+     */
+    public BufferPool(int capacity, int buffer_size) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity (" + capacity + ") has to be > 0");
+        if(buffer_size <= 0)
+            throw new IllegalArgumentException("buffer_size (" + buffer_size + ") has to be > 0");
+        this.pool=new ArrayBlockingQueue<byte[]>(capacity);
+        this.buffer_size=buffer_size;
+    }
+
+    public int capacity()      {return size() + pool.remainingCapacity();}
+    public int size()          {return pool.size();}
+    public int getBufferSize() {return buffer_size;}
+    public int getNumHits()    {return num_hits.get();}
+    public int getNumMisses()  {return num_misses.get();}
+    public void resetStats()   {num_hits.set(0); num_misses.set(0);}
+
+    /** Returns a buffer from the pool, or a newly allocated one if the pool is empty. The reference count is 1 */
+    public PooledBuffer get() {
+        byte[] buf=pool.poll();
+        if(buf != null)
+            num_hits.incrementAndGet();
+        else {
+            num_misses.incrementAndGet();
+            buf=new byte[buffer_size];
+        }
+        return new PooledBuffer(this, buf);
+    }
+
+    /** Returns a buffer to the pool. Called by {@link PooledBuffer#release()} */
+    protected void put(byte[] buf) {
+        if(buf != null && buf.length == buffer_size)
+            pool.offer(buf);
+    }
+
+    public String toString() {
+        return size() + "/" + capacity() + " buffers of " + buffer_size + " bytes (hits=" + num_hits + ", misses=" + num_misses + ")";
+    }
+}
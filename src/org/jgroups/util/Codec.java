@@ -0,0 +1,28 @@
+package org.jgroups.util;
+
+/**
+ * Compresses and uncompresses byte arrays. Implementations are not thread-safe; they're pooled by {@link CodecPool}
+ * @author Bela Ban
+ * @since  3.3
+ */
+public interface Codec {
+
+    /** The ID of the codec, which is sent with compressed data so that the receiver can pick the same codec */
+    byte getId();
+
+    /**
+     * Compresses in_length bytes of in into out
+     * @return The number of bytes written to out, or -1 if the compressed data didn't fit into out_length bytes
+     */
+    int compress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int out_length);
+
+    /**
+     * Uncompresses in_length bytes of in into out
+     * @param original_length The length of the uncompressed data, which has to be known (e.g. from a header)
+     * @throws Exception Thrown if the data is corrupt, or doesn't uncompress to exactly original_length bytes
+     */
+    void uncompress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int original_length) throws Exception;
+
+    /** Releases resources (e.g. native memory of a Deflater) */
+    void destroy();
+}
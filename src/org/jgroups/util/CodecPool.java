@@ -0,0 +1,84 @@
+package org.jgroups.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Pool of {@link Codec}s of the same type. Never blocks: if no idle codec is available, a new one is created, and
+ * codecs released to a full pool are destroyed. The number of idle codecs is therefore bounded by max_idle (by
+ * default the number of cores), but the number of codecs in use is not.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class CodecPool {
+    public static final byte DEFLATE=1;
+    public static final byte LZ4=2;
+
+    /** Shared pools used to uncompress data; the compression level doesn't matter for uncompression */
+    protected static final CodecPool[] shared_pools={null, new CodecPool(DEFLATE, Deflater.DEFAULT_COMPRESSION, 0),
+      new CodecPool(LZ4, 0, 0)};
+
+    protected final byte                 type;
+    protected final int                  level;
+    protected final BlockingQueue<Codec> idle;
+
+
+    /**
+     * Creates a pool
+     * @param type The type of codec, e.g. {@link #LZ4}
+     * @param level The compression level; only used by {@link #DEFLATE}
+     * @param max_idle The max number of idle codecs. If 0, the number of cores is used
+     */
+    public CodecPool(byte type, int level, int max_idle) {
+        if(type != DEFLATE && type != LZ4)
+            throw new IllegalArgumentException("codec type " + type + " not known");
+        this.type=type;
+        this.level=level;
+        this.idle=new ArrayBlockingQueue<Codec>(max_idle > 0? max_idle : Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Returns the codec type for a name ("deflate" or "lz4") */
+    public static byte parse(String name) {
+        if("deflate".equalsIgnoreCase(name))
+            return DEFLATE;
+        if("lz4".equalsIgnoreCase(name))
+            return LZ4;
+        throw new IllegalArgumentException("codec \"" + name + "\" not known; has to be \"deflate\" or \"lz4\"");
+    }
+
+    /** Returns the shared pool for a codec type, used to uncompress data compressed by the codec */
+    public static CodecPool get(byte type) {
+        if(type <= 0 || type >= shared_pools.length)
+            throw new IllegalArgumentException("codec type " + type + " not known");
+        return shared_pools[type];
+    }
+
+    public byte getType()     {return type;}
+    public int  getNumIdle()  {return idle.size();}
+
+    public Codec acquire() {
+        Codec codec=idle.poll();
+        return codec != null? codec : create();
+    }
+
+    public void release(Codec codec) {
+        if(codec != null && !idle.offer(codec))
+            codec.destroy();
+    }
+
+    public void destroy() {
+        Codec codec;
+        while((codec=idle.poll()) != null)
+            codec.destroy();
+    }
+
+    public String toString() {
+        return (type == DEFLATE? "deflate (level=" + level + ")" : "lz4") + ", " + idle.size() + " idle codecs";
+    }
+
+
+    protected Codec create() {
+        return type == DEFLATE? new DeflateCodec(level) : new LZ4Codec();
+    }
+}
@@ -0,0 +1,347 @@
+package org.jgroups.util;
+
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A future which is completed explicitly by {@link #complete(Object)}, {@link #completeExceptionally(Throwable)} or
+ * {@link #cancel(boolean)}, and which can be composed with other futures. Contrary to the other implementations of
+ * {@link NotifyingFuture}, any number of listeners can be attached.<p/>
+ * Listeners and the functions passed to {@link #thenApply(Function)} and {@link #thenCompose(Function)} are invoked by
+ * the thread which completes the future (e.g. the thread delivering the last response of a request), or by the caller
+ * if the future is already done. They must therefore not block.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class ComposableFuture<T> implements NotifyingFuture<T> {
+    protected static final Log          log=LogFactory.getLog(ComposableFuture.class);
+
+    protected final Lock                lock=new ReentrantLock();
+    protected final Condition           cond=lock.newCondition();
+    protected volatile boolean          done;
+    protected boolean                   cancelled;
+    protected T                         value;
+    protected Throwable                 exception;
+    protected List<FutureListener<T>>   listeners; // created on demand, set to null on completion
+
+
+    /** Maps a value to another value, e.g. the RspList of a request to a single result */
+    public interface Function<T,R> {
+        R apply(T arg) throws Exception;
+    }
+
+
+    /**
+     * Completes the future with a value
+     * @return True if the future was completed by this call, false if it was already done
+     */
+    public boolean complete(T value) {
+        return complete(value, null, false);
+    }
+
+    /**
+     * Completes the future with an exception; {@link #get()} will throw an ExecutionException wrapping it
+     * @return True if the future was completed by this call, false if it was already done
+     */
+    public boolean completeExceptionally(Throwable exception) {
+        if(exception == null)
+            throw new IllegalArgumentException("exception must not be null");
+        return complete(null, exception, false);
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, null, true);
+    }
+
+    public boolean isCancelled() {
+        lock.lock();
+        try {
+            return cancelled;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public boolean isCompletedExceptionally() {
+        lock.lock();
+        try {
+            return exception != null || cancelled;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        lock.lock();
+        try {
+            while(!done)
+                cond.await();
+            return result();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long wait_time=unit.toNanos(timeout), target_time=System.nanoTime() + wait_time;
+        lock.lock();
+        try {
+            while(!done) {
+                if(wait_time <= 0)
+                    throw new TimeoutException();
+                cond.await(wait_time, TimeUnit.NANOSECONDS);
+                wait_time=target_time - System.nanoTime();
+            }
+            return result();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the value if the future completed normally, or default_value if it is not yet done */
+    public T getNow(T default_value) throws ExecutionException {
+        lock.lock();
+        try {
+            return done? result() : default_value;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds a listener; it is invoked immediately if the future is already done */
+    public NotifyingFuture<T> setListener(FutureListener<T> listener) {
+        if(listener == null)
+            return this;
+        lock.lock();
+        try {
+            if(!done) {
+                if(listeners == null)
+                    listeners=new ArrayList<FutureListener<T>>(2);
+                listeners.add(listener);
+                return this;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        notify(listener);
+        return this;
+    }
+
+    /**
+     * Returns a future which is completed with the result of applying function to the value of this future. If this
+     * future fails, or function throws an exception, the returned future fails with the same exception
+     */
+    public <R> ComposableFuture<R> thenApply(final Function<? super T,? extends R> function) {
+        final ComposableFuture<R> retval=new ComposableFuture<R>();
+        setListener(new FutureListener<T>() {
+            public void futureDone(Future<T> future) {
+                if(future.isCancelled()) {
+                    retval.cancel(false);
+                    return;
+                }
+                try {
+                    retval.complete(function.apply(getValue()));
+                }
+                catch(Throwable t) {
+                    retval.completeExceptionally(unwrap(t));
+                }
+            }
+        });
+        return retval;
+    }
+
+    /**
+     * Returns a future which is completed with the result of the future returned by function, which is invoked with
+     * the value of this future, e.g. to send a second request when the first one completes
+     */
+    public <R> ComposableFuture<R> thenCompose(final Function<? super T,? extends NotifyingFuture<R>> function) {
+        final ComposableFuture<R> retval=new ComposableFuture<R>();
+        setListener(new FutureListener<T>() {
+            public void futureDone(Future<T> future) {
+                if(future.isCancelled()) {
+                    retval.cancel(false);
+                    return;
+                }
+                try {
+                    NotifyingFuture<R> next=function.apply(getValue());
+                    next.setListener(new FutureListener<R>() {
+                        public void futureDone(Future<R> f) {
+                            retval.completeFrom(f);
+                        }
+                    });
+                }
+                catch(Throwable t) {
+                    retval.completeExceptionally(unwrap(t));
+                }
+            }
+        });
+        return retval;
+    }
+
+    /**
+     * Returns a future which is completed with the values of the first num futures which complete normally, in the
+     * order in which they completed. The returned future fails with the exception of the last failed future if more
+     * than futures.size() - num futures fail, and the remaining futures are not cancelled when it completes.<p/>
+     * Example: waiting for a quorum of 3 out of 5 unicast RPCs.
+     * @param num The number of values to wait for. Needs to be <= futures.size()
+     */
+    public static <T> ComposableFuture<List<T>> firstN(final int num, Collection<? extends NotifyingFuture<T>> futures) {
+        if(num > futures.size())
+            throw new IllegalArgumentException("cannot wait for " + num + " out of " + futures.size() + " futures");
+        final ComposableFuture<List<T>> retval=new ComposableFuture<List<T>>();
+        if(num <= 0) {
+            retval.complete(new ArrayList<T>(0));
+            return retval;
+        }
+        final List<T> values=new ArrayList<T>(num);
+        final int max_failures=futures.size() - num;
+        final int[] failures={0};
+        FutureListener<T> listener=new FutureListener<T>() {
+            public void futureDone(Future<T> future) {
+                T val=null;
+                Throwable ex=null;
+                try {
+                    val=future.get();
+                }
+                catch(Throwable t) {
+                    ex=unwrap(t);
+                }
+                List<T> result=null;
+                boolean failed=false;
+                synchronized(values) {
+                    if(retval.isDone())
+                        return;
+                    if(ex == null) {
+                        values.add(val);
+                        if(values.size() >= num)
+                            result=new ArrayList<T>(values);
+                    }
+                    else
+                        failed=++failures[0] > max_failures;
+                }
+                if(result != null)
+                    retval.complete(result);
+                else if(failed)
+                    retval.completeExceptionally(ex);
+            }
+        };
+        for(NotifyingFuture<T> future: futures)
+            future.setListener(listener);
+        return retval;
+    }
+
+    /** Returns a future which is completed with the values of all futures, or fails if one of them fails */
+    public static <T> ComposableFuture<List<T>> allOf(Collection<? extends NotifyingFuture<T>> futures) {
+        return firstN(futures.size(), futures);
+    }
+
+    /** Returns a future which is completed with the values of a majority of futures */
+    public static <T> ComposableFuture<List<T>> quorum(Collection<? extends NotifyingFuture<T>> futures) {
+        return firstN(futures.size() / 2 + 1, futures);
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            if(!done)
+                return "pending";
+            return cancelled? "cancelled" : exception != null? "failed: " + exception : "done: " + value;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /** Completes this future with the result of future, which must be done */
+    protected void completeFrom(Future<? extends T> future) {
+        try {
+            complete(future.get());
+        }
+        catch(CancellationException ex) {
+            cancel(false);
+        }
+        catch(Throwable t) {
+            completeExceptionally(unwrap(t));
+        }
+    }
+
+    protected boolean complete(T val, Throwable ex, boolean cancel) {
+        List<FutureListener<T>> tmp;
+        lock.lock();
+        try {
+            if(done)
+                return false;
+            value=val;
+            exception=ex;
+            cancelled=cancel;
+            done=true;
+            cond.signalAll();
+            tmp=listeners;
+            listeners=null;
+        }
+        finally {
+            lock.unlock();
+        }
+        if(tmp != null)
+            for(FutureListener<T> listener: tmp)
+                notify(listener);
+        return true;
+    }
+
+    /** Returns the value or throws the exception of a future which is done */
+    protected T getValue() throws ExecutionException {
+        lock.lock();
+        try {
+            return result();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    protected T result() throws ExecutionException {
+        if(cancelled)
+            throw new CancellationException();
+        if(exception != null)
+            throw new ExecutionException(exception);
+        return value;
+    }
+
+    protected void notify(FutureListener<T> listener) {
+        try {
+            listener.futureDone(this);
+        }
+        catch(Throwable t) {
+            log.error("failed notifying " + listener, t);
+        }
+    }
+
+    protected static Throwable unwrap(Throwable t) {
+        return t instanceof ExecutionException && t.getCause() != null? t.getCause() : t;
+    }
+}
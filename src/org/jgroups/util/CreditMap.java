@@ -11,6 +11,8 @@ import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Maintains credits for senders, when credits fall below 0, a sender blocks until new credits have been received.
+ * The max number of credits of a member is max_credits, unless a smaller window has been set for it with
+ * {@link #setMaxCredits(org.jgroups.Address, long)}.
  * @author Bela Ban
  */
 public class CreditMap {
@@ -18,6 +20,8 @@ public class CreditMap {
 
     @GuardedBy("lock")
     protected final Map<Address,Long> credits=new HashMap<Address,Long>();
+    @GuardedBy("lock")
+    protected final Map<Address,Long> windows=new HashMap<Address,Long>(); // members with max credits < max_credits
     protected long                    min_credits;
     protected long                    accumulated_credits=0;
     protected final Lock              lock=new ReentrantLock();
@@ -71,6 +75,7 @@ public class CreditMap {
         lock.lock();
         try {
             Long retval=credits.remove(key);
+            windows.remove(key);
             flushAccumulatedCredits();
             long new_min=computeLowestCredit();
             if(new_min > min_credits) {
@@ -97,6 +102,52 @@ public class CreditMap {
     }
 
 
+    /** Returns the max number of credits of member */
+    public long getMaxCredits(Address member) {
+        lock.lock();
+        try {
+            return maxCredits(member);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the max number of credits (the window) of member. If the window grows, the member's credits are incremented
+     * by the difference, if it shrinks they're decremented (but never below 0).
+     * @param member The member
+     * @param max_credits The new window, capped at the max credits of this map
+     */
+    public void setMaxCredits(Address member, long max_credits) {
+        if(member == null)
+            return;
+        long new_max=Math.min(this.max_credits, Math.max(0, max_credits));
+        lock.lock();
+        try {
+            Long val=credits.get(member);
+            long old_max=maxCredits(member);
+            if(val == null || new_max == old_max)
+                return;
+            flushAccumulatedCredits();
+            val=credits.get(member);
+            credits.put(member, Math.max(0, val.longValue() + new_max - old_max));
+            if(new_max == this.max_credits)
+                windows.remove(member);
+            else
+                windows.put(member, new_max);
+            long new_min=computeLowestCredit();
+            boolean signal=new_min > min_credits;
+            min_credits=new_min;
+            if(signal)
+                credits_available.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
     public List<Address> getMembersWithInsufficientCredits(long credit_needed) {
         List<Address> retval=new LinkedList<Address>();
 
@@ -202,7 +253,7 @@ public class CreditMap {
         try {
             flushAccumulatedCredits();
             for(Map.Entry<Address,Long> entry: credits.entrySet())
-                entry.setValue(max_credits);
+                entry.setValue(maxCredits(entry.getKey()));
             min_credits=computeLowestCredit();
             credits_available.signalAll();
         }
@@ -218,6 +269,7 @@ public class CreditMap {
             num_blockings=0;
             total_block_time=0;
             credits.clear();
+            windows.clear();
             credits_available.signalAll();
         }
         finally {
@@ -233,6 +285,8 @@ public class CreditMap {
                 sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
             }
             sb.append("min_credits=" + min_credits + ", accumulated=" + accumulated_credits);
+            if(!windows.isEmpty())
+                sb.append("\nwindows: " + windows);
         }
         finally {
             lock.unlock();
@@ -250,6 +304,12 @@ public class CreditMap {
         return false;
     }
 
+    /** Needs to be called with lock held */
+    protected long maxCredits(Address member) {
+        Long max=windows.isEmpty()? null : windows.get(member);
+        return max != null? max : max_credits;
+    }
+
     /** Needs to be called with lock held */
     protected long computeLowestCredit() {
         long lowest=max_credits;
@@ -280,7 +340,7 @@ public class CreditMap {
                 if(replenish) {
                     Address tmp=entry.getKey();
                     if(tmp.equals(member))
-                        entry.setValue(Math.min(max_credits, entry.getValue().longValue() + new_credits));
+                        entry.setValue(Math.min(maxCredits(member), entry.getValue().longValue() + new_credits));
                 }
             }
             accumulated_credits=0;
@@ -289,7 +349,7 @@ public class CreditMap {
             if(replenish) {
                 Long val=this.credits.get(member);
                 if(val != null)
-                    this.credits.put(member, Math.min(max_credits, val.longValue() + new_credits));
+                    this.credits.put(member, Math.min(maxCredits(member), val.longValue() + new_credits));
             }
         }
     }
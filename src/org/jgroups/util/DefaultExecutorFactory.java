@@ -0,0 +1,26 @@
+package org.jgroups.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates {@link ThreadPoolExecutor}s; this is the default (type "pool")
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class DefaultExecutorFactory implements ExecutorFactory {
+
+    public ExecutorService create(String name, int min_threads, int max_threads, long keep_alive_time,
+                                  BlockingQueue<Runnable> queue, RejectedExecutionHandler handler, ThreadFactory factory) {
+        ThreadPoolExecutor pool=new ThreadPoolExecutor(min_threads, max_threads, keep_alive_time, TimeUnit.MILLISECONDS, queue);
+        if(factory != null)
+            pool.setThreadFactory(factory);
+        if(handler != null)
+            pool.setRejectedExecutionHandler(handler);
+        return pool;
+    }
+
+    public String toString() {
+        return "pool";
+    }
+}
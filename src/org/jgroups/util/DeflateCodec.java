@@ -0,0 +1,46 @@
+package org.jgroups.util;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec using {@link Deflater} and {@link Inflater}. Compresses well, but is CPU intensive at higher levels
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class DeflateCodec implements Codec {
+    protected final Deflater deflater;
+    protected final Inflater inflater=new Inflater();
+
+    public DeflateCodec(int level) {
+        deflater=new Deflater(level);
+    }
+
+    public byte getId() {return CodecPool.DEFLATE;}
+
+    public int compress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int out_length) {
+        deflater.reset();
+        deflater.setInput(in, in_offset, in_length);
+        deflater.finish();
+        int num=deflater.deflate(out, out_offset, out_length);
+        return deflater.finished()? num : -1;
+    }
+
+    public void uncompress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int original_length) throws Exception {
+        inflater.reset();
+        inflater.setInput(in, in_offset, in_length);
+        int num=inflater.inflate(out, out_offset, original_length);
+        if(num != original_length || !inflater.finished())
+            throw new DataFormatException("uncompressed " + num + " bytes, but expected " + original_length);
+    }
+
+    public void destroy() {
+        deflater.end();
+        inflater.end();
+    }
+
+    public String toString() {
+        return "deflate";
+    }
+}
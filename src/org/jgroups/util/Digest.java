@@ -32,7 +32,13 @@ public class Digest implements Streamable, Iterable<Digest.DigestEntry> {
     protected long[]    seqnos;
     
 
-    protected Digest(Address[] members, long[] seqnos) {
+    /**
+     * Creates a digest from members (e.g. the members of a view) and their seqnos: the highest delivered and received
+     * seqnos of the member at index I are at seqnos[I*2] and seqnos[I*2+1]. The arrays are not copied.
+     */
+    public Digest(Address[] members, long[] seqnos) {
+        if(members == null || seqnos == null || seqnos.length < members.length * 2)
+            throw new IllegalArgumentException("seqnos needs to have twice the length of members");
         this.members=members;
         this.seqnos=seqnos;
     }
@@ -81,9 +87,10 @@ public class Digest implements Streamable, Iterable<Digest.DigestEntry> {
     public boolean containsAll(Digest other) {
         if(other == null)
             return false;
+        Set<Address> mbrs=getMembers();
         for(int i=0; i < other.size(); i++) {
             Address member=other.members[i];
-            if(!contains(member))
+            if(!mbrs.contains(member))
                 return false;
         }
         return true;
@@ -138,7 +145,13 @@ public class Digest implements Streamable, Iterable<Digest.DigestEntry> {
      * @return True if senders are the same, otherwise false.
      */
     public boolean sameSenders(Digest other) {
-        return other != null && size() == other.size() && containsAll(other);
+        if(other == null || size() != other.size())
+            return false;
+        for(int i=0; i < size(); i++) { // digests of the same view list the members in the same order
+            if(members[i] == null || !members[i].equals(other.members[i]))
+                return containsAll(other);
+        }
+        return true;
     }
     
 
@@ -395,6 +408,96 @@ public class Digest implements Streamable, Iterable<Digest.DigestEntry> {
     }
 
 
+    /**
+     * Returns true if all members of this digest are in members, so that it can be written with
+     * {@link #writeTo(java.io.DataOutput, java.util.List)}
+     */
+    public boolean containedIn(Collection<Address> members) {
+        if(members == null || size() > members.size())
+            return false;
+        Collection<Address> mbrs=members instanceof Set? members : new HashSet<Address>(members);
+        for(int i=0; i < size(); i++)
+            if(!mbrs.contains(this.members[i]))
+                return false;
+        return true;
+    }
+
+    /**
+     * Writes the seqnos in the order of the given members (e.g. the members of a view shipped with the digest), but
+     * not the addresses themselves. Members which are not in this digest are written as -1. Members of this digest
+     * which are not in members are not written.
+     */
+    public void writeTo(DataOutput out, List<Address> members) throws Exception {
+        Map<Address,Integer> indices=indices();
+        for(Address mbr: members) {
+            Integer index=indices.get(mbr);
+            if(index == null)
+                Util.writeLongSequence(-1, -1, out);
+            else
+                Util.writeLongSequence(seqnos[index * 2], seqnos[index * 2 +1], out);
+        }
+    }
+
+    /** Reads the seqnos written by {@link #writeTo(java.io.DataOutput, java.util.List)} */
+    public void readFrom(DataInput in, List<Address> members) throws Exception {
+        Address[] tmp_members=new Address[members.size()];
+        long[] tmp_seqnos=new long[members.size() * 2];
+        int index=0;
+        for(Address mbr: members) {
+            long[] tmp=Util.readLongSequence(in);
+            if(tmp[0] == -1 && tmp[1] == -1)
+                continue;
+            tmp_members[index]=mbr;
+            tmp_seqnos[index * 2]=tmp[0];
+            tmp_seqnos[index * 2 +1]=tmp[1];
+            index++;
+        }
+        this.members=index == tmp_members.length? tmp_members : Arrays.copyOf(tmp_members, index);
+        this.seqnos=index == tmp_members.length? tmp_seqnos : Arrays.copyOf(tmp_seqnos, index * 2);
+    }
+
+    public long serializedSize(List<Address> members) {
+        Map<Address,Integer> indices=indices();
+        long retval=0;
+        for(Address mbr: members) {
+            Integer index=indices.get(mbr);
+            retval+=index == null? Util.size(-1, -1) : Util.size(seqnos[index * 2], seqnos[index * 2 +1]);
+        }
+        return retval;
+    }
+
+
+    /**
+     * Returns the seqnos of mbrs (e.g. the members of a view), indexed by their position in mbrs: the highest delivered
+     * seqno of the member at index I is at I*2, the highest received seqno at I*2+1. Members not in this digest get
+     * -1. Members are looked up by address only if this digest doesn't list them at the same position.
+     */
+    public long[] getSeqnos(Address[] mbrs) {
+        long[] retval=new long[mbrs.length * 2];
+        Map<Address,Integer> indices=null;
+        for(int i=0; i < mbrs.length; i++) {
+            int index=i < size() && mbrs[i] != null && mbrs[i].equals(members[i])? i : -1;
+            if(index < 0) {
+                if(indices == null)
+                    indices=indices();
+                Integer tmp=indices.get(mbrs[i]);
+                index=tmp != null? tmp : -1;
+            }
+            retval[i * 2]=index >= 0? seqnos[index * 2] : -1;
+            retval[i * 2 +1]=index >= 0? seqnos[index * 2 +1] : -1;
+        }
+        return retval;
+    }
+
+
+    protected Map<Address,Integer> indices() {
+        Map<Address,Integer> retval=new HashMap<Address,Integer>(size() * 2);
+        for(int i=0; i < size(); i++)
+            if(members[i] != null)
+                retval.put(members[i], i);
+        return retval;
+    }
+
     protected int find(Address member) {
         for(int i=0; i < size(); i++) {
             Address addr=members[i];
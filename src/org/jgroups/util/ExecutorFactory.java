@@ -0,0 +1,30 @@
+package org.jgroups.util;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the executors used by the transport's thread pools and by protocols running tasks on their own pools.
+ * Implementations can be selected by the pools' type property, see {@link Util#createExecutorFactory(String)}.<p/>
+ * Executors which are ThreadPoolExecutors can be resized and queried through the pools' properties and attributes
+ * @author Bela Ban
+ * @since  3.3
+ */
+public interface ExecutorFactory {
+
+    /**
+     * Creates an executor
+     * @param name The name of the pool, used to name threads if the factory is not a JGroups ThreadFactory
+     * @param min_threads The min number of threads. May be ignored by executors which don't keep idle threads
+     * @param max_threads The max number of tasks run concurrently
+     * @param keep_alive_time The time (in ms) after which idle threads are removed. May be ignored
+     * @param queue The queue for tasks which cannot be run immediately
+     * @param handler Handles tasks which cannot be run or queued
+     * @param factory Creates and names the threads
+     * @return The executor
+     */
+    ExecutorService create(String name, int min_threads, int max_threads, long keep_alive_time,
+                           BlockingQueue<Runnable> queue, RejectedExecutionHandler handler, ThreadFactory factory);
+}
@@ -41,6 +41,11 @@ public class ExposedByteArrayInputStream extends ByteArrayInputStream {
         super(buf, offset, length);
     }
 
+    /** Returns the index of the next byte to be read from the buffer */
+    public int position() {
+        return pos;
+    }
+
     public void setData(byte[] buf, int offset, int length) {
         this.buf=buf;
         this.pos=offset;
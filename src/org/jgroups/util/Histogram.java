@@ -0,0 +1,147 @@
+package org.jgroups.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of positive long values, e.g. latencies in nanoseconds. Values are counted in log-linear
+ * buckets: every power of 2 is divided into {@link #SUB_BUCKETS} buckets, so the value of a percentile is precise to
+ * within 1/SUB_BUCKETS (12.5%). Values smaller than SUB_BUCKETS are counted exactly.<p/>
+ * To avoid contention, the counts are striped: a thread increments the counts of the stripe selected by its ID, and
+ * readers sum up all stripes. Readers may therefore see a value that was recorded concurrently in the count, but not
+ * yet in the sum.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class Histogram {
+    protected static final int SUB_BUCKET_BITS=3;
+    public    static final int SUB_BUCKETS=1 << SUB_BUCKET_BITS;
+    protected static final int BUCKETS=(Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    protected static final int SUM=BUCKETS, MAX=BUCKETS+1, STRIPE_SIZE=BUCKETS+2; // sum and max follow the buckets
+
+    protected final AtomicLongArray counts;
+    protected final int             stripe_mask;
+
+
+    public Histogram() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** @param stripes The number of stripes, rounded up to a power of 2 */
+    public Histogram(int stripes) {
+        int num=Util.getNextHigherPowerOfTwo(Math.max(1, Math.min(stripes, 64)));
+        stripe_mask=num-1;
+        counts=new AtomicLongArray(num * STRIPE_SIZE);
+    }
+
+
+    /** Records a value. Negative values are recorded as 0 */
+    public void record(long value) {
+        if(value < 0)
+            value=0;
+        int offset=(int)(Thread.currentThread().getId() & stripe_mask) * STRIPE_SIZE;
+        counts.incrementAndGet(offset + index(value));
+        counts.addAndGet(offset + SUM, value);
+        for(;;) {
+            long max=counts.get(offset + MAX);
+            if(value <= max || counts.compareAndSet(offset + MAX, max, value))
+                break;
+        }
+    }
+
+    public long count() {
+        long retval=0;
+        for(int i=0; i < BUCKETS; i++)
+            retval+=bucket(i);
+        return retval;
+    }
+
+    public double mean() {
+        long count=0, sum=0;
+        for(int offset=0; offset < counts.length(); offset+=STRIPE_SIZE) {
+            sum+=counts.get(offset + SUM);
+            for(int i=0; i < BUCKETS; i++)
+                count+=counts.get(offset + i);
+        }
+        return count == 0? 0 : sum / (double)count;
+    }
+
+    public long max() {
+        long retval=0;
+        for(int offset=0; offset < counts.length(); offset+=STRIPE_SIZE)
+            retval=Math.max(retval, counts.get(offset + MAX));
+        return retval;
+    }
+
+    /**
+     * Returns the value below which percentile percent of the recorded values fall (the highest value of the
+     * bucket containing that value, but not more than the max), or 0 if no values have been recorded
+     * @param percentile The percentile, e.g. 99.9
+     */
+    public long percentile(double percentile) {
+        long[] buckets=new long[BUCKETS];
+        long total=0;
+        for(int i=0; i < BUCKETS; i++)
+            total+=buckets[i]=bucket(i);
+        if(total == 0)
+            return 0;
+        long rank=(long)Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * total), count=0;
+        for(int i=0; i < BUCKETS; i++) {
+            count+=buckets[i];
+            if(count >= Math.max(1, rank))
+                return Math.min(highestValue(i), max());
+        }
+        return max();
+    }
+
+    public void reset() {
+        for(int i=0; i < counts.length(); i++)
+            counts.set(i, 0);
+    }
+
+    public String toString() {
+        return print(1, "");
+    }
+
+    /**
+     * Prints count, mean, the 50th, 90th, 99th and 99.9th percentile and max
+     * @param divisor The values are divided by divisor, e.g. 1000 to print nanoseconds as microseconds
+     * @param unit The unit to be appended to the values, e.g. "us"
+     */
+    public String print(double divisor, String unit) {
+        long count=count();
+        if(count == 0)
+            return "count=0";
+        return "count=" + count + ", mean=" + format(mean(), divisor, unit) +
+          ", p50=" + format(percentile(50), divisor, unit) + ", p90=" + format(percentile(90), divisor, unit) +
+          ", p99=" + format(percentile(99), divisor, unit) + ", p99.9=" + format(percentile(99.9), divisor, unit) +
+          ", max=" + format(max(), divisor, unit);
+    }
+
+
+    protected long bucket(int index) {
+        long retval=0;
+        for(int offset=0; offset < counts.length(); offset+=STRIPE_SIZE)
+            retval+=counts.get(offset + index);
+        return retval;
+    }
+
+    protected static String format(double value, double divisor, String unit) {
+        return Util.format(value / divisor) + unit;
+    }
+
+    protected static int index(long value) {
+        if(value < SUB_BUCKETS)
+            return (int)value;
+        int shift=(Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+    }
+
+    /** Returns the highest value counted in the bucket at index */
+    protected static long highestValue(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+        int shift=index / SUB_BUCKETS - 1;
+        long lowest=(long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
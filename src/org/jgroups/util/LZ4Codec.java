@@ -0,0 +1,168 @@
+package org.jgroups.util;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of the LZ4 block format (https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md).
+ * Compresses less than {@link DeflateCodec}, but is an order of magnitude faster, so it can be used on the hot path,
+ * e.g. to compress bundles sent across bandwidth-bound WAN links.<p/>
+ * The compressor is a greedy single-probe hash matcher (like LZ4's fast mode). Its only state is the hash table, so
+ * instances are cheap.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class LZ4Codec implements Codec {
+    protected static final int MIN_MATCH=4;
+    protected static final int LAST_LITERALS=5;   // the last 5 bytes of a block are always literals
+    protected static final int MF_LIMIT=12;       // the last match has to start at least 12 bytes before the end
+    protected static final int MAX_DISTANCE=0xFFFF;
+    protected static final int HASH_LOG=12;
+    protected static final int ML_MASK=0x0F, RUN_MASK=0x0F;
+    protected static final int SKIP_TRIGGER=6;    // skips faster over incompressible data
+
+    protected final int[] hash_table=new int[1 << HASH_LOG];
+
+
+    public byte getId() {return CodecPool.LZ4;}
+
+    public int compress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int out_length) {
+        final int in_end=in_offset + in_length, match_limit=in_end - LAST_LITERALS, mf_limit=in_end - MF_LIMIT;
+        final int out_end=out_offset + out_length;
+        int ip=in_offset, anchor=in_offset, op=out_offset;
+
+        if(in_length >= MF_LIMIT + 1) {
+            Arrays.fill(hash_table, -1);
+            int search=1 << SKIP_TRIGGER;
+            while(ip < mf_limit) {
+                int seq=readInt(in, ip), h=hash(seq), ref=hash_table[h];
+                hash_table[h]=ip;
+                if(ref < 0 || ip - ref > MAX_DISTANCE || readInt(in, ref) != seq) {
+                    ip+=search++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                search=1 << SKIP_TRIGGER;
+
+                while(ip > anchor && ref > in_offset && in[ip-1] == in[ref-1]) { // extend the match backwards
+                    ip--;
+                    ref--;
+                }
+                int match_len=MIN_MATCH;
+                while(ip + match_len < match_limit && in[ip + match_len] == in[ref + match_len])
+                    match_len++;
+
+                int literals=ip - anchor;
+                if(op + 1 + literals + literals/255 + 1 + 2 + match_len/255 + 1 > out_end)
+                    return -1;
+                int token=op++;
+                out[token]=0;
+                op=writeLength(out, op, literals, token, 4);
+                System.arraycopy(in, anchor, out, op, literals);
+                op+=literals;
+                int offset=ip - ref;
+                out[op++]=(byte)offset;
+                out[op++]=(byte)(offset >>> 8);
+                op=writeLength(out, op, match_len - MIN_MATCH, token, 0);
+
+                ip+=match_len;
+                anchor=ip;
+                if(ip - 2 < mf_limit)
+                    hash_table[hash(readInt(in, ip - 2))]=ip - 2;
+            }
+        }
+
+        int literals=in_end - anchor;
+        if(op + 1 + literals + literals/255 + 1 > out_end)
+            return -1;
+        int token=op++;
+        out[token]=0;
+        op=writeLength(out, op, literals, token, 4);
+        System.arraycopy(in, anchor, out, op, literals);
+        op+=literals;
+        return op - out_offset;
+    }
+
+    public void uncompress(byte[] in, int in_offset, int in_length, byte[] out, int out_offset, int original_length) throws Exception {
+        final int in_end=in_offset + in_length, out_end=out_offset + original_length;
+        int ip=in_offset, op=out_offset;
+        try {
+            for(;;) {
+                int token=in[ip++] & 0xFF;
+                int literals=token >>> 4;
+                if(literals == RUN_MASK) {
+                    int b;
+                    do {
+                        literals+=(b=in[ip++] & 0xFF);
+                    }
+                    while(b == 0xFF);
+                }
+                if(ip + literals > in_end || op + literals > out_end)
+                    throw new IllegalStateException("literals exceed the buffer at offset " + (ip - in_offset));
+                System.arraycopy(in, ip, out, op, literals);
+                ip+=literals;
+                op+=literals;
+                if(ip >= in_end)
+                    break; // the last sequence has no match
+
+                int offset=(in[ip++] & 0xFF) | (in[ip++] & 0xFF) << 8;
+                int ref=op - offset;
+                if(offset == 0 || ref < out_offset)
+                    throw new IllegalStateException("invalid match offset " + offset + " at offset " + (ip - in_offset));
+                int match_len=token & ML_MASK;
+                if(match_len == ML_MASK) {
+                    int b;
+                    do {
+                        match_len+=(b=in[ip++] & 0xFF);
+                    }
+                    while(b == 0xFF);
+                }
+                match_len+=MIN_MATCH;
+                if(op + match_len > out_end)
+                    throw new IllegalStateException("match exceeds the buffer at offset " + (ip - in_offset));
+                if(offset >= match_len)
+                    System.arraycopy(out, ref, out, op, match_len);
+                else { // overlapping match: repeats the last offset bytes
+                    for(int i=0; i < match_len; i++)
+                        out[op + i]=out[ref + i];
+                }
+                op+=match_len;
+            }
+        }
+        catch(ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalStateException("compressed data is truncated");
+        }
+        if(op != out_end)
+            throw new IllegalStateException("uncompressed " + (op - out_offset) + " bytes, but expected " + original_length);
+    }
+
+    public void destroy() {
+    }
+
+    public String toString() {
+        return "lz4";
+    }
+
+
+    /** Writes length into the 4 bits at shift of the token, and the remainder (if any) as a sequence of bytes at op */
+    protected static int writeLength(byte[] out, int op, int length, int token, int shift) {
+        if(length < 0x0F) {
+            out[token]|=(byte)(length << shift);
+            return op;
+        }
+        out[token]|=(byte)(0x0F << shift);
+        length-=0x0F;
+        while(length >= 0xFF) {
+            out[op++]=(byte)0xFF;
+            length-=0xFF;
+        }
+        out[op++]=(byte)length;
+        return op;
+    }
+
+    protected static int readInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xFF) | (buf[offset+1] & 0xFF) << 8 | (buf[offset+2] & 0xFF) << 16 | (buf[offset+3] & 0xFF) << 24;
+    }
+
+    protected static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -0,0 +1,501 @@
+package org.jgroups.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link Table} which doesn't acquire a lock to add, get or remove elements, and which never copies (compacts,
+ * moves or resizes) its storage.
+ * <p/>
+ * The elements are stored in a ring of capacity slots, split into segments of segment_size slots. The slot of an
+ * element is computed from its seqno. A segment is created when the first element is added to it and dropped when
+ * all of its elements have been purged, so memory is only used for the part of the ring that's actually used.
+ * Every segment also has a bitmap of the slots that are taken; it's used to find missing elements.
+ * <p/>
+ * Elements are added (by multiple producers) with a CAS on their slot. Removal (by multiple consumers) claims
+ * elements with a CAS on HD. Only purging (nulling slots and advancing LOW) acquires a lock; it's not used by the
+ * other operations.
+ * <p/>
+ * Contrary to Table, the capacity is fixed: an element whose seqno is too far ahead of LOW is rejected and
+ * {@link #add(long,Object)} returns false. Receivers simply drop it (it will be retransmitted), senders have to retry
+ * until enough elements have been purged.
+ * <p/>
+ * If a {@link Store} is given, elements are not stored on the heap, but converted into an object the store returns,
+ * e.g. a reference to an off-heap copy of the element. All methods returning elements then return copies.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class LocklessTable<T> extends Table<T> {
+    protected final int                                 capacity;
+    protected final int                                 segment_size;
+    protected final int                                 segment_shift;
+    protected final AtomicReferenceArray<Segment>       segments;
+
+    /** The highest seqno purged. Written only with purge_lock held */
+    protected volatile long                             lowest;
+
+    /** The highest delivered (= removed) seqno */
+    protected final AtomicLong                          highest_delivered;
+
+    /** The highest received seqno */
+    protected final AtomicLong                          highest_received;
+
+    /** The number of elements in range [HD+1 .. HR] */
+    protected final AtomicInteger                       num_elements=new AtomicInteger(0);
+
+    protected final Lock                                purge_lock=new ReentrantLock();
+
+    /** Incremented at the start and at the end of a purge (odd while a purge is in progress) */
+    protected volatile int                              purge_epoch;
+
+    protected final Store<T>                            store;
+
+    protected final AtomicInteger                       num_rejected=new AtomicInteger(0);
+
+
+    /**
+     * Converts elements into the objects stored in the table and back, e.g. to keep serialized elements off-heap
+     */
+    public interface Store<T> {
+        /** Returns the object to be stored in the table for element */
+        Object put(T element);
+
+        /** Returns a copy of the element from the object returned by {@link #put(Object)} */
+        T get(Object stored);
+
+        /** Called when the stored object has been removed from the table */
+        void remove(Object stored);
+    }
+
+
+    public LocklessTable(int capacity, int segment_size, long offset) {
+        this(capacity, segment_size, offset, null);
+    }
+
+    /**
+     * Creates a new table
+     * @param capacity The max number of elements; rounded up to a power of 2
+     * @param segment_size The number of elements of a segment; rounded up to a power of 2 (at most capacity)
+     * @param offset The seqno before the first seqno to be inserted. E.g. if 0 then the first seqno will be 1
+     * @param store Converts elements into the objects to be stored in the table. If null, elements are stored as is
+     */
+    public LocklessTable(int capacity, int segment_size, long offset, Store<T> store) {
+        super(1, 1, offset, DEFAULT_RESIZE_FACTOR, 0);
+        if(capacity < 1 || segment_size < 1)
+            throw new IllegalArgumentException("capacity (" + capacity + ") and segment_size (" + segment_size +
+                                                 ") need to be > 0");
+        if(offset < 0)
+            throw new IllegalArgumentException("invalid offset of " + offset);
+        this.capacity=Util.getNextHigherPowerOfTwo(capacity);
+        this.segment_size=Math.min(Util.getNextHigherPowerOfTwo(segment_size), this.capacity);
+        this.segment_shift=Integer.numberOfTrailingZeros(this.segment_size);
+        this.segments=new AtomicReferenceArray<Segment>(this.capacity / this.segment_size);
+        this.lowest=offset;
+        this.highest_delivered=new AtomicLong(offset);
+        this.highest_received=new AtomicLong(offset);
+        this.store=store;
+    }
+
+
+    public int     capacity()            {return capacity;}
+    public int     getSegmentSize()      {return segment_size;}
+    public int     getNumRows()          {return segments.length();}
+    public int     getNumRejected()      {return num_rejected.get();}
+    public int     size()                {return num_elements.get();}
+    public boolean isEmpty()             {return num_elements.get() <= 0;}
+    public long    getLow()              {return lowest;}
+    public long    getHighestDelivered() {return highest_delivered.get();}
+    public long    getHighestReceived()  {return highest_received.get();}
+
+    /** Returns the number of allocated segments */
+    public int getNumSegments() {
+        int retval=0;
+        for(int i=0; i < segments.length(); i++)
+            if(segments.get(i) != null)
+                retval++;
+        return retval;
+    }
+
+    public long getHighestDeliverable() {
+        long retval=highest_delivered.get(), hr=highest_received.get();
+        while(retval < hr && isPresent(retval+1))
+            retval++;
+        return retval;
+    }
+
+    public void setHighestDelivered(long seqno) {
+        highest_delivered.set(seqno);
+    }
+
+
+    /**
+     * Adds an element if the slot for seqno is empty
+     * @return True if the element was added, false if it was already present, had already been removed or if its
+     * seqno is too far ahead of LOW (the table is full)
+     */
+    public boolean add(long seqno, T element) {
+        int epoch=purge_epoch;
+        if(seqno <= highest_delivered.get() || seqno <= lowest)
+            return false;
+        // the segment for seqno may only be used after *all* of its elements from the previous round have been purged
+        if(!inRange(seqno)) {
+            num_rejected.incrementAndGet();
+            return false;
+        }
+
+        Segment segment=getOrCreateSegment(seqno);
+        int index=index(seqno);
+        Object val=store != null? store.put(element) : element;
+        if(!segment.slots.compareAndSet(index, null, val)) {
+            if(store != null)
+                store.remove(val);
+            return false;
+        }
+
+        // a purge running concurrently may already have passed the slot, e.g. when we add a duplicate of an element
+        // which was removed and purged after our check above. Such an element is removed again
+        if((epoch & 1) != 0 || epoch != purge_epoch) {
+            boolean purged=false;
+            purge_lock.lock();
+            try {
+                purged=seqno <= lowest && segment.slots.compareAndSet(index, val, null);
+            }
+            finally {
+                purge_lock.unlock();
+            }
+            if(purged) {
+                if(store != null)
+                    store.remove(val);
+                return false;
+            }
+        }
+
+        segment.set(index);
+        if(segment.slots.get(index) != val) // purged in the meantime
+            segment.clear(index);
+        num_elements.incrementAndGet();
+        for(;;) {
+            long hr=highest_received.get();
+            if(seqno <= hr || highest_received.compareAndSet(hr, seqno))
+                break;
+        }
+        return true;
+    }
+
+    public boolean add(final List<Tuple<Long,T>> list, boolean remove_added_msgs) {
+        if(list == null)
+            return false;
+        boolean added=false;
+        for(Iterator<Tuple<Long,T>> it=list.iterator(); it.hasNext();) {
+            Tuple<Long,T> tuple=it.next();
+            if(add(tuple.getVal1(), tuple.getVal2()))
+                added=true;
+            else if(remove_added_msgs)
+                it.remove();
+        }
+        return added;
+    }
+
+    public T get(long seqno) {
+        if(seqno <= lowest || seqno > highest_received.get())
+            return null;
+        Object val=getStored(seqno);
+        if(val == null)
+            return null;
+        T element=convert(val);
+        return seqno <= lowest? null : element; // the slot may have been purged and reused by now
+    }
+
+    public T _get(long seqno) {
+        Object val=getStored(seqno);
+        return val != null? convert(val) : null;
+    }
+
+    public List<T> get(long from, long to) {
+        final List<T> list=new ArrayList<T>();
+        forEach(Math.max(from, lowest + 1), Math.min(to, highest_received.get()), new Visitor<T>() {
+            public boolean visit(long seqno, T element, int row, int column) {
+                if(element != null)
+                    list.add(element);
+                return true;
+            }
+        });
+        return list.isEmpty()? null : list;
+    }
+
+    public T remove(boolean nullify) {
+        for(;;) {
+            long hd=highest_delivered.get(), next=hd+1;
+            Object val=getStored(next);
+            if(val == null)
+                return null;
+            if(highest_delivered.compareAndSet(hd, next)) {
+                num_elements.decrementAndGet();
+                T element=convert(val);
+                if(nullify)
+                    purge(next);
+                return element;
+            }
+        }
+    }
+
+    public List<T> removeMany(final AtomicBoolean processing, boolean nullify, int max_results) {
+        for(;;) {
+            List<T> list=null;
+            long last_removed=0;
+            while(max_results <= 0 || list == null || list.size() < max_results) {
+                long hd=highest_delivered.get(), next=hd+1;
+                Object val=getStored(next);
+                if(val == null)
+                    break;
+                if(highest_delivered.compareAndSet(hd, next)) {
+                    num_elements.decrementAndGet();
+                    if(list == null)
+                        list=new ArrayList<T>(max_results > 0? Math.min(max_results, 128) : 128);
+                    list.add(convert(val));
+                    last_removed=next;
+                }
+            }
+            if(list != null) {
+                if(nullify)
+                    purge(last_removed);
+                return list;
+            }
+            if(processing == null)
+                return null;
+
+            // an element may have been added after we found none, but before we released processing: the adder saw
+            // processing == true and relied on us to remove it, so we have to check again
+            processing.set(false);
+            if(getStored(highest_delivered.get() +1) == null || !processing.compareAndSet(false, true))
+                return null;
+        }
+    }
+
+    /**
+     * Removes all elements <= seqno from the table; this is the only method acquiring a lock. The visitor
+     * is called with the lock held
+     */
+    public void purge(long seqno, boolean force, final Visitor<T> visitor) {
+        List<Object> removed=null;
+        purge_lock.lock();
+        purge_epoch++;
+        try {
+            long hr=highest_received.get();
+            if(force) {
+                if(seqno > hr)
+                    seqno=hr;
+            }
+            else {
+                long hd=highest_delivered.get();
+                if(seqno > hd) // we cannot be higher than the highest removed seqno
+                    seqno=hd;
+            }
+
+            long low=lowest, old_hd=highest_delivered.get();
+            if(force) { // HD is moved first, so that concurrent adds of seqnos <= seqno will fail
+                for(;;) {
+                    old_hd=highest_delivered.get();
+                    if(seqno <= old_hd || highest_delivered.compareAndSet(old_hd, seqno))
+                        break;
+                }
+            }
+
+            for(long i=low+1; i <= seqno; i++) {
+                int pos=position(i), index=index(i);
+                Segment segment=segments.get(pos);
+                if(segment == null) {
+                    i|=(segment_size -1); // skip to the end of the segment
+                    continue;
+                }
+                Object val=segment.slots.getAndSet(index, null);
+                if(val != null) {
+                    segment.clear(index);
+                    if(visitor != null)
+                        visitor.visit(i, convert(val), pos, index);
+                    if(store != null) {
+                        if(removed == null)
+                            removed=new ArrayList<Object>();
+                        removed.add(val);
+                    }
+                    if(force && i > old_hd)
+                        num_elements.decrementAndGet();
+                }
+                if(index == segment_size -1) // all elements of the segment have been purged
+                    segments.compareAndSet(pos, segment, null);
+            }
+            if(seqno > low)
+                lowest=seqno;
+            num_purges++;
+        }
+        finally {
+            purge_epoch++;
+            purge_lock.unlock();
+        }
+
+        // removed elements are released only *after* LOW has been moved, so get() can detect that a slot was reused
+        if(removed != null)
+            for(Object val: removed)
+                store.remove(val);
+    }
+
+    /** No-op: the table never needs to be compacted */
+    public void compact() {
+    }
+
+    /**
+     * Iterates over range [from .. to] and calls {@link Visitor#visit(long,Object,int,int)} with the segment index
+     * as row and the index in the segment as column. Doesn't need to be called with a lock held
+     */
+    public void forEach(long from, long to, Visitor<T> visitor) {
+        for(long i=from; i <= to; i++) {
+            Object val=getStored(i);
+            if(!visitor.visit(i, val != null? convert(val) : null, position(i), index(i)))
+                break;
+        }
+    }
+
+    public int computeSize() {
+        int retval=0;
+        for(long i=highest_delivered.get() +1, hr=highest_received.get(); i <= hr; i++)
+            if(isPresent(i))
+                retval++;
+        return retval;
+    }
+
+    public int getNumMissing() {
+        long retval=highest_received.get() - highest_delivered.get() - num_elements.get();
+        return (int)Math.max(0, retval);
+    }
+
+    /** Returns the missing seqnos in range [HD+1 .. HR], found by scanning the bitmaps of the segments */
+    public SeqnoList getMissing() {
+        SeqnoList missing=null;
+        long hr=highest_received.get(), first_missing=-1;
+        for(long i=highest_delivered.get() +1; i <= hr; i++) {
+            Segment segment=segments.get(position(i));
+            int index=index(i);
+            if(segment != null && first_missing == -1 && segment_size >= 64 && (index & 63) == 0 && i + 63 <= hr
+              && segment.present.get(index >>> 6) == -1L) {
+                i+=63; // all 64 elements are present
+                continue;
+            }
+            boolean present=segment != null && segment.slots.get(index) != null;
+            if(!present) {
+                if(first_missing == -1)
+                    first_missing=i;
+            }
+            else if(first_missing != -1) {
+                if(missing == null)
+                    missing=new SeqnoList();
+                if(i-1 > first_missing)
+                    missing.add(first_missing, i-1);
+                else
+                    missing.add(first_missing);
+                first_missing=-1;
+            }
+        }
+        return missing;
+    }
+
+    public long[] getDigest() {
+        return new long[]{highest_delivered.get(), highest_received.get()};
+    }
+
+    public String toString() {
+        return "[" + lowest + " | " + highest_delivered.get() + " | " + highest_received.get() + "] (" + size() +
+          " elements, " + getNumMissing() + " missing)";
+    }
+
+    public String dump() {
+        final StringBuilder sb=new StringBuilder();
+        for(long i=lowest, hr=highest_received.get(); i <= hr; i++) {
+            if(isPresent(i)) {
+                if(sb.length() > 0)
+                    sb.append(", ");
+                sb.append(i);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    protected int position(long seqno) {
+        return (int)((seqno >>> segment_shift) & (segments.length() -1));
+    }
+
+    protected int index(long seqno) {
+        return (int)(seqno & (segment_size -1));
+    }
+
+    /** Whether all elements of the previous round of seqno's segment have been purged */
+    protected boolean inRange(long seqno) {
+        return (seqno | (segment_size -1)) - capacity <= lowest;
+    }
+
+    /** Returns the stored value for seqno, or null if not present. Slots ahead of the range still hold the previous round */
+    protected Object getStored(long seqno) {
+        if(!inRange(seqno))
+            return null;
+        Segment segment=segments.get(position(seqno));
+        return segment != null? segment.slots.get(index(seqno)) : null;
+    }
+
+    protected boolean isPresent(long seqno) {
+        return getStored(seqno) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected T convert(Object val) {
+        return store != null? store.get(val) : (T)val;
+    }
+
+    protected Segment getOrCreateSegment(long seqno) {
+        int pos=position(seqno);
+        Segment segment=segments.get(pos);
+        if(segment != null)
+            return segment;
+        segment=new Segment(segment_size);
+        return segments.compareAndSet(pos, null, segment)? segment : segments.get(pos);
+    }
+
+
+    /** A segment of the ring: the slots plus a bitmap of the slots which are taken */
+    protected static class Segment {
+        protected final AtomicReferenceArray<Object> slots;
+        protected final AtomicLongArray              present;
+
+        protected Segment(int size) {
+            slots=new AtomicReferenceArray<Object>(size);
+            present=new AtomicLongArray(Math.max(1, size >>> 6));
+        }
+
+        protected void set(int index) {
+            int word=index >>> 6;
+            long mask=1L << index; // shifts are mod 64
+            for(;;) {
+                long old=present.get(word);
+                if((old & mask) != 0 || present.compareAndSet(word, old, old | mask))
+                    return;
+            }
+        }
+
+        protected void clear(int index) {
+            int word=index >>> 6;
+            long mask=1L << index;
+            for(;;) {
+                long old=present.get(word);
+                if((old & mask) == 0 || present.compareAndSet(word, old, old & ~mask))
+                    return;
+            }
+        }
+    }
+}
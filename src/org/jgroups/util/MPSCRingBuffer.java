@@ -0,0 +1,106 @@
+package org.jgroups.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free ring buffer for multiple producers and a <em>single</em> consumer. Producers claim a slot by
+ * CAS'ing the tail forward and then publish the element into the claimed slot; the consumer reads slots in order,
+ * nulls them and advances the head.<p/>
+ * A slot which has been claimed but not yet published is seen as empty by the consumer, so {@link #poll()} may
+ * return null although {@link #size()} is greater than 0. Callers which need to know when to drain again should
+ * check {@link #isEmpty()} after having drained the buffer.<p/>
+ * <em>Note that {@link #poll()} and {@link #drainTo(java.util.Collection,int)} are not reentrant: only one
+ * thread may act as consumer at any given time !</em>
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class MPSCRingBuffer<T> {
+    /** The elements. Null means the slot is free (or claimed, but not yet published) */
+    protected final AtomicReferenceArray<T> buf;
+
+    /** Used to compute the index of a given seqno (capacity is always a power of 2) */
+    protected final int                     mask;
+
+    /** The next slot to be claimed by a producer */
+    protected final AtomicLong              tail=new AtomicLong(0);
+
+    /** The next slot to be read by the consumer. Only written by the consumer */
+    protected volatile long                 head=0;
+
+
+    /**
+     * Creates a new ring buffer
+     * @param capacity The capacity; will be rounded up to the next power of 2
+     */
+    public MPSCRingBuffer(int capacity) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("incorrect capacity of " + capacity);
+        int cap=Util.getNextHigherPowerOfTwo(capacity);
+        buf=new AtomicReferenceArray<T>(cap);
+        mask=cap -1;
+    }
+
+    public int     capacity() {return buf.length();}
+    public int     size()     {return (int)(tail.get() - head);}
+    public boolean isEmpty()  {return tail.get() == head;}
+
+
+    /**
+     * Adds an element to the buffer. Can be called by multiple threads concurrently.
+     * @param element The element, must not be null
+     * @return True if the element was added, false if the buffer is full
+     */
+    public boolean offer(T element) {
+        if(element == null)
+            throw new IllegalArgumentException("element must not be null");
+        for(;;) {
+            long current_tail=tail.get();
+            if(current_tail - head >= mask +1)
+                return false;
+            if(tail.compareAndSet(current_tail, current_tail +1)) {
+                buf.lazySet(index(current_tail), element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes the element at the head. Must only be called by the consumer thread.
+     * @return The element, or null if the buffer is empty or the next element has not yet been published
+     */
+    public T poll() {
+        long current_head=head;
+        int index=index(current_head);
+        T element=buf.get(index);
+        if(element == null)
+            return null;
+        buf.lazySet(index, null);
+        head=current_head +1;
+        return element;
+    }
+
+    /**
+     * Removes at most max_elements elements and adds them to the given collection. Must only be called by the
+     * consumer thread.
+     * @return The number of elements removed
+     */
+    public int drainTo(Collection<? super T> c, int max_elements) {
+        int num=0;
+        T element;
+        while(num < max_elements && (element=poll()) != null) {
+            c.add(element);
+            num++;
+        }
+        return num;
+    }
+
+    public String toString() {
+        return "head=" + head + ", tail=" + tail.get() + ", size=" + size() + ", capacity=" + capacity();
+    }
+
+    protected int index(long seqno) {
+        return (int)(seqno & mask);
+    }
+}
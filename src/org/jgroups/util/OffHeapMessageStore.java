@@ -0,0 +1,154 @@
+package org.jgroups.util;
+
+import org.jgroups.Message;
+
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps marshalled messages in direct (off-heap) memory, for use as the {@link LocklessTable.Store} of a
+ * retransmission table: on the heap, a message only takes a small reference to its location.
+ * <p/>
+ * Memory is allocated in chunks of chunk_size bytes and messages are appended to the current chunk. A chunk is
+ * reference counted (1 for every message in it, plus 1 as long as it is the current chunk) and recycled when all of
+ * its messages have been removed. As retransmission tables are purged in seqno order, chunks are usually freed in
+ * the order in which they were filled.
+ * <p/>
+ * Messages which cannot be marshalled are kept on the heap.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class OffHeapMessageStore implements LocklessTable.Store<Message> {
+    protected final int                  chunk_size;
+    protected final BlockingQueue<Chunk> free_chunks;
+    protected Chunk                      current; // guarded by this
+    protected final AtomicInteger        num_chunks_allocated=new AtomicInteger(0);
+    protected final AtomicInteger        num_messages=new AtomicInteger(0);
+
+    /**
+     * Creates a new store
+     * @param chunk_size The size of a chunk of direct memory (in bytes)
+     * @param max_free_chunks The max number of free chunks to keep for reuse
+     */
+    public OffHeapMessageStore(int chunk_size, int max_free_chunks) {
+        if(chunk_size < 1)
+            throw new IllegalArgumentException("chunk_size (" + chunk_size + ") has to be > 0");
+        this.chunk_size=chunk_size;
+        this.free_chunks=new ArrayBlockingQueue<Chunk>(Math.max(1, max_free_chunks));
+    }
+
+    public int getChunkSize()             {return chunk_size;}
+    public int getNumChunksAllocated()    {return num_chunks_allocated.get();}
+    public int getNumFreeChunks()         {return free_chunks.size();}
+    public int getNumMessages()           {return num_messages.get();}
+
+
+    public Object put(Message msg) {
+        ExposedByteArrayOutputStream out=new ExposedByteArrayOutputStream((int)msg.size());
+        try {
+            msg.writeTo(new ExposedDataOutputStream(out));
+        }
+        catch(Exception e) {
+            return msg;
+        }
+        int length=out.size();
+        Ref ref=allocate(length);
+        ByteBuffer buf=ref.chunk.buf.duplicate();
+        buf.position(ref.offset);
+        buf.put(out.getRawBuffer(), 0, length);
+        num_messages.incrementAndGet();
+        return ref;
+    }
+
+    public Message get(Object stored) {
+        if(!(stored instanceof Ref))
+            return (Message)stored;
+        Ref ref=(Ref)stored;
+        byte[] tmp=new byte[ref.length];
+        ByteBuffer buf=ref.chunk.buf.duplicate();
+        buf.position(ref.offset);
+        buf.get(tmp);
+        Message msg=new Message(false);
+        try {
+            msg.readFrom(new DataInputStream(new ExposedByteArrayInputStream(tmp)));
+            return msg;
+        }
+        catch(Exception e) {
+            return null;
+        }
+    }
+
+    public void remove(Object stored) {
+        if(stored instanceof Ref) {
+            num_messages.decrementAndGet();
+            release(((Ref)stored).chunk);
+        }
+    }
+
+    public String toString() {
+        return num_messages + " messages, " + num_chunks_allocated + " chunks allocated (" +
+          free_chunks.size() + " free, chunk_size=" + Util.printBytes(chunk_size) + ")";
+    }
+
+
+    protected synchronized Ref allocate(int length) {
+        if(length > chunk_size) { // gets its own chunk, which is not recycled
+            Chunk chunk=new Chunk(length);
+            num_chunks_allocated.incrementAndGet();
+            chunk.pos=length;
+            return new Ref(chunk, 0, length); // the chunk's initial reference is the message's
+        }
+        if(current == null || current.pos + length > chunk_size) {
+            Chunk old=current;
+            current=newChunk();
+            if(old != null)
+                release(old); // drops the reference held by current
+        }
+        Ref ref=new Ref(current, current.pos, length);
+        current.pos+=length;
+        current.refs.incrementAndGet();
+        return ref;
+    }
+
+    protected Chunk newChunk() {
+        Chunk chunk=free_chunks.poll();
+        if(chunk == null) {
+            chunk=new Chunk(chunk_size);
+            num_chunks_allocated.incrementAndGet();
+        }
+        chunk.pos=0;
+        chunk.refs.set(1);
+        return chunk;
+    }
+
+    protected void release(Chunk chunk) {
+        if(chunk.refs.decrementAndGet() == 0 && chunk.buf.capacity() == chunk_size)
+            free_chunks.offer(chunk); // if the queue is full, the chunk is garbage collected
+    }
+
+
+    protected static class Chunk {
+        protected final ByteBuffer    buf;
+        protected int                 pos; // guarded by the store's lock
+        protected final AtomicInteger refs=new AtomicInteger(1);
+
+        protected Chunk(int size) {
+            buf=ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    /** The location of a marshalled message */
+    protected static class Ref {
+        protected final Chunk chunk;
+        protected final int   offset, length;
+
+        protected Ref(Chunk chunk, int offset, int length) {
+            this.chunk=chunk;
+            this.offset=offset;
+            this.length=length;
+        }
+    }
+}
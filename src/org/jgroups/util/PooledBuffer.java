@@ -0,0 +1,49 @@
+package org.jgroups.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted buffer taken from a {@link BufferPool}. The reference count starts at 1 (owned by the reader
+ * which filled the buffer); every message whose payload is a slice of the buffer adds a reference. When the count
+ * drops to 0, the buffer is returned to the pool.<p/>
+ * Every call to {@link #retain()} has to be matched by exactly one call to {@link #release()}: releasing a buffer
+ * which is still referenced leads to it being overwritten by the next packet.
+ * @author Bela Ban
+ * @since 3.3
+ */
+public class PooledBuffer {
+    protected final BufferPool    pool;
+    protected final byte[]        buf;
+    protected final AtomicInteger refs=new AtomicInteger(1);
+
+    public PooledBuffer(BufferPool pool, byte[] buf) {
+        this.pool=pool;
+        this.buf=buf;
+    }
+
+    public byte[] getBuf()   {return buf;}
+    public int    refCount() {return refs.get();}
+
+    public PooledBuffer retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Decrements the reference count and returns the buffer to the pool when the count drops to 0
+     * @return True if the buffer was returned to the pool, false otherwise
+     */
+    public boolean release() {
+        int count=refs.decrementAndGet();
+        if(count > 0)
+            return false;
+        if(count < 0)
+            throw new IllegalStateException("buffer was released more often than retained (refs=" + count + ")");
+        pool.put(buf);
+        return true;
+    }
+
+    public String toString() {
+        return buf.length + " bytes, refs=" + refs;
+    }
+}
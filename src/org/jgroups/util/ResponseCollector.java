@@ -37,15 +37,21 @@ public class ResponseCollector<T> {
         responses=new HashMap<Address,T>();
     }
 
-    public void add(Address member, T data) {
+    /**
+     * Adds the response of a member
+     * @return True if a response from member was expected, false if the response was discarded
+     */
+    public boolean add(Address member, T data) {
         if(member == null)
-            return;
+            return false;
         lock.lock();
         try {
             if(responses.containsKey(member)) {
                 responses.put(member, data);
                 cond.signalAll();
+                return true;
             }
+            return false;
         }
         finally {
             lock.unlock();
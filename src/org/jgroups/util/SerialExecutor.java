@@ -0,0 +1,151 @@
+package org.jgroups.util;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks submitted under the same key one after the other, in submission order, on a shared executor. Tasks
+ * with different keys run concurrently.<p/>
+ * Every key has a mailbox, which is drained by at most one thread of the executor at a time, so no thread ever
+ * blocks (or spins) waiting for another thread processing tasks of the same key. A drainer runs at most max_tasks
+ * tasks, then resubmits itself to the executor so that a busy key doesn't monopolize a thread.<p/>
+ * A drainer must never be dropped: when the executor rejects it, it is run by the caller, and a drainer whose
+ * resubmission is rejected keeps draining the mailbox in its current thread. As the discard policies of a
+ * ThreadPoolExecutor drop tasks silently, {@link #protect(ThreadPoolExecutor)} has to be called on a
+ * ThreadPoolExecutor before it is used
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class SerialExecutor<K> {
+    protected final Executor                  executor;
+    protected final int                       max_tasks;
+    protected final ConcurrentMap<K,Mailbox>  mailboxes=Util.createConcurrentMap();
+
+    /**
+     * Creates a new SerialExecutor
+     * @param executor The executor running the drainers of the mailboxes
+     * @param max_tasks The max number of tasks run by a drainer before it is resubmitted. 0 runs all tasks
+     */
+    public SerialExecutor(Executor executor, int max_tasks) {
+        if(executor == null)
+            throw new IllegalArgumentException("executor must not be null");
+        this.executor=executor;
+        this.max_tasks=max_tasks;
+    }
+
+    public Executor getExecutor() {return executor;}
+
+    /** Returns the number of mailboxes */
+    public int size() {return mailboxes.size();}
+
+    /** Returns the number of tasks queued in all mailboxes */
+    public int getNumQueuedTasks() {
+        int retval=0;
+        for(Mailbox mailbox: mailboxes.values())
+            retval+=mailbox.size.get();
+        return retval;
+    }
+
+    /** Queues task in the mailbox of key and submits a drainer to the executor if none is running */
+    public void execute(K key, Runnable task) {
+        Mailbox mailbox=mailboxes.get(key);
+        if(mailbox == null) {
+            Mailbox tmp=mailboxes.putIfAbsent(key, mailbox=new Mailbox());
+            if(tmp != null)
+                mailbox=tmp;
+        }
+        mailbox.tasks.add(task);
+        if(mailbox.size.getAndIncrement() == 0)
+            submit(mailbox);
+    }
+
+    /** Removes the empty mailboxes of all keys which are not in keys */
+    public void retainAll(Collection<K> keys) {
+        for(Map.Entry<K,Mailbox> entry: mailboxes.entrySet()) {
+            if(!keys.contains(entry.getKey()) && entry.getValue().size.get() == 0)
+                mailboxes.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public String toString() {
+        return mailboxes.size() + " mailboxes, " + getNumQueuedTasks() + " queued tasks";
+    }
+
+    /**
+     * Makes pool throw a RejectedExecutionException for rejected drainers, regardless of its rejection policy, so
+     * that they're run in the caller's thread. Other tasks are still handled by the existing rejection policy, except
+     * that a DiscardOldestPolicy runs a queued drainer in the caller's thread instead of discarding it
+     */
+    public static void protect(ThreadPoolExecutor pool) {
+        RejectedExecutionHandler handler=pool.getRejectedExecutionHandler();
+        if(!(handler instanceof DrainerRejectionHandler))
+            pool.setRejectedExecutionHandler(new DrainerRejectionHandler(handler));
+    }
+
+
+    protected void submit(Mailbox mailbox) {
+        try {
+            executor.execute(mailbox);
+        }
+        catch(RejectedExecutionException ex) {
+            mailbox.run();
+        }
+    }
+
+
+    protected class Mailbox implements Runnable {
+        protected final java.util.Queue<Runnable> tasks=new ConcurrentLinkedQueue<Runnable>();
+        protected final AtomicInteger             size=new AtomicInteger(0); // incremented *after* adding a task
+
+        public void run() {
+            int num_tasks=0;
+            for(;;) {
+                Runnable task=tasks.poll();
+                try {
+                    task.run();
+                }
+                catch(Throwable t) {
+                    // the task is responsible for handling its exceptions; we only make sure the mailbox stays alive
+                }
+                if(size.decrementAndGet() == 0)
+                    return;
+                if(max_tasks > 0 && ++num_tasks >= max_tasks) {
+                    try {
+                        executor.execute(this);
+                        return;
+                    }
+                    catch(RejectedExecutionException ex) {
+                        num_tasks=0; // the executor is saturated: keep draining in this thread instead of calling run()
+                    }
+                }
+            }
+        }
+    }
+
+
+    protected static class DrainerRejectionHandler implements RejectedExecutionHandler {
+        protected final RejectedExecutionHandler handler;
+
+        protected DrainerRejectionHandler(RejectedExecutionHandler handler) {
+            this.handler=handler;
+        }
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if(r instanceof SerialExecutor.Mailbox && !executor.isShutdown())
+                throw new RejectedExecutionException("drainer rejected by " + executor);
+            if(handler instanceof ThreadPoolExecutor.DiscardOldestPolicy) {
+                if(executor.isShutdown())
+                    return;
+                // a discarded drainer would leave its mailbox scheduled, but never drained
+                Runnable oldest=executor.getQueue().poll();
+                if(oldest instanceof SerialExecutor.Mailbox)
+                    oldest.run();
+                executor.execute(r);
+            }
+            else if(handler != null)
+                handler.rejectedExecution(r, executor);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.jgroups.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map with primitive long keys, e.g. request IDs. Keys are not boxed, and entries are not allocated: every stripe is an
+ * open addressing hash table (linear probing) of keys and values, guarded by its own lock. Consecutive keys are
+ * spread over all stripes, so concurrent threads adding and removing consecutive IDs rarely contend.<p/>
+ * Null values are not supported.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class StripedLongMap<V> {
+    protected final Stripe<V>[] stripes;
+    protected final int         stripe_mask;
+
+    /** Invoked by {@link #forEach(Visitor)} for every entry */
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+
+    public StripedLongMap() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /** @param num_stripes The number of stripes, rounded up to a power of 2 */
+    @SuppressWarnings("unchecked")
+    public StripedLongMap(int num_stripes) {
+        int num=Util.getNextHigherPowerOfTwo(Math.max(1, num_stripes));
+        stripes=(Stripe<V>[])new Stripe<?>[num];
+        for(int i=0; i < stripes.length; i++)
+            stripes[i]=new Stripe<V>(Stripe.MIN_CAPACITY);
+        stripe_mask=num-1;
+    }
+
+    /** Adds an entry if no entry with key exists yet. Returns the existing value, or null if the entry was added */
+    public V putIfAbsent(long key, V value) {
+        if(value == null)
+            throw new IllegalArgumentException("null values are not supported");
+        return stripe(key).putIfAbsent(key, value);
+    }
+
+    public V get(long key) {
+        return stripe(key).get(key);
+    }
+
+    /** Removes the entry with key and returns its value, or null if there is no such entry */
+    public V remove(long key) {
+        return stripe(key).remove(key);
+    }
+
+    public int size() {
+        int retval=0;
+        for(Stripe<V> stripe: stripes)
+            retval+=stripe.size();
+        return retval;
+    }
+
+    public boolean isEmpty() {
+        for(Stripe<V> stripe: stripes)
+            if(stripe.size() > 0)
+                return false;
+        return true;
+    }
+
+    /** Returns a copy of the values. Entries added or removed concurrently may or may not be included */
+    public List<V> values() {
+        final List<V> retval=new ArrayList<V>(size());
+        forEach(new Visitor<V>() {
+            public void visit(long key, V value) {retval.add(value);}
+        });
+        return retval;
+    }
+
+    /** Invokes visitor for every entry, one stripe at a time. The visitor is called with the lock of the stripe held */
+    public void forEach(Visitor<V> visitor) {
+        for(Stripe<V> stripe: stripes)
+            stripe.forEach(visitor);
+    }
+
+    public void clear() {
+        for(Stripe<V> stripe: stripes)
+            stripe.clear();
+    }
+
+    public String toString() {
+        final StringBuilder sb=new StringBuilder();
+        forEach(new Visitor<V>() {
+            public void visit(long key, V value) {sb.append(key).append(": ").append(value).append("\n");}
+        });
+        return sb.toString();
+    }
+
+
+    protected Stripe<V> stripe(long key) {
+        return stripes[(int)(key ^ (key >>> 32)) & stripe_mask];
+    }
+
+    protected static int hash(long key) {
+        long h=key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+
+    /** Open addressing hash table with linear probing. An empty slot has a null value */
+    @SuppressWarnings("unchecked")
+    protected static class Stripe<V> {
+        protected static final int MIN_CAPACITY=16;
+
+        protected long[]   keys;
+        protected Object[] values;
+        protected int      size;
+
+        protected Stripe(int capacity) {
+            keys=new long[capacity];
+            values=new Object[capacity];
+        }
+
+        protected synchronized V putIfAbsent(long key, V value) {
+            int mask=keys.length-1;
+            for(int i=hash(key) & mask;; i=(i+1) & mask) {
+                if(values[i] == null) {
+                    keys[i]=key;
+                    values[i]=value;
+                    if(++size * 2 > keys.length)
+                        resize(keys.length * 2);
+                    return null;
+                }
+                if(keys[i] == key)
+                    return (V)values[i];
+            }
+        }
+
+        protected synchronized V get(long key) {
+            int mask=keys.length-1;
+            for(int i=hash(key) & mask; values[i] != null; i=(i+1) & mask)
+                if(keys[i] == key)
+                    return (V)values[i];
+            return null;
+        }
+
+        protected synchronized V remove(long key) {
+            int mask=keys.length-1;
+            for(int i=hash(key) & mask; values[i] != null; i=(i+1) & mask) {
+                if(keys[i] == key) {
+                    V retval=(V)values[i];
+                    values[i]=null;
+                    size--;
+                    shiftBack(i);
+                    if(keys.length > MIN_CAPACITY && size * 8 < keys.length)
+                        resize(keys.length / 2);
+                    return retval;
+                }
+            }
+            return null;
+        }
+
+        protected synchronized int size() {
+            return size;
+        }
+
+        protected synchronized void forEach(Visitor<V> visitor) {
+            for(int i=0; i < values.length; i++)
+                if(values[i] != null)
+                    visitor.visit(keys[i], (V)values[i]);
+        }
+
+        protected synchronized void clear() {
+            for(int i=0; i < values.length; i++)
+                values[i]=null;
+            size=0;
+        }
+
+        /** Moves the entries following the removed slot back, so that no lookup stops at the now empty slot */
+        protected void shiftBack(int empty) {
+            int mask=keys.length-1;
+            for(int i=(empty+1) & mask; values[i] != null; i=(i+1) & mask) {
+                int home=hash(keys[i]) & mask;
+                // the entry at i can be moved to empty if its home slot is not in (empty, i] (cyclically)
+                boolean movable=empty <= i? (home <= empty || home > i) : (home <= empty && home > i);
+                if(movable) {
+                    keys[empty]=keys[i];
+                    values[empty]=values[i];
+                    values[i]=null;
+                    empty=i;
+                }
+            }
+        }
+
+        protected void resize(int capacity) {
+            long[] old_keys=keys;
+            Object[] old_values=values;
+            keys=new long[capacity];
+            values=new Object[capacity];
+            int mask=capacity-1;
+            for(int i=0; i < old_values.length; i++) {
+                if(old_values[i] == null)
+                    continue;
+                int index=hash(old_keys[i]) & mask;
+                while(values[index] != null)
+                    index=(index+1) & mask;
+                keys[index]=old_keys[i];
+                values[index]=old_values[i];
+            }
+        }
+    }
+}
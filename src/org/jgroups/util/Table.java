@@ -370,6 +370,17 @@ public class Table<T> {
      * @param force If true, we only ensure that seqno <= hr, but don't care about hd, and set hd=low=seqno.
      */
     public void purge(long seqno, boolean force) {
+        purge(seqno, force, null);
+    }
+
+    /**
+     * Same as {@link #purge(long,boolean)}, but passes all non-null elements which are about to be removed to
+     * the visitor first. The visitor is called with the lock held
+     * @param seqno All elements <= seqno will be nulled
+     * @param force If true, we only ensure that seqno <= hr, but don't care about hd, and set hd=low=seqno.
+     * @param visitor Called for every element that is purged, may be null
+     */
+    public void purge(long seqno, boolean force, final Visitor<T> visitor) {
         lock.lock();
         try {
             if(force) {
@@ -381,6 +392,13 @@ public class Table<T> {
                     seqno=hd;
             }
 
+            if(visitor != null && seqno > low)
+                forEach(low+1, seqno, new Visitor<T>() {
+                    public boolean visit(long seqno, T element, int row, int column) {
+                        return element == null || visitor.visit(seqno, element, row, column);
+                    }
+                });
+
             int start_row=computeRow(low), end_row=computeRow(seqno);
             if(start_row < 0) start_row=0;
             if(end_row < 0)
@@ -0,0 +1,221 @@
+package org.jgroups.util;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor which runs every task on a new thread (e.g. a virtual thread), but never runs more than max_threads tasks
+ * concurrently. Tasks exceeding max_threads are added to the queue and run by the threads of completed tasks; when
+ * the queue is full, the task is passed to the rejection handler.<p/>
+ * Extends ThreadPoolExecutor, so that it can be configured and monitored like the thread pools it replaces: the pool
+ * size and the active count are the number of running threads, min_threads and keep_alive_time are ignored.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class ThreadPerTaskExecutor extends ThreadPoolExecutor {
+    protected final BlockingQueue<Runnable> queue;
+    protected volatile int                  max_threads;
+    protected volatile int                  core_threads;
+    protected final AtomicInteger           active=new AtomicInteger(0);
+    protected volatile int                  largest;
+    protected final AtomicLong              completed=new AtomicLong(0);
+    protected volatile boolean              stopped; // set by shutdownNow()
+    protected final Set<Thread>             threads=Collections.newSetFromMap(new ConcurrentHashMap<Thread,Boolean>());
+
+
+    public ThreadPerTaskExecutor(int max_threads, BlockingQueue<Runnable> queue, RejectedExecutionHandler handler,
+                                 ThreadFactory factory) {
+        super(0, 1, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(),
+              factory != null? factory : Executors.defaultThreadFactory(),
+              handler != null? handler : new AbortPolicy());
+        if(max_threads < 1)
+            throw new IllegalArgumentException("max_threads (" + max_threads + ") has to be > 0");
+        this.max_threads=max_threads;
+        this.queue=queue != null? queue : new LinkedBlockingQueue<Runnable>();
+    }
+
+
+    public void execute(Runnable task) {
+        if(task == null)
+            throw new NullPointerException();
+        if(isShutdown()) {
+            reject(task);
+            return;
+        }
+        if(acquire()) {
+            start(task);
+            return;
+        }
+        if(!queue.offer(task)) {
+            reject(task);
+            return;
+        }
+        // all threads may have completed between the failed acquire() and offer(): then nobody would run the task
+        if(acquire())
+            startQueuedTask();
+    }
+
+    public void shutdown() {
+        super.shutdown();
+        if(active.get() == 0)
+            signalTermination();
+    }
+
+    public List<Runnable> shutdownNow() {
+        List<Runnable> retval=super.shutdownNow();
+        stopped=true;
+        queue.drainTo(retval);
+        for(Thread thread: threads)
+            thread.interrupt();
+        return retval;
+    }
+
+    public boolean isTerminated() {
+        return super.isTerminated() && active.get() == 0;
+    }
+
+    public boolean isTerminating() {
+        return isShutdown() && !isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline=System.nanoTime() + unit.toNanos(timeout);
+        if(!super.awaitTermination(timeout, unit))
+            return false;
+        synchronized(this) {
+            while(active.get() > 0) {
+                long wait_time=deadline - System.nanoTime();
+                if(wait_time <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(this, wait_time);
+            }
+        }
+        return true;
+    }
+
+    public BlockingQueue<Runnable> getQueue()      {return queue;}
+    public boolean                 remove(Runnable task) {return queue.remove(task);}
+    public int                     getPoolSize()    {return active.get();}
+    public int                     getActiveCount() {return active.get();}
+    public int                     getLargestPoolSize() {return largest;}
+    public long                    getCompletedTaskCount() {return completed.get();}
+    public long                    getTaskCount()   {return completed.get() + active.get() + queue.size();}
+    public int                     getCorePoolSize() {return core_threads;}
+    public void                    setCorePoolSize(int size) {core_threads=size;} // no idle threads are kept
+    public boolean                 prestartCoreThread() {return false;}
+    public int                     prestartAllCoreThreads() {return 0;}
+    public int                     getMaximumPoolSize() {return max_threads;}
+
+    public void setMaximumPoolSize(int size) {
+        if(size < 1)
+            throw new IllegalArgumentException("max_threads (" + size + ") has to be > 0");
+        max_threads=size;
+        while(!queue.isEmpty() && acquire()) // run queued tasks on the additional threads
+            startQueuedTask();
+    }
+
+    public String toString() {
+        return active + " active threads (max=" + max_threads + ", largest=" + largest + "), " + queue.size() +
+          " queued tasks, " + completed + " completed tasks" + (isShutdown()? " (shut down)" : "");
+    }
+
+
+    /** Increments the number of active threads, unless max_threads has been reached */
+    protected boolean acquire() {
+        for(;;) {
+            int num=active.get();
+            if(num >= max_threads)
+                return false;
+            if(active.compareAndSet(num, num+1)) {
+                if(num+1 > largest)
+                    largest=num+1;
+                return true;
+            }
+        }
+    }
+
+    protected void release() {
+        if(active.decrementAndGet() == 0 && isShutdown())
+            signalTermination();
+    }
+
+    protected synchronized void signalTermination() {
+        notifyAll();
+    }
+
+    protected void startQueuedTask() {
+        Runnable task=queue.poll();
+        if(task != null)
+            start(task);
+        else
+            release();
+    }
+
+    /** Runs task on a new thread. Has to be called after a successful {@link #acquire()} */
+    protected void start(Runnable task) {
+        Thread thread=null;
+        try {
+            thread=getThreadFactory().newThread(new Worker(task));
+        }
+        catch(Throwable t) {
+        }
+        if(thread == null) {
+            release();
+            reject(task);
+            return;
+        }
+        thread.start();
+    }
+
+    protected void reject(Runnable task) {
+        getRejectedExecutionHandler().rejectedExecution(task, this);
+    }
+
+
+    /** Runs its task, then the tasks in the queue, so that queued tasks don't have to wait for a new thread */
+    protected class Worker implements Runnable {
+        protected Runnable task;
+
+        protected Worker(Runnable task) {
+            this.task=task;
+        }
+
+        public void run() {
+            Thread current=Thread.currentThread();
+            threads.add(current);
+            if(stopped) // shutdownNow() may not have seen this thread
+                current.interrupt();
+            try {
+                while(task != null) {
+                    try {
+                        task.run();
+                    }
+                    catch(Throwable t) {
+                        current.getUncaughtExceptionHandler().uncaughtException(current, t);
+                    }
+                    finally {
+                        completed.incrementAndGet();
+                    }
+                    if(!isShutdown())
+                        Thread.interrupted(); // clears an interrupt of the last task
+                    if((task=queue.poll()) != null)
+                        continue;
+                    release();
+                    // a task may have been queued after poll() returned null and before release()
+                    if(queue.isEmpty() || !acquire())
+                        break;
+                    if((task=queue.poll()) == null)
+                        release();
+                }
+            }
+            finally {
+                threads.remove(current);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.jgroups.util;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expires long keys (e.g. request IDs) after a timeout. Contrary to scheduling a task per key on a {@link TimeScheduler},
+ * adding a key doesn't allocate any objects: the keys are stored in the slots of a hashed timing wheel [1], and a
+ * single task, run every tick ms, advances the wheel and passes the keys whose timeout expired to the {@link Handler}.
+ * Keys are therefore expired up to one tick late.<p/>
+ * Keys cannot be removed: the handler is expected to ignore keys which are not pending anymore.<p/>
+ * [1] http://www.cse.wustl.edu/~cdgill/courses/cs6874/TimingWheels.ppt
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class TimeoutWheel implements Runnable {
+    protected static final Log  log=LogFactory.getLog(TimeoutWheel.class);
+
+    protected final Handler     handler;
+    protected final Slot[]      slots;
+    protected final int         mask;
+    protected final long        tick;   // in ns
+    protected final long        start=System.nanoTime();
+    protected volatile long     position; // the last tick (since start) which was processed
+    protected Future<?>         task;
+
+
+    /** Invoked by the timer thread when a key expires. Must not block */
+    public interface Handler {
+        void expired(long key);
+    }
+
+
+    /**
+     * @param handler The handler of expired keys
+     * @param wheel_size The number of slots, rounded up to a power of 2. Timeouts greater than wheel_size * tick are
+     *                   checked once every rotation until they expire
+     * @param tick The resolution (in ms)
+     */
+    public TimeoutWheel(Handler handler, int wheel_size, long tick) {
+        if(handler == null)
+            throw new IllegalArgumentException("handler must not be null");
+        if(tick <= 0)
+            throw new IllegalArgumentException("tick (" + tick + ") must be positive");
+        this.handler=handler;
+        this.tick=TimeUnit.MILLISECONDS.toNanos(tick);
+        slots=new Slot[Util.getNextHigherPowerOfTwo(Math.max(2, wheel_size))];
+        for(int i=0; i < slots.length; i++)
+            slots[i]=new Slot();
+        mask=slots.length-1;
+    }
+
+    public long tick() {return TimeUnit.NANOSECONDS.toMillis(tick);}
+
+    public synchronized boolean isRunning() {return task != null && !task.isDone();}
+
+    /** Starts running the wheel on timer, unless it is already running */
+    public synchronized void start(TimeScheduler timer) {
+        if(task == null || task.isDone())
+            task=timer.scheduleWithFixedDelay(this, tick, tick, TimeUnit.NANOSECONDS);
+    }
+
+    /** Stops the wheel and discards all keys */
+    public synchronized void stop() {
+        if(task != null) {
+            task.cancel(false);
+            task=null;
+        }
+        for(Slot slot: slots)
+            slot.clear();
+    }
+
+    /** Adds a key which expires after timeout ms */
+    public void add(long key, long timeout) {
+        long deadline=System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long t=(deadline - start + tick -1) / tick; // the first tick at or after the deadline
+        for(;;) {
+            t=Math.max(t, position + 1);
+            if(slots[(int)(t & mask)].add(key, deadline, t))
+                return;
+        }
+    }
+
+    /** Returns the number of keys in the wheel, including the ones that are not pending anymore */
+    public int size() {
+        int retval=0;
+        for(Slot slot: slots)
+            retval+=slot.size();
+        return retval;
+    }
+
+    /** Advances the wheel to the current time and expires all keys whose timeout expired */
+    public void run() {
+        long now=System.nanoTime(), current=(now - start) / tick, from=position + 1;
+        position=current; // adders which read the new position add to slots which will be processed later
+        for(long t=Math.max(from, current - mask); t <= current; t++) {
+            long[] expired=slots[(int)(t & mask)].removeExpired(now);
+            if(expired == null)
+                continue;
+            for(long key: expired) {
+                try {
+                    handler.expired(key);
+                }
+                catch(Throwable ex) {
+                    log.error("failed expiring " + key, ex);
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return slots.length + " slots, tick=" + tick() + " ms, keys=" + size();
+    }
+
+
+    protected class Slot {
+        protected long[] keys=new long[4], deadlines=new long[4];
+        protected int    size;
+
+        /** Adds the key unless the wheel was already advanced past tick t, in which case false is returned */
+        protected synchronized boolean add(long key, long deadline, long t) {
+            if(position >= t)
+                return false;
+            if(size == keys.length) {
+                keys=Arrays.copyOf(keys, size * 2);
+                deadlines=Arrays.copyOf(deadlines, size * 2);
+            }
+            keys[size]=key;
+            deadlines[size++]=deadline;
+            return true;
+        }
+
+        /** Removes and returns the keys whose deadline is before now, or null if there are none */
+        protected synchronized long[] removeExpired(long now) {
+            int num=0;
+            for(int i=0; i < size; i++)
+                if(deadlines[i] - now <= 0)
+                    num++;
+            if(num == 0)
+                return null;
+            long[] expired=new long[num];
+            int index=0, kept=0;
+            for(int i=0; i < size; i++) {
+                if(deadlines[i] - now <= 0)
+                    expired[index++]=keys[i];
+                else {
+                    keys[kept]=keys[i];
+                    deadlines[kept++]=deadlines[i];
+                }
+            }
+            size=kept;
+            return expired;
+        }
+
+        protected synchronized int size() {
+            return size;
+        }
+
+        protected synchronized void clear() {
+            size=0;
+        }
+    }
+}
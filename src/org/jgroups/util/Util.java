@@ -31,6 +31,7 @@ import java.lang.reflect.Modifier;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
+import java.nio.channels.Selector;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
@@ -389,6 +390,18 @@ public class Util {
         }
     }
 
+    public static void close(java.nio.channels.Channel ch) {
+        if(ch != null) {
+            try {ch.close();} catch(Throwable t) {}
+        }
+    }
+
+    public static void close(Selector selector) {
+        if(selector != null) {
+            try {selector.close();} catch(Throwable t) {}
+        }
+    }
+
     public static void close(Channel ch) {
         if(ch != null) {
             try {ch.close();} catch(Throwable t) {}
@@ -2486,6 +2499,14 @@ public class Util {
         return -1;
     }
 
+    /** Returns the smallest power of 2 which is >= num, e.g. 1 for 1, 8 for 5 and 1024 for 1000 */
+    public static int getNextHigherPowerOfTwo(int num) {
+        if(num <= 1)
+            return 1;
+        int highest=Integer.highestOneBit(num);
+        return num <= highest? highest : highest << 1;
+    }
+
     public static Object pickRandomElement(List list) {
         if(list == null) return null;
         int size=list.size();
@@ -3041,6 +3062,22 @@ public class Util {
         throw new IllegalArgumentException("rejection policy \"" + rejection_policy + "\" not known");
     }
 
+    /**
+     * Returns the executor factory for a pool type: "pool" (a thread pool), "virtual" (a new virtual thread per task)
+     * or the fully qualified name of a class implementing {@link ExecutorFactory}
+     */
+    public static ExecutorFactory createExecutorFactory(String type) throws Exception {
+        if(type == null || type.equalsIgnoreCase("pool"))
+            return new DefaultExecutorFactory();
+        if(type.equalsIgnoreCase("virtual"))
+            return new VirtualThreadExecutorFactory();
+        Class<?> clazz=Util.loadClass(type, Util.class);
+        if(!ExecutorFactory.class.isAssignableFrom(clazz))
+            throw new IllegalArgumentException("pool type \"" + type + "\" is neither \"pool\", \"virtual\" nor an " +
+                                                 ExecutorFactory.class.getSimpleName());
+        return (ExecutorFactory)clazz.newInstance();
+    }
+
 
     /**
      * Parses comma-delimited longs; e.g., 2000,4000,8000.
@@ -0,0 +1,79 @@
+package org.jgroups.util;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates {@link ThreadPerTaskExecutor}s running every task on a new virtual thread (type "virtual"). As virtual
+ * threads are cheap, handlers which block (e.g. RPCs invoking other RPCs) don't exhaust a pool of platform threads;
+ * max_threads can therefore be set much higher than with a thread pool, but still limits the number of tasks run
+ * concurrently.<p/>
+ * Virtual threads are looked up by reflection, as they're only available in Java 21 and higher. On JVMs without
+ * virtual threads, a regular thread pool is created instead.
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class VirtualThreadExecutorFactory implements ExecutorFactory {
+    protected static final Log           log=LogFactory.getLog(VirtualThreadExecutorFactory.class);
+
+    /** Creates virtual threads, null if virtual threads are not supported */
+    protected static final ThreadFactory VIRTUAL_THREADS=createVirtualThreadFactory();
+
+
+    public static boolean isSupported() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    public ExecutorService create(String name, int min_threads, int max_threads, long keep_alive_time,
+                                  BlockingQueue<Runnable> queue, RejectedExecutionHandler handler, ThreadFactory factory) {
+        if(VIRTUAL_THREADS == null) {
+            log.warn("virtual threads are not supported by this JVM (" + System.getProperty("java.version") +
+                       "); using a thread pool for " + name + " threads");
+            return new DefaultExecutorFactory().create(name, min_threads, max_threads, keep_alive_time, queue, handler, factory);
+        }
+        return new ThreadPerTaskExecutor(max_threads, queue, handler, new VirtualThreadFactory(name, factory));
+    }
+
+    public String toString() {
+        return "virtual";
+    }
+
+
+    protected static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder=Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory=Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory)factory.invoke(builder);
+        }
+        catch(Throwable t) { // not available or a preview feature which is not enabled
+            return null;
+        }
+    }
+
+
+    /** Creates virtual threads and names them like the threads of the pool they replace */
+    protected static class VirtualThreadFactory implements ThreadFactory {
+        protected final String        name;
+        protected final ThreadFactory naming; // names the threads if it is a JGroups thread factory
+        protected final AtomicInteger counter=new AtomicInteger(0);
+
+        protected VirtualThreadFactory(String name, ThreadFactory naming) {
+            this.name=name;
+            this.naming=naming;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread=VIRTUAL_THREADS.newThread(r);
+            if(naming instanceof org.jgroups.util.ThreadFactory)
+                ((org.jgroups.util.ThreadFactory)naming).renameThread(name, thread);
+            else
+                thread.setName(name + "-" + counter.incrementAndGet());
+            return thread;
+        }
+    }
+}
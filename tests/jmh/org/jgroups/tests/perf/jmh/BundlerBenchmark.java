@@ -0,0 +1,77 @@
+package org.jgroups.tests.perf.jmh;
+
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures sending messages through the bundler of the transport: messages are queued by the bundler and
+ * sent (flushed) as message lists to a transport which discards them. Run with -t (threads) > 1 to measure
+ * contention of concurrent senders
+ * @author Bela Ban
+ * @since  3.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class BundlerBenchmark {
+    @Param({"old", "new", "multi"})
+    protected String   bundler_type;
+
+    @Param({"100", "1000"})
+    protected int      size;
+
+    protected JChannel ch;
+    protected byte[]   payload;
+
+    static {
+        ClassConfigurator.addProtocol((short)1500, DiscardingTransport.class);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        // the transport is the only protocol: messages are not retained for retransmission
+        ch=new JChannel(new Protocol[]{
+          new DiscardingTransport().setValue("bundler_type", bundler_type).setValue("loopback", false)
+        }).name("A");
+        ch.connect("BundlerBenchmark");
+        payload=new byte[size];
+    }
+
+    @TearDown
+    public void destroy() {
+        Util.close(ch);
+    }
+
+    @Benchmark
+    public void send() throws Exception {
+        ch.send(new Message(null, null, payload));
+    }
+
+
+    /** Sends multicasts into the void and counts the bytes sent */
+    public static class DiscardingTransport extends SHARED_LOOPBACK {
+        protected final AtomicLong bytes_sent=new AtomicLong(0);
+
+        public long getBytesSent() {return bytes_sent.get();}
+
+        public void sendMulticast(byte[] data, int offset, int length) throws Exception {
+            bytes_sent.addAndGet(length);
+        }
+
+        public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
+            bytes_sent.addAndGet(length);
+        }
+    }
+}
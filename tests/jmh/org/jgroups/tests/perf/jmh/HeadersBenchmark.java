@@ -0,0 +1,57 @@
+package org.jgroups.tests.perf.jmh;
+
+import org.jgroups.Header;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.Headers;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures adding and looking up headers in {@link Headers}. A typical message carries 3-6 headers
+ * @author Bela Ban
+ * @since  3.3
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class HeadersBenchmark {
+    @Param({"3", "6"})
+    protected int      num_headers;
+
+    protected short[]  ids;
+    protected Header[] hdrs;
+    protected Headers  headers;
+
+    @Setup
+    public void setup() {
+        ids=new short[num_headers];
+        hdrs=new Header[num_headers];
+        for(int i=0; i < num_headers; i++) {
+            ids[i]=(short)(i+1);
+            hdrs[i]=i % 2 == 0? NakAckHeader2.createMessageHeader(i) : UNICAST3.Header.createDataHeader(i, (short)1, false);
+        }
+        headers=new Headers(3);
+        for(int i=0; i < num_headers; i++)
+            headers.putHeader(ids[i], hdrs[i]);
+    }
+
+    /** Creates a new Headers instance with the default capacity (3) and adds num_headers headers to it */
+    @Benchmark
+    public Headers putHeader() {
+        Headers tmp=new Headers(3);
+        for(int i=0; i < num_headers; i++)
+            tmp.putHeader(ids[i], hdrs[i]);
+        return tmp;
+    }
+
+    /** Looks up the last header, which is the worst case of the linear search */
+    @Benchmark
+    public Header getHeader() {
+        return headers.getHeader(ids[num_headers-1]);
+    }
+}
@@ -0,0 +1,48 @@
+package org.jgroups.tests.perf.jmh;
+
+import org.jgroups.Message;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures iterating over a {@link MessageBatch}, as done by every protocol's up(MessageBatch)
+ * @author Bela Ban
+ * @since  3.3
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class MessageBatchBenchmark {
+    protected static final short NAKACK_ID=57;
+
+    @Param({"10", "100"})
+    protected int          batch_size;
+
+    protected MessageBatch batch;
+
+    @Setup
+    public void setup() throws Exception {
+        batch=new MessageBatch(null, Util.createRandomAddress("A"), "cluster", true, MessageBatch.Mode.REG, batch_size);
+        for(int i=0; i < batch_size; i++)
+            batch.add(new Message(null, null, new byte[100]).putHeader(NAKACK_ID, NakAckHeader2.createMessageHeader(i+1)));
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+        for(Message msg: batch)
+            bh.consume(msg.getHeader(NAKACK_ID));
+    }
+
+    @Benchmark
+    public long totalSize() {
+        return batch.totalSize();
+    }
+}
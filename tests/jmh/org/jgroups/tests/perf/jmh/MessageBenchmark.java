@@ -0,0 +1,72 @@
+package org.jgroups.tests.perf.jmh;
+
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures marshalling and unmarshalling of messages ({@link Message#writeTo(java.io.DataOutput)} and
+ * {@link Message#readFrom(java.io.DataInput)}) and of payloads ({@link Util#objectToByteBuffer(Object)})
+ * @author Bela Ban
+ * @since  3.3
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class MessageBenchmark {
+    @Param({"100", "1000"})
+    protected int                          size;
+
+    protected Message                      msg;
+    protected byte[]                       marshalled_msg, marshalled_obj;
+    protected String                       obj;
+    protected ExposedByteArrayOutputStream out_stream;
+
+    @Setup
+    public void setup() throws Exception {
+        msg=new Message(Util.createRandomAddress("A"), Util.createRandomAddress("B"), new byte[size])
+          .putHeader(ClassConfigurator.getProtocolId(NAKACK2.class), NakAckHeader2.createMessageHeader(322649))
+          .putHeader(ClassConfigurator.getProtocolId(UNICAST3.class), UNICAST3.Header.createDataHeader(1000, (short)1, false));
+        out_stream=new ExposedByteArrayOutputStream(size + 200);
+        marshalled_msg=Util.streamableToByteBuffer(msg);
+        StringBuilder sb=new StringBuilder(size);
+        for(int i=0; i < size; i++)
+            sb.append((char)('a' + i % 26));
+        obj=sb.toString();
+        marshalled_obj=Util.objectToByteBuffer(obj);
+    }
+
+    @Benchmark
+    public int writeTo() throws Exception {
+        out_stream.reset();
+        msg.writeTo(new ExposedDataOutputStream(out_stream));
+        return out_stream.size();
+    }
+
+    @Benchmark
+    public Message readFrom() throws Exception {
+        Message tmp=new Message(false);
+        tmp.readFrom(new DataInputStream(new ExposedByteArrayInputStream(marshalled_msg)));
+        return tmp;
+    }
+
+    @Benchmark
+    public byte[] objectToByteBuffer() throws Exception {
+        return Util.objectToByteBuffer(obj);
+    }
+
+    @Benchmark
+    public Object objectFromByteBuffer() throws Exception {
+        return Util.objectFromByteBuffer(marshalled_obj);
+    }
+}
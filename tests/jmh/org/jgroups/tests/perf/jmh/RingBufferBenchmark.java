@@ -0,0 +1,59 @@
+package org.jgroups.tests.perf.jmh;
+
+import org.jgroups.Message;
+import org.jgroups.util.RingBuffer;
+import org.jgroups.util.RingBufferLockless;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures adding messages to and removing them from {@link RingBuffer} and {@link RingBufferLockless}: BATCH
+ * messages are added, then removed with removeMany()
+ * @author Bela Ban
+ * @since  3.3
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class RingBufferBenchmark {
+    protected static final int BATCH=1000;
+
+    @Param({"locking", "lockless"})
+    protected String                      type;
+
+    protected RingBuffer<Message>         buf;
+    protected RingBufferLockless<Message> lockless_buf;
+    protected Message                     msg;
+    protected long                        seqno;
+
+    @Setup
+    public void setup() {
+        if(type.equals("lockless"))
+            lockless_buf=new RingBufferLockless<Message>(BATCH * 2, 0);
+        else
+            buf=new RingBuffer<Message>(BATCH * 2, 0);
+        msg=new Message(null, null, new byte[100]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int addAndRemoveMany() {
+        List<Message> list;
+        if(buf != null) {
+            for(int i=0; i < BATCH; i++)
+                buf.add(++seqno, msg);
+            list=buf.removeMany(true, 0);
+        }
+        else {
+            for(int i=0; i < BATCH; i++)
+                lockless_buf.add(++seqno, msg);
+            list=lockless_buf.removeMany(true, 0);
+        }
+        return list != null? list.size() : 0;
+    }
+}
@@ -0,0 +1,98 @@
+package org.jgroups.tests.perf.jmh;
+
+import org.jgroups.*;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the traversal of messages through a full stack (SHARED_LOOPBACK, PING, NAKACK2, UNICAST3, STABLE, GMS)
+ * from A to B: BATCH messages are sent and the benchmark waits until B has received all of them
+ * @author Bela Ban
+ * @since  3.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class StackBenchmark {
+    protected static final int  BATCH=1000;
+    protected static final long TIMEOUT=TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"100", "1000"})
+    protected int        size;
+
+    protected JChannel   a, b;
+    protected Address    target;
+    protected byte[]     payload;
+    protected final AtomicLong received=new AtomicLong(0);
+    protected long       expected;
+
+    @Setup
+    public void setup() throws Exception {
+        a=create("A");
+        b=create("B");
+        b.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                received.incrementAndGet();
+            }
+        });
+        a.connect("StackBenchmark");
+        b.connect("StackBenchmark");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        target=b.getAddress();
+        payload=new byte[size];
+    }
+
+    @TearDown
+    public void destroy() {
+        Util.close(b, a);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void unicast() throws Exception {
+        send(target);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void multicast() throws Exception {
+        send(null);
+    }
+
+    protected void send(Address dest) throws Exception {
+        for(int i=0; i < BATCH; i++)
+            a.send(new Message(dest, null, payload));
+        expected+=BATCH;
+        long deadline=System.nanoTime() + TIMEOUT;
+        while(received.get() < expected) {
+            if(System.nanoTime() > deadline)
+                throw new IllegalStateException("received only " + received + " of " + expected + " messages");
+            LockSupport.parkNanos(1000);
+        }
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(new Protocol[]{
+          new SHARED_LOOPBACK(),
+          new PING().setValue("timeout", 500).setValue("num_initial_members", 2),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE().setValue("max_bytes", 500000),
+          new GMS().setValue("print_local_addr", false)
+        }).name(name);
+    }
+}
@@ -0,0 +1,48 @@
+package org.jgroups.tests.perf.jmh;
+
+import org.jgroups.Message;
+import org.jgroups.util.LocklessTable;
+import org.jgroups.util.Table;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures adding messages to and removing them from the retransmission tables used by NAKACK2 and UNICAST3
+ * ({@link Table} and {@link LocklessTable}): BATCH messages are added, then removed with removeMany()
+ * @author Bela Ban
+ * @since  3.3
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class TableBenchmark {
+    protected static final int BATCH=1000;
+
+    @Param({"table", "lockless"})
+    protected String         type;
+
+    protected Table<Message> table;
+    protected Message        msg;
+    protected long           seqno;
+
+    @Setup
+    public void setup() {
+        table=type.equals("lockless")? new LocklessTable<Message>(100 * 1000, 1000, 0)
+          : new Table<Message>(100, 1000, 0);
+        msg=new Message(null, null, new byte[100]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int addAndRemoveMany() {
+        for(int i=0; i < BATCH; i++)
+            table.add(++seqno, msg);
+        List<Message> list=table.removeMany(true, 0);
+        return list != null? list.size() : 0;
+    }
+}
@@ -254,7 +254,7 @@ public class GroupRequestTest {
         checkComplete(req, true);
     }
 
-    protected static void checkComplete(Request req, boolean expect) {
+    protected static void checkComplete(Request<?> req, boolean expect) {
         System.out.println("req = " + req);
         assert req.getResponsesComplete() == expect;
     }
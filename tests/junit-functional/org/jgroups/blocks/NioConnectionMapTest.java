@@ -0,0 +1,247 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.ResourceManager;
+import org.jgroups.util.StackType;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Tests {@link NioConnectionMap}
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class NioConnectionMapTest {
+    protected NioConnectionMap ct1, ct2;
+    protected TCPConnectionMap tcp;
+    protected int              PORT1, PORT2;
+    protected Address          addr1, addr2;
+    static final InetAddress   loopback_addr;
+
+    static {
+        try {
+            StackType type=Util.getIpStackType();
+            String tmp=type == StackType.IPv6? "::1" : "127.0.0.1";
+            loopback_addr=InetAddress.getByName(tmp);
+        }
+        catch(UnknownHostException e) {
+            throw new RuntimeException("failed initializing loopback_addr", e);
+        }
+    }
+
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        List<Short> ports=ResourceManager.getNextTcpPorts(loopback_addr, 2);
+        PORT1=ports.get(0);
+        PORT2=ports.get(1);
+        addr1=new IpAddress(loopback_addr, PORT1);
+        addr2=new IpAddress(loopback_addr, PORT2);
+    }
+
+    @AfterMethod
+    protected void tearDown() throws Exception {
+        if(tcp != null) {
+            tcp.stop();
+            tcp=null;
+        }
+        if(ct2 != null) {
+            ct2.stop();
+            ct2=null;
+        }
+        if(ct1 != null) {
+            ct1.stop();
+            ct1=null;
+        }
+    }
+
+
+    /** A sends to B and B sends to A: only one connection must be established */
+    public void testReuseOfConnection() throws Exception {
+        MyReceiver r1=new MyReceiver(2), r2=new MyReceiver(2);
+        ct1=create(r1, PORT1);
+        ct2=create(r2, PORT2);
+
+        ct1.send(addr2, "hello".getBytes(), 0, 5);
+        ct2.send(addr1, "world".getBytes(), 0, 5);
+        ct1.send(addr2, "bela".getBytes(), 0, 4);
+        ct2.send(addr1, "ban".getBytes(), 0, 3);
+
+        assert r1.await(10000) && r2.await(10000);
+        System.out.println("ct1: " + ct1 + "\nct2: " + ct2);
+        assert ct1.getNumConnections() == 1 && ct2.getNumConnections() == 1;
+        assert ct1.connectionEstablishedTo(addr2) && ct2.connectionEstablishedTo(addr1);
+        assert r1.senders.contains(addr2) && r2.senders.contains(addr1);
+    }
+
+    /** Sends messages smaller and bigger than the read buffer and checks that they're received in order */
+    public void testOrderingAndLargeMessages() throws Exception {
+        final int NUM=500;
+        MyReceiver r2=new MyReceiver(NUM);
+        ct1=create(new MyReceiver(0), PORT1);
+        ct2=create(r2, PORT2);
+
+        for(int i=0; i < NUM; i++) {
+            byte[] buf=createMessage(i, i % 50 == 0? 50000 : 100);
+            ct1.send(addr2, buf, 0, buf.length);
+        }
+        assert r2.await(20000) : "received only " + r2.msgs.size() + " messages";
+        for(int i=0; i < NUM; i++)
+            checkMessage(r2.msgs.get(i), i, i % 50 == 0? 50000 : 100);
+    }
+
+    /** NioConnectionMap uses the same handshake and framing as TCPConnectionMap, so they can talk to each other */
+    public void testInteroperabilityWithTCPConnectionMap() throws Exception {
+        MyReceiver r1=new MyReceiver(10), r2=new MyReceiver(10);
+        ct1=create(r1, PORT1);
+        tcp=new TCPConnectionMap("NioConnectionMapTest", new DefaultThreadFactory("NioConnectionMapTest", true),
+                                 null, r2, loopback_addr, null, 0, PORT2, PORT2);
+        tcp.setUseSendQueues(false);
+        tcp.start();
+
+        for(int i=0; i < 10; i++) {
+            byte[] buf=createMessage(i, 2000);
+            ct1.send(addr2, buf, 0, buf.length);
+        }
+        assert r2.await(10000);
+        for(int i=0; i < 10; i++) { // reuses the connection established by ct1
+            byte[] buf=createMessage(i, 2000);
+            tcp.send(addr1, buf, 0, buf.length);
+        }
+        assert r1.await(10000);
+        assert ct1.getNumConnections() == 1 && tcp.getNumConnections() == 1;
+        for(int i=0; i < 10; i++) {
+            checkMessage(r1.msgs.get(i), i, 2000);
+            checkMessage(r2.msgs.get(i), i, 2000);
+        }
+    }
+
+    /** A receiver which doesn't read blocks the I/O thread: the queue of the sender fills and sends are dropped */
+    public void testBackpressure() throws Exception {
+        final CountDownLatch unblock=new CountDownLatch(1);
+        MyReceiver r2=new MyReceiver(1) {
+            public void receive(Address sender, byte[] data, int offset, int length) {
+                try {
+                    unblock.await();
+                }
+                catch(InterruptedException e) {
+                }
+                super.receive(sender, data, offset, length);
+            }
+        };
+        ct1=new NioConnectionMap("NioConnectionMapTest", new DefaultThreadFactory("NioConnectionMapTest", true),
+                                 new MyReceiver(0), loopback_addr, null, 0, PORT1, PORT1, 1)
+          .maxQueuedBytes(100000).maxSendBlockTime(100);
+        ct1.setSendBufferSize(10000);
+        ct1.start();
+        ct2=create(r2, PORT2);
+        ct2.setReceiveBufferSize(10000);
+
+        byte[] buf=new byte[10000];
+        long start=System.currentTimeMillis();
+        for(int i=0; i < 200 && ct1.getNumDroppedSends() == 0; i++)
+            ct1.send(addr2, buf, 0, buf.length);
+        long time=System.currentTimeMillis() - start;
+        System.out.println("blocked sends: " + ct1.getNumBlockedSends() + ", dropped sends: " + ct1.getNumDroppedSends() +
+                             ", queued bytes: " + ct1.getQueuedBytes() + ", time: " + time + " ms");
+        assert ct1.getNumBlockedSends() > 0 && ct1.getNumDroppedSends() > 0;
+        assert ct1.getQueuedBytes() <= 100000 + buf.length + Global.INT_SIZE;
+        unblock.countDown();
+        assert r2.await(10000);
+    }
+
+    /** The number of threads doesn't depend on the number of connections */
+    public void testNumberOfThreads() throws Exception {
+        final int NUM=10;
+        ct1=create(new MyReceiver(0), PORT1);
+        List<NioConnectionMap> peers=new ArrayList<NioConnectionMap>(NUM);
+        try {
+            List<Short> ports=ResourceManager.getNextTcpPorts(loopback_addr, NUM);
+            for(short port: ports) {
+                NioConnectionMap peer=create(new MyReceiver(0), port);
+                peers.add(peer);
+                peer.send(addr1, new byte[10], 0, 10);
+            }
+            for(int i=0; i < 20 && ct1.getNumConnections() < NUM; i++)
+                Util.sleep(200);
+            assert ct1.getNumConnections() == NUM : "connections: " + ct1.getNumConnections();
+            int num_threads=0;
+            for(Thread thread: Thread.getAllStackTraces().keySet())
+                if(thread.getName().startsWith("NioConnectionMap.Reactor") && thread.getName().contains(":" + PORT1))
+                    num_threads++;
+            assert num_threads == ct1.getNumIoThreads() : "threads: " + num_threads;
+        }
+        finally {
+            for(NioConnectionMap peer: peers)
+                peer.stop();
+        }
+    }
+
+
+    protected static NioConnectionMap create(TCPConnectionMap.Receiver r, int port) throws Exception {
+        NioConnectionMap map=new NioConnectionMap("NioConnectionMapTest", new DefaultThreadFactory("NioConnectionMapTest", true),
+                                                  r, loopback_addr, null, 0, port, port, 2)
+          .readBufferSize(8192);
+        map.start();
+        return map;
+    }
+
+    protected static byte[] createMessage(int seqno, int size) {
+        ByteBuffer buf=ByteBuffer.allocate(size);
+        buf.putInt(seqno);
+        while(buf.hasRemaining())
+            buf.put((byte)buf.position());
+        return buf.array();
+    }
+
+    protected static void checkMessage(byte[] msg, int seqno, int size) {
+        assert msg.length == size : "message " + seqno + " has a length of " + msg.length + ", expected " + size;
+        ByteBuffer buf=ByteBuffer.wrap(msg);
+        int num=buf.getInt();
+        assert num == seqno : "expected message " + seqno + ", but got " + num;
+        while(buf.hasRemaining()) {
+            int pos=buf.position();
+            byte b=buf.get();
+            assert b == (byte)pos : "message " + seqno + " is corrupt at position " + pos;
+        }
+    }
+
+
+    protected static class MyReceiver implements TCPConnectionMap.Receiver {
+        protected final List<byte[]>  msgs=Collections.synchronizedList(new ArrayList<byte[]>());
+        protected final List<Address> senders=Collections.synchronizedList(new ArrayList<Address>());
+        protected final CountDownLatch latch;
+
+        public MyReceiver(int expected) {
+            latch=new CountDownLatch(expected);
+        }
+
+        public void receive(Address sender, byte[] data, int offset, int length) {
+            byte[] copy=new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            msgs.add(copy);
+            senders.add(sender);
+            latch.countDown();
+        }
+
+        public boolean await(long timeout) throws InterruptedException {
+            return latch.await(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -4,6 +4,8 @@ package org.jgroups.blocks;
 import org.jgroups.Address;
 import org.jgroups.Global;
 import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
 import org.jgroups.View;
 import org.jgroups.protocols.*;
 import org.jgroups.stack.Protocol;
@@ -13,9 +15,13 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A collection of tests to test the RpcDispatcher.
@@ -412,6 +418,161 @@ public class RpcDispatcherTest {
     }
 
 
+    public void testAsyncCalls() throws Exception {
+        final int NUM=1000;
+        MethodCall foo=new MethodCall("foo", null, null);
+        final CountDownLatch latch=new CountDownLatch(NUM);
+        final AtomicInteger num_valid=new AtomicInteger(0);
+        for(int i=0; i < NUM; i++) {
+            ComposableFuture<RspList<Integer>> future=disp1.callRemoteMethodsAsync(null, foo, new RequestOptions(ResponseMode.GET_ALL, 10000));
+            future.setListener(new FutureListener<RspList<Integer>>() {
+                public void futureDone(Future<RspList<Integer>> f) {
+                    try {
+                        RspList<Integer> rsps=f.get();
+                        if(rsps.size() == 3 && rsps.numReceived() == 3 && rsps.getValue(a.getAddress()) == 1)
+                            num_valid.incrementAndGet();
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+        assert latch.await(20, TimeUnit.SECONDS) : latch.getCount() + " calls are still outstanding";
+        assert num_valid.get() == NUM : "valid calls: " + num_valid;
+        assert disp1.corr.getNumPendingRequests() == 0 : "pending requests: " + disp1.corr.getNumPendingRequests();
+    }
+
+    public void testAsyncRspListener() throws Exception {
+        MethodCall sleep=new MethodCall("sleepMultiple", new Object[]{200L}, new Class<?>[]{long.class});
+        final List<Address> senders=new ArrayList<Address>();
+        ComposableFuture<RspList<Long>> future=disp1.callRemoteMethodsAsync(null, sleep, new RequestOptions(ResponseMode.GET_ALL, 5000),
+                                                                             new RspListener<Long>() {
+                                                                                 public void responseReceived(Rsp<Long> rsp) {
+                                                                                     assert rsp.wasReceived();
+                                                                                     synchronized(senders) {
+                                                                                         senders.add(rsp.getSender());
+                                                                                     }
+                                                                                 }
+                                                                             });
+        RspList<Long> rsps=future.get(10, TimeUnit.SECONDS);
+        System.out.println("rsps:\n" + rsps);
+        assert rsps.numReceived() == 3;
+        // the responses are streamed in the order in which they are received
+        assert senders.equals(Arrays.asList(a.getAddress(), b.getAddress(), c.getAddress())) : "senders: " + senders;
+    }
+
+    public void testAsyncFirstN() throws Exception {
+        MethodCall sleep=new MethodCall("sleepMultiple", new Object[]{1000L}, new Class<?>[]{long.class});
+        RequestOptions opts=new RequestOptions(ResponseMode.GET_ALL, 10000).setRspFilter(new FirstNFilter(2));
+        long start=System.currentTimeMillis();
+        RspList<Long> rsps=disp1.<Long>callRemoteMethodsAsync(null, sleep, opts).get(10, TimeUnit.SECONDS);
+        long time=System.currentTimeMillis() - start;
+        System.out.println("rsps (" + time + " ms):\n" + rsps);
+        assert rsps.numReceived() == 2;
+        assert rsps.isReceived(a.getAddress()) && rsps.isReceived(b.getAddress());
+        assert !rsps.isReceived(c.getAddress());
+        assert time < 3000 : "call took " + time + " ms";
+    }
+
+    public void testAsyncTimeout() throws Exception {
+        MethodCall sleep=new MethodCall("sleep", new Object[]{2000L}, new Class<?>[]{long.class});
+        long start=System.currentTimeMillis();
+        RspList<Long> rsps=disp1.<Long>callRemoteMethodsAsync(null, sleep, new RequestOptions(ResponseMode.GET_ALL, 500)).get();
+        long time=System.currentTimeMillis() - start;
+        System.out.println("rsps (" + time + " ms):\n" + rsps);
+        assert rsps.size() == 3 && rsps.numReceived() == 0;
+        assert time < 2000 : "call took " + time + " ms";
+        assert disp1.corr.getNumPendingRequests() == 0 : "pending requests: " + disp1.corr.getNumPendingRequests();
+
+        ComposableFuture<Long> future=disp1.callRemoteMethodAsync(b.getAddress(), sleep, new RequestOptions(ResponseMode.GET_ALL, 500));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            assert false : "the call should have timed out";
+        }
+        catch(ExecutionException ex) {
+            System.out.println("got exception as expected: " + ex.getCause());
+            assert ex.getCause() instanceof TimeoutException;
+        }
+    }
+
+    public void testAsyncUnicastComposition() throws Exception {
+        MethodCall foo=new MethodCall("foo", null, null);
+        final MethodCall sleep=new MethodCall("sleep", new Object[]{100L}, new Class<?>[]{long.class});
+        final RequestOptions opts=new RequestOptions(ResponseMode.GET_ALL, 5000);
+
+        ComposableFuture<Integer> future=disp1.callRemoteMethodAsync(b.getAddress(), foo, opts);
+        int doubled=future.thenApply(new ComposableFuture.Function<Integer,Integer>() {
+            public Integer apply(Integer arg) {return arg * 2;}
+        }).get(5, TimeUnit.SECONDS);
+        assert doubled == 4;
+
+        // calls C when the call to B returns
+        long slept=future.thenCompose(new ComposableFuture.Function<Integer,NotifyingFuture<Long>>() {
+            public NotifyingFuture<Long> apply(Integer arg) throws Exception {
+                return disp1.callRemoteMethodAsync(c.getAddress(), sleep, opts);
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assert slept >= 100;
+
+        // quorum of unicast calls
+        List<ComposableFuture<Integer>> futures=new ArrayList<ComposableFuture<Integer>>();
+        for(JChannel ch: Arrays.asList(a, b, c))
+            futures.add(disp1.<Integer>callRemoteMethodAsync(ch.getAddress(), foo, opts));
+        List<Integer> results=ComposableFuture.quorum(futures).get(5, TimeUnit.SECONDS);
+        assert results.size() == 2;
+
+        ComposableFuture<Object> failed=disp1.callRemoteMethodAsync(b.getAddress(), new MethodCall("throwException", null, null), opts);
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            assert false : "the call should have thrown an exception";
+        }
+        catch(ExecutionException ex) {
+            System.out.println("got exception as expected: " + ex.getCause());
+            assert ex.getCause().getMessage().equals("booom");
+        }
+    }
+
+    public void testAsyncCancel() throws Exception {
+        MethodCall sleep=new MethodCall("sleep", new Object[]{1000L}, new Class<?>[]{long.class});
+        ComposableFuture<RspList<Long>> future=disp1.callRemoteMethodsAsync(null, sleep, new RequestOptions(ResponseMode.GET_ALL, 0));
+        assert !future.isDone();
+        future.cancel(true);
+        assert future.isDone() && future.isCancelled();
+        try {
+            future.get();
+            assert false : "get() should have thrown a CancellationException";
+        }
+        catch(CancellationException ex) {
+            System.out.println("got CancellationException as expected");
+        }
+    }
+
+
+    /** Regular messages and RPCs from the same sender must be delivered in send order, also when received in batches */
+    public void testOrderOfMessagesAndRequests() throws Exception {
+        final int NUM=500;
+        final ServerObject server=(ServerObject)disp2.getServerObject();
+        disp2.setMessageListener(new ReceiverAdapter() {
+            public void receive(Message msg) {server.order.add("m" + msg.getObject());}
+        });
+        RequestOptions opts=new RequestOptions(ResponseMode.GET_NONE, 0);
+        for(int i=1; i <= NUM; i++) {
+            a.send(b.getAddress(), i);
+            disp1.callRemoteMethod(b.getAddress(), new MethodCall("addToOrder", new Object[]{i}, new Class<?>[]{int.class}), opts);
+        }
+        for(int i=0; i < 20 && server.order.size() < NUM * 2; i++)
+            Util.sleep(500);
+        List<String> expected=new ArrayList<String>(NUM * 2);
+        for(int i=1; i <= NUM; i++) {
+            expected.add("m" + i);
+            expected.add("r" + i);
+        }
+        assert server.order.equals(expected) : "wrong order: " + server.order;
+    }
+
+
     /**
      * Test the ability of RpcDispatcher to handle large argument and return values
      * with multicast RPC calls.
@@ -650,10 +811,13 @@ public class RpcDispatcherTest {
      */
     private static class ServerObject {
         int i;
+        protected final List<String> order=Collections.synchronizedList(new ArrayList<String>());
         public ServerObject(int i) {
             this.i=i;
         }
         public int foo() {return i;}
+
+        public void addToOrder(int num) {order.add("r" + num);}
         
         public static long sleep(long timeout) {
             // System.out.println("sleep()");
@@ -664,6 +828,11 @@ public class RpcDispatcherTest {
         }
 
 
+        /** Sleeps i * timeout ms, so that the responses of members with a higher i are received later */
+        public long sleepMultiple(long timeout) {
+            return sleep(i * timeout);
+        }
+
         public static void throwException() throws Exception {
             throw new Exception("booom");
         }
@@ -0,0 +1,218 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.blocks.locking.LockService;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tests {@link CENTRAL_LOCK} with leases (use_leases=true) and a striped server lock table
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class CENTRAL_LOCK_Test {
+    protected JChannel    a, b, c;
+    protected LockService s1, s2, s3;
+    protected static final String LOCK="lease-lock";
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=create("A", 10000); s1=new LockService(a);
+        b=create("B", 10000); s2=new LockService(b);
+        c=create("C", 10000); s3=new LockService(c);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    @AfterMethod
+    protected void tearDown() throws Exception {Util.close(c, b, a);}
+
+
+    /** Relocking a lock we hold a lease for doesn't contact the coordinator */
+    public void testRelockFromLease() throws Exception {
+        Lock lock=s2.getLock(LOCK);
+        for(int i=0; i < 100; i++) {
+            lock.lock();
+            lock.unlock();
+        }
+        CENTRAL_LOCK prot=centralLock(b);
+        System.out.println("lease acquisitions: " + prot.getNumberOfLeaseAcquisitions() + "\n" + s1.printLocks());
+        assert prot.getNumberOfLeaseAcquisitions() == 99;
+        assert prot.getNumberOfLeases() == 1;
+        assert centralLock(a).getNumberOfServerLocks() == 1; // the coordinator still has B as owner
+
+        s2.unlockAll(); // releases the lease
+        for(int i=0; i < 20 && centralLock(a).getNumberOfServerLocks() > 0; i++)
+            Util.sleep(200);
+        assert prot.getNumberOfLeases() == 0;
+        assert centralLock(a).getNumberOfServerLocks() == 0;
+    }
+
+    /** A lock request by a different member revokes an unused lease */
+    public void testRevokeUnusedLease() throws Exception {
+        Lock lock=s2.getLock(LOCK);
+        lock.lock();
+        lock.unlock();
+        assert centralLock(b).getNumberOfLeases() == 1;
+
+        Lock lock3=s3.getLock(LOCK);
+        assert lock3.tryLock(5000, TimeUnit.MILLISECONDS);
+        assert centralLock(b).getNumberOfLeasesRevoked() == 1;
+        assert centralLock(b).getNumberOfLeases() == 0;
+        lock3.unlock();
+
+        // and C's lease is revoked when B locks again
+        assert lock.tryLock(5000, TimeUnit.MILLISECONDS);
+        assert centralLock(c).getNumberOfLeasesRevoked() == 1;
+        lock.unlock();
+    }
+
+    /** A lease which is in use is released on the next unlock; a tryLock() without timeout is denied */
+    public void testRevokeLeaseInUse() throws Exception {
+        Lock lock=s2.getLock(LOCK);
+        lock.lock();
+        Lock lock3=s3.getLock(LOCK);
+        assert !lock3.tryLock();
+
+        final CountDownLatch acquired=new CountDownLatch(1);
+        Thread thread=new Thread() {
+            public void run() {
+                Lock tmp=s3.getLock(LOCK);
+                tmp.lock();
+                acquired.countDown();
+                tmp.unlock();
+            }
+        };
+        thread.start();
+        assert !acquired.await(500, TimeUnit.MILLISECONDS);
+        lock.unlock(); // releases the lock as it was revoked
+        assert acquired.await(5000, TimeUnit.MILLISECONDS);
+        assert centralLock(b).getNumberOfLeases() == 0;
+        thread.join(5000);
+    }
+
+    public void testLeaseExpiry() throws Exception {
+        Util.close(c, b, a);
+        a=create("A", 500); s1=new LockService(a);
+        b=create("B", 500); s2=new LockService(b);
+        c=create("C", 500); s3=new LockService(c);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+        Lock lock=s2.getLock(LOCK);
+        lock.lock();
+        lock.unlock();
+        assert centralLock(b).getNumberOfLeases() == 1;
+        for(int i=0; i < 20 && centralLock(a).getNumberOfServerLocks() > 0; i++)
+            Util.sleep(200);
+        assert centralLock(b).getNumberOfLeases() == 0;
+        assert centralLock(a).getNumberOfServerLocks() == 0;
+    }
+
+    /** Threads on B and C lock and unlock a number of locks concurrently; no 2 owners must hold the same lock */
+    public void testMutualExclusion() throws Exception {
+        final int NUM_LOCKS=10, NUM_THREADS=8, NUM_ITERATIONS=100;
+        final AtomicInteger[] holders=new AtomicInteger[NUM_LOCKS];
+        for(int i=0; i < holders.length; i++)
+            holders[i]=new AtomicInteger(0);
+        final AtomicInteger violations=new AtomicInteger(0);
+
+        List<Thread> threads=new ArrayList<Thread>(NUM_THREADS);
+        for(int i=0; i < NUM_THREADS; i++) {
+            final LockService service=i % 2 == 0? s2 : s3;
+            final int offset=i;
+            Thread thread=new Thread() {
+                public void run() {
+                    for(int j=0; j < NUM_ITERATIONS; j++) {
+                        int index=(j + offset) % NUM_LOCKS;
+                        Lock lock=service.getLock("lock-" + index);
+                        lock.lock();
+                        try {
+                            if(holders[index].incrementAndGet() != 1)
+                                violations.incrementAndGet();
+                            holders[index].decrementAndGet();
+                        }
+                        finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread: threads) {
+            thread.join(60000);
+            assert !thread.isAlive() : thread + " is still running";
+        }
+        System.out.println("lease acquisitions: B=" + centralLock(b).getNumberOfLeaseAcquisitions() +
+                             ", C=" + centralLock(c).getNumberOfLeaseAcquisitions());
+        assert violations.get() == 0 : violations.get() + " violations of mutual exclusion";
+    }
+
+    /** The lock server must not hold a stripe lock while sending LOCK_GRANTED, LOCK_DENIED or REVOKE_LEASE */
+    public void testNoSendsUnderStripeLock() throws Exception {
+        final CENTRAL_LOCK server=centralLock(a);
+        final AtomicInteger sent=new AtomicInteger(), sent_under_lock=new AtomicInteger();
+        a.getProtocolStack().insertProtocol(new Protocol() {
+            public Object down(Event evt) {
+                if(evt.getType() == Event.MSG && ((Message)evt.getArg()).getHeader(server.getId()) != null
+                  && isResponse((Locking.Request)((Message)evt.getArg()).getObject())) {
+                    sent.incrementAndGet();
+                    for(Lock stripe: server.server_lock_stripes)
+                        if(((ReentrantLock)stripe).isHeldByCurrentThread())
+                            sent_under_lock.incrementAndGet();
+                }
+                return down_prot.down(evt);
+            }
+        }, ProtocolStack.BELOW, CENTRAL_LOCK.class);
+
+        Lock lock=s2.getLock(LOCK);
+        lock.lock();
+        assert !s3.getLock(LOCK).tryLock(); // REVOKE_LEASE to B, then LOCK_DENIED to C
+        lock.unlock();
+        assert s3.getLock(LOCK).tryLock(5000, TimeUnit.MILLISECONDS);
+        s3.getLock(LOCK).unlock();
+
+        System.out.println("sent=" + sent + ", sent under a stripe lock=" + sent_under_lock);
+        assert sent.get() > 0;
+        assert sent_under_lock.get() == 0 : sent_under_lock + " responses were sent while holding a stripe lock";
+    }
+
+
+    protected static boolean isResponse(Locking.Request req) {
+        switch(req.type) {
+            case LOCK_GRANTED: case LOCK_DENIED: case REVOKE_LEASE: case SIG_RET:
+                return true;
+        }
+        return false; // e.g. CREATE_LOCK or DELETE_LOCK sent to the backups
+    }
+
+    protected static CENTRAL_LOCK centralLock(JChannel ch) {
+        return (CENTRAL_LOCK)ch.getProtocolStack().findProtocol(CENTRAL_LOCK.class);
+    }
+
+    protected static JChannel create(String name, long lease_timeout) throws Exception {
+        Protocol[] stack=Util.getTestStack();
+        Protocol[] prots=new Protocol[stack.length +1];
+        System.arraycopy(stack, 0, prots, 0, stack.length);
+        prots[stack.length]=new CENTRAL_LOCK().setValue("use_leases", true)
+          .setValue("lease_timeout", lease_timeout).setValue("num_lock_stripes", 4);
+        JChannel ch=new JChannel(prots).name(name);
+        ch.connect("CENTRAL_LOCK_Test");
+        return ch;
+    }
+}
@@ -0,0 +1,166 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests the cipher pools of {@link ENCRYPT} with transformations with and without IV, and concurrent encryption
+ * and decryption
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false,dataProvider="createAlgorithm")
+public class ENCRYPTCipherPoolTest {
+    static final short ENCRYPT_ID=ClassConfigurator.getProtocolId(ENCRYPT.class);
+
+    @DataProvider
+    static Object[][] createAlgorithm() {
+        return new Object[][] {
+          {"AES"},
+          {"AES/CBC/PKCS5Padding"},
+          {"AES/GCM/NoPadding"}
+        };
+    }
+
+
+    public void testRoundTrip(String algorithm) throws Exception {
+        ENCRYPT sender=create(algorithm), receiver=create(algorithm);
+        Collector sent=new Collector(), received=new Collector();
+        sender.setObserver(sent);
+        receiver.setObserver(received);
+
+        byte[] payload="hello world".getBytes();
+        for(int i=0; i < 2; i++)
+            sender.down(new Event(Event.MSG, new Message(null, null, payload)));
+        assert sent.msgs.size() == 2;
+        Message first=sent.msgs.poll(), second=sent.msgs.poll();
+        assert !Arrays.equals(payload, first.getBuffer());
+        if(!algorithm.equals("AES")) {
+            assert ((ENCRYPT.EncryptHeader)first.getHeader(ENCRYPT_ID)).iv != null;
+            assert !Arrays.equals(first.getBuffer(), second.getBuffer()) : "same plaintext has to be encrypted with a different IV";
+        }
+
+        receiver.up(new Event(Event.MSG, first));
+        receiver.up(new Event(Event.MSG, second));
+        assert received.msgs.size() == 2;
+        for(Message msg: received.msgs)
+            assert Arrays.equals(payload, msg.getBuffer());
+    }
+
+    /** GCM authenticates messages: a modified message must not be passed up */
+    public void testModifiedMessage(String algorithm) throws Exception {
+        if(!algorithm.contains("GCM"))
+            return;
+        ENCRYPT sender=create(algorithm), receiver=create(algorithm);
+        Collector sent=new Collector(), received=new Collector();
+        sender.setObserver(sent);
+        receiver.setObserver(received);
+
+        sender.down(new Event(Event.MSG, new Message(null, null, "hello world".getBytes())));
+        Message msg=sent.msgs.poll();
+        msg.getRawBuffer()[msg.getOffset()]^=1;
+        receiver.up(new Event(Event.MSG, msg));
+        assert received.msgs.isEmpty() : "modified message must have been dropped";
+    }
+
+    public void testConcurrentEncryptionAndDecryption(String algorithm) throws Exception {
+        final int NUM_THREADS=8, NUM=500;
+        final ENCRYPT sender=create(algorithm), receiver=create(algorithm);
+        final Collector sent=new Collector();
+        sender.setObserver(sent);
+
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[NUM_THREADS];
+        for(int i=0; i < threads.length; i++) {
+            final int id=i;
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=0; j < NUM; j++)
+                            sender.down(new Event(Event.MSG, new Message(null, null, id + "-" + j)));
+                    }
+                    catch(InterruptedException e) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join(30000);
+        assert sent.msgs.size() == NUM_THREADS * NUM : "sent " + sent.msgs.size() + " messages";
+
+        // decrypt the messages in batches, on NUM_THREADS threads
+        List<MessageBatch> batches=new ArrayList<MessageBatch>();
+        MessageBatch batch=null;
+        for(Message msg: sent.msgs) {
+            if(batch == null || batch.size() == 100)
+                batches.add(batch=new MessageBatch(100));
+            batch.add(msg);
+        }
+        final Queue<MessageBatch> queue=new ConcurrentLinkedQueue<MessageBatch>(batches);
+        final BatchCollector up=new BatchCollector();
+        receiver.setUpProtocol(up);
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    MessageBatch tmp;
+                    while((tmp=queue.poll()) != null)
+                        receiver.up(tmp);
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join(30000);
+        assert up.msgs.size() == NUM_THREADS * NUM : "received " + up.msgs.size() + " messages";
+        for(Message msg: up.msgs) {
+            String payload=(String)msg.getObject();
+            assert payload.matches("\\d+-\\d+") : "corrupt payload " + payload;
+        }
+    }
+
+
+    protected static ENCRYPT create(String algorithm) throws Exception {
+        ENCRYPT encrypt=new ENCRYPT();
+        encrypt.keyStoreName="defaultStore.keystore";
+        encrypt.symAlgorithm=algorithm;
+        encrypt.init();
+        return encrypt;
+    }
+
+
+    /** Collects messages sent down or passed up by ENCRYPT */
+    protected static class Collector implements ENCRYPT.Observer {
+        protected final Queue<Message> msgs=new ConcurrentLinkedQueue<Message>();
+
+        public void up(Event evt)       {}
+        public void passUp(Event evt)   {msgs.add((Message)evt.getArg());}
+        public void down(Event evt)     {}
+        public void passDown(Event evt) {msgs.add((Message)evt.getArg());}
+    }
+
+    /** Collects the messages of batches passed up by ENCRYPT */
+    protected static class BatchCollector extends Protocol {
+        protected final Queue<Message> msgs=new ConcurrentLinkedQueue<Message>();
+
+        public void up(MessageBatch batch) {
+            for(Message msg: batch)
+                msgs.add(msg);
+        }
+    }
+}
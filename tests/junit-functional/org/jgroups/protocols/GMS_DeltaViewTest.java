@@ -0,0 +1,92 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests view installation with delta views ({@link DeltaView})
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class GMS_DeltaViewTest {
+    protected JChannel a, b, c, d;
+
+    @AfterMethod
+    protected void tearDown() throws Exception {Util.close(d, c, b, a);}
+
+
+    public void testJoinAndLeave() throws Exception {
+        a=create("A");
+        b=create("B");
+        c=create("C");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+        d=create("D");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c, d);
+        assertSameViews(a, b, c, d);
+        System.out.println("view: " + a.getView());
+
+        Util.close(c);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, d);
+        assertSameViews(a, b, d);
+        System.out.println("view: " + a.getView());
+
+        GMS gms=(GMS)a.getProtocolStack().findProtocol(GMS.class);
+        System.out.println("delta views sent by A: " + gms.getNumberOfDeltaViewsSent());
+        assert gms.getNumberOfDeltaViewsSent() == 4 : "expected 4 delta views, but got " + gms.getNumberOfDeltaViewsSent();
+        assert gms.getNumberOfFullViewRequests() == 0;
+    }
+
+    /** A member which doesn't have the reference view of a delta view fetches the full view from the coordinator */
+    public void testDeltaViewWithMissingReferenceView() throws Exception {
+        a=create("A");
+        b=create("B");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        View view=a.getView();
+
+        // a delta view B doesn't have the reference view of
+        ViewId ref_view_id=new ViewId(a.getAddress(), view.getViewId().getId() - 1);
+        DeltaView delta=new DeltaView(new ViewId(a.getAddress(), view.getViewId().getId() + 1), ref_view_id,
+                                      new Address[0], new Address[0]);
+        Message msg=new Message(b.getAddress()).src(a.getAddress())
+          .putHeader(ClassConfigurator.getProtocolId(GMS.class), new GMS.GmsHeader(GMS.GmsHeader.VIEW, delta));
+        GMS gms_b=(GMS)b.getProtocolStack().findProtocol(GMS.class);
+        gms_b.up(new Event(Event.MSG, msg));
+
+        GMS gms_a=(GMS)a.getProtocolStack().findProtocol(GMS.class);
+        for(int i=0; i < 20 && gms_a.getNumberOfFullViewRequests() == 0; i++)
+            Util.sleep(200);
+        assert gms_a.getNumberOfFullViewRequests() == 1;
+        assert b.getView().equals(view) : "B's view is " + b.getView() + ", but should be " + view;
+    }
+
+    public void testFullViews() throws Exception {
+        a=create("A");
+        ((GMS)a.getProtocolStack().findProtocol(GMS.class)).setValue("use_delta_views", false);
+        b=create("B");
+        c=create("C");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+        assertSameViews(a, b, c);
+        assert ((GMS)a.getProtocolStack().findProtocol(GMS.class)).getNumberOfDeltaViewsSent() == 0;
+    }
+
+
+    protected static JChannel create(String name) throws Exception {
+        JChannel ch=new JChannel(Util.getTestStack()).name(name);
+        ch.connect("GMS_DeltaViewTest");
+        return ch;
+    }
+
+    protected static void assertSameViews(JChannel ... channels) {
+        View first=channels[0].getView();
+        for(JChannel ch: channels) {
+            View view=ch.getView();
+            assert view.getViewId().equals(first.getViewId()) && view.getMembers().equals(first.getMembers())
+              : ch.getAddress() + " has view " + view + ", but " + channels[0].getAddress() + " has " + first;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.protocols.pbcast.STABLE_TREE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Table;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link STABLE_TREE}
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class STABLE_TREE_Test {
+    protected static final int NUM=7, FANOUT=2, NUM_MSGS=10;
+    protected JChannel[]       channels;
+
+    @AfterMethod
+    protected void tearDown() throws Exception {
+        if(channels != null)
+            for(int i=channels.length-1; i >= 0; i--)
+                Util.close(channels[i]);
+    }
+
+
+    /** The digests are aggregated up the tree, the stability vector is sent down the tree */
+    public void testGarbageCollection() throws Exception {
+        _testGarbageCollection(false);
+    }
+
+    /** The digests are aggregated up the tree, the stability vector is multicast */
+    public void testGarbageCollectionWithMulticastStability() throws Exception {
+        _testGarbageCollection(true);
+    }
+
+    protected void _testGarbageCollection(boolean multicast_stability) throws Exception {
+        channels=new JChannel[NUM];
+        for(int i=0; i < NUM; i++)
+            channels[i]=create(String.valueOf((char)('A' + i)), multicast_stability);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+
+        for(JChannel ch: channels)
+            for(int i=0; i < NUM_MSGS; i++)
+                ch.send(new Message(null, i));
+
+        int num_gcs=0;
+        for(int i=0; i < 20 && !allPurged(channels); i++) {
+            for(JChannel ch: channels)
+                stable(ch).gc();
+            num_gcs++;
+            Util.sleep(500);
+        }
+        assert allPurged(channels) : "not all messages have been purged";
+
+        // members only receive the digests of their children: A has B and C, B has D and E, C has F and G
+        for(int i=0; i < NUM; i++) {
+            STABLE stable=stable(channels[i]);
+            int num_children=Math.max(0, Math.min(NUM - 1, i * FANOUT + FANOUT) - i * FANOUT);
+            System.out.println(channels[i].getAddress() + ": received " + stable.getStableReceived() + " STABLE msgs, sent " +
+                                 stable.getStableSent() + ", children: " + num_children);
+            assert stable.getStableReceived() <= num_gcs * num_children;
+            if(num_children == 0)
+                assert stable.getStableReceived() == 0;
+        }
+        assert stable(channels[0]).getStableSent() == 0 : "the root must not send STABLE messages";
+    }
+
+
+    protected static JChannel create(String name, boolean multicast_stability) throws Exception {
+        Protocol[] prots=Util.getTestStack();
+        for(int i=0; i < prots.length; i++)
+            if(prots[i] instanceof STABLE)
+                prots[i]=new STABLE_TREE().setValue("fanout", FANOUT).setValue("multicast_stability", multicast_stability)
+                  .setValue("desired_avg_gossip", 0).setValue("max_bytes", 0);
+        JChannel ch=new JChannel(prots).name(name);
+        ch.connect("STABLE_TREE_Test");
+        return ch;
+    }
+
+    protected static STABLE stable(JChannel ch) {
+        return (STABLE)ch.getProtocolStack().findProtocol(STABLE_TREE.class);
+    }
+
+    /** Returns true if all messages from all members have been purged by all members */
+    protected static boolean allPurged(JChannel ... channels) {
+        for(JChannel ch: channels) {
+            NAKACK2 nak=(NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);
+            for(JChannel sender: channels) {
+                Table<Message> win=nak.getWindow(sender.getAddress());
+                if(win == null || win.getHighestDelivered() < NUM_MSGS || win.getLow() < win.getHighestDelivered())
+                    return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,95 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Table;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link STABLE}: the stability vector and the votes are indexed by the view
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class STABLE_Test {
+    protected static final int NUM_MSGS=10;
+    protected JChannel         a, b, c;
+
+    @AfterMethod
+    protected void tearDown() throws Exception {Util.close(c, b, a);}
+
+
+    /** All members send messages; after a STABLE round, the messages have been purged by all members */
+    public void testGarbageCollection() throws Exception {
+        a=create("A");
+        b=create("B");
+        c=create("C");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+
+        for(JChannel ch: new JChannel[]{a, b, c})
+            for(int i=0; i < NUM_MSGS; i++)
+                ch.send(new Message(null, i));
+
+        for(int i=0; i < 20 && !allPurged(a, b, c); i++) {
+            for(JChannel ch: new JChannel[]{a, b, c})
+                ((STABLE)ch.getProtocolStack().findProtocol(STABLE.class)).gc();
+            Util.sleep(500);
+        }
+        for(JChannel ch: new JChannel[]{a, b, c}) {
+            NAKACK2 nak=(NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);
+            System.out.println(ch.getAddress() + ": " + nak.printMessages());
+        }
+        assert allPurged(a, b, c) : "not all messages have been purged";
+
+        STABLE stable=(STABLE)a.getProtocolStack().findProtocol(STABLE.class);
+        assert stable.getStableReceived() > 0 && stable.getStabilitySent() + stable.getStabilityReceived() > 0;
+    }
+
+    /** A member which left is not part of the next stability vector */
+    public void testGarbageCollectionAfterLeave() throws Exception {
+        a=create("A");
+        b=create("B");
+        c=create("C");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+        Util.close(c);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        for(JChannel ch: new JChannel[]{a, b})
+            for(int i=0; i < NUM_MSGS; i++)
+                ch.send(new Message(null, i));
+
+        for(int i=0; i < 20 && !allPurged(a, b); i++) {
+            for(JChannel ch: new JChannel[]{a, b})
+                ((STABLE)ch.getProtocolStack().findProtocol(STABLE.class)).gc();
+            Util.sleep(500);
+        }
+        assert allPurged(a, b) : "not all messages have been purged";
+    }
+
+
+    protected static JChannel create(String name) throws Exception {
+        JChannel ch=new JChannel(Util.getTestStack()).name(name);
+        STABLE stable=(STABLE)ch.getProtocolStack().findProtocol(STABLE.class);
+        stable.setValue("stability_delay", 100).setValue("desired_avg_gossip", 0).setValue("max_bytes", 0);
+        ch.connect("STABLE_Test");
+        return ch;
+    }
+
+    /** Returns true if all messages from all members have been purged by all members */
+    protected static boolean allPurged(JChannel ... channels) {
+        for(JChannel ch: channels) {
+            NAKACK2 nak=(NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);
+            for(JChannel sender: channels) {
+                Table<Message> win=nak.getWindow(sender.getAddress());
+                if(win == null || win.getHighestDelivered() < NUM_MSGS || win.getLow() < win.getHighestDelivered())
+                    return false;
+            }
+        }
+        return true;
+    }
+}
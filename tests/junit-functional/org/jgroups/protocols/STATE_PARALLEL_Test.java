@@ -0,0 +1,221 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.STATE_PARALLEL;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link STATE_PARALLEL}
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class STATE_PARALLEL_Test {
+    protected static final int NUM_SEGMENTS=20;
+    protected JChannel         a, b, c;
+
+    @AfterMethod
+    protected void tearDown() throws Exception {Util.close(c, b, a);}
+
+
+    /** The state is not segmented: it is transferred from the coordinator as a single segment */
+    public void testFullState() throws Exception {
+        byte[] state=new byte[100000];
+        new Random().nextBytes(state);
+        FullState sa=new FullState(state), sc=new FullState(null);
+        a=create("A", 1, sa);
+        a.connect("STATE_PARALLEL_Test");
+        c=create("C", 1, sc);
+        c.connect("STATE_PARALLEL_Test");
+        c.getState(null, 10000);
+        assert Arrays.equals(state, sc.state) : "state was not transferred correctly";
+        assertNoTransfers(a);
+    }
+
+    /** Fetches the segments from A and B concurrently, with small chunks and windows */
+    public void testSegmentedState() throws Exception {
+        byte[][] segments=createSegments();
+        SegmentedState sa=new SegmentedState(segments), sb=new SegmentedState(segments), sc=new SegmentedState(null);
+        a=create("A", 2, sa);
+        a.connect("STATE_PARALLEL_Test");
+        b=create("B", 2, sb);
+        b.connect("STATE_PARALLEL_Test");
+        c=create("C", 2, sc);
+        c.connect("STATE_PARALLEL_Test");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+
+        c.getState(null, 20000);
+        for(int i=0; i < NUM_SEGMENTS; i++)
+            assert Arrays.equals(segments[i], sc.segments[i]) : "segment " + i + " was not transferred correctly";
+        System.out.println("A sent " + sa.num_sent + " segments, B sent " + sb.num_sent + " segments");
+        assert sa.num_sent.get() == NUM_SEGMENTS / 2 && sb.num_sent.get() == NUM_SEGMENTS / 2;
+        assertNoTransfers(a, b);
+    }
+
+    /** C has an older version of the state: only the segments whose versions differ are transferred */
+    public void testDeltaState() throws Exception {
+        byte[][] segments=createSegments(), old_segments=segments.clone();
+        long[] versions=new long[NUM_SEGMENTS], old_versions=new long[NUM_SEGMENTS];
+        Arrays.fill(versions, 1);
+        Arrays.fill(old_versions, 1);
+        old_segments[3]=old_segments[7]=null;
+        old_versions[3]=old_versions[7]=-1;
+        versions[12]=2;
+        segments[12]=new byte[]{'b', 'e', 'l', 'a'};
+        VersionedState sa=new VersionedState(segments, versions), sc=new VersionedState(old_segments, old_versions);
+        a=create("A", 1, sa);
+        a.connect("STATE_PARALLEL_Test");
+        c=create("C", 1, sc);
+        c.connect("STATE_PARALLEL_Test");
+        c.getState(null, 10000);
+        for(int i=0; i < NUM_SEGMENTS; i++) {
+            assert Arrays.equals(segments[i], sc.segments[i]) : "segment " + i + " was not transferred correctly";
+            assert sc.versions[i] == versions[i];
+        }
+        STATE_PARALLEL prot=(STATE_PARALLEL)c.getProtocolStack().findProtocol(STATE_PARALLEL.class);
+        System.out.println("A sent " + sa.num_sent + " segments, C skipped " + prot.getNumberOfSegmentsSkipped() + " segments");
+        assert sa.num_sent.get() == 3;
+        assert prot.getNumberOfSegmentsFetched() == 3 && prot.getNumberOfSegmentsSkipped() == NUM_SEGMENTS - 3;
+        assertNoTransfers(a);
+    }
+
+    /** A provider failing to get a segment fails the state transfer and reopens its barrier */
+    public void testFailingSegment() throws Exception {
+        byte[][] segments=createSegments();
+        SegmentedState sa=new SegmentedState(segments), sc=new SegmentedState(null);
+        sa.fail_segment=5;
+        a=create("A", 1, sa);
+        a.connect("STATE_PARALLEL_Test");
+        c=create("C", 1, sc);
+        c.connect("STATE_PARALLEL_Test");
+        try {
+            c.getState(null, 10000);
+            assert false : "getState() should have failed";
+        }
+        catch(StateTransferException ex) {
+            System.out.println("got exception as expected: " + ex.getCause());
+        }
+        assertNoTransfers(a);
+        STATE_PARALLEL prot=(STATE_PARALLEL)c.getProtocolStack().findProtocol(STATE_PARALLEL.class);
+        assert !prot.isStateTransferInProgress();
+    }
+
+
+    protected static JChannel create(String name, int max_providers, Receiver receiver) throws Exception {
+        Protocol[] stack=Util.getTestStack();
+        Protocol[] prots=Arrays.copyOf(stack, stack.length + 1);
+        prots[stack.length]=new STATE_PARALLEL().setValue("buffer_size", 1000).setValue("window_size", 4)
+          .setValue("num_senders", 3).setValue("max_providers", max_providers);
+        JChannel ch=new JChannel(prots).name(name);
+        ch.setReceiver(receiver);
+        return ch;
+    }
+
+    protected static byte[][] createSegments() {
+        Random random=new Random();
+        byte[][] segments=new byte[NUM_SEGMENTS][];
+        for(int i=0; i < segments.length; i++) {
+            segments[i]=new byte[random.nextInt(20000)];
+            random.nextBytes(segments[i]);
+        }
+        return segments;
+    }
+
+    protected static void assertNoTransfers(JChannel ... channels) {
+        for(JChannel ch: channels) {
+            STATE_PARALLEL prot=(STATE_PARALLEL)ch.getProtocolStack().findProtocol(STATE_PARALLEL.class);
+            // the barrier is opened right after the last transfer has been removed
+            for(int i=0; i < 20 && (prot.getNumberOfOutgoingTransfers() > 0 || prot.isBarrierClosed()); i++)
+                Util.sleep(500);
+            assert prot.getNumberOfOutgoingTransfers() == 0 : ch.getAddress() + " has pending state transfers";
+            assert !prot.isBarrierClosed() : "the barrier of " + ch.getAddress() + " is still closed";
+        }
+    }
+
+
+    protected static class FullState extends ReceiverAdapter {
+        protected byte[] state;
+
+        public FullState(byte[] state) {
+            this.state=state;
+        }
+
+        public void getState(OutputStream output) throws Exception {
+            DataOutputStream out=new DataOutputStream(new BufferedOutputStream(output, 500));
+            out.writeInt(state.length);
+            out.write(state);
+            out.flush();
+        }
+
+        public void setState(InputStream input) throws Exception {
+            DataInputStream in=new DataInputStream(input);
+            byte[] tmp=new byte[in.readInt()];
+            in.readFully(tmp);
+            state=tmp;
+        }
+    }
+
+
+    /** Writes the version of a segment before its contents */
+    protected static class VersionedState extends SegmentedState implements VersionedStateListener {
+        protected final long[] versions;
+
+        public VersionedState(byte[][] segments, long[] versions) {
+            super(segments);
+            this.versions=versions;
+        }
+
+        public long getVersion(int segment) {
+            return segment < versions.length? versions[segment] : -1;
+        }
+
+        public void getSegment(int segment, OutputStream output) throws Exception {
+            new DataOutputStream(output).writeLong(versions[segment]);
+            super.getSegment(segment, output);
+        }
+
+        public void setSegment(int segment, InputStream input) throws Exception {
+            versions[segment]=new DataInputStream(input).readLong();
+            super.setSegment(segment, input);
+        }
+    }
+
+
+    protected static class SegmentedState extends ReceiverAdapter implements SegmentedStateListener {
+        protected final byte[][]      segments;
+        protected final AtomicInteger num_sent=new AtomicInteger(0);
+        protected int                 fail_segment=-1;
+
+        public SegmentedState(byte[][] segments) {
+            this.segments=segments != null? segments : new byte[NUM_SEGMENTS][];
+        }
+
+        public int getNumberOfSegments() {
+            return segments.length;
+        }
+
+        public void getSegment(int segment, OutputStream output) throws Exception {
+            if(segment == fail_segment)
+                throw new IllegalStateException("segment " + segment + " is not available");
+            num_sent.incrementAndGet();
+            DataOutputStream out=new DataOutputStream(output);
+            out.writeInt(segments[segment].length);
+            out.write(segments[segment]);
+        }
+
+        public void setSegment(int segment, InputStream input) throws Exception {
+            DataInputStream in=new DataInputStream(input);
+            byte[] tmp=new byte[in.readInt()];
+            in.readFully(tmp);
+            segments[segment]=tmp;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.tom.TOA;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests {@link TOA}: concurrent anycasts from all members have to be delivered in the same order at all destinations
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class TOATest {
+    protected static final int NUM_THREADS=4, NUM_MSGS=250; // per thread
+
+    public void testTotalOrder() throws Exception {
+        JChannel a=null, b=null, c=null;
+        try {
+            a=createChannel("A");
+            b=createChannel("B");
+            c=createChannel("C");
+            a.connect("TOATest");
+            b.connect("TOATest");
+            c.connect("TOATest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+
+            JChannel[] channels={a, b, c};
+            MyReceiver[] receivers=new MyReceiver[channels.length];
+            for(int i=0; i < channels.length; i++)
+                channels[i].setReceiver(receivers[i]=new MyReceiver());
+
+            // A sends to {A,B,C}, B to {A,B,C} and C to {B,C}
+            final AnycastAddress all=new AnycastAddress(a.getAddress(), b.getAddress(), c.getAddress()),
+              bc=new AnycastAddress(b.getAddress(), c.getAddress());
+            final CountDownLatch latch=new CountDownLatch(1);
+            List<Thread> senders=new ArrayList<Thread>();
+            for(JChannel ch: channels) {
+                AnycastAddress dest=ch == c? bc : all;
+                for(int i=0; i < NUM_THREADS; i++) {
+                    Thread sender=new Sender(ch, dest, ch.getName() + "-" + i, latch);
+                    senders.add(sender);
+                    sender.start();
+                }
+            }
+            latch.countDown();
+            for(Thread sender: senders)
+                sender.join(30000);
+
+            int expected_a=2 * NUM_THREADS * NUM_MSGS, expected_bc=3 * NUM_THREADS * NUM_MSGS;
+            int[] expected={expected_a, expected_bc, expected_bc};
+            for(int i=0; i < 30; i++) {
+                boolean done=true;
+                for(int j=0; j < receivers.length; j++)
+                    if(receivers[j].size() < expected[j])
+                        done=false;
+                if(done)
+                    break;
+                Util.sleep(500);
+            }
+            for(int i=0; i < receivers.length; i++)
+                assert receivers[i].size() == expected[i] :
+                  channels[i].getName() + " received " + receivers[i].size() + " messages, expected " + expected[i];
+
+            // B and C have to deliver all messages in the same order, A the messages of A and B in the same order
+            assert receivers[1].getMessages().equals(receivers[2].getMessages()) : "B and C delivered different orders";
+            List<String> b_without_c=new ArrayList<String>();
+            for(String msg: receivers[1].getMessages())
+                if(!msg.startsWith("C"))
+                    b_without_c.add(msg);
+            assert receivers[0].getMessages().equals(b_without_c) : "A and B delivered different orders";
+        }
+        finally {
+            Util.close(c, b, a);
+        }
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        List<Protocol> stack=new ArrayList<Protocol>(Arrays.asList(Util.getTestStack()));
+        stack.add(new TOA());
+        JChannel ch=new JChannel(stack);
+        ch.setName(name);
+        return ch;
+    }
+
+
+    protected static class Sender extends Thread {
+        protected final JChannel        ch;
+        protected final AnycastAddress  dest;
+        protected final String          prefix;
+        protected final CountDownLatch  latch;
+
+        public Sender(JChannel ch, AnycastAddress dest, String prefix, CountDownLatch latch) {
+            this.ch=ch;
+            this.dest=dest;
+            this.prefix=prefix;
+            this.latch=latch;
+        }
+
+        public void run() {
+            try {
+                latch.await();
+                for(int i=1; i <= NUM_MSGS; i++)
+                    ch.send(new Message(new AnycastAddress(dest.getAddresses()), null, prefix + "-" + i));
+            }
+            catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<String> msgs=new ArrayList<String>();
+
+        public void receive(Message msg) {
+            synchronized(msgs) {
+                msgs.add((String)msg.getObject());
+            }
+        }
+
+        public int size() {
+            synchronized(msgs) {
+                return msgs.size();
+            }
+        }
+
+        public List<String> getMessages() {
+            synchronized(msgs) {
+                return new ArrayList<String>(msgs);
+            }
+        }
+    }
+}
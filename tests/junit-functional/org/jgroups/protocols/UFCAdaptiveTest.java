@@ -0,0 +1,118 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link UFC} with adaptive=true: the window of a slow receiver has to shrink, the window of a fast receiver
+ * has to grow
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class UFCAdaptiveTest {
+    protected static final int  SIZE=1000, NUM_MSGS=2000;
+    protected static final long MAX_CREDITS=200000, MIN_WINDOW=20000;
+    protected JChannel          a, b, c;
+
+    @BeforeMethod
+    protected void setUp() throws Exception {
+        a=createChannel("A");
+        b=createChannel("B");
+        c=createChannel("C");
+        a.connect("UFCAdaptiveTest");
+        b.connect("UFCAdaptiveTest");
+        c.connect("UFCAdaptiveTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    @AfterMethod
+    protected void tearDown() throws Exception {Util.close(c, b, a);}
+
+
+    public void testWindows() throws Exception {
+        MyReceiver slow=new MyReceiver(1), fast=new MyReceiver(0);
+        b.setReceiver(slow);
+        c.setReceiver(fast);
+
+        Thread slow_sender=new Sender(a, b.getAddress()), fast_sender=new Sender(a, c.getAddress());
+        slow_sender.start();
+        fast_sender.start();
+        slow_sender.join(60000);
+        fast_sender.join(60000);
+
+        for(int i=0; i < 20; i++) {
+            if(slow.num.get() == NUM_MSGS && fast.num.get() == NUM_MSGS)
+                break;
+            Util.sleep(500);
+        }
+        assert slow.num.get() == NUM_MSGS : "B received " + slow.num + " messages";
+        assert fast.num.get() == NUM_MSGS : "C received " + fast.num + " messages";
+
+        UFC ufc=(UFC)a.getProtocolStack().findProtocol(UFC.class);
+        FlowControl.Window window_b=ufc.windows.get(b.getAddress()), window_c=ufc.windows.get(c.getAddress());
+        assert window_b.num_decreases > 0 : "window of slow receiver B has not shrunk: " + window_b;
+        assert window_b.size() < MAX_CREDITS : "window of slow receiver B: " + window_b;
+        assert window_c.num_increases > 0 : "window of fast receiver C has not grown: " + window_c;
+        assert window_c.size() > window_b.size() : "window of C (" + window_c + ") <= window of B (" + window_b + ")";
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        JChannel ch=new JChannel(new SHARED_LOOPBACK(),
+                                 new PING().setValue("timeout", 500).setValue("num_initial_members", 3),
+                                 new NAKACK2().setValue("use_mcast_xmit", false),
+                                 new UNICAST3(),
+                                 new STABLE().setValue("max_bytes", 50000),
+                                 new GMS().setValue("print_local_addr", false),
+                                 new UFC().setValue("adaptive", true).setValue("max_credits", MAX_CREDITS)
+                                   .setValue("min_window", MIN_WINDOW).setValue("max_queue_delay", 50L),
+                                 new FRAG2().fragSize(8000));
+        ch.setName(name);
+        return ch;
+    }
+
+
+    protected static class Sender extends Thread {
+        protected final JChannel ch;
+        protected final Address  dest;
+
+        public Sender(JChannel ch, Address dest) {
+            this.ch=ch;
+            this.dest=dest;
+        }
+
+        public void run() {
+            try {
+                for(int i=0; i < NUM_MSGS; i++)
+                    ch.send(new Message(dest, null, new byte[SIZE]));
+            }
+            catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final AtomicInteger num=new AtomicInteger(0);
+        protected final long          sleep; // ms to sleep per message
+
+        public MyReceiver(long sleep) {
+            this.sleep=sleep;
+        }
+
+        public void receive(Message msg) {
+            if(sleep > 0)
+                Util.sleep(sleep);
+            num.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests piggybacked, coalesced and multicast (multi) ACKs in UNICAST3
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class UNICAST3_AckTest {
+    protected JChannel a, b, c, d;
+
+    @AfterMethod protected void destroy() {Util.close(d, c, b, a);}
+
+
+    public void testHeaderWithPiggybackedAck() throws Exception {
+        UNICAST3.Header hdr=UNICAST3.Header.createDataHeader(22, (short)5, true).piggybackAck(10, (short)3);
+        byte[] buf=Util.streamableToByteBuffer(hdr);
+        assert buf.length == hdr.size();
+        UNICAST3.Header hdr2=(UNICAST3.Header)Util.streamableFromByteBuffer(UNICAST3.Header.class, buf);
+        assert hdr2.type == UNICAST3.Header.DATA && hdr2.seqno == 22 && hdr2.conn_id == 5;
+        assert hdr2.first() && hdr2.hasAck();
+        assert hdr2.ack_seqno == 10 && hdr2.ack_conn_id == 3;
+
+        hdr=UNICAST3.Header.createDataHeader(23, (short)5, false);
+        hdr2=(UNICAST3.Header)Util.streamableFromByteBuffer(UNICAST3.Header.class, Util.streamableToByteBuffer(hdr));
+        assert !hdr2.first() && !hdr2.hasAck();
+    }
+
+
+    /** A and B send messages to each other; the delayed ACKs should be piggybacked on the data messages */
+    public void testPiggybackedAcks() throws Exception {
+        a=createChannel("A", 0, 0);
+        b=createChannel("B", 0, 0);
+        connect(a, b);
+        UNICAST3 ua=getUnicast(a), ub=getUnicast(b);
+
+        ack_batches_immediately(false, ua, ub);
+        for(int i=1; i <= 20; i++) {
+            a.send(b.getAddress(), i);
+            Util.sleep(10);
+            b.send(a.getAddress(), i);
+            Util.sleep(10);
+        }
+        waitForAllAcks(a, b);
+        System.out.println("piggybacked ACKs: A=" + ua.getNumAcksPiggybacked() + ", B=" + ub.getNumAcksPiggybacked());
+        assert ua.getNumAcksPiggybacked() > 0 || ub.getNumAcksPiggybacked() > 0;
+    }
+
+
+    /** The piggybacked ACK must only be added to the message sent, not to the one kept for retransmission */
+    public void testPiggybackedAckIsNotRetransmitted() throws Exception {
+        a=createChannel("A", 0, 0);
+        b=createChannel("B", 0, 0);
+        connect(a, b);
+        UNICAST3 ua=getUnicast(a);
+        b.send(a.getAddress(), "hello");
+        waitForAllAcks(b);
+
+        ua.recv_table.get(b.getAddress()).sendAck(true); // an ACK for B is pending
+        Message msg=new Message(b.getAddress(), "data");
+        UNICAST3.Header hdr=UNICAST3.Header.createDataHeader(2, (short)1, false);
+        msg.putHeader(ua.getId(), hdr);
+        Message copy=ua.piggybackAck(b.getAddress(), msg, hdr);
+        assert copy != null && copy != msg;
+        assert ((UNICAST3.Header)copy.getHeader(ua.getId())).hasAck();
+        assert msg.getHeader(ua.getId()) == hdr && !hdr.hasAck();
+        assert ua.piggybackAck(b.getAddress(), msg, hdr) == null : "the pending ACK must have been cleared";
+    }
+
+    /** An old ACK (e.g. a stale piggybacked one) must not move the sender window backwards */
+    public void testOldAckDoesNotMoveWindowBackwards() throws Exception {
+        a=createChannel("A", 0, 0);
+        b=createChannel("B", 0, 0);
+        connect(a, b);
+        for(int i=1; i <= 10; i++)
+            a.send(b.getAddress(), i);
+        waitForAllAcks(a);
+        UNICAST3 ua=getUnicast(a);
+        UNICAST3.SenderEntry entry=ua.send_table.get(b.getAddress());
+        long low=entry.sent_msgs.getLow();
+        assert low >= 10 : "low=" + low;
+        ua.handleAckReceived(b.getAddress(), 3, entry.send_conn_id);
+        assert entry.sent_msgs.getLow() == low : "low=" + entry.sent_msgs.getLow() + ", expected " + low;
+    }
+
+    /** A member with multi_ack_threshold=0 has to consume the multi-ACKs of other members, too */
+    public void testMultiAcksConsumedWithoutThreshold() throws Exception {
+        a=createChannel("A", 200, 2);
+        b=createChannel("B", 200, 0);
+        c=createChannel("C", 200, 0);
+        connect(a, b, c);
+        final AtomicInteger received=new AtomicInteger();
+        for(JChannel ch: new JChannel[]{b, c}) {
+            ch.setReceiver(new ReceiverAdapter() {
+                public void receive(Message msg) {received.incrementAndGet();}
+            });
+        }
+        for(int i=1; i <= 10; i++)
+            for(JChannel ch: new JChannel[]{b, c})
+                ch.send(a.getAddress(), i);
+
+        waitForAllAcks(b, c);
+        assert getUnicast(a).getNumMultiAcksSent() > 0;
+        assert received.get() == 0 : received + " multi-ACKs were passed up to the application";
+    }
+
+
+    /** B, C and D send messages to A, which coalesces the ACKs into a single multi-ACK */
+    public void testMultiAcks() throws Exception {
+        a=createChannel("A", 200, 2);
+        b=createChannel("B", 200, 2);
+        c=createChannel("C", 200, 2);
+        d=createChannel("D", 200, 2);
+        connect(a, b, c, d);
+        UNICAST3 ua=getUnicast(a);
+        assert ua.isAckFlusherRunning();
+
+        for(int i=1; i <= 10; i++)
+            for(JChannel ch: new JChannel[]{b, c, d})
+                ch.send(a.getAddress(), i);
+
+        waitForAllAcks(b, c, d);
+        System.out.println("multi-ACKs sent by A: " + ua.getNumMultiAcksSent());
+        assert ua.getNumMultiAcksSent() > 0;
+    }
+
+
+    protected static void connect(JChannel ... channels) throws Exception {
+        for(JChannel ch: channels)
+            ch.connect("UNICAST3_AckTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+    }
+
+    protected static void ack_batches_immediately(boolean flag, UNICAST3 ... prots) {
+        for(UNICAST3 prot: prots)
+            prot.setValue("ack_batches_immediately", flag);
+    }
+
+    protected static void waitForAllAcks(JChannel ... channels) {
+        for(int i=0; i < 20; i++) {
+            boolean all_acked=true;
+            for(JChannel ch: channels)
+                if(getUnicast(ch).getNumUnackedMessages() > 0)
+                    all_acked=false;
+            if(all_acked)
+                return;
+            Util.sleep(500);
+        }
+        for(JChannel ch: channels) {
+            int num_unacked=getUnicast(ch).getNumUnackedMessages();
+            assert num_unacked == 0 : ch.getAddress() + " has " + num_unacked + " unacked messages";
+        }
+    }
+
+    protected static UNICAST3 getUnicast(JChannel ch) {
+        return (UNICAST3)ch.getProtocolStack().findProtocol(UNICAST3.class);
+    }
+
+    protected static JChannel createChannel(String name, long ack_window, int multi_ack_threshold) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new PING().setValue("timeout", 500),
+          new NAKACK2(),
+          new UNICAST3().setValue("xmit_interval", 500).setValue("ack_window", ack_window)
+            .setValue("multi_ack_threshold", multi_ack_threshold),
+          new GMS().setValue("print_local_addr", false)
+        }).name(name);
+    }
+}
@@ -24,6 +24,8 @@ public class UNICAST_ContentionTest {
             ":UNICAST(xmit_interval=500)";
     static final String unicast2_props=unicast_props.replace("UNICAST", "UNICAST2");
     static final String unicast3_props=unicast_props.replace("UNICAST", "UNICAST3");
+    static final String unicast3_lockless_props=unicast3_props.replace("xmit_interval=500",
+      "xmit_interval=500;xmit_table_type=lockless;xmit_table_off_heap=true;xmit_table_num_rows=10;xmit_table_msgs_per_row=64");
     static final int NUM_THREADS=100;
     static final int NUM_MSGS=100;
     static final int SIZE=1000; // default size of a message in bytes
@@ -38,7 +40,8 @@ public class UNICAST_ContentionTest {
         return new Object[][] {
           {unicast_props},
           {unicast2_props},
-          {unicast3_props}
+          {unicast3_props},
+          {unicast3_lockless_props}
         };
     }
 
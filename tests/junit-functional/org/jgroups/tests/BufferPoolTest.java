@@ -0,0 +1,105 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.protocols.TP;
+import org.jgroups.util.*;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests BufferPool, PooledBuffer and the reading of messages whose payloads are slices of a pooled buffer
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class BufferPoolTest {
+    protected static final short TP_ID=100;
+
+    public void testGetAndRelease() {
+        BufferPool pool=new BufferPool(2, 100);
+        PooledBuffer buf=pool.get();
+        assert pool.getNumMisses() == 1 && pool.size() == 0;
+        assert buf.getBuf().length == 100;
+        buf.retain();
+        assert !buf.release();
+        assert pool.size() == 0;
+        assert buf.release();
+        assert pool.size() == 1;
+
+        PooledBuffer buf2=pool.get();
+        assert buf2.getBuf() == buf.getBuf();
+        assert pool.getNumHits() == 1;
+    }
+
+    public void testReleaseTooOften() {
+        BufferPool pool=new BufferPool(2, 100);
+        PooledBuffer buf=pool.get();
+        buf.release();
+        try {
+            buf.release();
+            assert false : "releasing more often than retaining should throw an exception";
+        }
+        catch(IllegalStateException expected) {
+            System.out.println("caught exception as expected: " + expected);
+        }
+    }
+
+    public void testPoolIsBounded() {
+        BufferPool pool=new BufferPool(2, 100);
+        PooledBuffer[] bufs={pool.get(), pool.get(), pool.get()};
+        for(PooledBuffer buf: bufs)
+            buf.release();
+        assert pool.size() == 2;
+    }
+
+    public void testReadMessageBatchWithSlices() throws Exception {
+        Address sender=Util.createRandomAddress("A");
+        List<Message> list=new ArrayList<Message>();
+        for(int i=1; i <= 5; i++)
+            list.add(new Message(null, sender, ("hello-" + i).getBytes()));
+        list.add(new Message(null, sender, null)); // no payload: doesn't reference the pooled buffer
+
+        ExposedByteArrayOutputStream out=new ExposedByteArrayOutputStream(512);
+        ExposedDataOutputStream dos=new ExposedDataOutputStream(out);
+        TP.writeMessageList(null, sender, "cluster", list, dos, true, TP_ID);
+
+        BufferPool pool=new BufferPool(1, 1024);
+        PooledBuffer pooled=pool.get();
+        System.arraycopy(out.getRawBuffer(), 0, pooled.getBuf(), 0, out.size());
+
+        ExposedByteArrayInputStream in_stream=new ExposedByteArrayInputStream(pooled.getBuf(), 0, out.size());
+        DataInputStream in=new DataInputStream(in_stream);
+        in.readShort(); // version
+        in.readByte();  // flags
+        MessageBatch batch=TP.readMessageBatch(in, true, in_stream, pooled)[0];
+        assert batch.size() == 6;
+        pooled.release(); // the reader's reference
+        assert pooled.refCount() == 5;
+
+        int i=1;
+        for(Message msg: batch) {
+            if(i > 5) {
+                assert !msg.isPooled() && msg.getRawBuffer() == null;
+                break;
+            }
+            assert msg.isPooled();
+            assert msg.getRawBuffer() == pooled.getBuf() : "payload should be a slice of the pooled buffer";
+            assert new String(msg.getBuffer()).equals("hello-" + i);
+
+            Message copy=msg.copy();
+            assert !copy.isPooled() && copy.getRawBuffer() != pooled.getBuf();
+            assert new String(copy.getBuffer()).equals("hello-" + i);
+            i++;
+        }
+
+        for(Message msg: batch)
+            msg.release();
+        assert pooled.refCount() == 0;
+        assert pool.size() == 1 : "buffer should have been returned to the pool";
+    }
+}
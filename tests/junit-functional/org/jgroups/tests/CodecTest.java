@@ -0,0 +1,172 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.COMPRESS;
+import org.jgroups.protocols.TP;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Tests the codecs ({@link LZ4Codec}, {@link DeflateCodec}), {@link CodecPool}, {@link COMPRESS} and the
+ * compression of bundles in the transport
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false,dataProvider="createCodec")
+public class CodecTest {
+
+    @DataProvider
+    static Object[][] createCodec() {
+        return new Object[][] {
+          {new LZ4Codec()},
+          {new DeflateCodec(Deflater.BEST_SPEED)}
+        };
+    }
+
+    public void testCompressAndUncompress(Codec codec) throws Exception {
+        Random random=new Random(1);
+        for(byte[] data: Arrays.asList(new byte[0], "hello".getBytes(), text(100), text(70000), repeating(5000, 1),
+                                       repeating(5000, 7), repeating(100000, 3))) {
+            byte[] compressed=new byte[data.length + data.length/255 + 64];
+            int offset=random.nextInt(10);
+            int compressed_size=codec.compress(data, 0, data.length, compressed, offset, compressed.length - offset);
+            assert compressed_size >= 0;
+            if(data.length > 1000)
+                assert compressed_size < data.length / 2 : codec + ": compressed " + data.length + " bytes to " + compressed_size;
+
+            byte[] uncompressed=new byte[data.length + offset];
+            codec.uncompress(compressed, offset, compressed_size, uncompressed, offset, data.length);
+            assert Arrays.equals(data, Arrays.copyOfRange(uncompressed, offset, offset + data.length));
+        }
+    }
+
+    public void testIncompressibleData(Codec codec) {
+        byte[] data=new byte[10000];
+        new Random(2).nextBytes(data);
+        byte[] compressed=new byte[data.length];
+        assert codec.compress(data, 0, data.length, compressed, 0, compressed.length) == -1
+          : "compressed data must not fit into a buffer of the original size";
+    }
+
+    public void testCorruptData(Codec codec) {
+        byte[] data=text(10000), compressed=new byte[data.length];
+        int compressed_size=codec.compress(data, 0, data.length, compressed, 0, compressed.length);
+        try {
+            codec.uncompress(compressed, 0, compressed_size / 2, new byte[data.length], 0, data.length);
+            assert false : "uncompressing truncated data should have failed";
+        }
+        catch(Exception expected) {
+            System.out.println("got exception as expected: " + expected);
+        }
+    }
+
+    public void testCodecPool(Codec ignored) {
+        CodecPool pool=new CodecPool(CodecPool.LZ4, 0, 2);
+        Codec a=pool.acquire(), b=pool.acquire(), c=pool.acquire(); // never blocks
+        assert a != b && b != c;
+        pool.release(a);
+        pool.release(b);
+        pool.release(c); // destroyed, as the pool is full
+        assert pool.getNumIdle() == 2;
+        assert pool.acquire() == a;
+        assert CodecPool.parse("Deflate") == CodecPool.DEFLATE && CodecPool.get(CodecPool.LZ4).getType() == CodecPool.LZ4;
+    }
+
+    public void testCOMPRESS(Codec codec) throws Exception {
+        sendMessages(codec.toString(), "none");
+    }
+
+    public void testBundleCompression(Codec codec) throws Exception {
+        TP transport=sendMessages(null, codec.toString());
+        System.out.println(codec + ": compressed " + transport.getValue("num_compressed_packets_sent") + " packets from " +
+                             transport.getValue("num_bytes_before_compression") + " to " +
+                             transport.getValue("num_bytes_after_compression") + " bytes");
+        assert (Long)transport.getValue("num_compressed_packets_sent") > 0;
+    }
+
+
+    /**
+     * Multicasts messages from A and returns A's transport. A receives its own messages via loopback: the
+     * messages of a loopback batch are shared with A's retransmission table, so COMPRESS must not change them
+     */
+    protected static TP sendMessages(String compress_codec, String bundle_compression) throws Exception {
+        final int NUM=200;
+        JChannel a=null, b=null;
+        try {
+            a=createChannel("A", compress_codec, bundle_compression);
+            b=createChannel("B", compress_codec, bundle_compression);
+            a.connect("CodecTest");
+            b.connect("CodecTest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            final byte[] payload=text(2000);
+            final AtomicInteger received=new AtomicInteger(), corrupted=new AtomicInteger();
+            ReceiverAdapter receiver=new ReceiverAdapter() {
+                public void receive(Message msg) {
+                    if(msg.getSrc() == null || !Arrays.equals(payload, msg.getBuffer()))
+                        corrupted.incrementAndGet();
+                    received.incrementAndGet();
+                }
+            };
+            a.setReceiver(receiver);
+            b.setReceiver(receiver);
+            for(int i=0; i < NUM; i++)
+                a.send(null, payload);
+            for(int i=0; i < 20 && received.get() < NUM * 2; i++)
+                Util.sleep(500);
+            assert received.get() == NUM * 2 : "received " + received + " messages";
+            assert corrupted.get() == 0 : corrupted + " messages were corrupted";
+            for(JChannel ch: Arrays.asList(a, b)) {
+                Protocol compress=ch.getProtocolStack().findProtocol(COMPRESS.class);
+                if(compress != null)
+                    assert (Integer)compress.getValue("num_uncompression_failures") == 0
+                      : ch.getName() + ": " + compress.getValue("num_uncompression_failures") + " messages couldn't be uncompressed";
+            }
+            return a.getProtocolStack().getTransport();
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+    protected static JChannel createChannel(String name, String compress_codec, String bundle_compression) throws Exception {
+        List<Protocol> stack=new ArrayList<Protocol>(Arrays.asList(Util.getTestStack()));
+        stack.get(0).setValue("bundle_compression", bundle_compression);
+        if(compress_codec != null)
+            stack.add(new COMPRESS().setValue("codec", compress_codec).setValue("min_size", 100L));
+        JChannel ch=new JChannel(stack);
+        ch.setName(name);
+        return ch;
+    }
+
+    protected static byte[] text(int length) {
+        String[] words={"the ", "quick ", "brown ", "fox ", "jumps ", "over ", "lazy ", "dogs ", "JGroups ", "cluster "};
+        Random random=new Random(length);
+        byte[] retval=new byte[length];
+        for(int i=0; i < length;) {
+            byte[] word=words[random.nextInt(words.length)].getBytes();
+            for(int j=0; j < word.length && i < length; j++)
+                retval[i++]=word[j];
+        }
+        return retval;
+    }
+
+    protected static byte[] repeating(int length, int period) {
+        byte[] retval=new byte[length];
+        for(int i=0; i < length; i++)
+            retval[i]=(byte)(i % period);
+        return retval;
+    }
+}
@@ -0,0 +1,155 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.ComposableFuture;
+import org.jgroups.util.FutureListener;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link ComposableFuture}
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class ComposableFutureTest {
+
+    public void testComplete() throws Exception {
+        ComposableFuture<Integer> f=new ComposableFuture<Integer>();
+        assert !f.isDone();
+        assert f.getNow(-1) == -1;
+        assert f.complete(1);
+        assert !f.complete(2) && !f.completeExceptionally(new Exception()) && !f.cancel(true);
+        assert f.isDone() && !f.isCancelled() && !f.isCompletedExceptionally();
+        assert f.get() == 1 && f.get(1, TimeUnit.MILLISECONDS) == 1 && f.getNow(-1) == 1;
+    }
+
+    public void testCompleteExceptionally() throws Exception {
+        ComposableFuture<Integer> f=new ComposableFuture<Integer>();
+        assert f.completeExceptionally(new IllegalStateException("boom"));
+        assert f.isDone() && f.isCompletedExceptionally();
+        try {
+            f.get();
+            assert false : "get() should have thrown an exception";
+        }
+        catch(ExecutionException ex) {
+            assert ex.getCause() instanceof IllegalStateException;
+        }
+    }
+
+    public void testCancel() throws Exception {
+        ComposableFuture<Integer> f=new ComposableFuture<Integer>();
+        assert f.cancel(false);
+        assert f.isDone() && f.isCancelled();
+        try {
+            f.get();
+            assert false : "get() should have thrown a CancellationException";
+        }
+        catch(CancellationException ex) {
+        }
+    }
+
+    public void testGetWithTimeout() throws Exception {
+        final ComposableFuture<Integer> f=new ComposableFuture<Integer>();
+        try {
+            f.get(100, TimeUnit.MILLISECONDS);
+            assert false : "get() should have thrown a TimeoutException";
+        }
+        catch(TimeoutException ex) {
+        }
+        new Thread() {
+            public void run() {
+                f.complete(5);
+            }
+        }.start();
+        assert f.get(5, TimeUnit.SECONDS) == 5;
+    }
+
+    public void testMultipleListeners() throws Exception {
+        final AtomicInteger count=new AtomicInteger(0);
+        FutureListener<Integer> listener=new FutureListener<Integer>() {
+            public void futureDone(Future<Integer> future) {
+                assert future.isDone();
+                count.incrementAndGet();
+            }
+        };
+        ComposableFuture<Integer> f=new ComposableFuture<Integer>();
+        f.setListener(listener);
+        f.setListener(listener);
+        assert count.get() == 0;
+        f.complete(1);
+        assert count.get() == 2;
+        f.setListener(listener); // invoked immediately as the future is done
+        assert count.get() == 3;
+    }
+
+    public void testThenApply() throws Exception {
+        ComposableFuture<Integer> f=new ComposableFuture<Integer>();
+        ComposableFuture<String> g=f.thenApply(new ComposableFuture.Function<Integer,String>() {
+            public String apply(Integer arg) {return "value=" + arg;}
+        });
+        ComposableFuture<String> h=f.thenApply(new ComposableFuture.Function<Integer,String>() {
+            public String apply(Integer arg) {throw new IllegalArgumentException("bad arg");}
+        });
+        assert !g.isDone() && !h.isDone();
+        f.complete(42);
+        assert g.get().equals("value=42");
+        try {
+            h.get();
+            assert false : "get() should have thrown an exception";
+        }
+        catch(ExecutionException ex) {
+            assert ex.getCause() instanceof IllegalArgumentException;
+        }
+
+        ComposableFuture<Integer> failed=new ComposableFuture<Integer>();
+        g=failed.thenApply(new ComposableFuture.Function<Integer,String>() {
+            public String apply(Integer arg) {return "value=" + arg;}
+        });
+        failed.completeExceptionally(new IllegalStateException("boom"));
+        assert g.isCompletedExceptionally();
+    }
+
+    public void testThenCompose() throws Exception {
+        ComposableFuture<Integer> f=new ComposableFuture<Integer>();
+        final ComposableFuture<Integer> second=new ComposableFuture<Integer>();
+        ComposableFuture<Integer> g=f.thenCompose(new ComposableFuture.Function<Integer,ComposableFuture<Integer>>() {
+            public ComposableFuture<Integer> apply(Integer arg) {return second;}
+        });
+        f.complete(1);
+        assert !g.isDone();
+        second.complete(2);
+        assert g.get() == 2;
+    }
+
+    public void testFirstN() throws Exception {
+        ComposableFuture<Integer> f1=new ComposableFuture<Integer>(), f2=new ComposableFuture<Integer>(),
+          f3=new ComposableFuture<Integer>();
+        List<ComposableFuture<Integer>> futures=Arrays.asList(f1, f2, f3);
+        ComposableFuture<List<Integer>> quorum=ComposableFuture.quorum(futures);
+        ComposableFuture<List<Integer>> all=ComposableFuture.allOf(futures);
+        f3.complete(3);
+        assert !quorum.isDone();
+        f1.completeExceptionally(new Exception("boom"));
+        assert !quorum.isDone();
+        assert all.isCompletedExceptionally();
+        f2.complete(2);
+        assert quorum.get().equals(Arrays.asList(3, 2));
+
+        f1=new ComposableFuture<Integer>();
+        f2=new ComposableFuture<Integer>();
+        f3=new ComposableFuture<Integer>();
+        quorum=ComposableFuture.quorum(Arrays.asList(f1, f2, f3));
+        f1.completeExceptionally(new Exception("boom"));
+        f2.cancel(true);
+        assert quorum.isCompletedExceptionally() : "a quorum is not possible anymore";
+    }
+}
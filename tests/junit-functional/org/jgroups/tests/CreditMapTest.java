@@ -202,6 +202,34 @@ public class CreditMapTest {
         assert countAliveThreads(decrementers) == 0;
     }
 
+    public void testSetMaxCredits() {
+        addAll();
+        boolean rc=map.decrement(200, 100);
+        assert rc;
+        map.setMaxCredits(b, 500); // B has 800 credits, shrinks to 300
+        assert map.getMaxCredits(b) == 500 && map.getMaxCredits(a) == MAX_CREDITS;
+        assert map.get(b) == 300 && map.get(a) == 800;
+        assert map.getMinCredits() == 300;
+        assert map.getAccumulatedCredits() == 0;
+
+        rc=map.decrement(400, 100);
+        assert !rc : "B only has 300 credits";
+
+        map.replenish(b, 1000); // capped at B's window
+        assert map.get(b) == 500;
+        assert map.getMinCredits() == 500;
+
+        map.setMaxCredits(b, 800); // grows by 300
+        assert map.get(b) == 800;
+        map.replenishAll();
+        assert map.get(b) == 800 && map.get(a) == MAX_CREDITS;
+        assert map.getMinCredits() == 800;
+
+        map.setMaxCredits(b, 2000); // capped at max_credits
+        assert map.getMaxCredits(b) == MAX_CREDITS;
+        assert map.get(b) == MAX_CREDITS;
+    }
+
     public void testClear() {
         addAll();
         boolean rc=map.decrement(800, 100);
@@ -537,6 +537,24 @@ public class DigestTest {
 
 
 
+    public void testSameSendersDifferentOrder() {
+        Digest tmp=new Digest(new Address[]{a3, a1, a2}, new long[]{25, 33, 500, 501, 26, 26});
+        assert d.sameSenders(tmp) && tmp.sameSenders(d);
+        assert d.equals(tmp);
+    }
+
+
+    public void testGetSeqnos() {
+        Address a4=Util.createRandomAddress("a4");
+        long[] seqnos=d.getSeqnos(new Address[]{a2, a4, a1, a3});
+        Assert.assertEquals(seqnos, new long[]{26, 26, -1, -1, 500, 501, 25, 33});
+
+        Digest tmp=new Digest(new Address[]{a1, a2}, new long[]{1, 2, 3, 4});
+        Assert.assertEquals(tmp.getSeqnos(new Address[]{a1, a2}), new long[]{1, 2, 3, 4});
+    }
+
+
+
     public void testStreamable() throws Exception {
         ByteArrayOutputStream outstream=new ByteArrayOutputStream();
         DataOutputStream dos=new DataOutputStream(outstream);
@@ -31,14 +31,17 @@ public class FCTest {
     @DataProvider
     static Object[][] configProvider() {
         return new Object[][]{
-          {FC.class},
-          {MFC.class}
+          {FC.class, false},
+          {MFC.class, false},
+          {MFC.class, true}
         };
     }
 
-    protected void setUp(Class<? extends Protocol> flow_control_class) throws Exception {
+    protected void setUp(Class<? extends Protocol> flow_control_class, boolean adaptive) throws Exception {
         Protocol flow_control_prot=flow_control_class.newInstance();
         flow_control_prot.setValue("min_credits", 1000).setValue("max_credits", 10000).setValue("max_block_time", 1000);
+        if(adaptive)
+            flow_control_prot.setValue("adaptive", true).setValue("min_window", 2000);
 
         ch=new JChannel(new SHARED_LOOPBACK().setValue("thread_pool_rejection_policy", "run").setValue("loopback", true),
                         new PING(),
@@ -55,10 +58,10 @@ public class FCTest {
 
 
     @Test(dataProvider="configProvider")
-    public void testReceptionOfAllMessages(Class<? extends Protocol> flow_control_class) throws Exception {
+    public void testReceptionOfAllMessages(Class<? extends Protocol> flow_control_class, boolean adaptive) throws Exception {
         int num_received=0;
         Receiver r=new Receiver();
-        setUp(flow_control_class);
+        setUp(flow_control_class, adaptive);
         ch.setReceiver(r);
         for(int i=1; i <= NUM_MSGS; i++) {
             Message msg=new Message(null, null, createPayload(SIZE));
@@ -2,6 +2,8 @@
 package org.jgroups.tests;
 
 
+import org.jgroups.Address;
+import org.jgroups.Event;
 import org.jgroups.Global;
 import org.jgroups.JChannel;
 import org.jgroups.Message;
@@ -10,12 +12,17 @@ import org.jgroups.protocols.*;
 import org.jgroups.protocols.pbcast.GMS;
 import org.jgroups.protocols.pbcast.NAKACK2;
 import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
 import org.jgroups.stack.ProtocolStack;
 import org.jgroups.util.Util;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Class to test FRAG protocol. It uses ProtocolTester to assemble a minimal stack which only consists of
@@ -93,6 +100,35 @@ public class FragTest {
        assert frag_receiver.getNumMsgs() == NUM_MSGS;
    }
 
+    /** Fragments refer to the buffer of the original message, and are reassembled when received in any order */
+    public void testFragmentsOutOfOrder() throws Exception {
+        byte[] buf=new byte[10500 + 7];
+        for(int i=0; i < buf.length; i++)
+            buf[i]=(byte)i;
+        FRAG2 frag=new FRAG2().fragSize(1000);
+        MessageCollector down=new MessageCollector(), up=new MessageCollector();
+        frag.setDownProtocol(down);
+        frag.setUpProtocol(up);
+
+        frag.down(new Event(Event.MSG, new Message(null, null, buf, 7, 10500)));
+        assert down.msgs.size() == 11;
+        for(Message msg: down.msgs)
+            assert msg.getRawBuffer() == buf : "fragments must not copy the buffer";
+
+        Address sender=Util.createRandomAddress("A");
+        List<Message> fragments=new ArrayList<Message>(down.msgs);
+        Collections.shuffle(fragments);
+        for(Message msg: fragments) {
+            assert up.msgs.isEmpty();
+            msg.setSrc(sender);
+            frag.up(new Event(Event.MSG, msg));
+        }
+        assert up.msgs.size() == 1;
+        Message msg=up.msgs.get(0);
+        assert msg.getSrc().equals(sender);
+        assert Arrays.equals(Arrays.copyOfRange(buf, 7, buf.length), msg.getBuffer());
+    }
+
     protected static JChannel createChannel() throws Exception {
         JChannel ch=new JChannel(false);
         ProtocolStack stack=new ProtocolStack();
@@ -111,6 +147,23 @@ public class FragTest {
     }
 
 
+    protected static class MessageCollector extends Protocol {
+        protected final List<Message> msgs=new ArrayList<Message>();
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG)
+                msgs.add((Message)evt.getArg());
+            return null;
+        }
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                msgs.add((Message)evt.getArg());
+            return null;
+        }
+    }
+
+
     private static class FragReceiver extends ReceiverAdapter {
         int num_msgs=0;
 
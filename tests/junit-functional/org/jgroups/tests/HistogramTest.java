@@ -0,0 +1,112 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.Histogram;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests {@link Histogram}
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class HistogramTest {
+
+    public void testEmpty() {
+        Histogram h=new Histogram();
+        assert h.count() == 0;
+        assert h.mean() == 0;
+        assert h.max() == 0;
+        assert h.percentile(99) == 0;
+    }
+
+    public void testSmallValuesAreExact() {
+        Histogram h=new Histogram(1);
+        for(int i=0; i < Histogram.SUB_BUCKETS; i++)
+            h.record(i);
+        assert h.count() == Histogram.SUB_BUCKETS;
+        assert h.percentile(0) == 0;
+        assert h.percentile(50) == Histogram.SUB_BUCKETS / 2 -1;
+        assert h.percentile(100) == Histogram.SUB_BUCKETS -1;
+        assert h.max() == Histogram.SUB_BUCKETS -1;
+    }
+
+    public void testPercentiles() {
+        Histogram h=new Histogram(4);
+        for(int i=1; i <= 100000; i++)
+            h.record(i);
+        assert h.count() == 100000;
+        assert h.max() == 100000;
+        assert h.mean() == 50000.5 : "mean=" + h.mean();
+        checkPrecision(h.percentile(50), 50000);
+        checkPrecision(h.percentile(90), 90000);
+        checkPrecision(h.percentile(99), 99000);
+        checkPrecision(h.percentile(99.9), 99900);
+        assert h.percentile(100) == 100000;
+        System.out.println("h = " + h);
+    }
+
+    public void testOutlier() {
+        Histogram h=new Histogram();
+        for(int i=0; i < 1000; i++)
+            h.record(1000);
+        h.record(5000000);
+        checkPrecision(h.percentile(99.9), 1000);
+        assert h.percentile(100) == 5000000;
+        assert h.max() == 5000000;
+    }
+
+    public void testLargeAndNegativeValues() {
+        Histogram h=new Histogram();
+        h.record(Long.MAX_VALUE);
+        h.record(-5);
+        assert h.count() == 2;
+        assert h.max() == Long.MAX_VALUE;
+        assert h.percentile(50) == 0;
+        assert h.percentile(100) == Long.MAX_VALUE;
+    }
+
+    public void testReset() {
+        Histogram h=new Histogram();
+        for(int i=0; i < 100; i++)
+            h.record(i);
+        h.reset();
+        assert h.count() == 0 && h.max() == 0 && h.mean() == 0;
+    }
+
+    public void testConcurrentRecording() throws Exception {
+        final Histogram h=new Histogram();
+        final int NUM_THREADS=8, NUM=100000;
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[NUM_THREADS];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    for(int j=1; j <= NUM; j++)
+                        h.record(j);
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join(30000);
+        assert h.count() == NUM_THREADS * NUM : "count=" + h.count();
+        assert h.max() == NUM;
+        assert h.mean() == (NUM + 1) / 2.0;
+    }
+
+
+    /** The value of a percentile is the highest value of its bucket: at most 1/SUB_BUCKETS higher */
+    protected static void checkPrecision(long actual, long expected) {
+        assert actual >= expected && actual <= expected + expected / Histogram.SUB_BUCKETS :
+          "actual=" + actual + ", expected=" + expected;
+    }
+}
@@ -0,0 +1,102 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Instrumentation;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link Instrumentation}
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class InstrumentationTest {
+    protected static final int NUM_MSGS=100;
+    protected JChannel         a, b;
+    protected MyReceiver       ra, rb;
+
+    @BeforeMethod
+    protected void setUp() throws Exception {
+        a=new JChannel(Util.getTestStack()).name("A");
+        b=new JChannel(Util.getTestStack()).name("B");
+        a.setReceiver(ra=new MyReceiver());
+        b.setReceiver(rb=new MyReceiver());
+        a.connect("InstrumentationTest");
+        b.connect("InstrumentationTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod
+    protected void tearDown() throws Exception {Util.close(b, a);}
+
+
+    public void testInstrumentation() throws Exception {
+        ProtocolStack stack_a=a.getProtocolStack();
+        List<Protocol> prots=stack_a.getProtocols();
+        String spec=stack_a.printProtocolSpec(false);
+        a.instrument(true);
+        b.instrument(true);
+        assert stack_a.getProtocols().equals(prots) : "the timers must not be listed as protocols";
+        assert stack_a.printProtocolSpec(false).equals(spec);
+
+        for(int i=0; i < NUM_MSGS; i++) {
+            a.send(null, i);
+            a.send(b.getAddress(), i);
+        }
+        waitForMessages(rb, 2 * NUM_MSGS);
+        waitForMessages(ra, NUM_MSGS);
+
+        Instrumentation instr_a=stack_a.getInstrumentation(), instr_b=b.getProtocolStack().getInstrumentation();
+        System.out.println("A:\n" + instr_a.print() + "\nB:\n" + instr_b.print());
+
+        Protocol nakack_a=stack_a.findProtocol(NAKACK2.class), nakack_b=b.getProtocolStack().findProtocol(NAKACK2.class);
+        Protocol unicast_b=b.getProtocolStack().findProtocol(UNICAST3.class);
+        assert instr_a.getDownTimes(nakack_a).count() >= NUM_MSGS;
+        assert instr_b.getUpTimes(nakack_b).count() > 0;
+        assert instr_b.getUpTimes(unicast_b).count() > 0;
+        assert instr_b.getChannelTimes().count() > 0;
+        assert instr_b.getQueueTimes().count() > 0;
+        // all application messages received by B were sent by A with instrumentation enabled
+        assert instr_b.getDeliveryTimes().count() >= 2 * NUM_MSGS : "delivery times: " + instr_b.getDeliveryTimes();
+        assert instr_b.getDeliveryTimes().max() > 0;
+
+        a.instrument(false);
+        b.instrument(false);
+        assert stack_a.getInstrumentation() == null;
+        assert stack_a.getTransport().getQueueTimes() == null;
+        for(Protocol prot=stack_a.getTopProtocol(); prot != null; prot=prot.getDownProtocol())
+            assert !(prot instanceof Instrumentation.Timer) : "timer still in the stack";
+        assert stack_a.getTopProtocol().getUpProtocol() == stack_a;
+
+        // the stacks still work after removing the timers
+        for(int i=0; i < NUM_MSGS; i++)
+            a.send(b.getAddress(), i);
+        waitForMessages(rb, 3 * NUM_MSGS);
+        assert instr_a.getDownTimes(nakack_a).count() < 3 * NUM_MSGS;
+    }
+
+
+    protected static void waitForMessages(MyReceiver r, int expected) {
+        for(int i=0; i < 20 && r.num.get() < expected; i++)
+            Util.sleep(500);
+        assert r.num.get() == expected : "received " + r.num + " messages, expected " + expected;
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final AtomicInteger num=new AtomicInteger(0);
+
+        public void receive(Message msg) {
+            num.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.util.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests {@link LocklessTable} and {@link OffHeapMessageStore}
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class LocklessTableTest {
+
+    public void testCreation() {
+        LocklessTable<Integer> table=new LocklessTable<Integer>(100, 10, 0);
+        assert table.capacity() == 128 && table.getSegmentSize() == 16;
+        assert table.isEmpty() && table.get(15) == null;
+        assert table.getHighestDelivered() == 0 && table.getHighestReceived() == 0;
+    }
+
+    public void testAddAndRemove() {
+        LocklessTable<Integer> table=new LocklessTable<Integer>(64, 8, 0);
+        for(int i=1; i <= 20; i++)
+            assert table.add(i, i);
+        assert !table.add(5, 5) : "duplicates must be rejected";
+        assert table.size() == 20 && table.getHighestReceived() == 20;
+
+        for(int i=1; i <= 10; i++)
+            assert table.remove(false) == i;
+        assert table.getHighestDelivered() == 10 && table.size() == 10;
+
+        List<Integer> list=table.removeMany(new AtomicBoolean(false), true, 0);
+        assert list.size() == 10 && list.get(0) == 11 && list.get(9) == 20;
+        assert table.isEmpty() && table.getLow() == 20;
+        assert !table.add(15, 15) : "seqnos <= highest delivered must be rejected";
+    }
+
+    public void testAddWithGaps() {
+        LocklessTable<Integer> table=new LocklessTable<Integer>(64, 8, 0);
+        for(long seqno: new long[]{1,2,4,6,10})
+            table.add(seqno, (int)seqno);
+        assert table.remove(false) == 1 && table.remove(false) == 2;
+        assert table.remove(false) == null;
+        SeqnoList missing=table.getMissing();
+        System.out.println("missing = " + missing);
+        assert missing.size() == 5 && table.getNumMissing() == 5;
+        table.add(3, 3);
+        assert table.getHighestDeliverable() == 4;
+    }
+
+    public void testCapacity() {
+        LocklessTable<Integer> table=new LocklessTable<Integer>(32, 8, 0);
+        for(int i=1; i <= 31; i++)
+            assert table.add(i, i);
+        assert !table.add(40, 40) : "table is full";
+        assert table.getNumRejected() == 1;
+
+        table.removeMany(new AtomicBoolean(false), false, 0);
+        table.purge(31);
+        assert table.getLow() == 31;
+        assert table.add(40, 40) && table.add(62, 62);
+    }
+
+    public void testPurge() {
+        LocklessTable<Integer> table=new LocklessTable<Integer>(64, 8, 0);
+        for(int i=1; i <= 30; i++)
+            table.add(i, i);
+        table.purge(20);
+        assert table.getLow() == 0 : "elements which haven't been delivered yet must not be purged";
+
+        for(int i=1; i <= 25; i++)
+            table.remove(false);
+        table.purge(20);
+        assert table.getLow() == 20 && table.get(15) == null && table.get(21) == 21;
+        assert table.size() == 5;
+
+        table.purge(30, true);
+        assert table.getLow() == 30 && table.getHighestDelivered() == 30 && table.isEmpty();
+    }
+
+    public void testConcurrentAddAndRemove() throws Exception {
+        final LocklessTable<Integer> table=new LocklessTable<Integer>(1024, 64, 0);
+        final int NUM_THREADS=8, NUM=10000;
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] adders=new Thread[NUM_THREADS];
+        for(int i=0; i < adders.length; i++) {
+            final int offset=i;
+            adders[i]=new Thread() {
+                public void run() {
+                    try {latch.await();} catch(InterruptedException e) {}
+                    for(int seqno=offset+1; seqno <= NUM; seqno+=NUM_THREADS)
+                        while(!table.add(seqno, seqno))
+                            Thread.yield();
+                }
+            };
+            adders[i].start();
+        }
+
+        final List<Integer> removed=new ArrayList<Integer>(NUM);
+        final AtomicBoolean processing=new AtomicBoolean(false);
+        latch.countDown();
+        long target=System.currentTimeMillis() + 20000;
+        while(removed.size() < NUM && System.currentTimeMillis() < target) {
+            List<Integer> list=table.removeMany(processing, true, 0);
+            if(list != null)
+                removed.addAll(list);
+            else
+                Thread.yield();
+        }
+        for(Thread adder: adders)
+            adder.join(5000);
+        assert removed.size() == NUM : "removed " + removed.size() + " elements";
+        for(int i=0; i < NUM; i++)
+            assert removed.get(i) == i+1;
+    }
+
+    public void testOffHeapStore() throws Exception {
+        OffHeapMessageStore store=new OffHeapMessageStore(1024, 4);
+        LocklessTable<Message> table=new LocklessTable<Message>(256, 16, 0, store);
+        for(int i=1; i <= 100; i++) {
+            Message msg=new Message(null, null, "hello-" + i)
+              .putHeader((short)1, UNICAST3.Header.createDataHeader(i, (short)1, i == 1));
+            assert table.add(i, msg);
+        }
+        System.out.println("store: " + store);
+        assert store.getNumMessages() == 100 && store.getNumChunksAllocated() > 1;
+
+        Message msg=table.get(50);
+        assert msg.getObject().equals("hello-50");
+        assert ((UNICAST3.Header)msg.getHeader((short)1)).getSeqno() == 50;
+
+        table.purge(100, true);
+        assert store.getNumMessages() == 0 && table.get(50) == null;
+        assert store.getNumFreeChunks() > 0;
+
+        int allocated=store.getNumChunksAllocated();
+        for(int i=101; i <= 110; i++)
+            table.add(i, new Message(null, null, "hello-" + i));
+        assert store.getNumChunksAllocated() == allocated : "free chunks should have been reused";
+        assert table.get(105).getObject().equals("hello-105");
+    }
+}
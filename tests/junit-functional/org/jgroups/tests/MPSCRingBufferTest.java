@@ -0,0 +1,99 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.MPSCRingBuffer;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Functional tests of MPSCRingBuffer
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,description="Functional tests of MPSCRingBuffer")
+public class MPSCRingBufferTest {
+
+    public void testCapacity() {
+        MPSCRingBuffer<Integer> buf=new MPSCRingBuffer<Integer>(1000);
+        assert buf.capacity() == 1024;
+        assert buf.isEmpty();
+        buf=new MPSCRingBuffer<Integer>(8);
+        assert buf.capacity() == 8;
+    }
+
+    public void testOfferAndPoll() {
+        MPSCRingBuffer<Integer> buf=new MPSCRingBuffer<Integer>(4);
+        for(int i=1; i <= 4; i++)
+            assert buf.offer(i);
+        assert !buf.offer(5) : "buffer should be full: " + buf;
+        assert buf.size() == 4;
+        for(int i=1; i <= 4; i++) {
+            Integer num=buf.poll();
+            assert num == i : "expected " + i + " but got " + num;
+        }
+        assert buf.poll() == null;
+        assert buf.isEmpty();
+        assert buf.offer(5);
+        assert buf.poll() == 5;
+    }
+
+    public void testDrainTo() {
+        MPSCRingBuffer<Integer> buf=new MPSCRingBuffer<Integer>(16);
+        for(int i=1; i <= 10; i++)
+            buf.offer(i);
+        List<Integer> list=new ArrayList<Integer>();
+        assert buf.drainTo(list, 4) == 4;
+        assert list.size() == 4 && list.get(0) == 1 && list.get(3) == 4;
+        list.clear();
+        assert buf.drainTo(list, 100) == 6;
+        assert list.get(0) == 5 && list.get(5) == 10;
+        assert buf.isEmpty();
+    }
+
+    public void testConcurrentProducers() throws Exception {
+        final int NUM_PRODUCERS=10, NUM=10000;
+        final MPSCRingBuffer<Integer> buf=new MPSCRingBuffer<Integer>(128);
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] producers=new Thread[NUM_PRODUCERS];
+        for(int i=0; i < producers.length; i++) {
+            final int id=i;
+            producers[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    for(int j=0; j < NUM; j++) {
+                        while(!buf.offer(id * NUM + j))
+                            Thread.yield();
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        latch.countDown();
+
+        int[] last=new int[NUM_PRODUCERS];
+        for(int i=0; i < last.length; i++)
+            last[i]=-1;
+        int received=0;
+        while(received < NUM_PRODUCERS * NUM) {
+            Integer num=buf.poll();
+            if(num == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer=num / NUM, seqno=num % NUM;
+            assert seqno == last[producer] +1 : "producer " + producer + ": expected " + (last[producer]+1) + " but got " + seqno;
+            last[producer]=seqno;
+            received++;
+        }
+        for(Thread producer: producers)
+            producer.join(10000);
+        assert buf.isEmpty();
+    }
+}
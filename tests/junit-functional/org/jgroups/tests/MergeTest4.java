@@ -0,0 +1,125 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.Digest;
+import org.jgroups.util.MutableDigest;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests a merge between partitions {A,B,C,D} and {E,F} where the subgroup coordinators fetch the digests of their
+ * members in batches of 2 (GMS.max_digest_fetch_batch)
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class MergeTest4 {
+    protected static final int NUM_MSGS=5;
+    protected JChannel a,b,c,d,e,f;
+
+    @BeforeMethod
+    void setUp() throws Exception {
+        a=create("A"); b=create("B"); c=create("C"); d=create("D"); e=create("E"); f=create("F");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a,b,c,d,e,f);
+    }
+
+    @AfterMethod
+    void tearDown() throws Exception {Util.close(f,e,d,c,b,a);}
+
+
+    public void testMergeWithBatchedDigestFetch() throws Exception {
+        for(JChannel ch: channels())
+            for(int i=1; i <= NUM_MSGS; i++)
+                ch.send(null, i);
+
+        List<JChannel> sorted=new ArrayList<JChannel>(channels());
+        Collections.sort(sorted, new Comparator<JChannel>() {
+            public int compare(JChannel o1, JChannel o2) {return o1.getAddress().compareTo(o2.getAddress());}
+        });
+        List<JChannel> first=sorted.subList(0, 4), second=sorted.subList(4, 6);
+        for(JChannel ch: channels()) // wait until all messages have been delivered
+            waitForDelivery(ch);
+        createPartition(first);
+        createPartition(second);
+        for(JChannel ch: channels())
+            System.out.println(ch.getAddress() + ": " + ch.getView());
+
+        Map<Address,View> merge_views=new HashMap<Address,View>(2);
+        merge_views.put(first.get(0).getAddress(), first.get(0).getView());
+        merge_views.put(second.get(0).getAddress(), second.get(0).getView());
+        JChannel merge_leader=first.get(0);
+        GMS gms=(GMS)merge_leader.getProtocolStack().findProtocol(GMS.class);
+        gms.up(new Event(Event.MERGE, merge_views));
+
+        Util.waitUntilAllChannelsHaveSameSize(20000, 500, a,b,c,d,e,f);
+        for(JChannel ch: channels()) {
+            View view=ch.getView();
+            System.out.println(ch.getAddress() + ": " + view);
+            assert view.size() == 6 : ch.getAddress() + "'s view: " + view;
+        }
+
+        // the merged digest must contain the seqnos of all members, fetched from all members of the first partition
+        for(JChannel ch: channels()) {
+            Digest digest=((NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class)).getDigest();
+            for(JChannel sender: channels()) {
+                long[] seqnos=digest.get(sender.getAddress());
+                assert seqnos != null && seqnos[0] >= NUM_MSGS
+                  : ch.getAddress() + ": seqnos of " + sender.getAddress() + " are " + Arrays.toString(seqnos);
+            }
+        }
+
+        System.out.println("merge stats of " + merge_leader.getAddress() + ":\n" + gms.printMergeStats());
+        assert !gms.printMergeStats().contains("n/a");
+    }
+
+
+    protected List<JChannel> channels() {return Arrays.asList(a,b,c,d,e,f);}
+
+    protected static JChannel create(String name) throws Exception {
+        JChannel ch=new JChannel(Util.getTestStack()).name(name);
+        ((GMS)ch.getProtocolStack().findProtocol(GMS.class)).setValue("max_digest_fetch_batch", 2);
+        ch.connect("MergeTest4");
+        return ch;
+    }
+
+    protected void waitForDelivery(JChannel ch) {
+        NAKACK2 nakack=(NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(JChannel sender: channels()) {
+                long[] seqnos=nakack.getDigest().get(sender.getAddress());
+                if(seqnos == null || seqnos[0] < NUM_MSGS)
+                    done=false;
+            }
+            if(done)
+                break;
+            Util.sleep(500);
+        }
+    }
+
+    /** Installs a view of the given channels (with the highest view-id + 1) in all of them */
+    protected static void createPartition(List<JChannel> channels) {
+        List<Address> members=new ArrayList<Address>(channels.size());
+        long view_id=0;
+        for(JChannel ch: channels) {
+            members.add(ch.getAddress());
+            view_id=Math.max(view_id, ch.getView().getViewId().getId());
+        }
+        View view=new View(members.get(0), view_id + 1, members);
+        MutableDigest digest=new MutableDigest(channels.size());
+        for(JChannel ch: channels) {
+            NAKACK2 nakack=(NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);
+            digest.merge(nakack.getDigest(ch.getAddress()));
+        }
+        for(JChannel ch: channels) {
+            GMS gms=(GMS)ch.getProtocolStack().findProtocol(GMS.class);
+            gms.installView(view, digest);
+        }
+    }
+}
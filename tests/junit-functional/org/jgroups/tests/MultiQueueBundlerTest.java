@@ -0,0 +1,104 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests the "multi" bundler of TP (one lock-free queue per destination)
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class MultiQueueBundlerTest {
+    protected JChannel a, b;
+    protected static final int NUM_SENDERS=8, NUM_MSGS=500;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=create("A");
+        b=create("B");
+        a.connect("MultiQueueBundlerTest");
+        b.connect("MultiQueueBundlerTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+
+    public void testMulticastsAndUnicasts() throws Exception {
+        MyReceiver ra=new MyReceiver(), rb=new MyReceiver();
+        a.setReceiver(ra);
+        b.setReceiver(rb);
+
+        final Address dest=b.getAddress();
+        Thread[] senders=new Thread[NUM_SENDERS];
+        for(int i=0; i < senders.length; i++) {
+            final int id=i;
+            senders[i]=new Thread() {
+                public void run() {
+                    for(int j=1; j <= NUM_MSGS; j++) {
+                        try {
+                            // even senders multicast, odd senders unicast to B
+                            a.send(new Message(id % 2 == 0? null : dest, null, new Integer[]{id, j}));
+                        }
+                        catch(Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            };
+            senders[i].start();
+        }
+        for(Thread sender: senders)
+            sender.join(20000);
+
+        int expected_a=NUM_SENDERS / 2 * NUM_MSGS, expected_b=NUM_SENDERS * NUM_MSGS;
+        for(int i=0; i < 30; i++) {
+            if(ra.size() == expected_a && rb.size() == expected_b)
+                break;
+            Util.sleep(500);
+        }
+        System.out.println("A received " + ra.size() + ", B received " + rb.size() + " messages");
+        assert ra.size() == expected_a : "A: expected " + expected_a + " messages, but got " + ra.size();
+        assert rb.size() == expected_b : "B: expected " + expected_b + " messages, but got " + rb.size();
+        ra.checkOrder();
+        rb.checkOrder();
+    }
+
+
+    protected static JChannel create(String name) throws Exception {
+        JChannel ch=new JChannel(Util.getTestStack());
+        ch.getProtocolStack().getTransport().setValue("bundler_type", "multi").setValue("bundler_capacity", 64);
+        ch.setName(name);
+        return ch;
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Integer[]>                 msgs=new CopyOnWriteArrayList<Integer[]>();
+        protected final ConcurrentMap<Integer,Integer>  last=new ConcurrentHashMap<Integer,Integer>();
+
+        public int size() {return msgs.size();}
+
+        public void receive(Message msg) {
+            msgs.add((Integer[])msg.getObject());
+        }
+
+        /** Messages from the same sender thread have to be received in FIFO order */
+        protected void checkOrder() {
+            for(Integer[] msg: msgs) {
+                Integer prev=last.put(msg[0], msg[1]);
+                int expected=prev == null? 1 : prev +1;
+                assert msg[1] == expected : "sender " + msg[0] + ": expected " + expected + ", but got " + msg[1];
+            }
+        }
+    }
+}
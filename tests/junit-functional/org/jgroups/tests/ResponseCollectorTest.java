@@ -39,8 +39,8 @@ public class ResponseCollectorTest {
         System.out.println("coll = " + coll);
         assert coll.size() == 2;
         assert !coll.hasAllResponses();
-        coll.add(c, 3); // will get dropped
-        coll.add(b, 2);
+        assert !coll.add(c, 3); // will get dropped
+        assert coll.add(b, 2);
         System.out.println("coll = " + coll);
         assert coll.size() == 2;
         assert coll.hasAllResponses();
@@ -0,0 +1,245 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.DirectExecutor;
+import org.jgroups.util.SerialExecutor;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link SerialExecutor} and per-sender delivery of regular messages in the transport
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class SerialExecutorTest {
+
+    public void testOrderPerKey() throws Exception {
+        final int NUM_KEYS=5, NUM=10000;
+        ExecutorService pool=Executors.newFixedThreadPool(4);
+        try {
+            SerialExecutor<Integer> executor=new SerialExecutor<Integer>(pool, 10);
+            final List<List<Integer>> lists=new ArrayList<List<Integer>>(NUM_KEYS);
+            for(int i=0; i < NUM_KEYS; i++)
+                lists.add(new ArrayList<Integer>(NUM));
+            final CountDownLatch latch=new CountDownLatch(NUM_KEYS * NUM);
+
+            for(int i=0; i < NUM; i++) {
+                for(int key=0; key < NUM_KEYS; key++) {
+                    final List<Integer> list=lists.get(key);
+                    final int num=i;
+                    executor.execute(key, new Runnable() {
+                        public void run() {
+                            list.add(num); // not synchronized: tasks of the same key never run concurrently
+                            latch.countDown();
+                        }
+                    });
+                }
+            }
+            assert latch.await(20, TimeUnit.SECONDS);
+            for(List<Integer> list: lists) {
+                assert list.size() == NUM;
+                for(int i=0; i < NUM; i++)
+                    assert list.get(i) == i;
+            }
+            assert executor.getNumQueuedTasks() == 0;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** A blocked key must not prevent the tasks of other keys from running */
+    public void testKeysRunConcurrently() throws Exception {
+        ExecutorService pool=Executors.newFixedThreadPool(2);
+        try {
+            SerialExecutor<String> executor=new SerialExecutor<String>(pool, 0);
+            final CountDownLatch blocker=new CountDownLatch(1), done=new CountDownLatch(1);
+            executor.execute("A", new Runnable() {
+                public void run() {
+                    try {blocker.await();} catch(InterruptedException e) {}
+                }
+            });
+            executor.execute("B", new Runnable() {
+                public void run() {done.countDown();}
+            });
+            assert done.await(10, TimeUnit.SECONDS) : "task of B was blocked by A";
+            blocker.countDown();
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Drainers rejected by a discarding pool must be run by the caller rather than being dropped */
+    public void testRejectedDrainersAreNotDropped() throws Exception {
+        ThreadPoolExecutor pool=new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                                       new SynchronousQueue<Runnable>(),
+                                                       new ThreadPoolExecutor.DiscardPolicy());
+        SerialExecutor.protect(pool);
+        try {
+            SerialExecutor<Integer> executor=new SerialExecutor<Integer>(pool, 1);
+            final AtomicInteger count=new AtomicInteger();
+            final CountDownLatch blocker=new CountDownLatch(1);
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {blocker.await();} catch(InterruptedException e) {}
+                }
+            });
+            for(int i=0; i < 100; i++) {
+                executor.execute(i % 3, new Runnable() {
+                    public void run() {count.incrementAndGet();}
+                });
+            }
+            assert count.get() == 100 : "count=" + count;
+            blocker.countDown();
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** A drainer whose resubmission is rejected must keep draining rather than recursing (StackOverflowError) */
+    public void testRejectedResubmissionDoesNotRecurse() throws Exception {
+        final int NUM=200000;
+        ThreadPoolExecutor pool=new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                                       new SynchronousQueue<Runnable>(),
+                                                       new ThreadPoolExecutor.DiscardPolicy());
+        SerialExecutor.protect(pool);
+        try {
+            final SerialExecutor<Integer> executor=new SerialExecutor<Integer>(pool, 1);
+            final AtomicInteger count=new AtomicInteger();
+            final CountDownLatch blocker=new CountDownLatch(1);
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {blocker.await();} catch(InterruptedException e) {}
+                }
+            });
+            final Runnable task=new Runnable() {
+                public void run() {count.incrementAndGet();}
+            };
+            // the drainer is run by this thread; every resubmission after a task is rejected by the saturated pool
+            executor.execute(1, new Runnable() {
+                public void run() {
+                    for(int i=0; i < NUM; i++)
+                        executor.execute(1, task);
+                }
+            });
+            assert count.get() == NUM : "count=" + count;
+            assert executor.getNumQueuedTasks() == 0;
+            blocker.countDown();
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** A drainer queued in a pool with a DiscardOldestPolicy must be run rather than discarded */
+    public void testQueuedDrainerIsNotDiscarded() throws Exception {
+        ThreadPoolExecutor pool=new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                                       new ArrayBlockingQueue<Runnable>(1),
+                                                       new ThreadPoolExecutor.DiscardOldestPolicy());
+        SerialExecutor.protect(pool);
+        try {
+            SerialExecutor<Integer> executor=new SerialExecutor<Integer>(pool, 0);
+            final AtomicInteger count=new AtomicInteger();
+            final CountDownLatch blocker=new CountDownLatch(1);
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {blocker.await();} catch(InterruptedException e) {}
+                }
+            });
+            Runnable task=new Runnable() {
+                public void run() {count.incrementAndGet();}
+            };
+            executor.execute(1, task); // the drainer is queued
+            pool.execute(new Runnable() {public void run() {}}); // discards the oldest queued task: the drainer
+            assert count.get() == 1 : "the queued drainer was discarded";
+
+            blocker.countDown();
+            for(int i=0; i < 10; i++)
+                executor.execute(1, task);
+            for(int i=0; i < 20 && count.get() < 11; i++)
+                Util.sleep(100);
+            assert count.get() == 11 : "count=" + count;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public void testRetainAll() {
+        SerialExecutor<String> executor=new SerialExecutor<String>(new DirectExecutor(), 0);
+        for(String key: Arrays.asList("A", "B", "C"))
+            executor.execute(key, new Runnable() {public void run() {}});
+        assert executor.size() == 3;
+        executor.retainAll(Arrays.asList("B"));
+        assert executor.size() == 1;
+    }
+
+    public void testPerSenderDelivery() throws Exception {
+        final int NUM=1000;
+        JChannel a=null, b=null;
+        try {
+            a=createChannel("A");
+            b=createChannel("B");
+            a.connect("SerialExecutorTest");
+            b.connect("SerialExecutorTest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            MyReceiver ra=new MyReceiver(), rb=new MyReceiver();
+            a.setReceiver(ra);
+            b.setReceiver(rb);
+            for(int i=1; i <= NUM; i++) {
+                a.send(null, i);
+                b.send(null, i);
+            }
+            for(int i=0; i < 20 && (ra.count() < NUM*2 || rb.count() < NUM*2); i++)
+                Util.sleep(500);
+
+            for(MyReceiver r: Arrays.asList(ra, rb)) {
+                assert r.count() == NUM*2 : "received " + r.count() + " messages";
+                assert r.errors.get() == 0 : r.errors + " messages were received out of order";
+            }
+            assert a.getProtocolStack().getTransport().getNumSenderQueues() > 0;
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        Protocol[] stack=Util.getTestStack();
+        stack[0].setValue("per_sender_delivery", true);
+        JChannel ch=new JChannel(stack);
+        ch.setName(name);
+        return ch;
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final ConcurrentMap<Object,Integer> last=new ConcurrentHashMap<Object,Integer>();
+        protected final AtomicInteger                 received=new AtomicInteger(), errors=new AtomicInteger();
+
+        public int count() {return received.get();}
+
+        public void receive(Message msg) {
+            int num=(Integer)msg.getObject();
+            Integer prev=last.put(msg.getSrc(), num);
+            if(num != (prev == null? 1 : prev + 1))
+                errors.incrementAndGet();
+            received.incrementAndGet();
+        }
+    }
+}
@@ -11,6 +11,7 @@ import org.jgroups.protocols.relay.RELAY2;
 import org.jgroups.protocols.relay.SiteMaster;
 import org.jgroups.protocols.relay.SiteUUID;
 import org.jgroups.stack.GossipData;
+import org.jgroups.stack.Instrumentation;
 import org.jgroups.stack.IpAddress;
 import org.jgroups.util.*;
 import org.jgroups.util.UUID;
@@ -329,6 +330,24 @@ public class SizeTest {
     }
 
 
+    public static void testStableHeaderIndexedByView() throws Exception {
+        Address a=Util.createRandomAddress("A");
+        ViewId view_id=new ViewId(a, 22);
+        long[] seqnos={200, 205, -1, -1, 0, 0, 5, 1000};
+        STABLE.StableHeader hdr=new STABLE.StableHeader(STABLE.StableHeader.STABLE_GOSSIP, view_id, seqnos);
+        _testSize(hdr);
+
+        byte[] buf=Util.streamableToByteBuffer(hdr);
+        STABLE.StableHeader hdr2=(STABLE.StableHeader)Util.streamableFromByteBuffer(STABLE.StableHeader.class, buf);
+        assert hdr2.getType() == STABLE.StableHeader.STABLE_GOSSIP;
+        assert hdr2.getViewId().equals(view_id);
+        assert Arrays.equals(seqnos, hdr2.getSeqnos()) : "seqnos: " + Arrays.toString(hdr2.getSeqnos());
+
+        hdr=new STABLE.StableHeader(STABLE.StableHeader.STABILITY, view_id, new long[0]);
+        _testSize(hdr);
+    }
+
+
     public static void testSequencerHeader() throws Exception {
         org.jgroups.protocols.SEQUENCER.SequencerHeader hdr;
         hdr=new SEQUENCER.SequencerHeader((byte)1, 1L);
@@ -402,6 +421,31 @@ public class SizeTest {
     }
 
 
+    public static void testDeltaView() throws Exception {
+        Address a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B"), c=Util.createRandomAddress("C"),
+          d=Util.createRandomAddress("D");
+        View v1=Util.createView(a, 1, a, b, c), v2=Util.createView(a, 2, a, c, d);
+        DeltaView delta=DeltaView.create(v1, v2);
+        System.out.println("delta = " + delta);
+        _testSize(delta);
+        DeltaView delta2=(DeltaView)Util.streamableFromByteBuffer(DeltaView.class, Util.streamableToByteBuffer(delta));
+        assert delta2.getRefViewId().equals(v1.getViewId());
+        assert Arrays.equals(delta2.getLeftMembers(), new Address[]{b});
+        assert Arrays.equals(delta2.getNewMembers(), new Address[]{d});
+        View view=delta2.createView(v1);
+        assert view.getViewId().equals(v2.getViewId()) && view.getMembers().equals(v2.getMembers());
+
+        assert DeltaView.create(v1, Util.createView(a, 2, c, a, b)) == null : "order of members changed";
+        try {
+            delta2.createView(v2);
+            assert false : "creating a view from the wrong reference view should have failed";
+        }
+        catch(IllegalStateException ex) {
+            System.out.println("got exception as expected: " + ex);
+        }
+    }
+
+
     public static void testMergeView() throws Exception {
         ViewId vid=new ViewId(UUID.randomUUID(), 322649);
         List<Address> mbrs=new ArrayList<Address>();
@@ -562,6 +606,44 @@ public class SizeTest {
     }
 
 
+    /** A digest whose members are in the view is written without addresses */
+    public static void testGmsHeaderWithDigest() throws Exception {
+        Address a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B"), c=Util.createRandomAddress("C"),
+          d=Util.createRandomAddress("D");
+        View v1=Util.createView(a, 1, a, b, c), v2=Util.createView(a, 2, a, b, c, d);
+        MutableDigest digest=new MutableDigest(4);
+        digest.add(c, 5, 10);
+        digest.add(a, 1000, 1050);
+        digest.add(b, 700, 700);
+
+        GMS.GmsHeader hdr=new GMS.GmsHeader(GMS.GmsHeader.VIEW, v1).setDigest(digest);
+        GMS.GmsHeader hdr2=_testSizeAndDigest(hdr);
+        assert hdr2.size() < hdr.getView().serializedSize() + digest.serializedSize() : "digest was written with addresses";
+
+        digest.add(d, 0, 0); // not a member of v1: the addresses have to be written
+        hdr=new GMS.GmsHeader(GMS.GmsHeader.VIEW, v1).setDigest(digest);
+        _testSizeAndDigest(hdr);
+
+        MutableDigest join_digest=new MutableDigest(1);
+        join_digest.add(d, 0, 0);
+        hdr=new GMS.GmsHeader(GMS.GmsHeader.VIEW, DeltaView.create(v1, v2)).setDigest(join_digest);
+        hdr2=_testSizeAndDigest(hdr);
+        assert hdr2.getView() instanceof DeltaView;
+
+        hdr=new GMS.GmsHeader(GMS.GmsHeader.VIEW, new MergeView(v2.getViewId(), v2.getMembers(), null)).setDigest(digest);
+        hdr2=_testSizeAndDigest(hdr);
+        assert hdr2.getView() instanceof MergeView;
+    }
+
+    protected static GMS.GmsHeader _testSizeAndDigest(GMS.GmsHeader hdr) throws Exception {
+        _testSize(hdr);
+        GMS.GmsHeader hdr2=(GMS.GmsHeader)Util.streamableFromByteBuffer(GMS.GmsHeader.class, Util.streamableToByteBuffer(hdr));
+        assert hdr.getDigest().equals(hdr2.getDigest()) : "digest: " + hdr.getDigest() + ", read: " + hdr2.getDigest();
+        assert hdr.getView().getViewId().equals(hdr2.getView().getViewId());
+        return hdr2;
+    }
+
+
     public static void testFCHeader() throws Exception {
         FcHeader hdr=new FcHeader(FcHeader.REPLENISH);
         _testSize(hdr);
@@ -573,6 +655,17 @@ public class SizeTest {
         _testSize(hdr);
     }
 
+    public static void testFrag2Header() throws Exception {
+        Frag2Header hdr=new Frag2Header(322649, 1, 10, 10000000, 60000);
+        _testSize(hdr);
+    }
+
+
+    public static void testTimeHeader() throws Exception {
+        Instrumentation.TimeHeader hdr=new Instrumentation.TimeHeader(Instrumentation.wallClockNanos());
+        _testSize(hdr);
+    }
+
 
     public static void testCompressHeader() throws Exception {
         COMPRESS.CompressHeader hdr=new COMPRESS.CompressHeader(2002);
@@ -618,6 +711,23 @@ public class SizeTest {
         _testSize(hdr);
     }
 
+    public static void testSegmentHeader() throws Exception {
+        _testSize(new STATE_PARALLEL.SegmentHeader(STATE_PARALLEL.SegmentHeader.INFO_REQ));
+        MutableDigest digest=new MutableDigest(2);
+        digest.add(new IpAddress("127.0.0.1", 5555), 200, 205);
+        _testSize(new STATE_PARALLEL.SegmentHeader(STATE_PARALLEL.SegmentHeader.INFO_RSP).segment(-1));
+        _testSize(new STATE_PARALLEL.SegmentHeader(STATE_PARALLEL.SegmentHeader.INFO_RSP).segment(10).digest(digest));
+        _testSize(new STATE_PARALLEL.SegmentHeader(STATE_PARALLEL.SegmentHeader.INFO_REQ).versioned(true));
+        _testSize(new STATE_PARALLEL.SegmentHeader(STATE_PARALLEL.SegmentHeader.INFO_RSP).segment(3).digest(digest)
+                    .versions(new long[]{1, -1, 322649}));
+        _testSize(new STATE_PARALLEL.SegmentHeader(STATE_PARALLEL.SegmentHeader.SEGMENTS_REQ));
+        _testSize(new STATE_PARALLEL.SegmentHeader(STATE_PARALLEL.SegmentHeader.SEGMENTS_REQ).segments(new int[]{1,3,5}));
+        _testSize(new STATE_PARALLEL.SegmentHeader(STATE_PARALLEL.SegmentHeader.DATA).segment(3).seqno(322649));
+        _testSize(new STATE_PARALLEL.SegmentHeader(STATE_PARALLEL.SegmentHeader.DATA).segment(3).seqno(5).checksum(-17));
+        _testSize(new STATE_PARALLEL.SegmentHeader(STATE_PARALLEL.SegmentHeader.EOF).segment(3).seqno(1000));
+        _testSize(new STATE_PARALLEL.SegmentHeader(STATE_PARALLEL.SegmentHeader.ACK).segment(7).seqno(24));
+    }
+
 
     public static void testRelay2Header() throws Exception {
         Address dest=new SiteMaster((short)0);
@@ -634,6 +744,7 @@ public class SizeTest {
         _testSize(hdr);
         hdr=new ENCRYPT.EncryptHeader((short)2, "Hello world");
         _testSize(hdr);
+        _testSize(hdr.setIv(new byte[12]));
     }
 
 
@@ -0,0 +1,106 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.StripedLongMap;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link StripedLongMap}
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class StripedLongMapTest {
+
+    public void testPutGetRemove() {
+        StripedLongMap<String> map=new StripedLongMap<String>(4);
+        assert map.isEmpty();
+        assert map.putIfAbsent(1, "one") == null;
+        assert map.putIfAbsent(1, "uno").equals("one");
+        assert map.putIfAbsent(-5, "minus five") == null;
+        assert map.putIfAbsent(Long.MAX_VALUE, "max") == null;
+        assert map.size() == 3;
+        assert map.get(1).equals("one") && map.get(-5).equals("minus five") && map.get(Long.MAX_VALUE).equals("max");
+        assert map.get(2) == null;
+        assert map.remove(1).equals("one");
+        assert map.remove(1) == null;
+        assert map.get(1) == null;
+        assert map.size() == 2;
+        map.clear();
+        assert map.isEmpty() && map.get(-5) == null;
+    }
+
+    /** Adds and removes random keys, and compares the contents with a HashMap */
+    public void testRandomOperations() {
+        StripedLongMap<Long> map=new StripedLongMap<Long>(2);
+        Map<Long,Long> expected=new HashMap<Long,Long>();
+        Random random=new Random(42);
+        for(int i=0; i < 200000; i++) {
+            long key=random.nextInt(5000);
+            if(random.nextBoolean()) {
+                Long existing=expected.get(key);
+                if(existing == null)
+                    expected.put(key, key);
+                assert equal(map.putIfAbsent(key, key), existing);
+            }
+            else
+                assert equal(map.remove(key), expected.remove(key));
+        }
+        assert map.size() == expected.size();
+        for(long key=0; key < 5000; key++)
+            assert equal(map.get(key), expected.get(key)) : "key " + key + ": " + map.get(key) + ", expected " + expected.get(key);
+        assert map.values().size() == expected.size();
+    }
+
+    public void testGrowAndShrink() {
+        StripedLongMap<Long> map=new StripedLongMap<Long>(1);
+        for(long i=1; i <= 100000; i++)
+            map.putIfAbsent(i, i);
+        assert map.size() == 100000;
+        for(long i=1; i <= 100000; i++)
+            assert map.remove(i) == i;
+        assert map.isEmpty();
+        map.putIfAbsent(7, 7L);
+        assert map.get(7) == 7;
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final StripedLongMap<Long> map=new StripedLongMap<Long>();
+        final AtomicInteger ids=new AtomicInteger(0), errors=new AtomicInteger(0);
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[8];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    for(int j=0; j < 50000; j++) {
+                        long id=ids.incrementAndGet();
+                        map.putIfAbsent(id, id);
+                        if(map.get(id) != id || map.remove(id) != id)
+                            errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join(30000);
+        assert errors.get() == 0 : errors + " errors";
+        assert map.isEmpty() : "size=" + map.size();
+    }
+
+    protected static boolean equal(Long a, Long b) {
+        return a == null? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,197 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link ThreadPerTaskExecutor} and the executor factories
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class ThreadPerTaskExecutorTest {
+
+    public void testMaxThreads() throws Exception {
+        ThreadPerTaskExecutor executor=new ThreadPerTaskExecutor(3, new LinkedBlockingQueue<Runnable>(100), null, null);
+        final AtomicInteger running=new AtomicInteger(), max_running=new AtomicInteger();
+        final CountDownLatch done=new CountDownLatch(20);
+        try {
+            for(int i=0; i < 20; i++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        int num=running.incrementAndGet();
+                        synchronized(max_running) {
+                            if(num > max_running.get())
+                                max_running.set(num);
+                        }
+                        Util.sleep(20);
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            assert done.await(10, TimeUnit.SECONDS);
+            System.out.println("executor: " + executor);
+            assert max_running.get() <= 3 : "max running tasks: " + max_running;
+            assert executor.getLargestPoolSize() <= 3;
+            for(int i=0; i < 20 && executor.getCompletedTaskCount() < 20; i++)
+                Util.sleep(100);
+            assert executor.getCompletedTaskCount() == 20;
+            for(int i=0; i < 20 && executor.getActiveCount() > 0; i++)
+                Util.sleep(100);
+            assert executor.getActiveCount() == 0 && executor.getQueue().isEmpty();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testRejection() throws Exception {
+        ThreadPerTaskExecutor executor=new ThreadPerTaskExecutor(1, new ArrayBlockingQueue<Runnable>(2),
+                                                                 new ThreadPoolExecutor.AbortPolicy(), null);
+        CountDownLatch blocker=new CountDownLatch(1);
+        try {
+            for(int i=0; i < 3; i++) // 1 running, 2 queued
+                executor.execute(new Blocker(blocker));
+            assert executor.getActiveCount() == 1 && executor.getQueue().size() == 2;
+            try {
+                executor.execute(new Blocker(blocker));
+                assert false : "the 4th task should have been rejected";
+            }
+            catch(RejectedExecutionException expected) {
+            }
+            blocker.countDown();
+        }
+        finally {
+            executor.shutdown();
+            assert executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assert executor.getCompletedTaskCount() == 3 && executor.isTerminated();
+    }
+
+    public void testSetMaximumPoolSize() throws Exception {
+        ThreadPerTaskExecutor executor=new ThreadPerTaskExecutor(1, new LinkedBlockingQueue<Runnable>(), null, null);
+        CountDownLatch blocker=new CountDownLatch(1);
+        try {
+            for(int i=0; i < 5; i++)
+                executor.execute(new Blocker(blocker));
+            assert executor.getActiveCount() == 1 && executor.getQueue().size() == 4;
+            executor.setMaximumPoolSize(5);
+            assert executor.getActiveCount() == 5 && executor.getQueue().isEmpty();
+            blocker.countDown();
+        }
+        finally {
+            executor.shutdown();
+            assert executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    public void testShutdownNow() throws Exception {
+        ThreadPerTaskExecutor executor=new ThreadPerTaskExecutor(2, new LinkedBlockingQueue<Runnable>(), null, null);
+        CountDownLatch blocker=new CountDownLatch(1);
+        for(int i=0; i < 10; i++)
+            executor.execute(new Blocker(blocker));
+        List<Runnable> queued=executor.shutdownNow();
+        assert queued.size() == 8 : "queued tasks: " + queued.size();
+        assert executor.awaitTermination(10, TimeUnit.SECONDS) : "running tasks should have been interrupted";
+        try {
+            executor.execute(new Blocker(blocker));
+            assert false : "tasks submitted after shutdown should be rejected";
+        }
+        catch(RejectedExecutionException expected) {
+        }
+    }
+
+    public void testCreateExecutorFactory() throws Exception {
+        assert Util.createExecutorFactory("pool") instanceof DefaultExecutorFactory;
+        assert Util.createExecutorFactory("virtual") instanceof VirtualThreadExecutorFactory;
+        assert Util.createExecutorFactory(DefaultExecutorFactory.class.getName()) instanceof DefaultExecutorFactory;
+        try {
+            Util.createExecutorFactory(String.class.getName());
+            assert false : "String is not an ExecutorFactory";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+
+        ExecutorService executor=Util.createExecutorFactory("virtual")
+          .create("test", 1, 10, 5000, new SynchronousQueue<Runnable>(), null, new DefaultThreadFactory("test", true));
+        try {
+            assert executor instanceof ThreadPoolExecutor;
+            if(VirtualThreadExecutorFactory.isSupported())
+                assert executor instanceof ThreadPerTaskExecutor;
+            assert executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {return true;}
+            }).get(10, TimeUnit.SECONDS);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Runs a cluster with all transport pools created by the "virtual" executor factory */
+    public void testVirtualThreadPools() throws Exception {
+        final int NUM=500;
+        JChannel a=null, b=null;
+        try {
+            a=createChannel("A");
+            b=createChannel("B");
+            a.connect("ThreadPerTaskExecutorTest");
+            b.connect("ThreadPerTaskExecutorTest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            final AtomicInteger received=new AtomicInteger();
+            b.setReceiver(new ReceiverAdapter() {
+                public void receive(Message msg) {received.incrementAndGet();}
+            });
+            for(int i=0; i < NUM; i++) {
+                Message msg=new Message(null, null, i);
+                if(i % 2 == 0)
+                    msg.setFlag(Message.Flag.OOB);
+                a.send(msg);
+            }
+            for(int i=0; i < 20 && received.get() < NUM; i++)
+                Util.sleep(500);
+            assert received.get() == NUM : "received " + received + " messages";
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        Protocol[] stack=Util.getTestStack();
+        stack[0].setValue("thread_pool_type", "virtual")
+          .setValue("oob_thread_pool_type", "virtual")
+          .setValue("internal_thread_pool_type", "virtual");
+        JChannel ch=new JChannel(stack);
+        ch.setName(name);
+        return ch;
+    }
+
+
+    protected static class Blocker implements Runnable {
+        protected final CountDownLatch latch;
+
+        public Blocker(CountDownLatch latch) {
+            this.latch=latch;
+        }
+
+        public void run() {
+            try {
+                latch.await();
+            }
+            catch(InterruptedException e) {
+            }
+        }
+    }
+}
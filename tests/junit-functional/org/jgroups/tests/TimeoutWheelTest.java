@@ -0,0 +1,94 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.TimeScheduler3;
+import org.jgroups.util.TimeoutWheel;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests {@link TimeoutWheel}
+ * @author Bela Ban
+ * @since  3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class TimeoutWheelTest {
+    protected TimeScheduler timer;
+    protected MyHandler     handler;
+    protected TimeoutWheel  wheel;
+
+    @BeforeMethod
+    protected void setUp() {
+        timer=new TimeScheduler3();
+        handler=new MyHandler();
+        wheel=new TimeoutWheel(handler, 16, 10);
+        wheel.start(timer);
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        wheel.stop();
+        timer.stop();
+    }
+
+
+    public void testExpiry() {
+        long start=System.nanoTime();
+        wheel.add(1, 100);
+        wheel.add(2, 300);
+        wheel.add(3, 1000); // more than 1 rotation (160 ms)
+        waitForExpiry(3, 5000);
+        for(long key=1; key <= 3; key++) {
+            long timeout=key == 1? 100 : key == 2? 300 : 1000;
+            long expired=(handler.expired.get(key) - start) / 1000000;
+            assert expired >= timeout : "key " + key + " expired after " + expired + " ms, timeout: " + timeout;
+            assert expired < timeout + 1000 : "key " + key + " expired after " + expired + " ms, timeout: " + timeout;
+        }
+        assert wheel.size() == 0;
+    }
+
+    public void testManyKeys() {
+        for(int i=1; i <= 10000; i++)
+            wheel.add(i, 1 + i % 500);
+        waitForExpiry(10000, 10000);
+        assert wheel.size() == 0;
+    }
+
+    public void testStop() {
+        wheel.add(1, 100);
+        wheel.stop();
+        assert !wheel.isRunning();
+        assert wheel.size() == 0;
+        Util.sleep(300);
+        assert handler.expired.isEmpty();
+    }
+
+
+    protected void waitForExpiry(int expected, long timeout) {
+        long target=System.currentTimeMillis() + timeout;
+        while(handler.expired.size() < expected && System.currentTimeMillis() < target)
+            Util.sleep(50);
+        List<Long> missing=new ArrayList<Long>();
+        for(long key=1; key <= expected; key++)
+            if(!handler.expired.containsKey(key))
+                missing.add(key);
+        assert missing.isEmpty() : missing.size() + " keys didn't expire: " + missing;
+    }
+
+    protected static class MyHandler implements TimeoutWheel.Handler {
+        protected final Map<Long,Long> expired=new ConcurrentHashMap<Long,Long>(); // key, time in ns
+
+        public void expired(long key) {
+            Long existing=expired.put(key, System.nanoTime());
+            assert existing == null : "key " + key + " expired twice";
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.UDP_NIO;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.ResourceManager;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests the UDP_NIO transport
+ * @author Bela Ban
+ * @since 3.3
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class UDP_NIOTest {
+    protected JChannel a, b;
+    protected static final int NUM_MSGS=500;
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+
+    public void testMulticastsAndUnicasts() throws Exception {
+        sendAndReceive(0);
+    }
+
+    public void testMulticastsAndUnicastsWithBufferPool() throws Exception {
+        sendAndReceive(20);
+    }
+
+    public void testReconnect() throws Exception {
+        sendAndReceive(0);
+        b.disconnect();
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a);
+        b.connect("UDP_NIOTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        a.send(b.getAddress(), "hello");
+        MyReceiver rb=(MyReceiver)b.getReceiver();
+        for(int i=0; i < 20 && !rb.list.contains("hello"); i++)
+            Util.sleep(500);
+        assert rb.list.contains("hello");
+    }
+
+
+    protected void sendAndReceive(int buffer_pool_size) throws Exception {
+        String mcast_addr=ResourceManager.getNextMulticastAddress();
+        short mcast_port=ResourceManager.getNextMulticastPort(InetAddress.getByName("127.0.0.1"));
+        a=create("A", mcast_addr, mcast_port, buffer_pool_size);
+        b=create("B", mcast_addr, mcast_port, buffer_pool_size);
+        a.connect("UDP_NIOTest");
+        b.connect("UDP_NIOTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        MyReceiver ra=new MyReceiver(), rb=new MyReceiver();
+        a.setReceiver(ra);
+        b.setReceiver(rb);
+        for(int i=1; i <= NUM_MSGS; i++) {
+            a.send(null, "m" + i);
+            a.send(b.getAddress(), "u" + i);
+        }
+        int expected_a=NUM_MSGS, expected_b=NUM_MSGS * 2;
+        for(int i=0; i < 30; i++) {
+            if(ra.size() == expected_a && rb.size() == expected_b)
+                break;
+            Util.sleep(500);
+        }
+        System.out.println("A received " + ra.size() + ", B received " + rb.size() + " messages");
+        assert ra.size() == expected_a : "A: expected " + expected_a + " messages, but got " + ra.size();
+        assert rb.size() == expected_b : "B: expected " + expected_b + " messages, but got " + rb.size();
+    }
+
+
+    protected static JChannel create(String name, String mcast_addr, short mcast_port, int buffer_pool_size) throws Exception {
+        JChannel ch=Util.createChannel(new UDP_NIO().setValue("bind_addr", InetAddress.getByName("127.0.0.1"))
+                                         .setValue("mcast_group_addr", InetAddress.getByName(mcast_addr))
+                                         .setValue("mcast_port", (int)mcast_port)
+                                         .setValue("receiver_threads", 3)
+                                         .setValue("buffer_pool_size", buffer_pool_size),
+                                       new PING().setValue("timeout", 1000),
+                                       new NAKACK2(),
+                                       new UNICAST3(),
+                                       new STABLE(),
+                                       new GMS().setValue("print_local_addr", false));
+        ch.setName(name);
+        return ch;
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<String> list=new CopyOnWriteArrayList<String>();
+
+        public int size() {return list.size();}
+
+        public void receive(Message msg) {
+            list.add((String)msg.getObject());
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.*;
+import org.jgroups.TimeoutException;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.protocols.pbcast.STABLE_TREE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Table;
+import org.jgroups.util.Util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs N members in a single JVM over an in-memory network and measures how GMS, NAKACK2, STABLE and MERGE3 scale
+ * with the cluster size: join time, view installation latency, message delivery time, stability round time, and
+ * heap and number of packets sent and messages received per member (a packet can contain multiple messages). The
+ * network can inject latency and packet loss.
+ * <p/>
+ * The number of STABLE messages sent in the stability phase (stable-msgs) and received by the coordinator (coord-in)
+ * show how {@link STABLE} (default) and {@link STABLE_TREE} (-fanout) scale.
+ * <p/>
+ * Example: java org.jgroups.tests.perf.ClusterSimulator -members 50,100,200 -latency 1 -jitter 2 -loss 0.01
+ * @author Bela Ban
+ * @since  3.3
+ */
+public class ClusterSimulator {
+    protected static final String CLUSTER="sim";
+    protected static final long   GC_INTERVAL=500;
+
+    protected int[]   sizes={10, 50, 100};
+    protected long    latency;               // fixed latency (ms) of a packet on the network
+    protected long    jitter;                // random latency (ms) added to latency
+    protected double  loss;                  // probability of a packet getting dropped
+    protected int     num_msgs=100;          // number of multicasts sent by every member
+    protected long    gossip_interval=20000; // STABLE.desired_avg_gossip
+    protected long    stability_delay=-1;    // STABLE.stability_delay, -1 uses the default
+    protected int     fanout;                // > 0: uses STABLE_TREE with the given fanout instead of STABLE
+    protected long    timeout=120000;        // max time (ms) to wait for views, deliveries and stability
+
+    // the view-id of all views installed, and when the first and last member installed it
+    protected final ConcurrentMap<ViewId,ViewInstallation> views=new ConcurrentHashMap<ViewId,ViewInstallation>();
+
+    static {
+        ClassConfigurator.addProtocol((short)1501, SimTransport.class);
+    }
+
+
+    public void start() throws Exception {
+        System.out.println("latency=" + latency + "ms, jitter=" + jitter + "ms, loss=" + loss + ", msgs=" + num_msgs +
+                             ", gossip interval=" + gossip_interval + "ms" +
+                             (stability_delay >= 0? ", stability delay=" + stability_delay + "ms" : "") +
+                             (fanout > 0? ", STABLE_TREE (fanout=" + fanout + ")" : ", STABLE") + "\n");
+        System.out.println(String.format("%6s %10s %10s %10s %10s %10s %10s %11s %9s %12s %12s %12s %10s",
+                                         "N", "join-avg", "join-max", "view-avg", "view-max", "delivery", "stability",
+                                         "stable-msgs", "coord-in", "heap/mbr", "pkts-out/mbr", "msgs-in/mbr", "dropped"));
+        for(int size: sizes)
+            run(size);
+    }
+
+
+    protected void run(int num_members) throws Exception {
+        views.clear();
+        Network network=new Network(latency, jitter, loss);
+        Member[] members=new Member[num_members];
+        long heap_before=usedHeap();
+        try {
+            // 1. join time
+            long total_join_time=0, max_join_time=0;
+            for(int i=0; i < members.length; i++) {
+                members[i]=new Member(String.valueOf(i+1), network);
+                long start=System.nanoTime();
+                members[i].ch.connect(CLUSTER);
+                long time=System.nanoTime() - start;
+                total_join_time+=time;
+                max_join_time=Math.max(max_join_time, time);
+            }
+            waitForViews(members);
+
+            // 2. view installation latency: the time between the first and the last member installing a view
+            long total_view_time=0, max_view_time=0;
+            int num_views=0;
+            for(ViewInstallation inst: views.values()) {
+                if(!inst.isComplete())
+                    continue;
+                long time=inst.last - inst.first;
+                total_view_time+=time;
+                max_view_time=Math.max(max_view_time, time);
+                num_views++;
+            }
+
+            // 3. delivery: every member multicasts num_msgs messages
+            long start=System.nanoTime();
+            for(int i=0; i < num_msgs; i++)
+                for(Member member: members)
+                    member.ch.send(null, i);
+            waitForMessages(members, num_members * num_msgs);
+            long delivery_time=System.nanoTime() - start;
+
+            // 4. stability round: every member sends its digest, until all retransmission tables have been purged
+            for(Member member: members)
+                member.stable.resetStats();
+            start=System.nanoTime();
+            waitForStability(members);
+            long stability_time=System.nanoTime() - start;
+            long stable_msgs=0;
+            for(Member member: members)
+                stable_msgs+=member.stable.getStableSent() + member.stable.getStabilitySent();
+            int coord_in=members[0].stable.getStableReceived();
+
+            long heap_per_member=(usedHeap() - heap_before) / num_members;
+            long sent=0, received=0;
+            for(Member member: members) {
+                sent+=member.transport.getNumMessagesSent();
+                received+=member.transport.getNumMessagesReceived();
+            }
+
+            System.out.println(String.format("%6d %10s %10s %10s %10s %10s %10s %11d %9d %12s %12d %12d %10d",
+                                             num_members, ms(total_join_time / num_members), ms(max_join_time),
+                                             ms(num_views > 0? total_view_time / num_views : 0), ms(max_view_time),
+                                             ms(delivery_time), ms(stability_time), stable_msgs, coord_in,
+                                             Util.printBytes(heap_per_member), sent / num_members,
+                                             received / num_members, network.getNumDropped()));
+        }
+        finally {
+            close(members);
+            network.stop();
+        }
+    }
+
+
+    protected void waitForViews(Member[] members) throws TimeoutException {
+        long target=System.currentTimeMillis() + timeout;
+        while(System.currentTimeMillis() < target) {
+            boolean done=true;
+            for(Member member: members) {
+                View view=member.ch.getView();
+                if(view == null || view.size() != members.length) {
+                    done=false;
+                    break;
+                }
+            }
+            if(done)
+                return;
+            Util.sleep(100);
+        }
+        throw new TimeoutException("members didn't have views of " + members.length + " members after " + timeout + " ms");
+    }
+
+    protected void waitForMessages(Member[] members, int expected) throws TimeoutException {
+        long target=System.currentTimeMillis() + timeout;
+        while(System.currentTimeMillis() < target) {
+            boolean done=true;
+            for(Member member: members) {
+                if(member.received.get() < expected) {
+                    done=false;
+                    break;
+                }
+            }
+            if(done)
+                return;
+            Util.sleep(10);
+        }
+        throw new TimeoutException("members didn't receive " + expected + " messages after " + timeout + " ms");
+    }
+
+    /**
+     * Makes all members gossip their digests and waits until every member has purged the messages of every other
+     * member up to the highest seqno sent before. We cannot wait until all tables are empty, as MERGE3 keeps
+     * multicasting INFO messages.<p/>
+     * The coordinator computes the stable digest as the minimum of its digest at the end of the previous round and
+     * the digests received, so purging usually needs 2 rounds. Gossiping is therefore triggered every GC_INTERVAL ms
+     */
+    protected void waitForStability(Member[] members) throws TimeoutException {
+        Map<Address,Long> highest_sent=new HashMap<Address,Long>(members.length);
+        for(Member member: members) {
+            Table<Message> win=member.nakack.getWindow(member.ch.getAddress());
+            highest_sent.put(member.ch.getAddress(), win.getHighestDelivered());
+        }
+        long target=System.currentTimeMillis() + timeout, next_gc=0;
+        while(System.currentTimeMillis() < target) {
+            if(System.currentTimeMillis() >= next_gc) {
+                for(Member member: members)
+                    member.stable.gc();
+                next_gc=System.currentTimeMillis() + GC_INTERVAL;
+            }
+            boolean done=true;
+            outer:
+            for(Member member: members) {
+                for(Map.Entry<Address,Long> entry: highest_sent.entrySet()) {
+                    Table<Message> win=member.nakack.getWindow(entry.getKey());
+                    if(win != null && win.getLow() < entry.getValue()) {
+                        done=false;
+                        break outer;
+                    }
+                }
+            }
+            if(done)
+                return;
+            Util.sleep(10);
+        }
+        throw new TimeoutException("retransmission tables were not purged after " + timeout + " ms");
+    }
+
+    protected static void close(Member[] members) throws InterruptedException {
+        List<Thread> closers=new ArrayList<Thread>(members.length);
+        for(int i=members.length-1; i >= 0; i--) {
+            final Member member=members[i];
+            if(member == null)
+                continue;
+            Thread closer=new Thread() {
+                public void run() {
+                    Util.close(member.ch);
+                }
+            };
+            closer.start();
+            closers.add(closer);
+        }
+        for(Thread closer: closers)
+            closer.join(30000);
+    }
+
+    protected void viewInstalled(View view) {
+        ViewInstallation inst=views.get(view.getViewId());
+        if(inst == null) {
+            ViewInstallation tmp=views.putIfAbsent(view.getViewId(), inst=new ViewInstallation(view.size()));
+            if(tmp != null)
+                inst=tmp;
+        }
+        inst.add(System.nanoTime());
+    }
+
+    protected static long usedHeap() {
+        for(int i=0; i < 3; i++) {
+            System.gc();
+            Util.sleep(100);
+        }
+        Runtime rt=Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    protected static String ms(long nanos) {
+        return String.format("%.2fms", nanos / 1000000.0);
+    }
+
+
+    protected Protocol[] createStack(Network network) {
+        SimTransport transport=new SimTransport(network);
+        transport.setThreadPoolMinThreads(1);
+        transport.setOOBThreadPoolMinThreads(1);
+        transport.setTimerMinThreads(1);
+        STABLE stable=fanout > 0? (STABLE)new STABLE_TREE().setValue("fanout", fanout) : new STABLE();
+        stable.setValue("desired_avg_gossip", gossip_interval);
+        if(stability_delay >= 0)
+            stable.setValue("stability_delay", stability_delay);
+        return new Protocol[] {
+          transport,
+          new PING().setValue("timeout", 1000).setValue("num_initial_members", 3),
+          new MERGE3(),
+          new NAKACK2().setValue("use_mcast_xmit", false),
+          new UNICAST3(),
+          stable,
+          new GMS().setValue("print_local_addr", false)
+        };
+    }
+
+
+    protected class Member extends ReceiverAdapter {
+        protected final JChannel      ch;
+        protected final SimTransport  transport;
+        protected final NAKACK2       nakack;
+        protected final STABLE        stable;
+        protected final AtomicInteger received=new AtomicInteger(0);
+
+        protected Member(String name, Network network) throws Exception {
+            ch=new JChannel(createStack(network)).name(name);
+            ch.setReceiver(this);
+            transport=(SimTransport)ch.getProtocolStack().getTransport();
+            nakack=(NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);
+            stable=(STABLE)ch.getProtocolStack().findProtocol(STABLE.class);
+        }
+
+        public void receive(Message msg) {
+            received.incrementAndGet();
+        }
+
+        public void viewAccepted(View view) {
+            viewInstalled(view);
+        }
+    }
+
+
+    protected static class ViewInstallation {
+        protected final int size;
+        protected long      first, last;
+        protected int       count;
+
+        protected ViewInstallation(int size) {
+            this.size=size;
+        }
+
+        protected synchronized void add(long time) {
+            if(count++ == 0)
+                first=time;
+            last=Math.max(last, time);
+        }
+
+        protected synchronized boolean isComplete() {return count >= size;}
+    }
+
+
+    /** An in-memory network connecting the transports of all members; injects latency and packet loss */
+    public static class Network {
+        protected final ConcurrentMap<Address,SimTransport> members=new ConcurrentHashMap<Address,SimTransport>();
+        protected final long                                latency, jitter;
+        protected final double                              loss;
+        protected final ScheduledExecutorService            wire; // null if packets are delivered without latency
+        protected final AtomicLong                          num_dropped=new AtomicLong(0);
+
+        public Network(long latency, long jitter, double loss) {
+            this.latency=latency;
+            this.jitter=jitter;
+            this.loss=loss;
+            wire=latency > 0 || jitter > 0? Executors.newScheduledThreadPool(4) : null;
+        }
+
+        public long getNumDropped() {return num_dropped.get();}
+
+        public void register(Address addr, SimTransport transport) {members.put(addr, transport);}
+        public void unregister(Address addr)                        {members.remove(addr);}
+
+        public void stop() {
+            if(wire != null)
+                wire.shutdownNow();
+            members.clear();
+        }
+
+        /** Sends a packet to dest, or to all members if dest is null */
+        protected void send(SimTransport sender, Address dest, byte[] data, int offset, int length) {
+            if(wire != null) { // the sender reuses its buffer
+                data=Arrays.copyOfRange(data, offset, offset+length);
+                offset=0;
+            }
+            if(dest == null) {
+                for(SimTransport target: members.values())
+                    deliver(sender, target, data, offset, length);
+            }
+            else {
+                SimTransport target=members.get(dest);
+                if(target != null)
+                    deliver(sender, target, data, offset, length);
+            }
+        }
+
+        protected void deliver(SimTransport sender, final SimTransport target, final byte[] data, final int offset, final int length) {
+            final Address src=sender.getLocalAddress();
+            if(loss > 0 && target != sender && Math.random() < loss) {
+                num_dropped.incrementAndGet();
+                return;
+            }
+            if(wire == null) {
+                target.deliver(src, data, offset, length);
+                return;
+            }
+            long delay=latency + (jitter > 0? Util.random(jitter) : 0);
+            try {
+                wire.schedule(new Runnable() {
+                    public void run() {
+                        target.deliver(src, data, offset, length);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            catch(RejectedExecutionException ex) { // network has been stopped
+            }
+        }
+    }
+
+
+    /** Transport sending packets over a {@link Network} */
+    public static class SimTransport extends SHARED_LOOPBACK {
+        protected final Network network;
+
+        public SimTransport(Network network) {
+            this.network=network;
+        }
+
+        public Address getLocalAddress() {return local_addr;}
+
+        public void sendMulticast(byte[] data, int offset, int length) throws Exception {
+            network.send(this, null, data, offset, length);
+        }
+
+        public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
+            network.send(this, dest, data, offset, length);
+        }
+
+        protected void sendToSingleMember(Address dest, byte[] buf, int offset, int length) throws Exception {
+            network.send(this, dest, buf, offset, length);
+        }
+
+        protected void deliver(Address sender, byte[] data, int offset, int length) {
+            receive(sender, data, offset, length);
+        }
+
+        public Object down(Event evt) {
+            Object retval=super.down(evt);
+            switch(evt.getType()) {
+                case Event.CONNECT:
+                case Event.CONNECT_WITH_STATE_TRANSFER:
+                case Event.CONNECT_USE_FLUSH:
+                case Event.CONNECT_WITH_STATE_TRANSFER_USE_FLUSH:
+                    network.register(local_addr, this);
+                    break;
+                case Event.DISCONNECT:
+                    network.unregister(local_addr);
+                    break;
+            }
+            return retval;
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        ClusterSimulator sim=new ClusterSimulator();
+        for(int i=0; i < args.length; i++) {
+            if("-members".equals(args[i])) {
+                sim.sizes=Util.parseCommaDelimitedInts(args[++i]);
+                continue;
+            }
+            if("-latency".equals(args[i])) {
+                sim.latency=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-jitter".equals(args[i])) {
+                sim.jitter=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-loss".equals(args[i])) {
+                sim.loss=Double.parseDouble(args[++i]);
+                continue;
+            }
+            if("-msgs".equals(args[i])) {
+                sim.num_msgs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-gossip".equals(args[i])) {
+                sim.gossip_interval=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-stability_delay".equals(args[i])) {
+                sim.stability_delay=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-fanout".equals(args[i])) {
+                sim.fanout=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-timeout".equals(args[i])) {
+                sim.timeout=Long.parseLong(args[++i]);
+                continue;
+            }
+            help();
+            return;
+        }
+        sim.start();
+        System.exit(0);
+    }
+
+    static void help() {
+        System.out.println("ClusterSimulator [-members <comma-separated list of cluster sizes>] [-latency <ms>] " +
+                             "[-jitter <ms>] [-loss <probability of dropping a packet, e.g. 0.01>] " +
+                             "[-msgs <multicasts sent by every member>] [-gossip <STABLE gossip interval in ms>] " +
+                             "[-stability_delay <ms>] [-fanout <use STABLE_TREE with the given fanout>] [-timeout <ms>]");
+    }
+}